@@ -0,0 +1,157 @@
+package persistencia;
+
+import model.Producte;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utilidades compartidas por los benchmarks: generación de ficheros de productos de prueba y control de la
+ * caché de páginas del sistema operativo.
+ * <p>
+ * Cada fichero generado se guarda en {@code target/jmh-datos} y se reutiliza en las siguientes ejecuciones. Los
+ * benchmarks trabajan siempre sobre una copia, de modo que el original no se modifica.
+ * </p>
+ */
+final class FitxersBenchmark {
+
+    /** Directorio donde se guardan los ficheros generados. */
+    static final File DIRECTORIO = new File("target/jmh-datos");
+    /** Extensiones de los ficheros laterales de índices que acompañan al fichero de productos. */
+    private static final String[] EXTENSIONES_INDICES = {".idx", ".nom", ".bmp", ".lliures"};
+    /** Número de productos que se añaden en cada llamada a {@code afegirProductes} al generar un fichero. */
+    private static final int PRODUCTOS_POR_LOTE = 100_000;
+
+    private FitxersBenchmark() {}
+
+    /**
+     * Nombre del producto generado en la posición indicada.
+     *
+     * @param i posición (el código es {@code i + 1}).
+     * @return nombre del producto.
+     */
+    static String nombre(int i) {
+        return "PRODUCTO" + i;
+    }
+
+    /**
+     * @param i posición del producto.
+     * @return stock del producto generado (el 1 % no tiene stock).
+     */
+    static int stock(int i) {
+        return i % 100 == 0 ? 0 : 1 + i % 500;
+    }
+
+    /**
+     * @param i posición del producto.
+     * @return si el producto generado está descatalogado (el 2 %).
+     */
+    static boolean descatalogado(int i) {
+        return i % 50 == 7;
+    }
+
+    /**
+     * Devuelve un fichero de productos con el número de registros indicado, generándolo si no existe.
+     *
+     * @param registros número de registros.
+     * @return fichero original (no debe modificarse).
+     * @throws IOException si no se puede generar.
+     */
+    static File original(int registros) throws IOException {
+        File fichero = new File(DIRECTORIO, "productos-" + registros + ".bin");
+        if (fichero.length() == CapcaleraFitxer.posicion(registros)) {
+            return fichero;
+        }
+
+        Files.createDirectories(DIRECTORIO.toPath());
+        Files.deleteIfExists(fichero.toPath());
+        for (String extension : EXTENSIONES_INDICES) {
+            Files.deleteIfExists(new File(fichero.getPath() + extension).toPath());
+        }
+
+        PrintStream salida = silenciarSalida();
+        try {
+            GestioProducte gestor = new GestioProducte(fichero, sinStock(), descatalogados());
+            List<Producte> lote = new ArrayList<>(PRODUCTOS_POR_LOTE);
+            for (int i = 0; i < registros; i++) {
+                lote.add(new Producte(nombre(i), 1.0 + i % 1000, stock(i), descatalogado(i)));
+                if (lote.size() == PRODUCTOS_POR_LOTE || i == registros - 1) {
+                    gestor.afegirProductes(lote);
+                    lote.clear();
+                }
+            }
+        } finally {
+            System.setOut(salida);
+        }
+
+        return fichero;
+    }
+
+    /**
+     * Copia un fichero original (y sus índices) a un fichero de trabajo que los benchmarks pueden modificar.
+     *
+     * @param registros número de registros.
+     * @param nombre    nombre del fichero de trabajo.
+     * @return fichero de trabajo.
+     * @throws IOException si no se puede copiar.
+     */
+    static File copia(int registros, String nombre) throws IOException {
+        File original = original(registros);
+        File copia = new File(DIRECTORIO, nombre + "-" + registros + ".bin");
+
+        Files.copy(original.toPath(), copia.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (String extension : EXTENSIONES_INDICES) {
+            File indice = new File(original.getPath() + extension);
+            File indiceCopia = new File(copia.getPath() + extension);
+            if (indice.exists()) {
+                Files.copy(indice.toPath(), indiceCopia.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(indiceCopia.toPath());
+            }
+        }
+
+        return copia;
+    }
+
+    /** @return fichero de exportación de productos sin stock de los benchmarks. */
+    static File sinStock() {
+        return new File(DIRECTORIO, "sin-stock.txt");
+    }
+
+    /** @return fichero de exportación de productos descatalogados de los benchmarks. */
+    static File descatalogados() {
+        return new File(DIRECTORIO, "descatalogado.txt");
+    }
+
+    /**
+     * Sustituye la salida estándar por una que descarta todo, ya que las altas escriben una línea por producto.
+     *
+     * @return salida estándar original, para poder restaurarla.
+     */
+    static PrintStream silenciarSalida() {
+        PrintStream original = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        return original;
+    }
+
+    /**
+     * Intenta vaciar la caché de páginas del sistema operativo para medir con la caché fría. Solo es posible en
+     * Linux y con permisos de administrador; en otro caso se avisa por la salida de error y la medición se hace
+     * con la caché caliente.
+     */
+    static void vaciarCachePaginas() {
+        try {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Files.writeString(new File("/proc/sys/vm/drop_caches").toPath(), "3");
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Aviso! No se ha podido vaciar la caché de páginas (" + e.getMessage()
+                    + "); se mide con la caché caliente.");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package persistencia;
+
+import model.Producte;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks del formato de los registros: recorrido completo del fichero por bloques con el formato clásico de
+ * 69 bytes ({@link RegistreProducte}) y con el compacto de los ficheros archivados ({@link CodecCompacte}, con
+ * nombre de 24 bytes y precio en céntimos, 38 bytes por registro). Mide el coste de leer un fichero archivado con
+ * {@link ConversorFormat}, no el de los gestores, que solo trabajan con el formato clásico. Al preparar cada
+ * ejecución se muestra por la salida de error el tamaño de los dos ficheros.
+ * <pre>
+ * mvn -P jmh package -DskipTests
+ * java -jar target/benchmarks.jar FormatBenchmark -p registros=10000000
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatBenchmark {
+
+    /** Número de registros leídos en cada bloque. */
+    private static final int REGISTROS_POR_BLOQUE = 4096;
+
+    @Param({"1000000", "10000000"})
+    public int registros;
+
+    @Param({"classic", "compacte"})
+    public String formato;
+
+    private File fichero;
+    /** Formato compacto del fichero, o {@code null} si está en el formato clásico. */
+    private CodecCompacte compacto;
+    private int tamano;
+    private FileChannel canal;
+    private ByteBuffer bloque;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        File clasico = FitxersBenchmark.copia(registros, "format");
+        if (formato.equals("compacte")) {
+            compacto = new CodecCompacte(24, true);
+            fichero = new File(FitxersBenchmark.DIRECTORIO, "format-" + registros + ".compacte");
+            ConversorFormat.arxivar(clasico, fichero, 24, true);
+            System.err.println("Tamaño del fichero: " + clasico.length() + " bytes (clásico), " + fichero.length()
+                    + " bytes (compacto).");
+        } else {
+            compacto = null;
+            fichero = clasico;
+        }
+        tamano = compacto == null ? RegistreProducte.TAMANO : compacto.tamano();
+        canal = FileChannel.open(fichero.toPath(), StandardOpenOption.READ);
+        bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * tamano);
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() throws IOException {
+        canal.close();
+    }
+
+    /** Lee todo el fichero y suma el stock de los productos: el coste está en la lectura de los bloques. */
+    @Benchmark
+    public long sumarStock() throws IOException {
+        long total = 0;
+        long posicion = CapcaleraFitxer.TAMANO;
+        while (true) {
+            bloque.clear();
+            int leidos = 0;
+            while (bloque.hasRemaining()) {
+                int n = canal.read(bloque, posicion + bloque.position());
+                if (n < 0) {
+                    break;
+                }
+                leidos += n;
+            }
+            for (int inicio = 0; inicio + tamano <= leidos; inicio += tamano) {
+                if (compacto == null) {
+                    if (!RegistreProducte.libre(bloque, inicio)) {
+                        total += bloque.getInt(inicio + RegistreProducte.OFFSET_STOCK);
+                    }
+                } else if (!compacto.libre(bloque, inicio)) {
+                    total += compacto.stock(bloque, inicio);
+                }
+            }
+            if (leidos < bloque.capacity()) {
+                return total;
+            }
+            posicion += leidos;
+        }
+    }
+
+    /** Decodifica todos los productos del primer bloque: coste de materializar cada formato. */
+    @Benchmark
+    public int decodificarBloque() throws IOException {
+        bloque.clear();
+        canal.read(bloque, CapcaleraFitxer.TAMANO);
+        int suma = 0;
+        for (int inicio = 0; inicio + tamano <= bloque.position(); inicio += tamano) {
+            Producte p = compacto == null ? RegistreProducte.leer(bloque, inicio) : compacto.leer(bloque, inicio);
+            suma += p.getNombre().length();
+        }
+        return suma;
+    }
+}
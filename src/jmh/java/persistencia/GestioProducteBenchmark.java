@@ -0,0 +1,305 @@
+package persistencia;
+
+import model.Producte;
+import model.ResumInventari;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks de las operaciones de {@link Gestionable} sobre {@link GestioProducte}.
+ * <p>
+ * Cada benchmark se ejecuta sobre ficheros generados de 10.000, 1.000.000 y 10.000.000 registros (parámetro
+ * {@code registros}) y con la caché de páginas caliente o fría (parámetro {@code cache}; la caché fría se vacía
+ * antes de cada iteración y requiere permisos de administrador en Linux). Las operaciones que pueden ejecutarse
+ * desde varios hilos tienen además una variante {@code Concurrent} con un hilo por procesador.
+ * </p>
+ * <pre>
+ * mvn -P jmh package -DskipTests
+ * java -jar target/benchmarks.jar GestioProducteBenchmark -p registros=10000
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GestioProducteBenchmark {
+
+    @Param({"10000", "1000000", "10000000"})
+    public int registros;
+
+    @Param({"calenta", "freda"})
+    public String cache;
+
+    private GestioProducte gestor;
+    private PrintStream salida;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        salida = FitxersBenchmark.silenciarSalida();
+        File fichero = FitxersBenchmark.copia(registros, "trabajo");
+        gestor = new GestioProducte(fichero, FitxersBenchmark.sinStock(), FitxersBenchmark.descatalogados());
+    }
+
+    @Setup(Level.Iteration)
+    public void prepararIteracion() {
+        if (cache.equals("freda")) {
+            FitxersBenchmark.vaciarCachePaginas();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() {
+        System.setOut(salida);
+    }
+
+    /** @return código aleatorio de uno de los registros generados. */
+    private int codigoAleatorio() {
+        return 1 + ThreadLocalRandom.current().nextInt(registros);
+    }
+
+    // ------------------------------------------------------------------------
+    // ALTAS
+    // ------------------------------------------------------------------------
+
+    @Benchmark
+    public int afegirProducte() {
+        return gestor.afegirProducte(new Producte("NUEVO", 1.0, 1, false));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public int afegirProducteConcurrent() {
+        return gestor.afegirProducte(new Producte("NUEVO", 1.0, 1, false));
+    }
+
+    // ------------------------------------------------------------------------
+    // CONSULTAS
+    // ------------------------------------------------------------------------
+
+    @Benchmark
+    public Producte cercaPerCodi() {
+        return gestor.cercaPerCodi(codigoAleatorio());
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Producte cercaPerCodiConcurrent() {
+        return gestor.cercaPerCodi(codigoAleatorio());
+    }
+
+    @Benchmark
+    public List<Producte> cercaPerNom() {
+        return gestor.cercaPerNom(FitxersBenchmark.nombre(codigoAleatorio() - 1));
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public List<Producte> cercaPerNomConcurrent() {
+        return gestor.cercaPerNom(FitxersBenchmark.nombre(codigoAleatorio() - 1));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Producte> cercaSenseStock() {
+        return gestor.cercaSenseStock();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Producte> cercaSenseStockConcurrent() {
+        return gestor.cercaSenseStock();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Producte> cercaDescatalogats() {
+        return gestor.cercaDescatalogats();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Producte> cercaDescatalogatsConcurrent() {
+        return gestor.cercaDescatalogats();
+    }
+
+    /** Sin índice: recorre el fichero leyendo solo el precio y el stock de cada registro. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public List<Producte> cercaCondicioRecorregut() {
+        return gestor.cerca(Condicio.preuEntre(10, 12).i(Condicio.stockMenorQue(50)));
+    }
+
+    /** Con índice: candidatos del índice de nombres, filtrados por stock. */
+    @Benchmark
+    public List<Producte> cercaCondicioIndex() {
+        return gestor.cerca(Condicio.nom(FitxersBenchmark.nombre(codigoAleatorio() - 1)).i(Condicio.stockMenorQue(50)));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ResumInventari resumInventari() {
+        return gestor.resumInventari();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ResumInventari resumInventariFiltrat() {
+        return gestor.resumInventari(Condicio.descatalogat().no());
+    }
+
+    /** Mismo recorrido que {@link #cercaCondicioRecorregut()}, sumando el stock desde la vista sin crear productos. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long visitaRecorregut() {
+        long[] stock = {0};
+        gestor.visita(Condicio.preuEntre(10, 12).i(Condicio.stockMenorQue(50)), vista -> stock[0] += vista.stock());
+        return stock[0];
+    }
+
+    @Benchmark
+    public List<Producte> fluxSenseStockPrimers() {
+        try (Stream<Producte> flux = gestor.fluxSenseStock()) {
+            return flux.limit(20).toList();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long fluxDescatalogatsCount() {
+        try (Stream<Producte> flux = gestor.fluxDescatalogats()) {
+            return flux.count();
+        }
+    }
+
+    @Benchmark
+    public List<Producte> fluxPerPrefixPrimers() {
+        try (Stream<Producte> flux = gestor.fluxPerPrefix("PROD")) {
+            return flux.limit(20).toList();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MODIFICACIONES Y EXPORTACIONES
+    // ------------------------------------------------------------------------
+
+    @Benchmark
+    public void modificarStock() {
+        gestor.modificarStock(codigoAleatorio(), 1, true);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void modificarStockConcurrent() {
+        gestor.modificarStock(codigoAleatorio(), 1, true);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void exportarSenseStock() {
+        gestor.exportarSenseStock();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void exportarDescatalogats() {
+        gestor.exportarDescatalogats();
+    }
+
+    /** Gestor con la exportación comprimida ({@link GestioProducte#setExportacioComprimida(boolean)}). */
+    @State(Scope.Benchmark)
+    public static class ExportacionComprimida {
+
+        GestioProducte gestor;
+
+        @Setup(Level.Trial)
+        public void preparar(GestioProducteBenchmark benchmark) throws IOException {
+            File fichero = FitxersBenchmark.copia(benchmark.registros, "comprimida");
+            gestor = new GestioProducte(fichero, FitxersBenchmark.sinStock(), FitxersBenchmark.descatalogados());
+            gestor.setExportacioComprimida(true);
+        }
+    }
+
+    /** Mismo recorrido que {@link #exportarDescatalogats()}, comprimiendo los bloques en paralelo. */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void exportarDescatalogatsComprimit(ExportacionComprimida exportacion) {
+        exportacion.gestor.exportarDescatalogats();
+    }
+
+    // ------------------------------------------------------------------------
+    // COLUMNAS
+    // ------------------------------------------------------------------------
+
+    /**
+     * Gestor sobre una copia del fichero con las columnas activadas ({@link GestioProducte#activarColumnes()}),
+     * para compararlo con {@link #resumInventari()} y {@link #modificarStock()} sobre los registros.
+     */
+    @State(Scope.Benchmark)
+    public static class FicheroConColumnas {
+
+        GestioProducte gestor;
+
+        @Setup(Level.Trial)
+        public void preparar(GestioProducteBenchmark benchmark) throws IOException {
+            File fichero = FitxersBenchmark.copia(benchmark.registros, "columnas");
+            gestor = new GestioProducte(fichero, FitxersBenchmark.sinStock(), FitxersBenchmark.descatalogados());
+            gestor.activarColumnes();
+        }
+    }
+
+    /** Solo lee las columnas de código, precio, stock y estado (17 bytes por registro en lugar de 69). */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public ResumInventari resumInventariColumnes(FicheroConColumnas fichero) {
+        return fichero.gestor.resumInventari();
+    }
+
+    /** Coste de mantener las columnas en cada escritura. */
+    @Benchmark
+    public void modificarStockColumnes(FicheroConColumnas fichero) {
+        fichero.gestor.modificarStock(codigoAleatorio(), 1, true);
+    }
+
+    // ------------------------------------------------------------------------
+    // ELIMINACIÓN DE DESCATALOGADOS
+    // ------------------------------------------------------------------------
+
+    /**
+     * {@link GestioProducte#esborrarDescatalogats()} modifica el fichero, así que cada invocación parte de una
+     * copia nueva del fichero original y se mide una única ejecución.
+     */
+    @State(Scope.Thread)
+    public static class FicheroConDescatalogados {
+
+        GestioProducte gestor;
+
+        @Setup(Level.Invocation)
+        public void preparar(GestioProducteBenchmark benchmark) throws IOException {
+            File fichero = FitxersBenchmark.copia(benchmark.registros, "compactacion");
+            gestor = new GestioProducte(fichero, FitxersBenchmark.sinStock(), FitxersBenchmark.descatalogados());
+            if (benchmark.cache.equals("freda")) {
+                FitxersBenchmark.vaciarCachePaginas();
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public void esborrarDescatalogats(FicheroConDescatalogados fichero) {
+        fichero.gestor.esborrarDescatalogats();
+    }
+}
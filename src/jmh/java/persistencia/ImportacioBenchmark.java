@@ -0,0 +1,81 @@
+package persistencia;
+
+import model.InformeImportacio;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark de {@link GestioProducte#importar(File, boolean)}: importa a un fichero de productos vacío un fichero de
+ * texto con el formato de las exportaciones, asignando códigos nuevos o conservando los del fichero. Cada invocación
+ * parte de un fichero de productos nuevo y se mide una única ejecución; el número de líneas por segundo se obtiene
+ * dividiendo {@code registros} entre el tiempo medido.
+ * <pre>
+ * mvn -P jmh package -DskipTests
+ * java -jar target/benchmarks.jar ImportacioBenchmark -p registros=10000000
+ * </pre>
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImportacioBenchmark {
+
+    /** Extensiones de los ficheros laterales que se eliminan antes de cada importación. */
+    private static final String[] EXTENSIONES_LATERALES = {".idx", ".nom", ".bmp", ".lliures", ".wal"};
+
+    @Param({"1000000", "10000000"})
+    public int registros;
+
+    @Param({"nous", "conservats"})
+    public String codigos;
+
+    private File texto;
+    private File fichero;
+    private GestioProducte gestor;
+    private PrintStream salida;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        salida = FitxersBenchmark.silenciarSalida();
+        FitxersBenchmark.DIRECTORIO.mkdirs();
+        texto = new File(FitxersBenchmark.DIRECTORIO, "importar-" + registros + ".txt");
+        fichero = new File(FitxersBenchmark.DIRECTORIO, "importado-" + registros + ".bin");
+        if (!texto.exists()) {
+            try (BufferedWriter writer = Files.newBufferedWriter(texto.toPath())) {
+                for (int i = 0; i < registros; i++) {
+                    int centimos = i % 100_000;
+                    writer.write((i + 1) + ";" + FitxersBenchmark.nombre(i) + ";" + centimos / 100 + "."
+                            + centimos / 10 % 10 + centimos % 10 + ";" + FitxersBenchmark.stock(i) + ";"
+                            + FitxersBenchmark.descatalogado(i) + "\n");
+                }
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepararInvocacion() throws IOException {
+        Files.deleteIfExists(fichero.toPath());
+        for (String extension : EXTENSIONES_LATERALES) {
+            Files.deleteIfExists(new File(fichero.getPath() + extension).toPath());
+        }
+        gestor = new GestioProducte(fichero, FitxersBenchmark.sinStock(), FitxersBenchmark.descatalogados());
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() {
+        System.setOut(salida);
+    }
+
+    @Benchmark
+    public InformeImportacio importar() {
+        return gestor.importar(texto, codigos.equals("conservats"));
+    }
+}
@@ -0,0 +1,72 @@
+package persistencia;
+
+import model.Producte;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks del recorrido en paralelo de {@link GestioProducte} ({@link RecorregutParallel}) según el número de
+ * hilos disponibles.
+ * <p>
+ * Cada búsqueda se lanza desde un {@link ForkJoinPool} con {@code fils} hilos, de modo que el recorrido reparte
+ * sus tramos entre esos hilos en lugar de los del pool común. Con {@code fils = 1} se obtiene la referencia
+ * secuencial; el resto de valores muestran el escalado (solo tiene sentido con al menos tantos procesadores como
+ * hilos y con el fichero en la caché de páginas).
+ * </p>
+ * <pre>
+ * mvn -P jmh package -DskipTests
+ * java -jar target/benchmarks.jar RecorregutParallelBenchmark -p registros=10000000
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RecorregutParallelBenchmark {
+
+    @Param({"1000000", "10000000"})
+    public int registros;
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int fils;
+
+    private GestioProducte gestor;
+    private ForkJoinPool pool;
+    private PrintStream salida;
+
+    @Setup(Level.Trial)
+    public void preparar() throws IOException {
+        salida = FitxersBenchmark.silenciarSalida();
+        File fichero = FitxersBenchmark.copia(registros, "paralelo");
+        gestor = new GestioProducte(fichero, FitxersBenchmark.sinStock(), FitxersBenchmark.descatalogados());
+        gestor.setLlindarParallel(0);
+        pool = new ForkJoinPool(fils);
+    }
+
+    @TearDown(Level.Trial)
+    public void terminar() {
+        pool.shutdown();
+        System.setOut(salida);
+    }
+
+    /** Un 11 % de los registros: se recorre todo el fichero y se decodifican muchos productos. */
+    @Benchmark
+    public List<Producte> cercaPerPrefix() throws ExecutionException, InterruptedException {
+        return pool.submit(() -> gestor.cercaPerPrefix("PRODUCTO1")).get();
+    }
+
+    /** Un 2 % de los registros: el coste está casi todo en la lectura y en la comprobación de los bytes. */
+    @Benchmark
+    public List<Producte> cercaDescatalogats() throws ExecutionException, InterruptedException {
+        return pool.submit(gestor::cercaDescatalogats).get();
+    }
+}
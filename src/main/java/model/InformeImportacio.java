@@ -0,0 +1,72 @@
+package model;
+
+/**
+ * Clase que representa el resultado de importar un fichero de texto con productos: número de líneas leídas,
+ * número de productos importados y, para cada línea rechazada, su número y el motivo.
+ * <p>
+ * Se obtiene con {@code importar}, que importa todas las líneas válidas aunque otras se rechacen.
+ * </p>
+ */
+public class InformeImportacio {
+
+    /** Número de líneas leídas del fichero (incluidas las vacías). */
+    private final long numLineas;
+    /** Número de productos añadidos al fichero de productos. */
+    private final long numImportados;
+    /** Números de línea (empezando por 1) de las líneas rechazadas, ordenados de menor a mayor. */
+    private final long[] lineasRechazadas;
+    /** Motivo del rechazo de cada línea, en el mismo orden. */
+    private final String[] motivos;
+
+    /**
+     * Constructor completo.
+     *
+     * @param numLineas        número de líneas leídas.
+     * @param numImportados    número de productos importados.
+     * @param lineasRechazadas números de línea de las líneas rechazadas, ordenados de menor a mayor.
+     * @param motivos          motivo del rechazo de cada línea, en el mismo orden.
+     */
+    public InformeImportacio(long numLineas, long numImportados, long[] lineasRechazadas, String[] motivos) {
+        this.numLineas = numLineas;
+        this.numImportados = numImportados;
+        this.lineasRechazadas = lineasRechazadas.clone();
+        this.motivos = motivos.clone();
+    }
+
+
+    // ---------------- Getters ----------------
+
+    /** @return número de líneas leídas del fichero (incluidas las vacías). */
+    public long getNumLineas() { return numLineas; }
+
+    /** @return número de productos importados. */
+    public long getNumImportados() { return numImportados; }
+
+    /** @return número de líneas rechazadas. */
+    public int getNumRechazadas() { return lineasRechazadas.length; }
+
+    /** @return números de línea (empezando por 1) de las líneas rechazadas, ordenados de menor a mayor. */
+    public long[] getLineasRechazadas() { return lineasRechazadas.clone(); }
+
+    /** @return motivo del rechazo de cada línea, en el mismo orden que {@link #getLineasRechazadas()}. */
+    public String[] getMotivos() { return motivos.clone(); }
+
+    /** @return {@code true} si no se ha rechazado ninguna línea. */
+    public boolean isCorrecto() { return lineasRechazadas.length == 0; }
+
+    // ---------------- Métodos de utilidad ----------------
+
+    /** @return representación textual legible del informe. */
+    @Override
+    public String toString() {
+        StringBuilder rechazadas = new StringBuilder();
+        for (int i = 0; i < lineasRechazadas.length; i++) {
+            rechazadas.append(i == 0 ? "" : ", ").append(lineasRechazadas[i]).append(": ").append(motivos[i]);
+        }
+        return "InformeImportacion{" +
+                "lineas=" + numLineas +
+                ", importados=" + numImportados +
+                ", rechazadas=[" + rechazadas + "]" +
+                '}';
+    }
+}
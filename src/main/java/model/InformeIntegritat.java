@@ -0,0 +1,57 @@
+package model;
+
+import java.util.Arrays;
+
+/**
+ * Clase que representa el resultado de verificar la integridad del fichero de productos: número de registros
+ * comprobados y posiciones (número de registro) de los registros cuyo contenido no corresponde a su suma de
+ * control.
+ * <p>
+ * Se obtiene con {@code verificarIntegritat} en un único recorrido del fichero, que puede repartirse entre varios
+ * hilos.
+ * </p>
+ */
+public class InformeIntegritat {
+
+    /** Número de registros comprobados (incluidos los libres). */
+    private final long numRegistros;
+    /** Posiciones de los registros corruptos, ordenadas de menor a mayor. */
+    private final int[] registrosCorruptos;
+
+    /**
+     * Constructor completo.
+     *
+     * @param numRegistros       número de registros comprobados.
+     * @param registrosCorruptos posiciones de los registros corruptos, ordenadas de menor a mayor.
+     */
+    public InformeIntegritat(long numRegistros, int[] registrosCorruptos) {
+        this.numRegistros = numRegistros;
+        this.registrosCorruptos = registrosCorruptos.clone();
+    }
+
+
+    // ---------------- Getters ----------------
+
+    /** @return número de registros comprobados (incluidos los libres). */
+    public long getNumRegistros() { return numRegistros; }
+
+    /** @return número de registros corruptos. */
+    public int getNumCorruptos() { return registrosCorruptos.length; }
+
+    /** @return posiciones (número de registro) de los registros corruptos, ordenadas de menor a mayor. */
+    public int[] getRegistrosCorruptos() { return registrosCorruptos.clone(); }
+
+    /** @return {@code true} si ningún registro está corrupto. */
+    public boolean isCorrecto() { return registrosCorruptos.length == 0; }
+
+    // ---------------- Métodos de utilidad ----------------
+
+    /** @return representación textual legible del informe. */
+    @Override
+    public String toString() {
+        return "InformeIntegridad{" +
+                "registros=" + numRegistros +
+                ", corruptos=" + Arrays.toString(registrosCorruptos) +
+                '}';
+    }
+}
@@ -0,0 +1,47 @@
+package model;
+
+/**
+ * Clase que representa un movimiento de stock de un producto: la cantidad que se suma (delta positivo) o se
+ * resta (delta negativo) a su stock actual.
+ * <p>
+ * Se utiliza para aplicar muchos movimientos de una sola vez con {@code modificarStocks}.
+ * </p>
+ */
+public class MovimentStock {
+
+    /** Código del producto afectado. */
+    private final int codigo;
+    /** Unidades a sumar (positivo) o restar (negativo). */
+    private final int delta;
+
+    /**
+     * Constructor completo.
+     *
+     * @param codigo código del producto.
+     * @param delta  unidades a sumar (positivo) o restar (negativo).
+     */
+    public MovimentStock(int codigo, int delta) {
+        this.codigo = codigo;
+        this.delta = delta;
+    }
+
+
+    // ---------------- Getters ----------------
+
+    /** @return código del producto. */
+    public int getCodigo() { return codigo; }
+
+    /** @return unidades a sumar (positivo) o restar (negativo). */
+    public int getDelta() { return delta; }
+
+    // ---------------- Métodos de utilidad ----------------
+
+    /** @return representación textual legible del movimiento. */
+    @Override
+    public String toString() {
+        return "Movimiento{" +
+                "codigo=" + codigo +
+                ", delta=" + delta +
+                '}';
+    }
+}
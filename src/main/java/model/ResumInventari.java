@@ -0,0 +1,100 @@
+package model;
+
+/**
+ * Clase que representa un resumen del inventario: número de productos por estado, stock total, valor del stock
+ * (precio × stock) y estadísticas de precio de un conjunto de productos.
+ * <p>
+ * Se obtiene con {@code resumInventari} en un único recorrido del fichero, sin leer los productos uno a uno.
+ * </p>
+ */
+public class ResumInventari {
+
+    /** Número de productos incluidos en el resumen. */
+    private final long numProductos;
+    /** Número de productos sin stock que no están descatalogados. */
+    private final long numSinStock;
+    /** Número de productos descatalogados. */
+    private final long numDescatalogados;
+    /** Suma del stock de todos los productos. */
+    private final long stockTotal;
+    /** Suma de precio × stock de todos los productos. */
+    private final double valorTotal;
+    /** Precio mínimo (NaN si no hay productos). */
+    private final double precioMinimo;
+    /** Precio máximo (NaN si no hay productos). */
+    private final double precioMaximo;
+    /** Suma de los precios de todos los productos. */
+    private final double sumaPrecios;
+
+    /**
+     * Constructor completo.
+     *
+     * @param numProductos      número de productos incluidos en el resumen.
+     * @param numSinStock       número de productos sin stock que no están descatalogados.
+     * @param numDescatalogados número de productos descatalogados.
+     * @param stockTotal        suma del stock de todos los productos.
+     * @param valorTotal        suma de precio × stock de todos los productos.
+     * @param precioMinimo      precio mínimo.
+     * @param precioMaximo      precio máximo.
+     * @param sumaPrecios       suma de los precios de todos los productos.
+     */
+    public ResumInventari(long numProductos, long numSinStock, long numDescatalogados, long stockTotal,
+                          double valorTotal, double precioMinimo, double precioMaximo, double sumaPrecios) {
+        this.numProductos = numProductos;
+        this.numSinStock = numSinStock;
+        this.numDescatalogados = numDescatalogados;
+        this.stockTotal = stockTotal;
+        this.valorTotal = valorTotal;
+        this.precioMinimo = numProductos == 0 ? Double.NaN : precioMinimo;
+        this.precioMaximo = numProductos == 0 ? Double.NaN : precioMaximo;
+        this.sumaPrecios = sumaPrecios;
+    }
+
+
+    // ---------------- Getters ----------------
+
+    /** @return número de productos incluidos en el resumen. */
+    public long getNumProductos() { return numProductos; }
+
+    /** @return número de productos con stock que no están descatalogados. */
+    public long getNumActivos() { return numProductos - numSinStock - numDescatalogados; }
+
+    /** @return número de productos sin stock que no están descatalogados. */
+    public long getNumSinStock() { return numSinStock; }
+
+    /** @return número de productos descatalogados. */
+    public long getNumDescatalogados() { return numDescatalogados; }
+
+    /** @return suma del stock de todos los productos. */
+    public long getStockTotal() { return stockTotal; }
+
+    /** @return suma de precio × stock de todos los productos. */
+    public double getValorTotal() { return valorTotal; }
+
+    /** @return precio mínimo (NaN si no hay productos). */
+    public double getPrecioMinimo() { return precioMinimo; }
+
+    /** @return precio máximo (NaN si no hay productos). */
+    public double getPrecioMaximo() { return precioMaximo; }
+
+    /** @return precio medio (NaN si no hay productos). */
+    public double getPrecioMedio() { return numProductos == 0 ? Double.NaN : sumaPrecios / numProductos; }
+
+    // ---------------- Métodos de utilidad ----------------
+
+    /** @return representación textual legible del resumen. */
+    @Override
+    public String toString() {
+        return "ResumenInventario{" +
+                "productos=" + numProductos +
+                ", activos=" + getNumActivos() +
+                ", sinStock=" + numSinStock +
+                ", descatalogados=" + numDescatalogados +
+                ", stockTotal=" + stockTotal +
+                ", valorTotal=" + valorTotal +
+                ", precioMinimo=" + precioMinimo +
+                ", precioMaximo=" + precioMaximo +
+                ", precioMedio=" + getPrecioMedio() +
+                '}';
+    }
+}
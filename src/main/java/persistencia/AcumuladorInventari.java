@@ -0,0 +1,104 @@
+package persistencia;
+
+import model.ResumInventari;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Acumula el resumen del inventario leyendo directamente el precio (posición 56), el stock (posición 64) y el
+ * estado (posición 68) de cada registro, sin decodificar el nombre ni crear objetos por registro. También puede
+ * acumular bloques de valores leídos de las columnas de {@link ColumnesInventari}.
+ * <p>
+ * Cada tarea de un recorrido en paralelo utiliza su propio acumulador, y al terminar se combinan con
+ * {@link #combinar(AcumuladorInventari)}.
+ * </p>
+ */
+final class AcumuladorInventari {
+
+    private long numProductos = 0;
+    private long numSinStock = 0;
+    private long numDescatalogados = 0;
+    private long stockTotal = 0;
+    private double valorTotal = 0;
+    private double precioMinimo = Double.POSITIVE_INFINITY;
+    private double precioMaximo = Double.NEGATIVE_INFINITY;
+    private double sumaPrecios = 0;
+
+    /**
+     * Añade al resumen el registro que comienza en la posición indicada del buffer.
+     *
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     */
+    void acumular(ByteBuffer buffer, int inicio) {
+        double precio = buffer.getDouble(inicio + RegistreProducte.OFFSET_PRECIO);
+        int stock = buffer.getInt(inicio + RegistreProducte.OFFSET_STOCK);
+
+        numProductos++;
+        if (buffer.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) != 0) {
+            numDescatalogados++;
+        } else if (stock == 0) {
+            numSinStock++;
+        }
+        stockTotal += stock;
+        valorTotal += precio * stock;
+        sumaPrecios += precio;
+        precioMinimo = Math.min(precioMinimo, precio);
+        precioMaximo = Math.max(precioMaximo, precio);
+    }
+
+    /**
+     * Añade al resumen un bloque de registros leído de las columnas. Los registros libres (código 0) se omiten.
+     *
+     * @param codigos        código de cada registro.
+     * @param precios        precio de cada registro.
+     * @param stocks         stock de cada registro.
+     * @param descatalogados estado de cada registro (distinto de 0 si está descatalogado).
+     * @param numRegistros   número de registros del bloque.
+     */
+    void acumular(int[] codigos, double[] precios, int[] stocks, byte[] descatalogados, int numRegistros) {
+        for (int i = 0; i < numRegistros; i++) {
+            if (codigos[i] == RegistreProducte.CODIGO_LIBRE) {
+                continue;
+            }
+            double precio = precios[i];
+            int stock = stocks[i];
+
+            numProductos++;
+            if (descatalogados[i] != 0) {
+                numDescatalogados++;
+            } else if (stock == 0) {
+                numSinStock++;
+            }
+            stockTotal += stock;
+            valorTotal += precio * stock;
+            sumaPrecios += precio;
+            precioMinimo = Math.min(precioMinimo, precio);
+            precioMaximo = Math.max(precioMaximo, precio);
+        }
+    }
+
+    /**
+     * Añade a este acumulador los valores de otro (que recorre los registros posteriores).
+     *
+     * @param otro otro acumulador.
+     * @return este acumulador.
+     */
+    AcumuladorInventari combinar(AcumuladorInventari otro) {
+        numProductos += otro.numProductos;
+        numSinStock += otro.numSinStock;
+        numDescatalogados += otro.numDescatalogados;
+        stockTotal += otro.stockTotal;
+        valorTotal += otro.valorTotal;
+        sumaPrecios += otro.sumaPrecios;
+        precioMinimo = Math.min(precioMinimo, otro.precioMinimo);
+        precioMaximo = Math.max(precioMaximo, otro.precioMaximo);
+        return this;
+    }
+
+    /** @return resumen con los valores acumulados. */
+    ResumInventari resumen() {
+        return new ResumInventari(numProductos, numSinStock, numDescatalogados, stockTotal, valorTotal,
+                precioMinimo, precioMaximo, sumaPrecios);
+    }
+}
@@ -0,0 +1,273 @@
+package persistencia;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Lee las exportaciones comprimidas por bloques de {@link GestioProducte} (ver
+ * {@link GestioProducte#setExportacioComprimida(boolean)}).
+ * <p>
+ * El fichero es una secuencia de miembros gzip independientes, cada uno con hasta 256 KiB de texto, así que
+ * {@code gunzip}, {@code zcat} o {@link java.util.zip.GZIPInputStream} lo leen como un gzip normal. La cabecera de
+ * cada miembro tiene un campo extra ({@code PB}) con el tamaño del miembro y el de su texto, de modo que el índice
+ * de bloques se obtiene leyendo solo las cabeceras. Con ese índice:
+ * </p>
+ * <ul>
+ *     <li>{@link #descomprimir(File, File)} descomprime todos los bloques en paralelo y escribe cada uno
+ *     directamente en su posición del fichero de destino;</li>
+ *     <li>{@link #llegir(File, long, int)} descomprime solo los bloques que contienen el fragmento pedido.</li>
+ * </ul>
+ * <p>
+ * Cada bloque se comprueba con el CRC32 y el tamaño de su final gzip; si no coinciden se lanza una
+ * {@link IOException}.
+ * </p>
+ */
+public final class ArxiuComprimit {
+
+    /** Identificador del campo extra con los tamaños del bloque. */
+    private static final short CAMPO_BLOQUE = (short) ('P' | 'B' << 8);
+
+    private ArxiuComprimit() {}
+
+    /**
+     * Descomprime un fichero completo, repartiendo los bloques entre los hilos de compresión.
+     *
+     * @param arxiu   fichero comprimido.
+     * @param destino fichero de texto a crear (o sustituir).
+     * @return tamaño en bytes del texto descomprimido.
+     * @throws IOException si el fichero no tiene el formato esperado, algún bloque está dañado u ocurre un error de
+     *                     lectura o escritura.
+     */
+    public static long descomprimir(File arxiu, File destino) throws IOException {
+        try (FileChannel entrada = FileChannel.open(arxiu.toPath(), StandardOpenOption.READ);
+             FileChannel salida = FileChannel.open(destino.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            IndiceBloques indice = IndiceBloques.leer(entrada);
+
+            List<Future<Void>> tareas = new ArrayList<>(indice.total);
+            for (int i = 0; i < indice.total; i++) {
+                int bloque = i;
+                tareas.add(EscriptorComprimit.TAREAS_COMPRESION.submit(() -> {
+                    ByteBuffer texto = ByteBuffer.wrap(indice.descomprimir(entrada, bloque));
+                    long posicion = indice.desplazamientos[bloque];
+                    CanalFitxer.escribirCompleto(salida, texto, posicion);
+                    return null;
+                }));
+            }
+            esperar(tareas);
+            return indice.desplazamientos[indice.total];
+        }
+    }
+
+    /**
+     * Lee un fragmento del texto descomprimido sin descomprimir el fichero completo.
+     *
+     * @param arxiu    fichero comprimido.
+     * @param desde    posición del primer byte del fragmento en el texto descomprimido.
+     * @param longitud número máximo de bytes a leer.
+     * @return los bytes del fragmento; menos de {@code longitud} si el texto termina antes.
+     * @throws IOException si el fichero no tiene el formato esperado, algún bloque está dañado u ocurre un error de
+     *                     lectura.
+     */
+    public static byte[] llegir(File arxiu, long desde, int longitud) throws IOException {
+        if (desde < 0 || longitud < 0) {
+            throw new IllegalArgumentException("La posición y la longitud no pueden ser negativas.");
+        }
+        try (FileChannel entrada = FileChannel.open(arxiu.toPath(), StandardOpenOption.READ)) {
+            IndiceBloques indice = IndiceBloques.leer(entrada);
+            long fin = Math.min(desde + longitud, indice.desplazamientos[indice.total]);
+            if (desde >= fin) {
+                return new byte[0];
+            }
+
+            byte[] fragmento = new byte[(int) (fin - desde)];
+            for (int bloque = indice.bloque(desde); indice.desplazamientos[bloque] < fin; bloque++) {
+                byte[] texto = indice.descomprimir(entrada, bloque);
+                long inicioBloque = indice.desplazamientos[bloque];
+                int origen = (int) Math.max(0, desde - inicioBloque);
+                int hasta = (int) Math.min(texto.length, fin - inicioBloque);
+                System.arraycopy(texto, origen, fragmento, (int) (inicioBloque + origen - desde), hasta - origen);
+            }
+            return fragmento;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Espera a que terminen todas las tareas. Si alguna falla, cancela las demás y relanza su error.
+     *
+     * @param tareas tareas enviadas a los hilos de compresión.
+     * @throws IOException si alguna tarea falla.
+     */
+    private static void esperar(List<Future<Void>> tareas) throws IOException {
+        try {
+            for (Future<Void> tarea : tareas) {
+                tarea.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Descompresión interrumpida.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } finally {
+            for (Future<Void> tarea : tareas) {
+                tarea.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Índice de los bloques de un fichero comprimido: posición y tamaño de cada miembro gzip y posición de su texto
+     * dentro del texto descomprimido.
+     */
+    private static final class IndiceBloques {
+
+        /** Número de bloques. */
+        private int total = 0;
+        /** Posición de cada miembro en el fichero comprimido. */
+        private long[] posiciones = new long[16];
+        /** Tamaño en bytes de cada miembro, con su cabecera y su final. */
+        private int[] tamanos = new int[16];
+        /** Posición del texto de cada bloque en el texto descomprimido; la última es el tamaño total. */
+        private long[] desplazamientos = new long[17];
+
+        /**
+         * Recorre las cabeceras de todos los miembros del fichero.
+         *
+         * @param entrada canal de lectura sobre el fichero comprimido.
+         * @return índice de bloques.
+         * @throws IOException si algún miembro no es un bloque con el campo de tamaños esperado.
+         */
+        static IndiceBloques leer(FileChannel entrada) throws IOException {
+            IndiceBloques indice = new IndiceBloques();
+            ByteBuffer cabecera = ByteBuffer.allocate(EscriptorComprimit.TAMANO_CABECERA)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            long tamanoFichero = entrada.size();
+            long posicion = 0;
+
+            while (posicion < tamanoFichero) {
+                cabecera.clear();
+                CanalFitxer.leerCompleto(entrada, cabecera, posicion);
+                int tamanoMiembro = cabecera.getInt(16);
+                int tamanoTexto = cabecera.getInt(20);
+                if (cabecera.get(0) != (byte) 0x1F || cabecera.get(1) != (byte) 0x8B || cabecera.get(2) != 8
+                        || cabecera.get(3) != 4 || cabecera.getShort(10) != 12
+                        || cabecera.getShort(12) != CAMPO_BLOQUE || cabecera.getShort(14) != 8
+                        || tamanoMiembro < EscriptorComprimit.TAMANO_CABECERA + EscriptorComprimit.TAMANO_FINAL
+                        || tamanoTexto < 0 || posicion + tamanoMiembro > tamanoFichero) {
+                    throw new IOException("El fichero no es una exportación comprimida por bloques (posición "
+                            + posicion + ").");
+                }
+                indice.anadir(posicion, tamanoMiembro, tamanoTexto);
+                posicion += tamanoMiembro;
+            }
+            return indice;
+        }
+
+        /**
+         * Busca el bloque que contiene una posición del texto descomprimido.
+         *
+         * @param desplazamiento posición en el texto descomprimido, menor que su tamaño.
+         * @return número de bloque.
+         */
+        int bloque(long desplazamiento) {
+            int encontrado = Arrays.binarySearch(desplazamientos, 0, total + 1, desplazamiento);
+            if (encontrado < 0) {
+                return -encontrado - 2;
+            }
+            // Los bloques vacíos comparten desplazamiento con el siguiente: se toma el último con ese desplazamiento
+            while (encontrado < total && desplazamientos[encontrado + 1] == desplazamiento) {
+                encontrado++;
+            }
+            return encontrado;
+        }
+
+        /**
+         * Lee y descomprime un bloque, comprobando su CRC32 y su tamaño. Puede llamarse desde varios hilos a la vez.
+         *
+         * @param entrada canal de lectura sobre el fichero comprimido.
+         * @param bloque  número de bloque.
+         * @return texto del bloque.
+         * @throws IOException si el bloque está dañado u ocurre un error de lectura.
+         */
+        byte[] descomprimir(FileChannel entrada, int bloque) throws IOException {
+            ByteBuffer miembro = ByteBuffer.allocate(tamanos[bloque]).order(ByteOrder.LITTLE_ENDIAN);
+            CanalFitxer.leerCompleto(entrada, miembro, posiciones[bloque]);
+            int finDatos = tamanos[bloque] - EscriptorComprimit.TAMANO_FINAL;
+            byte[] texto = new byte[(int) (desplazamientos[bloque + 1] - desplazamientos[bloque])];
+
+            Inflater inflater = new Inflater(true);
+            try {
+                inflater.setInput(miembro.array(), EscriptorComprimit.TAMANO_CABECERA,
+                        finDatos - EscriptorComprimit.TAMANO_CABECERA);
+                int leidos = 0;
+                while (leidos < texto.length && !inflater.finished()) {
+                    int n = inflater.inflate(texto, leidos, texto.length - leidos);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    leidos += n;
+                }
+                // El flujo deflate debe terminar justo con el texto (un bloque vacío no produce ningún byte)
+                if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                    throw new IOException("El bloque " + bloque + " del fichero comprimido es más largo de lo "
+                            + "indicado en su cabecera.");
+                }
+                if (leidos != texto.length || !inflater.finished()) {
+                    throw new IOException("El bloque " + bloque + " del fichero comprimido está incompleto.");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("El bloque " + bloque + " del fichero comprimido está dañado: "
+                        + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(texto);
+            if (miembro.getInt(finDatos) != (int) crc.getValue() || miembro.getInt(finDatos + 4) != texto.length) {
+                throw new IOException("La suma de control del bloque " + bloque + " del fichero comprimido no "
+                        + "coincide.");
+            }
+            return texto;
+        }
+
+        /**
+         * Añade un bloque al final del índice.
+         *
+         * @param posicion      posición del miembro en el fichero comprimido.
+         * @param tamanoMiembro tamaño en bytes del miembro.
+         * @param tamanoTexto   tamaño en bytes del texto del bloque.
+         */
+        private void anadir(long posicion, int tamanoMiembro, int tamanoTexto) {
+            if (total == posiciones.length) {
+                posiciones = Arrays.copyOf(posiciones, total * 2);
+                tamanos = Arrays.copyOf(tamanos, total * 2);
+                desplazamientos = Arrays.copyOf(desplazamientos, total * 2 + 1);
+            }
+            posiciones[total] = posicion;
+            tamanos[total] = tamanoMiembro;
+            desplazamientos[total + 1] = desplazamientos[total] + tamanoTexto;
+            total++;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package persistencia;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Conjunto de enteros no negativos (posiciones de registro) representado como un bitmap comprimido al estilo
+ * Roaring.
+ * <p>
+ * Los valores se agrupan por sus 16 bits altos. Cada grupo se guarda en un contenedor que puede ser un array
+ * ordenado de los 16 bits bajos (cuando el grupo tiene pocos valores) o un bitmap de 65.536 bits (cuando tiene
+ * muchos). Así un conjunto con pocos elementos ocupa muy poco y recorrerlo cuesta un tiempo proporcional al número
+ * de elementos, no al rango de posiciones.
+ * </p>
+ */
+final class BitmapComprimit {
+
+    /** Número máximo de valores de un contenedor de tipo array; por encima se convierte en bitmap. */
+    private static final int MAXIMO_ARRAY = 4096;
+    /** Tipo de contenedor serializado: array ordenado. */
+    private static final byte TIPO_ARRAY = 0;
+    /** Tipo de contenedor serializado: bitmap. */
+    private static final byte TIPO_BITS = 1;
+
+    /** 16 bits altos de cada contenedor, ordenados. */
+    private char[] claves = new char[4];
+    /** Contenedor correspondiente a cada clave. */
+    private Contenedor[] contenedores = new Contenedor[4];
+    /** Número de contenedores en uso. */
+    private int numContenedores = 0;
+
+    /**
+     * Añade un valor al conjunto.
+     *
+     * @param valor valor a añadir.
+     * @return {@code true} si el valor no estaba en el conjunto.
+     */
+    boolean anadir(int valor) {
+        char clave = (char) (valor >>> 16);
+        int i = buscarContenedor(clave);
+
+        if (i < 0) {
+            i = -(i + 1);
+            if (numContenedores == claves.length) {
+                claves = Arrays.copyOf(claves, claves.length * 2);
+                contenedores = Arrays.copyOf(contenedores, contenedores.length * 2);
+            }
+            System.arraycopy(claves, i, claves, i + 1, numContenedores - i);
+            System.arraycopy(contenedores, i, contenedores, i + 1, numContenedores - i);
+            claves[i] = clave;
+            contenedores[i] = new ContenedorArray();
+            numContenedores++;
+        }
+
+        int cardinalidadAnterior = contenedores[i].cardinalidad();
+        contenedores[i] = contenedores[i].anadir((char) valor);
+        return contenedores[i].cardinalidad() != cardinalidadAnterior;
+    }
+
+    /**
+     * Elimina un valor del conjunto.
+     *
+     * @param valor valor a eliminar.
+     * @return {@code true} si el valor estaba en el conjunto.
+     */
+    boolean eliminar(int valor) {
+        int i = buscarContenedor((char) (valor >>> 16));
+        if (i < 0) {
+            return false;
+        }
+
+        int cardinalidadAnterior = contenedores[i].cardinalidad();
+        contenedores[i] = contenedores[i].eliminar((char) valor);
+        boolean eliminado = contenedores[i].cardinalidad() != cardinalidadAnterior;
+
+        // Los contenedores vacíos se descartan
+        if (contenedores[i].cardinalidad() == 0) {
+            System.arraycopy(claves, i + 1, claves, i, numContenedores - i - 1);
+            System.arraycopy(contenedores, i + 1, contenedores, i, numContenedores - i - 1);
+            numContenedores--;
+            contenedores[numContenedores] = null;
+        }
+
+        return eliminado;
+    }
+
+    /**
+     * Añade o elimina un valor según el estado indicado.
+     *
+     * @param valor   valor a actualizar.
+     * @param incluir {@code true} para añadirlo, {@code false} para eliminarlo.
+     * @return {@code true} si el conjunto ha cambiado.
+     */
+    boolean actualizar(int valor, boolean incluir) {
+        return incluir ? anadir(valor) : eliminar(valor);
+    }
+
+    /**
+     * @param valor valor a comprobar.
+     * @return {@code true} si el valor está en el conjunto.
+     */
+    boolean contiene(int valor) {
+        int i = buscarContenedor((char) (valor >>> 16));
+        return i >= 0 && contenedores[i].contiene((char) valor);
+    }
+
+    /**
+     * @return número de valores del conjunto.
+     */
+    int cardinalidad() {
+        int total = 0;
+        for (int i = 0; i < numContenedores; i++) {
+            total += contenedores[i].cardinalidad();
+        }
+        return total;
+    }
+
+    /**
+     * Recorre todos los valores del conjunto en orden creciente.
+     *
+     * @param accion acción a ejecutar con cada valor.
+     */
+    void recorrer(IntConsumer accion) {
+        for (int i = 0; i < numContenedores; i++) {
+            contenedores[i].recorrer(claves[i] << 16, accion);
+        }
+    }
+
+    /**
+     * @return todos los valores del conjunto en orden creciente.
+     */
+    int[] aArray() {
+        int[] valores = new int[cardinalidad()];
+        int[] n = {0};
+        recorrer(valor -> valores[n[0]++] = valor);
+        return valores;
+    }
+
+    /**
+     * Vacía el conjunto.
+     */
+    void vaciar() {
+        claves = new char[4];
+        contenedores = new Contenedor[4];
+        numContenedores = 0;
+    }
+
+    /**
+     * Escribe el conjunto en formato binario.
+     *
+     * @param salida destino.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void escribir(DataOutput salida) throws IOException {
+        salida.writeInt(numContenedores);
+        for (int i = 0; i < numContenedores; i++) {
+            salida.writeChar(claves[i]);
+            contenedores[i].escribir(salida);
+        }
+    }
+
+    /**
+     * Lee un conjunto escrito con {@link #escribir(DataOutput)}.
+     *
+     * @param entrada origen.
+     * @return conjunto leído.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    static BitmapComprimit leer(DataInput entrada) throws IOException {
+        BitmapComprimit bitmap = new BitmapComprimit();
+        int num = entrada.readInt();
+        bitmap.claves = new char[Math.max(num, 4)];
+        bitmap.contenedores = new Contenedor[Math.max(num, 4)];
+
+        for (int i = 0; i < num; i++) {
+            bitmap.claves[i] = entrada.readChar();
+            byte tipo = entrada.readByte();
+            int cardinalidad = entrada.readInt();
+            if (tipo == TIPO_ARRAY) {
+                ContenedorArray contenedor = new ContenedorArray();
+                contenedor.valores = new char[Math.max(cardinalidad, 4)];
+                for (int j = 0; j < cardinalidad; j++) {
+                    contenedor.valores[j] = entrada.readChar();
+                }
+                contenedor.total = cardinalidad;
+                bitmap.contenedores[i] = contenedor;
+            } else {
+                ContenedorBits contenedor = new ContenedorBits();
+                for (int j = 0; j < contenedor.palabras.length; j++) {
+                    contenedor.palabras[j] = entrada.readLong();
+                }
+                contenedor.total = cardinalidad;
+                bitmap.contenedores[i] = contenedor;
+            }
+        }
+        bitmap.numContenedores = num;
+
+        return bitmap;
+    }
+
+    /**
+     * Busca el contenedor de una clave.
+     *
+     * @param clave 16 bits altos.
+     * @return índice del contenedor o {@code -(punto de inserción) - 1} si no existe.
+     */
+    private int buscarContenedor(char clave) {
+        return Arrays.binarySearch(claves, 0, numContenedores, clave);
+    }
+
+    // ------------------------------------------------------------------------
+    // CONTENEDORES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Conjunto de valores de 16 bits que comparten los mismos 16 bits altos.
+     */
+    private abstract static class Contenedor {
+
+        /** Número de valores del contenedor. */
+        int total;
+
+        int cardinalidad() {
+            return total;
+        }
+
+        /** @return el contenedor resultante (puede cambiar de tipo). */
+        abstract Contenedor anadir(char valor);
+
+        /** @return el contenedor resultante (puede cambiar de tipo). */
+        abstract Contenedor eliminar(char valor);
+
+        abstract boolean contiene(char valor);
+
+        abstract void recorrer(int base, IntConsumer accion);
+
+        abstract void escribir(DataOutput salida) throws IOException;
+    }
+
+    /**
+     * Contenedor para grupos con pocos valores: array ordenado de los 16 bits bajos.
+     */
+    private static final class ContenedorArray extends Contenedor {
+
+        char[] valores = new char[4];
+
+        @Override
+        Contenedor anadir(char valor) {
+            int i = Arrays.binarySearch(valores, 0, total, valor);
+            if (i >= 0) {
+                return this;
+            }
+
+            // Si el array crece demasiado, un bitmap ocupa menos
+            if (total >= MAXIMO_ARRAY) {
+                ContenedorBits bits = new ContenedorBits();
+                for (int j = 0; j < total; j++) {
+                    bits.anadir(valores[j]);
+                }
+                return bits.anadir(valor);
+            }
+
+            i = -(i + 1);
+            if (total == valores.length) {
+                valores = Arrays.copyOf(valores, valores.length * 2);
+            }
+            System.arraycopy(valores, i, valores, i + 1, total - i);
+            valores[i] = valor;
+            total++;
+            return this;
+        }
+
+        @Override
+        Contenedor eliminar(char valor) {
+            int i = Arrays.binarySearch(valores, 0, total, valor);
+            if (i >= 0) {
+                System.arraycopy(valores, i + 1, valores, i, total - i - 1);
+                total--;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contiene(char valor) {
+            return Arrays.binarySearch(valores, 0, total, valor) >= 0;
+        }
+
+        @Override
+        void recorrer(int base, IntConsumer accion) {
+            for (int i = 0; i < total; i++) {
+                accion.accept(base | valores[i]);
+            }
+        }
+
+        @Override
+        void escribir(DataOutput salida) throws IOException {
+            salida.writeByte(TIPO_ARRAY);
+            salida.writeInt(total);
+            for (int i = 0; i < total; i++) {
+                salida.writeChar(valores[i]);
+            }
+        }
+    }
+
+    /**
+     * Contenedor para grupos con muchos valores: bitmap de 65.536 bits.
+     */
+    private static final class ContenedorBits extends Contenedor {
+
+        final long[] palabras = new long[1024];
+
+        @Override
+        Contenedor anadir(char valor) {
+            long mascara = 1L << valor;
+            if ((palabras[valor >>> 6] & mascara) == 0) {
+                palabras[valor >>> 6] |= mascara;
+                total++;
+            }
+            return this;
+        }
+
+        @Override
+        Contenedor eliminar(char valor) {
+            long mascara = 1L << valor;
+            if ((palabras[valor >>> 6] & mascara) != 0) {
+                palabras[valor >>> 6] &= ~mascara;
+                total--;
+            }
+
+            // Si quedan pocos valores, un array ocupa menos
+            if (total <= MAXIMO_ARRAY / 2) {
+                ContenedorArray array = new ContenedorArray();
+                array.valores = new char[Math.max(total, 4)];
+                recorrer(0, v -> array.valores[array.total++] = (char) v);
+                return array;
+            }
+            return this;
+        }
+
+        @Override
+        boolean contiene(char valor) {
+            return (palabras[valor >>> 6] & (1L << valor)) != 0;
+        }
+
+        @Override
+        void recorrer(int base, IntConsumer accion) {
+            for (int i = 0; i < palabras.length; i++) {
+                long palabra = palabras[i];
+                while (palabra != 0) {
+                    accion.accept(base | (i << 6) | Long.numberOfTrailingZeros(palabra));
+                    palabra &= palabra - 1;
+                }
+            }
+        }
+
+        @Override
+        void escribir(DataOutput salida) throws IOException {
+            salida.writeByte(TIPO_BITS);
+            salida.writeInt(total);
+            for (long palabra : palabras) {
+                salida.writeLong(palabra);
+            }
+        }
+    }
+}
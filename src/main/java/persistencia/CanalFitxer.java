@@ -0,0 +1,48 @@
+package persistencia;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Lecturas y escrituras posicionales completas sobre un {@link FileChannel}.
+ * <p>
+ * Una sola llamada a {@link FileChannel#read(ByteBuffer, long)} o {@link FileChannel#write(ByteBuffer, long)} puede
+ * transferir menos bytes de los pedidos, así que estos métodos repiten la operación hasta completar el buffer.
+ * </p>
+ */
+final class CanalFitxer {
+
+    private CanalFitxer() {}
+
+    /**
+     * Escribe en el canal todo el contenido del buffer.
+     *
+     * @param fc       canal de escritura.
+     * @param buffer   buffer a escribir.
+     * @param posicion posición inicial en bytes.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    static void escribirCompleto(FileChannel fc, ByteBuffer buffer, long posicion) throws IOException {
+        while (buffer.hasRemaining()) {
+            fc.write(buffer, posicion + buffer.position());
+        }
+    }
+
+    /**
+     * Lee desde el canal hasta llenar el buffer.
+     *
+     * @param fc       canal de lectura.
+     * @param buffer   buffer a llenar.
+     * @param posicion posición inicial en bytes.
+     * @throws IOException si se alcanza el final del fichero antes de llenar el buffer.
+     */
+    static void leerCompleto(FileChannel fc, ByteBuffer buffer, long posicion) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, posicion + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
@@ -0,0 +1,652 @@
+package persistencia;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+/**
+ * Cabecera versionada del fichero de productos ({@code productos.bin}).
+ * <p>
+ * Los registros de 69 bytes empiezan después de una cabecera de 32 bytes con el número mágico ("PROD"), la versión
+ * del formato, el tamaño de registro, el número de registros (incluidos los libres), el número de productos, el
+ * siguiente código a asignar, los indicadores de las funciones opcionales activadas (las sumas de control de
+ * {@link SumesControl} y las columnas de {@link ColumnesInventari}, en un byte), el formato de los registros (en los
+ * 3 bytes siguientes: {@link #FORMATO_CLASSIC} en los ficheros de los gestores y otro valor en los archivados
+ * con {@link ConversorFormat}, ver {@link CodecCompacte}), el número de modificaciones y el CRC32C de los bytes
+ * anteriores. Gracias a ella el número de registros y el siguiente código se conocen sin recorrer el fichero ni
+ * leer su último registro, y un registro final incompleto (por ejemplo, de un alta interrumpida) no altera el
+ * número de registros.
+ * </p>
+ * <p>
+ * Las altas escriben primero los registros y después la cabecera, así que al abrir el fichero se descartan los
+ * bytes que haya a continuación del último registro indicado en ella. Los ficheros sin cabecera (el formato
+ * anterior) se migran la primera vez que se abren, copiándolos con la cabecera a un fichero hermano
+ * ({@code productos.bin.migrant}) que sustituye al original con un único movimiento atómico. Las cabeceras de la
+ * versión 1, sin número de modificaciones, se reescriben en su sitio.
+ * </p>
+ * <p>
+ * Cada escritura de la cabecera incrementa el número de modificaciones, y los gestores la escriben después de
+ * cualquier cambio en los registros (también de las modificaciones en su sitio, con
+ * {@link #registrarModificacion(FileChannel)}). Los valores de la cabecera se guardan en memoria y se devuelven
+ * sin acceder al fichero: los gestores llaman a {@link #comprobar()} una vez al empezar cada operación (al tomar
+ * sus bloqueos), y entonces la cabecera se vuelve a leer a través de un canal que permanece abierto. Si su número
+ * de modificaciones no es el esperado, otro gestor (por ejemplo, {@link GestioProducteMapejat} o el de otro
+ * proceso) ha modificado el fichero, y se cuenta como un cambio externo (ver {@link #cambiosExternos()}). Los
+ * índices y los demás ficheros laterales guardan el número de modificaciones con el que están al día y se vuelven
+ * a cargar cuando hay cambios externos, pero no por las escrituras del propio gestor, aunque estén en curso.
+ * </p>
+ */
+final class CapcaleraFitxer implements Closeable {
+
+    /** Número mágico que identifica los ficheros de productos con cabecera ("PROD"). */
+    static final int MAGICO = 0x50524F44;
+    /** Versión actual del formato del fichero de productos. */
+    static final short VERSION = 2;
+    /** Versión anterior del formato, sin número de modificaciones (se actualiza al abrir el fichero). */
+    private static final short VERSION_1 = 1;
+    /** Tamaño en bytes de la cabecera. */
+    static final int TAMANO = 32;
+    /** Indicador de las sumas de control por registro activadas. */
+    static final int SUMAS_CONTROL = 1;
+    /** Indicador de las columnas de {@link ColumnesInventari} activadas. */
+    static final int COLUMNAS = 2;
+
+    /** Formato de los registros de {@link RegistreProducte}, el único que abren los gestores. */
+    static final int FORMATO_CLASSIC = 0;
+
+    /** Tamaño fijo en bytes de cada registro de producto. */
+    private static final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Posición en bytes del número de registros dentro de la cabecera. */
+    static final int OFFSET_NUM_REGISTROS = 8;
+    /** Posición en bytes del número de productos dentro de la cabecera. */
+    static final int OFFSET_NUM_ACTIVOS = 12;
+    /** Posición en bytes del siguiente código dentro de la cabecera. */
+    static final int OFFSET_SIGUIENTE_CODIGO = 16;
+    /** Posición en bytes de los indicadores (1 byte) dentro de la cabecera. */
+    private static final int OFFSET_INDICADORES = 20;
+    /** Posición en bytes del formato de los registros (3 bytes, ver {@link #FORMATO_CLASSIC}). */
+    private static final int OFFSET_FORMATO = 21;
+    /** Posición en bytes del número de modificaciones dentro de la cabecera. */
+    private static final int OFFSET_MODIFICACIONES = 24;
+    /** Posición en bytes del CRC32C dentro de la cabecera. */
+    private static final int OFFSET_CRC = 28;
+    /** Número de registros leídos en cada bloque al recorrer el fichero. */
+    private static final int REGISTROS_POR_BLOQUE = 4096;
+
+    /** Fichero de productos. */
+    private final File RUTA_DATOS;
+
+    /** Canal abierto sobre el fichero de productos para volver a leer la cabecera (se abre con {@link #abrir()}). */
+    private FileChannel canal;
+    /** Número de registros del fichero, incluidos los libres. */
+    private int numRegistros = 0;
+    /** Número de registros ocupados por un producto. */
+    private int numActivos = 0;
+    /** Siguiente código que se asignará a un producto. */
+    private int siguienteCodigo = 1;
+    /** Indicadores de las funciones opcionales activadas para el fichero. */
+    private int indicadores = 0;
+    /** Número de modificaciones del fichero, según la última cabecera leída o escrita. */
+    private int modificaciones = 0;
+    /** Número de veces que se ha detectado una cabecera escrita por otro gestor. */
+    private int cambiosExternos = 0;
+
+    /**
+     * @param rutaDatos fichero de productos.
+     */
+    CapcaleraFitxer(File rutaDatos) {
+        this.RUTA_DATOS = rutaDatos;
+    }
+
+    /**
+     * Abre el fichero de productos (que debe existir) y carga su cabecera. Si el fichero está vacío escribe una
+     * cabecera nueva, si no tiene cabecera lo migra al formato actual y si el número de registros no corresponde a
+     * su longitud lo repara. El canal sobre el fichero permanece abierto hasta llamar a {@link #close()}.
+     *
+     * @throws IOException si el fichero tiene una versión de formato no soportada o no se puede leer o reparar.
+     */
+    synchronized void abrir() throws IOException {
+        try (FileChannel fc = FileChannel.open(RUTA_DATOS.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            cargarOReparar(fc);
+        }
+        reabrir();
+    }
+
+    /**
+     * Vuelve a leer la cabecera del fichero. Si otro gestor la ha escrito (su número de modificaciones no es el
+     * esperado), carga sus valores y lo cuenta como un cambio externo. Si no es válida, el fichero puede haberse
+     * sustituido (por ejemplo, compactado por otro gestor) y se vuelve a abrir antes de leerla.
+     * <p>
+     * Los gestores la llaman una vez al empezar cada operación; el resto de métodos utilizan los valores de la
+     * última cabecera leída o escrita.
+     * </p>
+     */
+    synchronized void comprobar() {
+        try {
+            if (canal == null) {
+                reabrir();
+            }
+            ByteBuffer cabecera = leerValida(canal);
+            if (cabecera == null) {
+                reabrir();
+                cabecera = leerValida(canal);
+            }
+            if (cabecera != null && cabecera.getInt(OFFSET_MODIFICACIONES) != modificaciones) {
+                cargar(cabecera);
+                cambiosExternos++;
+            }
+        } catch (IOException e) {
+            System.err.println("Error! No se ha podido leer la cabecera del fichero de productos: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * @return número de registros del fichero, incluidos los libres.
+     */
+    synchronized int numRegistros() {
+        return numRegistros;
+    }
+
+    /**
+     * @return número de productos del fichero.
+     */
+    synchronized int numActivos() {
+        return numActivos;
+    }
+
+    /**
+     * Indica si {@link #comprobar()} ha detectado una cabecera escrita por otro gestor. Los ficheros laterales
+     * comparan el valor devuelto con el de su última llamada: si ha cambiado, deben volver a cargarse.
+     *
+     * @return número de veces que se ha detectado una cabecera escrita por otro gestor.
+     */
+    synchronized int cambiosExternos() {
+        return cambiosExternos;
+    }
+
+    /**
+     * @return número de modificaciones del fichero según la última cabecera leída o escrita (sin volver a leerla).
+     */
+    synchronized int modificaciones() {
+        return modificaciones;
+    }
+
+    /**
+     * @return {@code true} si las sumas de control por registro están activadas para el fichero.
+     */
+    synchronized boolean sumasActivadas() {
+        return (indicadores & SUMAS_CONTROL) != 0;
+    }
+
+    /**
+     * @return {@code true} si las columnas de {@link ColumnesInventari} están activadas para el fichero.
+     */
+    synchronized boolean columnasActivadas() {
+        return (indicadores & COLUMNAS) != 0;
+    }
+
+    /**
+     * Marca en la cabecera que una función opcional está activada. Debe llamarse después de calcular sus ficheros
+     * laterales.
+     *
+     * @param canal     canal abierto para escritura sobre el fichero de productos.
+     * @param indicador indicador de la función ({@link #SUMAS_CONTROL} o {@link #COLUMNAS}).
+     * @throws IOException si ocurre un error de escritura.
+     */
+    synchronized void activar(FileChannel canal, int indicador) throws IOException {
+        indicadores |= indicador;
+        escribir(canal);
+    }
+
+    /**
+     * Reserva un rango de códigos consecutivos. La secuencia se guarda con la siguiente escritura de la
+     * cabecera ({@link #registrarAltas(FileChannel, int, int)}), después de escribir los registros.
+     *
+     * @param cantidad número de códigos a reservar.
+     * @return primer código reservado.
+     */
+    synchronized int reservarCodigos(int cantidad) {
+        int primero = siguienteCodigo;
+        siguienteCodigo += cantidad;
+        return primero;
+    }
+
+    /**
+     * Hace que la secuencia de códigos continúe después del código indicado, salvo que ya fuera mayor, por ejemplo
+     * al importar productos con su propio código. Se guarda con la siguiente escritura de la cabecera.
+     *
+     * @param codigo código utilizado.
+     */
+    synchronized void avanzarSecuencia(int codigo) {
+        if (codigo >= siguienteCodigo) {
+            siguienteCodigo = codigo + 1;
+        }
+    }
+
+    /**
+     * Actualiza la cabecera después de un alta. Debe llamarse después de escribir los registros.
+     *
+     * @param canal           canal abierto para escritura sobre el fichero de productos.
+     * @param registrosNuevos número de registros añadidos al final del fichero.
+     * @param productos       número de productos añadidos (en registros nuevos o reutilizados).
+     * @throws IOException si ocurre un error de escritura.
+     */
+    synchronized void registrarAltas(FileChannel canal, int registrosNuevos, int productos) throws IOException {
+        numRegistros += registrosNuevos;
+        numActivos += productos;
+        escribir(canal);
+    }
+
+    /**
+     * Actualiza la cabecera después de eliminar un producto.
+     *
+     * @param canal canal abierto para escritura sobre el fichero de productos.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    synchronized void registrarBaja(FileChannel canal) throws IOException {
+        numActivos--;
+        escribir(canal);
+    }
+
+    /**
+     * Actualiza la cabecera después de modificar registros en su sitio, sin cambiar el número de registros ni de
+     * productos, para que los demás gestores vuelvan a cargar sus índices.
+     *
+     * @param canal canal abierto para escritura sobre el fichero de productos.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    synchronized void registrarModificacion(FileChannel canal) throws IOException {
+        escribir(canal);
+    }
+
+    /**
+     * Actualiza la cabecera después de compactar el fichero en su sitio, cuando todos los registros que quedan
+     * están ocupados.
+     *
+     * @param canal        canal abierto para escritura sobre el fichero de productos.
+     * @param numRegistros número de registros que quedan.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    synchronized void reemplazar(FileChannel canal, int numRegistros) throws IOException {
+        this.numRegistros = numRegistros;
+        this.numActivos = numRegistros;
+        escribir(canal);
+    }
+
+    /**
+     * Vuelve a abrir el fichero y a leer su cabecera después de sustituirlo por uno compactado (con la cabecera
+     * de {@link #cabecera(int, int)}). Antes invalida la cabecera del fichero sustituido, para que los gestores
+     * que aún lo tienen abierto detecten el cambio y abran el nuevo.
+     *
+     * @throws IOException si ocurre un error de lectura o escritura.
+     */
+    synchronized void recargar() throws IOException {
+        if (canal != null && canal.isOpen()) {
+            // Solo se invalida si el canal sigue sobre el fichero sustituido, con el número de modificaciones anterior
+            ByteBuffer anterior = leerValida(canal);
+            if (anterior != null && anterior.getInt(OFFSET_MODIFICACIONES) == modificaciones) {
+                CanalFitxer.escribirCompleto(canal, ByteBuffer.allocate(TAMANO), 0);
+            }
+        }
+        reabrir();
+        ByteBuffer cabecera = leerValida(canal);
+        if (cabecera != null) {
+            cargar(cabecera);
+        }
+    }
+
+    /**
+     * Recalcula el número de productos y la secuencia de códigos recorriendo el fichero, por ejemplo después de
+     * reproducir el diario. La secuencia continúa a partir del mayor código del fichero, salvo que ya fuera mayor.
+     *
+     * @throws IOException si ocurre un error de lectura o escritura.
+     */
+    synchronized void recontar() throws IOException {
+        try (FileChannel fc = FileChannel.open(RUTA_DATOS.toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            recontar(fc);
+        }
+    }
+
+    /**
+     * Construye la cabecera de un fichero que sustituirá al actual (por ejemplo, compactado), con la secuencia de
+     * códigos y los indicadores actuales. Su número de modificaciones es el siguiente al actual, así que los demás
+     * gestores detectan la sustitución como un cambio externo.
+     *
+     * @param numRegistros número de registros del fichero.
+     * @param numActivos   número de productos del fichero.
+     * @return cabecera codificada, lista para escribirse.
+     */
+    synchronized ByteBuffer cabecera(int numRegistros, int numActivos) {
+        return codificar(numRegistros, numActivos, siguienteCodigo, indicadores, FORMATO_CLASSIC,
+                TAMANO_REGISTRO, modificaciones + 1);
+    }
+
+    /**
+     * Construye una cabecera con los valores indicados, por ejemplo para un fichero convertido a otro formato. Como
+     * en los ficheros nuevos, el número de modificaciones empieza en un valor aleatorio.
+     *
+     * @param numRegistros    número de registros del fichero.
+     * @param numActivos      número de productos del fichero.
+     * @param siguienteCodigo siguiente código a asignar.
+     * @param indicadores     indicadores de las funciones opcionales activadas.
+     * @param formato         formato de los registros del fichero ({@link #FORMATO_CLASSIC} o
+     *                        {@link CodecCompacte#formato()}).
+     * @param tamanoRegistro  tamaño en bytes de cada registro.
+     * @return cabecera codificada, lista para escribirse.
+     */
+    static ByteBuffer codificar(int numRegistros, int numActivos, int siguienteCodigo, int indicadores, int formato,
+                                int tamanoRegistro) {
+        return codificar(numRegistros, numActivos, siguienteCodigo, indicadores, formato, tamanoRegistro,
+                ThreadLocalRandom.current().nextInt());
+    }
+
+    /**
+     * Lee la cabecera de un fichero de productos de cualquier formato. Las cabeceras de la versión 1 se devuelven
+     * convertidas a la versión actual.
+     *
+     * @param fc canal abierto sobre el fichero.
+     * @return cabecera leída, o {@code null} si el fichero no tiene una cabecera válida.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    static ByteBuffer leerValida(FileChannel fc) throws IOException {
+        ByteBuffer cabecera = leerCabecera(fc);
+        if (cabecera == null || cabecera.getInt(0) != MAGICO || !crcValido(cabecera)) {
+            return null;
+        }
+        if (cabecera.getShort(4) == VERSION_1) {
+            return actualizarVersion(cabecera);
+        }
+        return cabecera.getShort(4) == VERSION ? cabecera : null;
+    }
+
+    /**
+     * @param cabecera cabecera válida de un fichero de productos.
+     * @return formato de sus registros ({@link #FORMATO_CLASSIC} o {@link CodecCompacte#formato()}).
+     */
+    static int formato(ByteBuffer cabecera) {
+        return (cabecera.get(OFFSET_FORMATO) & 0xFF) << 16 | cabecera.getShort(OFFSET_FORMATO + 1) & 0xFFFF;
+    }
+
+    /**
+     * Calcula la posición en bytes donde comienza un registro.
+     *
+     * @param registro posición (en número de registro).
+     * @return posición en bytes dentro del fichero de productos.
+     */
+    static long posicion(int registro) {
+        return TAMANO + (long) registro * TAMANO_REGISTRO;
+    }
+
+    /**
+     * Obtiene el número de registros de un fichero de productos abierto: el de su cabecera o, si no tiene una
+     * válida, el de registros completos que caben en él.
+     *
+     * @param fc canal abierto sobre el fichero de productos.
+     * @return número de registros del fichero.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    static int numRegistros(FileChannel fc) throws IOException {
+        int completos = numRegistros(fc.size());
+        ByteBuffer cabecera = leerCabecera(fc);
+        if (cabecera == null || cabecera.getInt(0) != MAGICO || !crcValido(cabecera)) {
+            return completos;
+        }
+        return Math.min(Math.max(cabecera.getInt(OFFSET_NUM_REGISTROS), 0), completos);
+    }
+
+    /**
+     * Cierra el canal sobre el fichero de productos. Si después se vuelve a utilizar la cabecera, se abre de nuevo.
+     *
+     * @throws IOException si ocurre un error al cerrar el canal.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (canal != null) {
+            canal.close();
+            canal = null;
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Carga la cabecera del fichero abierto o, según su estado, escribe una nueva, lo migra o lo repara (ver
+     * {@link #abrir()}).
+     *
+     * @param fc canal abierto para lectura y escritura sobre el fichero de productos.
+     * @throws IOException si el fichero tiene una versión de formato no soportada o no se puede leer o reparar.
+     */
+    private void cargarOReparar(FileChannel fc) throws IOException {
+        numRegistros = 0;
+        numActivos = 0;
+        siguienteCodigo = 1;
+        indicadores = 0;
+        // Un fichero nuevo, migrado o reparado empieza en un número de modificaciones aleatorio, para que no
+        // coincida con el que tenían los ficheros laterales de otro fichero con la misma ruta
+        int inicial = ThreadLocalRandom.current().nextInt();
+        modificaciones = inicial;
+        if (fc.size() == 0) {
+            escribir(fc);
+            return;
+        }
+
+        ByteBuffer cabecera = leerCabecera(fc);
+        if (cabecera == null || cabecera.getInt(0) != MAGICO) {
+            migrar(fc);
+            return;
+        }
+        boolean actualizada = cabecera.getShort(4) == VERSION_1 && crcValido(cabecera);
+        if (actualizada) {
+            cabecera = actualizarVersion(cabecera);
+        }
+        boolean otroFormato = crcValido(cabecera) && formato(cabecera) != FORMATO_CLASSIC;
+        if ((cabecera.getShort(4) != VERSION && cabecera.getShort(4) != VERSION_1)
+                || cabecera.getShort(6) != TAMANO_REGISTRO || otroFormato) {
+            throw new IOException("El fichero " + RUTA_DATOS.getName() + " tiene un formato no soportado (versión "
+                    + cabecera.getShort(4) + ", registros de " + cabecera.getShort(6) + " bytes).");
+        }
+
+        cargar(cabecera);
+        long esperada = posicion(numRegistros);
+
+        if (!crcValido(cabecera) || cabecera.getShort(4) != VERSION || numRegistros < 0 || fc.size() < esperada) {
+            // La cabecera no corresponde al contenido: se recalcula a partir de los registros completos
+            numRegistros = numRegistros(fc.size());
+            siguienteCodigo = 1;
+            indicadores = 0;
+            modificaciones = inicial;
+            fc.truncate(posicion(numRegistros));
+            recontar(fc);
+            return;
+        }
+        if (fc.size() > esperada) {
+            // Registros de un alta que no llegó a confirmarse en la cabecera
+            fc.truncate(esperada);
+        }
+        if (actualizada) {
+            modificaciones = inicial;
+            escribir(fc);
+        }
+    }
+
+    /**
+     * Cierra el canal sobre el fichero de productos, si estaba abierto, y lo abre de nuevo.
+     *
+     * @throws IOException si no se puede abrir el fichero.
+     */
+    private void reabrir() throws IOException {
+        close();
+        canal = FileChannel.open(RUTA_DATOS.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Carga los valores de una cabecera válida. La secuencia de códigos nunca retrocede: los códigos reservados para
+     * un alta en curso (que aún no ha escrito la cabecera) no se vuelven a asignar.
+     *
+     * @param cabecera cabecera leída del fichero, en el formato actual.
+     */
+    private void cargar(ByteBuffer cabecera) {
+        numRegistros = cabecera.getInt(OFFSET_NUM_REGISTROS);
+        numActivos = cabecera.getInt(OFFSET_NUM_ACTIVOS);
+        siguienteCodigo = Math.max(siguienteCodigo, cabecera.getInt(OFFSET_SIGUIENTE_CODIGO));
+        indicadores = cabecera.get(OFFSET_INDICADORES) & 0xFF;
+        modificaciones = cabecera.getInt(OFFSET_MODIFICACIONES);
+    }
+
+    /**
+     * Incrementa el número de modificaciones y escribe la cabecera con los valores actuales.
+     *
+     * @param fc canal abierto para escritura sobre el fichero de productos.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void escribir(FileChannel fc) throws IOException {
+        modificaciones++;
+        CanalFitxer.escribirCompleto(fc, codificar(numRegistros, numActivos, siguienteCodigo, indicadores,
+                FORMATO_CLASSIC, TAMANO_REGISTRO, modificaciones), 0);
+    }
+
+    /**
+     * Recorre los registros del fichero por bloques, cuenta los productos, ajusta la secuencia de códigos y
+     * escribe la cabecera.
+     *
+     * @param fc canal abierto para lectura y escritura sobre el fichero de productos.
+     * @throws IOException si ocurre un error de lectura o escritura.
+     */
+    private void recontar(FileChannel fc) throws IOException {
+        ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+        int activos = 0;
+        int mayorCodigo = 0;
+
+        for (int registro = 0; registro < numRegistros; registro += REGISTROS_POR_BLOQUE) {
+            int registrosBloque = Math.min(REGISTROS_POR_BLOQUE, numRegistros - registro);
+            bloque.clear().limit(registrosBloque * TAMANO_REGISTRO);
+            CanalFitxer.leerCompleto(fc, bloque, posicion(registro));
+
+            for (int inicio = 0; inicio < registrosBloque * TAMANO_REGISTRO; inicio += TAMANO_REGISTRO) {
+                if (!RegistreProducte.libre(bloque, inicio)) {
+                    activos++;
+                    mayorCodigo = Math.max(mayorCodigo, bloque.getInt(inicio + RegistreProducte.OFFSET_CODIGO));
+                }
+            }
+        }
+
+        numActivos = activos;
+        siguienteCodigo = Math.max(siguienteCodigo, mayorCodigo + 1);
+        escribir(fc);
+    }
+
+    /**
+     * Migra un fichero sin cabecera: copia sus registros completos a continuación de una cabecera nueva en un
+     * fichero hermano, lo fuerza al disco y lo mueve sobre el original.
+     *
+     * @param origen canal abierto sobre el fichero sin cabecera.
+     * @throws IOException si ocurre un error al copiar o al sustituir el fichero.
+     */
+    private void migrar(FileChannel origen) throws IOException {
+        File migrado = new File(RUTA_DATOS.getPath() + ".migrant");
+        numRegistros = (int) (origen.size() / TAMANO_REGISTRO);
+        siguienteCodigo = 1;
+        indicadores = 0;
+
+        try (FileChannel destino = FileChannel.open(migrado.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+            for (int registro = 0; registro < numRegistros; registro += REGISTROS_POR_BLOQUE) {
+                int registrosBloque = Math.min(REGISTROS_POR_BLOQUE, numRegistros - registro);
+                bloque.clear().limit(registrosBloque * TAMANO_REGISTRO);
+                CanalFitxer.leerCompleto(origen, bloque, (long) registro * TAMANO_REGISTRO);
+                bloque.flip();
+                CanalFitxer.escribirCompleto(destino, bloque, posicion(registro));
+            }
+
+            // La cabecera se escribe al final, cuando ya se conocen el número de productos y el mayor código
+            recontar(destino);
+            destino.force(true);
+        }
+
+        try {
+            Files.move(migrado.toPath(), RUTA_DATOS.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(migrado.toPath(), RUTA_DATOS.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @param longitud longitud en bytes del fichero de productos.
+     * @return número de registros completos que caben después de la cabecera.
+     */
+    private static int numRegistros(long longitud) {
+        return longitud <= TAMANO ? 0 : (int) ((longitud - TAMANO) / TAMANO_REGISTRO);
+    }
+
+    /**
+     * @param fc canal abierto sobre el fichero de productos.
+     * @return los primeros {@link #TAMANO} bytes del fichero, o {@code null} si es más corto.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private static ByteBuffer leerCabecera(FileChannel fc) throws IOException {
+        if (fc.size() < TAMANO) {
+            return null;
+        }
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO);
+        CanalFitxer.leerCompleto(fc, cabecera, 0);
+        return cabecera;
+    }
+
+    /**
+     * @param cabecera cabecera leída del fichero.
+     * @return {@code true} si el CRC32C de la cabecera corresponde a su contenido.
+     */
+    private static boolean crcValido(ByteBuffer cabecera) {
+        CRC32C crc = new CRC32C();
+        crc.update(cabecera.array(), 0, OFFSET_CRC);
+        return (int) crc.getValue() == cabecera.getInt(OFFSET_CRC);
+    }
+
+    /**
+     * Construye una cabecera con los valores indicados.
+     *
+     * @param numRegistros    número de registros del fichero.
+     * @param numActivos      número de productos del fichero.
+     * @param siguienteCodigo siguiente código a asignar.
+     * @param indicadores     indicadores de las funciones opcionales activadas.
+     * @param formato         formato de los registros.
+     * @param tamanoRegistro  tamaño en bytes de cada registro.
+     * @param modificaciones  número de modificaciones del fichero.
+     * @return cabecera codificada, lista para escribirse.
+     */
+    private static ByteBuffer codificar(int numRegistros, int numActivos, int siguienteCodigo, int indicadores,
+                                        int formato, int tamanoRegistro, int modificaciones) {
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO)
+                .putInt(MAGICO).putShort(VERSION).putShort((short) tamanoRegistro)
+                .putInt(numRegistros).putInt(numActivos).putInt(siguienteCodigo)
+                .putInt(indicadores << 24 | formato & 0xFFFFFF).putInt(modificaciones);
+        CRC32C crc = new CRC32C();
+        crc.update(cabecera.array(), 0, OFFSET_CRC);
+        return cabecera.putInt((int) crc.getValue()).flip();
+    }
+
+    /**
+     * Convierte una cabecera válida de la versión 1 (con los indicadores y el formato en dos enteros) a la versión
+     * actual, sin modificaciones.
+     *
+     * @param cabecera cabecera de la versión 1.
+     * @return cabecera equivalente en la versión actual.
+     */
+    private static ByteBuffer actualizarVersion(ByteBuffer cabecera) {
+        return codificar(cabecera.getInt(OFFSET_NUM_REGISTROS), cabecera.getInt(OFFSET_NUM_ACTIVOS),
+                cabecera.getInt(OFFSET_SIGUIENTE_CODIGO), cabecera.getInt(20), cabecera.getInt(24),
+                cabecera.getShort(6), 0);
+    }
+}
@@ -0,0 +1,194 @@
+package persistencia;
+
+import model.Producte;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formato compacto de los registros de producto, el de los ficheros archivados con {@link ConversorFormat}.
+ * <p>
+ * El nombre se guarda en UTF-8 estándar, sin relleno de espacios, en un campo de {@code anchoNombre} bytes
+ * precedido de su longitud, así que cualquier carácter ocupa lo que le corresponde y el ancho puede ajustarse a
+ * los nombres reales en lugar de reservar siempre 50 bytes. El estado ocupa un byte de indicadores y, si se
+ * indica, el precio se guarda en céntimos en un entero de 4 bytes (redondeado a dos decimales, los mismos que
+ * muestran las exportaciones):
+ * </p>
+ * <pre>
+ *  0        código         int  (4 bytes)
+ *  4        indicadores    byte (bit 0: descatalogado)
+ *  5        longitud       byte (bytes del nombre, de 0 a anchoNombre)
+ *  6        nombre         anchoNombre bytes (UTF-8, completado con ceros)
+ *  6+N      stock          int  (4 bytes)
+ * 10+N      precio         int en céntimos (4 bytes) o double (8 bytes)
+ * </pre>
+ * <p>
+ * Con un ancho de 24 bytes y el precio en céntimos cada registro ocupa 38 bytes en lugar de 69. Los nombres se
+ * devuelven tal y como se guardaron, sin relleno.
+ * </p>
+ * <p>
+ * Los gestores no abren ficheros en este formato: trabajan siempre con el registro de 69 bytes de
+ * {@link RegistreProducte}, del que dependen sus índices, diario, sumas de control y columnas, las condiciones que
+ * se evalúan sobre los bytes de cada registro y {@link ProducteView}. Un fichero archivado se convierte de nuevo al
+ * formato clásico para volver a gestionarlo.
+ * </p>
+ */
+final class CodecCompacte {
+
+    /** Tipo de formato (byte bajo del identificador de formato). */
+    private static final int TIPO = 1;
+    /** Bit del identificador de formato que indica el precio en céntimos. */
+    private static final int FORMATO_CENTIMOS = 1 << 8;
+    /** Bit del byte de indicadores que indica que el producto está descatalogado. */
+    private static final int INDICADOR_DESCATALOGADO = 1;
+
+    private static final int OFFSET_CODIGO = 0;
+    private static final int OFFSET_INDICADORES = 4;
+    private static final int OFFSET_LONGITUD = 5;
+    private static final int OFFSET_NOMBRE = 6;
+
+    /** Número de bytes reservados para el nombre. */
+    private final int ANCHO_NOMBRE;
+    /** Indica si el precio se guarda en céntimos. */
+    private final boolean CENTIMOS;
+    /** Desplazamiento del campo stock dentro del registro. */
+    private final int OFFSET_STOCK;
+    /** Desplazamiento del campo precio dentro del registro. */
+    private final int OFFSET_PRECIO;
+    /** Tamaño en bytes de cada registro. */
+    private final int TAMANO;
+
+    /**
+     * @param anchoNombre número de bytes reservados para el nombre (de 1 a 255).
+     * @param centimos    {@code true} para guardar el precio en céntimos.
+     */
+    CodecCompacte(int anchoNombre, boolean centimos) {
+        if (anchoNombre < 1 || anchoNombre > 255) {
+            throw new IllegalArgumentException("El ancho del nombre tiene que estar entre 1 y 255 bytes.");
+        }
+        this.ANCHO_NOMBRE = anchoNombre;
+        this.CENTIMOS = centimos;
+        this.OFFSET_STOCK = OFFSET_NOMBRE + anchoNombre;
+        this.OFFSET_PRECIO = OFFSET_STOCK + 4;
+        this.TAMANO = OFFSET_PRECIO + (centimos ? 4 : 8);
+    }
+
+    /**
+     * @param formato identificador de formato guardado en la cabecera de un fichero.
+     * @return formato compacto correspondiente.
+     * @throws IllegalArgumentException si el identificador no corresponde a un formato compacto.
+     */
+    static CodecCompacte deFormato(int formato) {
+        if ((formato & 0xFF) != TIPO || (formato & ~(0xFF | FORMATO_CENTIMOS | 0xFF0000)) != 0) {
+            throw new IllegalArgumentException("Formato de registro desconocido: " + formato + ".");
+        }
+        return new CodecCompacte((formato >>> 16) & 0xFF, (formato & FORMATO_CENTIMOS) != 0);
+    }
+
+    /** @return identificador del formato, con sus parámetros, que se guarda en la cabecera del fichero. */
+    int formato() {
+        return TIPO | (CENTIMOS ? FORMATO_CENTIMOS : 0) | (ANCHO_NOMBRE << 16);
+    }
+
+    /** @return tamaño en bytes de cada registro. */
+    int tamano() {
+        return TAMANO;
+    }
+
+    /**
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return producto decodificado.
+     */
+    Producte leer(ByteBuffer buffer, int inicio) {
+        byte[] nombre = new byte[buffer.get(inicio + OFFSET_LONGITUD) & 0xFF];
+        buffer.get(inicio + OFFSET_NOMBRE, nombre);
+        return new Producte(codigo(buffer, inicio), new String(nombre, StandardCharsets.UTF_8),
+                precio(buffer, inicio), stock(buffer, inicio), descatalogado(buffer, inicio));
+    }
+
+    /**
+     * Codifica un producto. El relleno de espacios del nombre (el de los registros de 69 bytes) no se guarda.
+     *
+     * @param buffer buffer destino.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @param p      producto a codificar.
+     * @throws ProducteNoValidException si el nombre no cabe en el ancho del formato o, con el precio en céntimos,
+     *                                  si el precio no cabe en un entero.
+     */
+    void escribir(ByteBuffer buffer, int inicio, Producte p) throws ProducteNoValidException {
+        byte[] nombre = p.getNombre().stripTrailing().getBytes(StandardCharsets.UTF_8);
+        if (nombre.length > ANCHO_NOMBRE) {
+            throw new ProducteNoValidException("El nombre no cabe en " + ANCHO_NOMBRE + " bytes.");
+        }
+        long centimos = Math.round(p.getPrecio() * 100);
+        if (CENTIMOS && (centimos > Integer.MAX_VALUE || centimos < Integer.MIN_VALUE)) {
+            throw new ProducteNoValidException("El precio no cabe en un registro con el precio en céntimos.");
+        }
+
+        buffer.putInt(inicio + OFFSET_CODIGO, p.getCodigo());
+        buffer.put(inicio + OFFSET_INDICADORES, (byte) (p.isDescatalogado() ? INDICADOR_DESCATALOGADO : 0));
+        buffer.put(inicio + OFFSET_LONGITUD, (byte) nombre.length);
+        buffer.put(inicio + OFFSET_NOMBRE, nombre);
+        for (int i = nombre.length; i < ANCHO_NOMBRE; i++) {
+            buffer.put(inicio + OFFSET_NOMBRE + i, (byte) 0);
+        }
+        buffer.putInt(inicio + OFFSET_STOCK, p.getStock());
+        if (CENTIMOS) {
+            buffer.putInt(inicio + OFFSET_PRECIO, (int) centimos);
+        } else {
+            buffer.putDouble(inicio + OFFSET_PRECIO, p.getPrecio());
+        }
+    }
+
+    /**
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return código del producto ({@link RegistreProducte#CODIGO_LIBRE} en los registros libres).
+     */
+    int codigo(ByteBuffer buffer, int inicio) {
+        return buffer.getInt(inicio + OFFSET_CODIGO);
+    }
+
+    /**
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return precio del producto.
+     */
+    double precio(ByteBuffer buffer, int inicio) {
+        return CENTIMOS ? buffer.getInt(inicio + OFFSET_PRECIO) / 100.0 : buffer.getDouble(inicio + OFFSET_PRECIO);
+    }
+
+    /**
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return stock del producto.
+     */
+    int stock(ByteBuffer buffer, int inicio) {
+        return buffer.getInt(inicio + OFFSET_STOCK);
+    }
+
+    /**
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return {@code true} si el producto está descatalogado.
+     */
+    boolean descatalogado(ByteBuffer buffer, int inicio) {
+        return (buffer.get(inicio + OFFSET_INDICADORES) & INDICADOR_DESCATALOGADO) != 0;
+    }
+
+    /**
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return {@code true} si es un registro libre (de un producto eliminado).
+     */
+    boolean libre(ByteBuffer buffer, int inicio) {
+        return codigo(buffer, inicio) == RegistreProducte.CODIGO_LIBRE;
+    }
+
+    @Override
+    public String toString() {
+        return "CodecCompacte{nombre de " + ANCHO_NOMBRE + " bytes, precio en " + (CENTIMOS ? "céntimos" : "double")
+                + ", registros de " + TAMANO + " bytes}";
+    }
+}
@@ -0,0 +1,491 @@
+package persistencia;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Copia por columnas de los campos numéricos de los registros del fichero de productos, para los recorridos
+ * analíticos que solo leen algunos campos (por ejemplo, {@code resumInventari}).
+ * <p>
+ * Cada campo se guarda en un fichero lateral contiguo con el valor de cada registro, en el orden de los registros:
+ * {@code productos.bin.col.codigo} (int), {@code .col.precio} (double), {@code .col.stock} (int) y
+ * {@code .col.descatalogado} (byte), cada uno precedido de una cabecera de 8 bytes (número mágico y 4 bytes
+ * reservados). Un resumen del inventario lee así 17 bytes por registro en lugar de 69 y los acumula en bucles
+ * sobre arrays de tipos primitivos (ver {@link AcumuladorInventari#acumular(int[], double[], int[], byte[], int)}).
+ * Los nombres no se copian: sus búsquedas ya se resuelven con el índice de nombres. Las búsquedas que devuelven
+ * productos, como {@code cercaSenseStock} y {@code cercaDescatalogats}, tampoco utilizan las columnas: necesitan el
+ * registro completo, así que obtienen las posiciones de los índices de estado ({@link IndexEstat}) y leen esos
+ * registros, o recorren el fichero de productos si hay muchas.
+ * </p>
+ * <p>
+ * Igual que las sumas de control ({@link SumesControl}), son opcionales: se activan una vez para cada fichero
+ * (ver {@link CapcaleraFitxer#columnasActivadas()}) y, a partir de entonces, cada escritura de un registro
+ * actualiza también sus columnas. El fichero de productos sigue siendo la referencia: si las columnas no están
+ * completas o quedaron a medio sustituir, se vuelven a calcular a partir de él. Mientras no están activadas, todas
+ * las actualizaciones se ignoran.
+ * </p>
+ */
+final class ColumnesInventari {
+
+    /** Número mágico que identifica los ficheros de columnas ("COL1"). */
+    private static final int MAGICO = 0x434F4C31;
+    /** Tamaño en bytes de la cabecera de cada fichero de columna. */
+    private static final int TAMANO_CABECERA = 8;
+    /** Tamaño fijo en bytes de cada registro de producto. */
+    private static final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Número de registros que se leen en cada acceso a los ficheros al calcular o recorrer las columnas. */
+    private static final int REGISTROS_POR_BLOQUE = 8192;
+
+    private static final int CODIGO = 0;
+    private static final int PRECIO = 1;
+    private static final int STOCK = 2;
+    private static final int DESCATALOGADO = 3;
+
+    /** Fichero de productos. */
+    private final File RUTA_DATOS;
+    /** Columnas, en el orden {@link #CODIGO}, {@link #PRECIO}, {@link #STOCK}, {@link #DESCATALOGADO}. */
+    private final Columna[] COLUMNAS;
+
+    /** Indica si las columnas están activadas para el fichero. */
+    private volatile boolean activa = false;
+
+    /**
+     * @param rutaDatos fichero de productos.
+     */
+    ColumnesInventari(File rutaDatos) {
+        this.RUTA_DATOS = rutaDatos;
+        this.COLUMNAS = new Columna[]{
+                new Columna(rutaDatos, "codigo", 4),
+                new Columna(rutaDatos, "precio", 8),
+                new Columna(rutaDatos, "stock", 4),
+                new Columna(rutaDatos, "descatalogado", 1)
+        };
+    }
+
+    /**
+     * Activa las columnas de un fichero que ya las tenía activadas. Si algún fichero lateral no existe, no contiene
+     * los valores de todos los registros o quedó a medio sustituir (por ejemplo, por una compactación
+     * interrumpida), las vuelve a calcular a partir del contenido actual.
+     *
+     * @param numRegistros número de registros del fichero de productos.
+     * @throws IOException si no se pueden calcular las columnas.
+     */
+    synchronized void cargar(int numRegistros) throws IOException {
+        activa = true;
+        for (Columna columna : COLUMNAS) {
+            if (columna.TEMPORAL.exists() || columna.RUTA.length() < columna.posicion(numRegistros)
+                    || !columna.cabeceraValida()) {
+                System.err.println("Error! Faltan columnas de " + RUTA_DATOS.getName()
+                        + "; se vuelven a calcular.");
+                activar(numRegistros);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Calcula las columnas de todos los registros del fichero de productos, las guarda y las activa.
+     *
+     * @param numRegistros número de registros del fichero de productos.
+     * @throws IOException si ocurre un error al leer el fichero o al guardar las columnas.
+     */
+    synchronized void activar(int numRegistros) throws IOException {
+        escribirTemporales(RUTA_DATOS, numRegistros);
+        activa = true;
+        confirmar();
+    }
+
+    /**
+     * @return {@code true} si las columnas están activadas.
+     */
+    boolean activa() {
+        return activa;
+    }
+
+    /**
+     * Actualiza las columnas de un registro después de escribirlo.
+     *
+     * @param posicion posición (en número de registro).
+     * @param registro buffer que contiene el registro escrito.
+     * @param inicio   posición (en bytes) donde comienza el registro dentro del buffer.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void actualizar(int posicion, ByteBuffer registro, int inicio) throws IOException {
+        actualizarBloque(posicion, registro, inicio, 1);
+    }
+
+    /**
+     * Actualiza las columnas de varios registros consecutivos después de escribirlos de una sola vez, con una
+     * escritura por columna.
+     *
+     * @param primero      posición (en número de registro) del primer registro.
+     * @param registros    buffer que contiene los registros escritos, uno detrás de otro.
+     * @param inicio       posición (en bytes) donde comienza el primer registro dentro del buffer.
+     * @param numRegistros número de registros.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void actualizarBloque(int primero, ByteBuffer registros, int inicio, int numRegistros) throws IOException {
+        if (!activa) {
+            return;
+        }
+        ByteBuffer[] valores = extraer(registros, inicio, numRegistros);
+        for (int c = 0; c < COLUMNAS.length; c++) {
+            CanalFitxer.escribirCompleto(COLUMNAS[c].canal(), valores[c], COLUMNAS[c].posicion(primero));
+        }
+    }
+
+    /**
+     * Actualiza la columna de stock de varios registros no consecutivos, por ejemplo los de un lote de movimientos.
+     * El resto de columnas no cambia.
+     *
+     * @param posiciones   posiciones (en número de registro) de los registros, en orden creciente.
+     * @param stocks       nuevo stock de cada registro.
+     * @param numRegistros número de registros.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void actualizarStocks(int[] posiciones, int[] stocks, int numRegistros) throws IOException {
+        if (!activa) {
+            return;
+        }
+        Columna columna = COLUMNAS[STOCK];
+        FileChannel fc = columna.canal();
+        ByteBuffer stock = ByteBuffer.allocate(4);
+        for (int i = 0; i < numRegistros; i++) {
+            CanalFitxer.escribirCompleto(fc, stock.clear().putInt(0, stocks[i]), columna.posicion(posiciones[i]));
+        }
+    }
+
+    /**
+     * Calcula las columnas de todos los registros de un fichero de productos nuevo (por ejemplo, compactado) y las
+     * escribe en ficheros laterales hermanos, que sustituyen a los actuales con {@link #confirmar()} después de
+     * sustituir el fichero de productos. Si el proceso se interrumpe entre ambas sustituciones, las columnas se
+     * vuelven a calcular al cargarlas.
+     *
+     * @param datos        fichero de productos nuevo.
+     * @param numRegistros número de registros del fichero nuevo.
+     * @throws IOException si ocurre un error al leer el fichero o al escribir las columnas.
+     */
+    synchronized void preparar(File datos, int numRegistros) throws IOException {
+        if (activa) {
+            escribirTemporales(datos, numRegistros);
+        }
+    }
+
+    /**
+     * Sustituye los ficheros laterales por los escritos con {@link #preparar(File, int)} o {@link #activar(int)}, uno
+     * detrás de otro.
+     *
+     * @throws IOException si no se puede sustituir algún fichero lateral.
+     */
+    synchronized void confirmar() throws IOException {
+        if (!activa) {
+            return;
+        }
+        for (Columna columna : COLUMNAS) {
+            columna.confirmar();
+        }
+    }
+
+    /**
+     * Fuerza al disco las columnas escritas, por ejemplo en un punto de control.
+     *
+     * @throws IOException si ocurre un error al forzar algún fichero lateral.
+     */
+    synchronized void forzar() throws IOException {
+        for (Columna columna : COLUMNAS) {
+            columna.forzar();
+        }
+    }
+
+    /**
+     * Calcula el resumen del inventario de todos los productos leyendo solo las columnas. El fichero se divide en
+     * tramos de bloques completos que se recorren en las tareas del {@code ForkJoinPool}, con lecturas
+     * posicionales sobre los mismos canales.
+     *
+     * @param numRegistros     número de registros del fichero.
+     * @param registrosMinimos número mínimo de registros que recorre cada tarea.
+     * @param paralelo         {@code true} para repartir el recorrido entre los hilos del {@code ForkJoinPool},
+     *                         {@code false} para hacerlo en el hilo actual.
+     * @return acumulador con el resumen, o {@code null} si alguna columna no contiene todos los registros (por
+     * ejemplo, porque otro gestor sin las columnas cargadas ha añadido productos).
+     * @throws IOException si ocurre un error de lectura.
+     */
+    AcumuladorInventari resumir(int numRegistros, int registrosMinimos, boolean paralelo) throws IOException {
+        if (!activa) {
+            return null;
+        }
+
+        // Se abren canales propios, por si otro gestor ha sustituido los ficheros laterales
+        FileChannel[] canales = new FileChannel[COLUMNAS.length];
+        try {
+            for (int c = 0; c < COLUMNAS.length; c++) {
+                canales[c] = FileChannel.open(COLUMNAS[c].RUTA.toPath(), StandardOpenOption.READ);
+                if (canales[c].size() < COLUMNAS[c].posicion(numRegistros)) {
+                    return null;
+                }
+            }
+            int minimo = Math.max(registrosMinimos, REGISTROS_POR_BLOQUE);
+            if (!paralelo) {
+                return resumirTramo(canales, 0, numRegistros);
+            }
+            return new TareaResumen(canales, 0, numRegistros, minimo).invoke();
+
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (NoSuchFileException e) {
+            return null;
+        } finally {
+            for (FileChannel fc : canales) {
+                if (fc != null) {
+                    fc.close();
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Calcula las columnas de todos los registros de un fichero de productos y las escribe en los ficheros
+     * temporales de las columnas. El fichero se lee por bloques y cada bloque se escribe a continuación, así que no
+     * se cargan todas en memoria.
+     *
+     * @param datos        fichero de productos.
+     * @param numRegistros número de registros del fichero.
+     * @throws IOException si ocurre un error al leer el fichero o al escribir las columnas.
+     */
+    private void escribirTemporales(File datos, int numRegistros) throws IOException {
+        FileChannel[] temporales = new FileChannel[COLUMNAS.length];
+        try (FileChannel origen = FileChannel.open(datos.toPath(), StandardOpenOption.READ)) {
+            for (int c = 0; c < COLUMNAS.length; c++) {
+                temporales[c] = COLUMNAS[c].abrirTemporal();
+            }
+
+            ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+            for (int primero = 0; primero < numRegistros; primero += REGISTROS_POR_BLOQUE) {
+                int registros = Math.min(REGISTROS_POR_BLOQUE, numRegistros - primero);
+                bloque.clear().limit(registros * TAMANO_REGISTRO);
+                CanalFitxer.leerCompleto(origen, bloque, CapcaleraFitxer.posicion(primero));
+                ByteBuffer[] valores = extraer(bloque, 0, registros);
+                for (int c = 0; c < COLUMNAS.length; c++) {
+                    CanalFitxer.escribirCompleto(temporales[c], valores[c], COLUMNAS[c].posicion(primero));
+                }
+            }
+
+            for (FileChannel temporal : temporales) {
+                temporal.force(true);
+            }
+        } finally {
+            for (FileChannel temporal : temporales) {
+                if (temporal != null) {
+                    temporal.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Extrae los valores de cada columna de varios registros consecutivos.
+     *
+     * @param registros    buffer que contiene los registros, uno detrás de otro.
+     * @param inicio       posición (en bytes) donde comienza el primer registro dentro del buffer.
+     * @param numRegistros número de registros.
+     * @return un buffer por columna con los valores de los registros, listo para escribirse.
+     */
+    private static ByteBuffer[] extraer(ByteBuffer registros, int inicio, int numRegistros) {
+        ByteBuffer codigos = ByteBuffer.allocate(numRegistros * 4);
+        ByteBuffer precios = ByteBuffer.allocate(numRegistros * 8);
+        ByteBuffer stocks = ByteBuffer.allocate(numRegistros * 4);
+        ByteBuffer descatalogados = ByteBuffer.allocate(numRegistros);
+        for (int i = 0; i < numRegistros; i++) {
+            int registro = inicio + i * TAMANO_REGISTRO;
+            codigos.putInt(registros.getInt(registro + RegistreProducte.OFFSET_CODIGO));
+            precios.putDouble(registros.getDouble(registro + RegistreProducte.OFFSET_PRECIO));
+            stocks.putInt(registros.getInt(registro + RegistreProducte.OFFSET_STOCK));
+            descatalogados.put(registros.get(registro + RegistreProducte.OFFSET_DESCATALOGADO) != 0
+                    ? (byte) 1 : (byte) 0);
+        }
+        return new ByteBuffer[]{codigos.flip(), precios.flip(), stocks.flip(), descatalogados.flip()};
+    }
+
+    /**
+     * Resume un tramo de registros, leyendo cada columna por bloques en arrays de tipos primitivos.
+     *
+     * @param canales canales abiertos sobre las columnas.
+     * @param primero posición del primer registro del tramo.
+     * @param fin     posición siguiente al último registro del tramo.
+     * @return acumulador con el resumen del tramo.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private AcumuladorInventari resumirTramo(FileChannel[] canales, int primero, int fin) throws IOException {
+        int capacidad = Math.min(REGISTROS_POR_BLOQUE, Math.max(fin - primero, 0));
+        ByteBuffer[] bloques = new ByteBuffer[COLUMNAS.length];
+        for (int c = 0; c < COLUMNAS.length; c++) {
+            bloques[c] = ByteBuffer.allocate(capacidad * COLUMNAS[c].ANCHO);
+        }
+        int[] codigos = new int[capacidad];
+        double[] precios = new double[capacidad];
+        int[] stocks = new int[capacidad];
+        byte[] descatalogados = bloques[DESCATALOGADO].array();
+        AcumuladorInventari acumulador = new AcumuladorInventari();
+
+        for (int posicion = primero; posicion < fin; posicion += REGISTROS_POR_BLOQUE) {
+            int registros = Math.min(REGISTROS_POR_BLOQUE, fin - posicion);
+            for (int c = 0; c < COLUMNAS.length; c++) {
+                bloques[c].clear().limit(registros * COLUMNAS[c].ANCHO);
+                CanalFitxer.leerCompleto(canales[c], bloques[c], COLUMNAS[c].posicion(posicion));
+            }
+            bloques[CODIGO].flip().asIntBuffer().get(codigos, 0, registros);
+            bloques[PRECIO].flip().asDoubleBuffer().get(precios, 0, registros);
+            bloques[STOCK].flip().asIntBuffer().get(stocks, 0, registros);
+            acumulador.acumular(codigos, precios, stocks, descatalogados, registros);
+        }
+
+        return acumulador;
+    }
+
+    /**
+     * Fichero lateral de una columna y el canal con el que se actualiza.
+     */
+    private static final class Columna {
+
+        /** Fichero lateral con los valores de la columna. */
+        private final File RUTA;
+        /** Fichero lateral nuevo que sustituirá al actual. */
+        private final File TEMPORAL;
+        /** Tamaño en bytes del valor de cada registro. */
+        private final int ANCHO;
+
+        /** Canal abierto sobre el fichero lateral (se abre con la primera actualización). */
+        private FileChannel canal;
+
+        Columna(File rutaDatos, String campo, int ancho) {
+            this.RUTA = new File(rutaDatos.getPath() + ".col." + campo);
+            this.TEMPORAL = new File(RUTA.getPath() + ".nou");
+            this.ANCHO = ancho;
+        }
+
+        /**
+         * @param posicion posición (en número de registro).
+         * @return posición en bytes del valor del registro dentro del fichero lateral.
+         */
+        long posicion(int posicion) {
+            return TAMANO_CABECERA + (long) posicion * ANCHO;
+        }
+
+        /**
+         * @return canal abierto sobre el fichero lateral, que se abre (y se crea si no existe) la primera vez.
+         * @throws IOException si no se puede abrir el fichero lateral.
+         */
+        synchronized FileChannel canal() throws IOException {
+            if (canal == null) {
+                canal = FileChannel.open(RUTA.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                if (canal.size() < TAMANO_CABECERA) {
+                    CanalFitxer.escribirCompleto(canal, ByteBuffer.allocate(TAMANO_CABECERA).putInt(0, MAGICO), 0);
+                }
+            }
+            return canal;
+        }
+
+        /**
+         * @return canal de escritura sobre el fichero temporal, vacío salvo la cabecera.
+         * @throws IOException si no se puede crear el fichero temporal.
+         */
+        FileChannel abrirTemporal() throws IOException {
+            FileChannel fc = FileChannel.open(TEMPORAL.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            CanalFitxer.escribirCompleto(fc, ByteBuffer.allocate(TAMANO_CABECERA).putInt(0, MAGICO), 0);
+            return fc;
+        }
+
+        /**
+         * Sustituye el fichero lateral por el temporal con un único movimiento atómico.
+         *
+         * @throws IOException si no se puede sustituir el fichero lateral.
+         */
+        synchronized void confirmar() throws IOException {
+            if (!TEMPORAL.exists()) {
+                return;
+            }
+            if (canal != null) {
+                canal.close();
+                canal = null;
+            }
+            try {
+                Files.move(TEMPORAL.toPath(), RUTA.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(TEMPORAL.toPath(), RUTA.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+
+        /**
+         * @throws IOException si ocurre un error al forzar el fichero lateral.
+         */
+        synchronized void forzar() throws IOException {
+            if (canal != null) {
+                canal.force(false);
+            }
+        }
+
+        /**
+         * @return {@code true} si el fichero lateral comienza por el número mágico.
+         * @throws IOException si ocurre un error de lectura.
+         */
+        boolean cabeceraValida() throws IOException {
+            try (FileChannel fc = FileChannel.open(RUTA.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+                CanalFitxer.leerCompleto(fc, cabecera, 0);
+                return cabecera.getInt(0) == MAGICO;
+            } catch (EOFException | NoSuchFileException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Tarea del {@code ForkJoinPool} que divide un tramo por la mitad (en bloques completos) mientras sea mayor
+     * que el mínimo y resume cada parte por separado.
+     */
+    private final class TareaResumen extends RecursiveTask<AcumuladorInventari> {
+
+        private final FileChannel[] canales;
+        private final int primero;
+        private final int fin;
+        private final int registrosMinimos;
+
+        TareaResumen(FileChannel[] canales, int primero, int fin, int registrosMinimos) {
+            this.canales = canales;
+            this.primero = primero;
+            this.fin = fin;
+            this.registrosMinimos = registrosMinimos;
+        }
+
+        @Override
+        protected AcumuladorInventari compute() {
+            if (fin - primero <= registrosMinimos) {
+                try {
+                    return resumirTramo(canales, primero, fin);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            int bloques = (fin - primero + REGISTROS_POR_BLOQUE - 1) / REGISTROS_POR_BLOQUE;
+            int mitad = primero + (bloques / 2) * REGISTROS_POR_BLOQUE;
+            TareaResumen derecha = new TareaResumen(canales, mitad, fin, registrosMinimos);
+            derecha.fork();
+            AcumuladorInventari izquierda = new TareaResumen(canales, primero, mitad, registrosMinimos).compute();
+            return izquierda.combinar(derecha.join());
+        }
+    }
+}
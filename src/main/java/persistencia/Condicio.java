@@ -0,0 +1,307 @@
+package persistencia;
+
+import model.Producte;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Condición sobre los campos de un producto que puede utilizarse con {@link Gestionable#cerca(Condicio)}.
+ * <p>
+ * Las condiciones se construyen con los métodos estáticos ({@link #nom(String)}, {@link #preuEntre(double, double)},
+ * {@link #stockMenorQue(int)}...) y se combinan con {@link #i(Condicio)}, {@link #o(Condicio)} y {@link #no()}.
+ * Al construirlas se compilan en:
+ * </p>
+ * <ul>
+ *     <li>una comprobación sobre los bytes del registro que solo lee los campos que necesita (por ejemplo,
+ *     {@code stockMenorQue} solo lee el entero de la posición 64), de modo que un recorrido del fichero solo
+ *     decodifica los registros coincidentes;</li>
+ *     <li>si es posible, un plan de índices: las condiciones de código, nombre, prefijo, sin stock y descatalogado
+ *     tienen índice, una conjunción utiliza la intersección de los índices de sus partes que lo tengan y una
+ *     disyunción la unión si todas sus partes lo tienen.</li>
+ * </ul>
+ * <p>
+ * También es un {@link Predicate} sobre {@link Producte}, así que puede aplicarse a productos ya leídos.
+ * </p>
+ */
+public final class Condicio implements Predicate<Producte> {
+
+    /** Comprobación sobre los objetos {@link Producte}. */
+    private final Predicate<Producte> predicado;
+    /** Comprobación equivalente sobre los bytes del registro. */
+    private final CondicioRegistre registro;
+    /** {@link #registro} restringida a los registros ocupados. */
+    private final CondicioRegistre registroOcupado;
+    /** Obtiene de los índices las posiciones candidatas, o {@code null} si la condición no tiene índice. */
+    private final Function<IndexsConsulta, int[]> plan;
+    /** Condición que cumplen todos los registros que devuelve el plan (para detectar índices desactualizados). */
+    private final CondicioRegistre condicionPlan;
+    /** Descripción legible de la condición. */
+    private final String descripcion;
+
+    private Condicio(Predicate<Producte> predicado, CondicioRegistre registro, Function<IndexsConsulta, int[]> plan,
+                     CondicioRegistre condicionPlan, String descripcion) {
+        this.predicado = predicado;
+        this.registro = registro;
+        this.registroOcupado = (buffer, inicio) -> !RegistreProducte.libre(buffer, inicio)
+                && registro.cumple(buffer, inicio);
+        this.plan = plan;
+        this.condicionPlan = condicionPlan;
+        this.descripcion = descripcion;
+    }
+
+    /**
+     * @param predicado   comprobación sobre los objetos {@link Producte}.
+     * @param registro    comprobación equivalente sobre los bytes del registro.
+     * @param descripcion descripción legible.
+     * @return condición sin índice.
+     */
+    private static Condicio sinIndice(Predicate<Producte> predicado, CondicioRegistre registro, String descripcion) {
+        return new Condicio(predicado, registro, null, null, descripcion);
+    }
+
+    /**
+     * @param predicado   comprobación sobre los objetos {@link Producte}.
+     * @param registro    comprobación equivalente sobre los bytes del registro.
+     * @param plan        obtiene del índice las posiciones de los registros que cumplen la condición.
+     * @param descripcion descripción legible.
+     * @return condición resuelta por un índice.
+     */
+    private static Condicio conIndice(Predicate<Producte> predicado, CondicioRegistre registro,
+                                      Function<IndexsConsulta, int[]> plan, String descripcion) {
+        return new Condicio(predicado, registro, plan, registro, descripcion);
+    }
+
+    /**
+     * @param codigo código del producto.
+     * @return condición de los productos con ese código.
+     */
+    public static Condicio codi(int codigo) {
+        return conIndice(p -> p.getCodigo() == codigo,
+                (buffer, inicio) -> buffer.getInt(inicio + RegistreProducte.OFFSET_CODIGO) == codigo,
+                indices -> indices.codigo(codigo), "código = " + codigo);
+    }
+
+    /**
+     * @param minimo código mínimo (incluido).
+     * @param maximo código máximo (incluido).
+     * @return condición de los productos con un código dentro del rango.
+     */
+    public static Condicio codiEntre(int minimo, int maximo) {
+        return sinIndice(p -> p.getCodigo() >= minimo && p.getCodigo() <= maximo,
+                (buffer, inicio) -> {
+                    int codigo = buffer.getInt(inicio + RegistreProducte.OFFSET_CODIGO);
+                    return codigo >= minimo && codigo <= maximo;
+                }, "código entre " + minimo + " y " + maximo);
+    }
+
+    /**
+     * @param nombre nombre del producto (se ignoran mayúsculas/minúsculas).
+     * @return condición de los productos con ese nombre.
+     */
+    public static Condicio nom(String nombre) {
+        String clave = IndexNoms.normalizar(nombre);
+        return conIndice(p -> IndexNoms.normalizar(p.getNombre()).equals(clave), CondicioRegistre.nombre(nombre),
+                indices -> indices.nombre(nombre), "nombre = '" + clave + "'");
+    }
+
+    /**
+     * @param prefijo comienzo del nombre (se ignoran mayúsculas/minúsculas).
+     * @return condición de los productos cuyo nombre comienza por el prefijo.
+     */
+    public static Condicio prefix(String prefijo) {
+        String clave = prefijo.toUpperCase();
+        return conIndice(p -> IndexNoms.normalizar(p.getNombre()).startsWith(clave), CondicioRegistre.prefijo(prefijo),
+                indices -> indices.prefijo(prefijo), "nombre empieza por '" + clave + "'");
+    }
+
+    /**
+     * @param minimo precio mínimo (incluido).
+     * @param maximo precio máximo (incluido).
+     * @return condición de los productos con un precio dentro del rango.
+     */
+    public static Condicio preuEntre(double minimo, double maximo) {
+        return sinIndice(p -> p.getPrecio() >= minimo && p.getPrecio() <= maximo,
+                (buffer, inicio) -> {
+                    double precio = buffer.getDouble(inicio + RegistreProducte.OFFSET_PRECIO);
+                    return precio >= minimo && precio <= maximo;
+                }, "precio entre " + minimo + " y " + maximo);
+    }
+
+    /**
+     * @param stock límite (no incluido).
+     * @return condición de los productos con un stock inferior al indicado.
+     */
+    public static Condicio stockMenorQue(int stock) {
+        return sinIndice(p -> p.getStock() < stock,
+                (buffer, inicio) -> buffer.getInt(inicio + RegistreProducte.OFFSET_STOCK) < stock,
+                "stock < " + stock);
+    }
+
+    /**
+     * @param minimo stock mínimo (incluido).
+     * @param maximo stock máximo (incluido).
+     * @return condición de los productos con un stock dentro del rango.
+     */
+    public static Condicio stockEntre(int minimo, int maximo) {
+        return sinIndice(p -> p.getStock() >= minimo && p.getStock() <= maximo,
+                (buffer, inicio) -> {
+                    int stock = buffer.getInt(inicio + RegistreProducte.OFFSET_STOCK);
+                    return stock >= minimo && stock <= maximo;
+                }, "stock entre " + minimo + " y " + maximo);
+    }
+
+    /**
+     * @return condición de los productos sin stock que no están descatalogados (como {@code cercaSenseStock}).
+     */
+    public static Condicio senseStock() {
+        return conIndice(p -> p.getStock() == 0 && !p.isDescatalogado(), CondicioRegistre.SIN_STOCK,
+                IndexsConsulta::sinStock, "sin stock");
+    }
+
+    /**
+     * @return condición de los productos descatalogados.
+     */
+    public static Condicio descatalogat() {
+        return conIndice(Producte::isDescatalogado, CondicioRegistre.DESCATALOGADO,
+                IndexsConsulta::descatalogados, "descatalogado");
+    }
+
+    /**
+     * Conjunción de esta condición y la indicada. Si las dos tienen índice se utiliza la intersección de ambos;
+     * si solo una lo tiene, se utiliza el suyo y la otra se comprueba sobre los registros candidatos.
+     *
+     * @param otra otra condición.
+     * @return condición que se cumple si se cumplen ambas.
+     */
+    public Condicio i(Condicio otra) {
+        Predicate<Producte> predicado = this.predicado.and(otra.predicado);
+        CondicioRegistre registro = (buffer, inicio) -> this.registro.cumple(buffer, inicio)
+                && otra.registro.cumple(buffer, inicio);
+        String descripcion = "(" + this.descripcion + " y " + otra.descripcion + ")";
+
+        if (this.plan == null || otra.plan == null) {
+            Condicio indexada = this.plan != null ? this : otra;
+            return new Condicio(predicado, registro, indexada.plan, indexada.condicionPlan, descripcion);
+        }
+
+        CondicioRegistre condicionPlan = (buffer, inicio) -> this.condicionPlan.cumple(buffer, inicio)
+                && otra.condicionPlan.cumple(buffer, inicio);
+        return new Condicio(predicado, registro,
+                indices -> interseccion(this.plan.apply(indices), otra.plan.apply(indices)), condicionPlan, descripcion);
+    }
+
+    /**
+     * Disyunción de esta condición y la indicada. Solo tiene índice (la unión de ambos) si las dos lo tienen.
+     *
+     * @param otra otra condición.
+     * @return condición que se cumple si se cumple alguna de las dos.
+     */
+    public Condicio o(Condicio otra) {
+        Predicate<Producte> predicado = this.predicado.or(otra.predicado);
+        CondicioRegistre registro = (buffer, inicio) -> this.registro.cumple(buffer, inicio)
+                || otra.registro.cumple(buffer, inicio);
+        String descripcion = "(" + this.descripcion + " o " + otra.descripcion + ")";
+
+        if (this.plan == null || otra.plan == null) {
+            return sinIndice(predicado, registro, descripcion);
+        }
+
+        CondicioRegistre condicionPlan = (buffer, inicio) -> this.condicionPlan.cumple(buffer, inicio)
+                || otra.condicionPlan.cumple(buffer, inicio);
+        return new Condicio(predicado, registro,
+                indices -> union(this.plan.apply(indices), otra.plan.apply(indices)), condicionPlan, descripcion);
+    }
+
+    /**
+     * @return condición que se cumple si no se cumple esta (nunca tiene índice).
+     */
+    public Condicio no() {
+        CondicioRegistre registro = (buffer, inicio) -> !this.registro.cumple(buffer, inicio);
+        return sinIndice(predicado.negate(), registro, "no " + descripcion);
+    }
+
+    /**
+     * @param p producto.
+     * @return {@code true} si el producto cumple la condición.
+     */
+    @Override
+    public boolean test(Producte p) {
+        return predicado.test(p);
+    }
+
+    /** @return comprobación de la condición sobre los bytes del registro (nunca se cumple en los libres). */
+    CondicioRegistre registro() {
+        return registroOcupado;
+    }
+
+    /** @return {@code true} si las posiciones candidatas pueden obtenerse de los índices. */
+    boolean tieneIndice() {
+        return plan != null;
+    }
+
+    /**
+     * @param indices índices disponibles.
+     * @return posiciones candidatas, en orden creciente.
+     */
+    int[] posiciones(IndexsConsulta indices) {
+        return plan.apply(indices);
+    }
+
+    /** @return condición que cumplen todos los registros candidatos si los índices están actualizados. */
+    CondicioRegistre condicionIndice() {
+        return condicionPlan;
+    }
+
+    @Override
+    public String toString() {
+        return descripcion;
+    }
+
+    /**
+     * @param a posiciones en orden creciente.
+     * @param b posiciones en orden creciente.
+     * @return posiciones presentes en ambas, en orden creciente.
+     */
+    private static int[] interseccion(int[] a, int[] b) {
+        int[] resultado = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                resultado[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(resultado, n);
+    }
+
+    /**
+     * @param a posiciones en orden creciente.
+     * @param b posiciones en orden creciente.
+     * @return posiciones presentes en alguna de las dos, sin repetir y en orden creciente.
+     */
+    private static int[] union(int[] a, int[] b) {
+        int[] resultado = new int[a.length + b.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                resultado[n++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                resultado[n++] = b[j++];
+            } else {
+                resultado[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(resultado, n);
+    }
+}
@@ -0,0 +1,47 @@
+package persistencia;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Condición sobre un registro de producto, evaluada directamente sobre sus bytes sin decodificarlo.
+ */
+@FunctionalInterface
+interface CondicioRegistre {
+
+    /** Todos los registros ocupados (los registros libres no cumplen ninguna condición). */
+    CondicioRegistre TODOS = (buffer, inicio) -> !RegistreProducte.libre(buffer, inicio);
+
+    /** Registros sin stock que no están descatalogados. */
+    CondicioRegistre SIN_STOCK = (buffer, inicio) -> buffer.getInt(inicio + RegistreProducte.OFFSET_STOCK) == 0
+            && buffer.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) == 0
+            && !RegistreProducte.libre(buffer, inicio);
+
+    /** Registros descatalogados (los libres tienen el campo a 0). */
+    CondicioRegistre DESCATALOGADO = (buffer, inicio) -> buffer.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) != 0;
+
+    /**
+     * @param buffer buffer (o segmento mapeado) que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return {@code true} si el registro cumple la condición.
+     */
+    boolean cumple(ByteBuffer buffer, int inicio);
+
+    /**
+     * @param nombre nombre buscado (se ignoran mayúsculas/minúsculas).
+     * @return condición de los registros con ese nombre.
+     */
+    static CondicioRegistre nombre(String nombre) {
+        byte[] nombreBuscado = RegistreProducte.codificar(RegistreProducte.formatearNombre(nombre));
+        return (buffer, inicio) -> RegistreProducte.nombreIgual(buffer, inicio, nombreBuscado);
+    }
+
+    /**
+     * @param prefijo comienzo del nombre buscado (se ignoran mayúsculas/minúsculas).
+     * @return condición de los registros cuyo nombre comienza por el prefijo.
+     */
+    static CondicioRegistre prefijo(String prefijo) {
+        byte[] prefijoBuscado = RegistreProducte.codificar(prefijo.toUpperCase());
+        return (buffer, inicio) -> RegistreProducte.nombreEmpiezaPor(buffer, inicio, prefijoBuscado)
+                && !RegistreProducte.libre(buffer, inicio);
+    }
+}
@@ -0,0 +1,191 @@
+package persistencia;
+
+import model.Producte;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Utilidad de archivo de ficheros de productos en el formato compacto ({@link CodecCompacte}) y de recuperación de
+ * los archivados en el formato clásico de 69 bytes ({@link RegistreProducte}), el único que abren los gestores.
+ * <p>
+ * El formato del fichero de origen se obtiene de su cabecera. Los registros se leen por bloques, se decodifican con
+ * el formato de origen y se codifican con el de destino en un fichero hermano ({@code destino.convertint}), sin
+ * cargar el fichero completo en memoria. Los registros libres se descartan, así que el fichero convertido queda
+ * compactado. La cabecera se escribe al final y el fichero se mueve sobre el destino con un único movimiento
+ * atómico, de modo que una conversión interrumpida nunca deja un destino a medias.
+ * </p>
+ * <p>
+ * {@link GestioProducte} y {@link GestioProducteMapejat} no abren ficheros archivados (sus índices, diario y sumas
+ * de control dependen de la posición de cada campo en el registro de 69 bytes): para volver a gestionar un fichero
+ * archivado basta con recuperarlo con {@link #restaurar(File, File)}.
+ * </p>
+ */
+public final class ConversorFormat {
+
+    /** Número de registros leídos y escritos en cada bloque. */
+    private static final int REGISTROS_POR_BLOQUE = 4096;
+    /** Extensiones de los ficheros laterales de un fichero de productos. */
+    private static final String[] EXTENSIONES_LATERALES = {".idx", ".nom", ".bmp", ".lliures", ".crc", ".wal",
+            ".col.codigo", ".col.precio", ".col.stock", ".col.descatalogado"};
+
+    private ConversorFormat() {}
+
+    /**
+     * Archiva un fichero de productos en el formato compacto. Si el destino existe, se sustituye y se eliminan sus
+     * ficheros laterales (índices, diario, lista de libres, sumas de control y columnas), que ya no le
+     * corresponderían.
+     *
+     * @param origen      fichero de productos en el formato clásico.
+     * @param destino     fichero a crear (puede ser el mismo que el origen).
+     * @param anchoNombre número de bytes reservados para el nombre codificado en UTF-8 (de 1 a 255).
+     * @param centimos    {@code true} para guardar el precio en céntimos en un entero de 4 bytes en lugar de un
+     *                    {@code double} de 8 bytes.
+     * @return número de productos archivados.
+     * @throws IOException              si el origen no es un fichero de productos del formato clásico, tiene
+     *                                  modificaciones pendientes en su diario u ocurre un error de lectura o escritura.
+     * @throws ProducteNoValidException si algún producto no puede representarse en el formato compacto.
+     */
+    public static long arxivar(File origen, File destino, int anchoNombre, boolean centimos)
+            throws IOException, ProducteNoValidException {
+        return convertir(origen, destino, new CodecCompacte(anchoNombre, centimos));
+    }
+
+    /**
+     * Recupera en el formato clásico un fichero archivado con {@link #arxivar(File, File, int, boolean)}, para
+     * volver a gestionarlo. Si el destino existe, se sustituye y se eliminan sus ficheros laterales.
+     *
+     * @param origen  fichero de productos en el formato compacto.
+     * @param destino fichero a crear (puede ser el mismo que el origen).
+     * @return número de productos recuperados.
+     * @throws IOException              si el origen no es un fichero archivado u ocurre un error de lectura o
+     *                                  escritura.
+     * @throws ProducteNoValidException si el nombre de algún producto ocupa más de los 50 bytes del formato clásico.
+     */
+    public static long restaurar(File origen, File destino) throws IOException, ProducteNoValidException {
+        return convertir(origen, destino, null);
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Convierte un fichero de productos de un formato al otro.
+     *
+     * @param origen   fichero de productos con cabecera, en el formato contrario al de destino.
+     * @param destino  fichero a crear (puede ser el mismo que el origen).
+     * @param compacto formato compacto de destino, o {@code null} para convertir al formato clásico.
+     * @return número de productos convertidos.
+     * @throws IOException              si el origen no tiene una cabecera válida o no está en el formato contrario,
+     *                                  tiene modificaciones pendientes en su diario u ocurre un error de lectura o
+     *                                  escritura.
+     * @throws ProducteNoValidException si algún producto no puede representarse en el formato de destino.
+     */
+    private static long convertir(File origen, File destino, CodecCompacte compacto)
+            throws IOException, ProducteNoValidException {
+        File diario = new File(origen.getPath() + ".wal");
+        if (diario.length() > 0) {
+            throw new IOException("El fichero " + origen.getName() + " tiene modificaciones pendientes en su diario. "
+                    + "Ábrelo con GestioProducte y llama a puntControl() antes de convertirlo.");
+        }
+
+        File temporal = new File(destino.getPath() + ".convertint");
+        int total = 0;
+
+        try (FileChannel entrada = FileChannel.open(origen.toPath(), StandardOpenOption.READ);
+             FileChannel salida = FileChannel.open(temporal.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer cabecera = CapcaleraFitxer.leerValida(entrada);
+            if (cabecera == null) {
+                throw new IOException("El fichero " + origen.getName() + " no tiene una cabecera válida.");
+            }
+
+            // El origen tiene que estar en el formato contrario al de destino
+            int formatoOrigen = CapcaleraFitxer.formato(cabecera);
+            CodecCompacte compactoOrigen = null;
+            if (compacto != null && formatoOrigen != CapcaleraFitxer.FORMATO_CLASSIC) {
+                throw new IOException("El fichero " + origen.getName() + " ya está archivado.");
+            } else if (compacto == null) {
+                if (formatoOrigen == CapcaleraFitxer.FORMATO_CLASSIC) {
+                    throw new IOException("El fichero " + origen.getName() + " no está archivado.");
+                }
+                try {
+                    compactoOrigen = CodecCompacte.deFormato(formatoOrigen);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+
+            int tamanoOrigen = compactoOrigen == null ? RegistreProducte.TAMANO : compactoOrigen.tamano();
+            int tamanoDestino = compacto == null ? RegistreProducte.TAMANO : compacto.tamano();
+            if (cabecera.getShort(6) != tamanoOrigen) {
+                throw new IOException("El tamaño de registro del fichero " + origen.getName()
+                        + " no corresponde a su formato.");
+            }
+
+            int numRegistros = Math.min(cabecera.getInt(CapcaleraFitxer.OFFSET_NUM_REGISTROS),
+                    (int) ((entrada.size() - CapcaleraFitxer.TAMANO) / tamanoOrigen));
+            ByteBuffer bloqueOrigen = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * tamanoOrigen);
+            ByteBuffer bloqueDestino = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * tamanoDestino);
+            long posicionSalida = CapcaleraFitxer.TAMANO;
+
+            for (int registro = 0; registro < numRegistros; registro += REGISTROS_POR_BLOQUE) {
+                int registrosBloque = Math.min(REGISTROS_POR_BLOQUE, numRegistros - registro);
+                bloqueOrigen.clear().limit(registrosBloque * tamanoOrigen);
+                CanalFitxer.leerCompleto(entrada, bloqueOrigen, CapcaleraFitxer.TAMANO + (long) registro * tamanoOrigen);
+
+                int convertidos = 0;
+                for (int inicio = 0; inicio < registrosBloque * tamanoOrigen; inicio += tamanoOrigen) {
+                    if (compactoOrigen == null) {
+                        if (RegistreProducte.libre(bloqueOrigen, inicio)) {
+                            continue;
+                        }
+                        compacto.escribir(bloqueDestino, convertidos * tamanoDestino,
+                                RegistreProducte.leer(bloqueOrigen, inicio));
+                    } else {
+                        if (compactoOrigen.libre(bloqueOrigen, inicio)) {
+                            continue;
+                        }
+                        // Como en un alta, el nombre se pasa a mayúsculas y se completa hasta 50 bytes
+                        Producte p = compactoOrigen.leer(bloqueOrigen, inicio);
+                        p.setNombre(RegistreProducte.formatearNombre(p.getNombre()));
+                        RegistreProducte.escribir(bloqueDestino, convertidos * tamanoDestino, p);
+                    }
+                    convertidos++;
+                }
+
+                bloqueDestino.clear().limit(convertidos * tamanoDestino);
+                CanalFitxer.escribirCompleto(salida, bloqueDestino, posicionSalida);
+                posicionSalida += (long) convertidos * tamanoDestino;
+                total += convertidos;
+            }
+
+            // La cabecera se escribe al final, con el número de registros convertidos. El contenido debe estar en
+            // disco antes de que el fichero convertido sustituya al destino
+            CanalFitxer.escribirCompleto(salida, CapcaleraFitxer.codificar(total, total,
+                    cabecera.getInt(CapcaleraFitxer.OFFSET_SIGUIENTE_CODIGO), 0,
+                    compacto == null ? CapcaleraFitxer.FORMATO_CLASSIC : compacto.formato(), tamanoDestino), 0);
+            salida.force(true);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporal.toPath());
+            throw e;
+        }
+
+        try {
+            Files.move(temporal.toPath(), destino.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temporal.toPath(), destino.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        for (String extension : EXTENSIONES_LATERALES) {
+            Files.deleteIfExists(new File(destino.getPath() + extension).toPath());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,158 @@
+package persistencia;
+
+import model.Producte;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Cursor sobre un fichero de productos abierto que decodifica bajo demanda los registros de una lista de
+ * posiciones, y que sirve de base a los {@code Stream} de {@link GestioProducte}.
+ * <p>
+ * Cada producto se lee y se decodifica solo cuando el {@code Stream} lo solicita, así que operaciones como
+ * {@code findFirst} o {@code limit} dejan de leer el fichero en cuanto tienen los resultados necesarios. Las
+ * posiciones se recorren en el orden recibido (el de los códigos, ver {@link IndexCodis#ordenarPorCodigo(int[])}),
+ * y las siguientes que son consecutivas (o muy próximas) se leen de una sola vez en un mismo bloque.
+ * </p>
+ * <p>
+ * Los registros que ya no cumplen la condición (por ejemplo, porque se han modificado después de abrir el cursor)
+ * se descartan. El canal se cierra al llegar al final del recorrido o al cerrar el {@code Stream}.
+ * </p>
+ */
+final class CursorProductes implements Spliterator<Producte> {
+
+    /** Tamaño fijo en bytes de cada registro de producto. */
+    private static final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Número máximo de registros que se leen en cada acceso al fichero. */
+    private static final int REGISTROS_POR_LECTURA = 256;
+
+    /** Canal abierto sobre el fichero de productos. */
+    private final FileChannel canal;
+    /** Posiciones (en número de registro) de los registros a leer, en el orden en que se devuelven. */
+    private final int[] posiciones;
+    /** Condición que deben cumplir los productos leídos. */
+    private final Predicate<Producte> condicion;
+    /** Bloque con los últimos registros leídos. */
+    private final ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_LECTURA * TAMANO_REGISTRO);
+
+    /** Índice en {@link #posiciones} del siguiente registro a leer. */
+    private int siguiente = 0;
+    /** Posición del primer registro del bloque leído. */
+    private int primeroBloque = 0;
+    /** Número de registros del bloque leído. */
+    private int registrosBloque = 0;
+
+    /**
+     * @param canal      canal abierto sobre el fichero de productos; pasa a pertenecer al cursor.
+     * @param posiciones posiciones (en número de registro) de los registros a leer, en el orden en que se devuelven.
+     * @param condicion  condición que deben cumplir los productos leídos.
+     */
+    CursorProductes(FileChannel canal, int[] posiciones, Predicate<Producte> condicion) {
+        this.canal = canal;
+        this.posiciones = posiciones;
+        this.condicion = condicion;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Producte> accion) {
+        try {
+            while (siguiente < posiciones.length) {
+                int posicion = posiciones[siguiente++];
+                if (!cargar(posicion)) {
+                    // El fichero es más corto de lo que indicaba el índice: no hay más registros que leer
+                    break;
+                }
+
+                // Con un índice desactualizado la posición puede corresponder a un registro libre
+                int inicio = (posicion - primeroBloque) * TAMANO_REGISTRO;
+                if (RegistreProducte.libre(bloque, inicio)) {
+                    continue;
+                }
+
+                Producte p = RegistreProducte.leer(bloque, inicio);
+                if (condicion.test(p)) {
+                    accion.accept(p);
+                    return true;
+                }
+            }
+
+            cerrar();
+            return false;
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public Spliterator<Producte> trySplit() {
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return posiciones.length - siguiente;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Cierra el canal del fichero de productos. Puede llamarse varias veces.
+     */
+    void cerrar() {
+        siguiente = posiciones.length;
+        try {
+            canal.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Se asegura de que el registro indicado está en el bloque. Si no lo está, lee a partir de él tantos registros
+     * como permita el bloque, hasta la última de las siguientes posiciones crecientes que quepa en él.
+     *
+     * @param posicion posición (en número de registro) del registro.
+     * @return {@code false} si el registro no existe en el fichero.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private boolean cargar(int posicion) throws IOException {
+        if (posicion >= primeroBloque && posicion < primeroBloque + registrosBloque) {
+            return true;
+        }
+
+        // Solo leemos los registros intermedios si las siguientes posiciones caen dentro del mismo bloque (un registro
+        // reutilizado, con un código mayor, aparece fuera de su sitio y corta el bloque)
+        int ultima = posicion;
+        for (int i = siguiente; i < posiciones.length && posiciones[i] > ultima
+                && posiciones[i] < posicion + REGISTROS_POR_LECTURA; i++) {
+            ultima = posiciones[i];
+        }
+
+        long inicio = CapcaleraFitxer.posicion(posicion);
+        int registros = (int) Math.min(ultima - posicion + 1, (canal.size() - inicio) / TAMANO_REGISTRO);
+        if (registros <= 0) {
+            return false;
+        }
+
+        bloque.clear().limit(registros * TAMANO_REGISTRO);
+        while (bloque.hasRemaining()) {
+            if (canal.read(bloque, inicio + bloque.position()) < 0) {
+                throw new EOFException("El fichero de productos se ha truncado durante la lectura.");
+            }
+        }
+
+        primeroBloque = posicion;
+        registrosBloque = registros;
+        return true;
+    }
+}
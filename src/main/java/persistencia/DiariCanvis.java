@@ -0,0 +1,323 @@
+package persistencia;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Diario de escritura anticipada ({@code productos.bin.wal}) de las modificaciones de registros existentes.
+ * <p>
+ * Antes de sobrescribir un registro en el fichero de productos se anota en el diario su contenido completo (la
+ * imagen de 69 bytes posterior a la modificación) y se espera a que la anotación llegue al disco. Así, si el
+ * proceso se interrumpe mientras se sobrescribe el registro, al abrir de nuevo el fichero se vuelven a escribir
+ * las imágenes del diario y ningún registro queda a medias. El fichero de productos no se fuerza en cada
+ * modificación: lo hace el punto de control, que después vacía el diario.
+ * </p>
+ * <p>
+ * Forzar el diario en cada modificación limitaría las escrituras al número de {@code fsync} por segundo del
+ * disco, así que se agrupan: el primer hilo que necesita forzar el diario lo hace para todas las anotaciones
+ * escritas hasta ese momento, y los hilos que anotan mientras tanto esperan y se agrupan en el siguiente
+ * {@code force}.
+ * </p>
+ * <p>
+ * Cada entrada ocupa 77 bytes: posición del registro (int), imagen del registro (69 bytes) y CRC32C de ambos
+ * (int). Al reproducir el diario se aplican las entradas hasta la primera incompleta o con un CRC incorrecto,
+ * que corresponde a una anotación interrumpida (y, por tanto, a una modificación que no llegó a confirmarse).
+ * </p>
+ * <p>
+ * Las anotaciones se añaden siempre al final del fichero (se abre en modo {@code APPEND}), así que otro gestor
+ * puede vaciar el diario mientras este sigue anotando sin que queden huecos: {@link GestioProducteMapejat} lo
+ * reproduce y lo vacía antes de escribir en un fichero que ha modificado otro gestor, para que sus anotaciones no
+ * se reproduzcan después sobre modificaciones posteriores.
+ * </p>
+ */
+final class DiariCanvis implements Closeable {
+
+    /** Tamaño fijo en bytes de cada registro de producto. */
+    private static final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Tamaño en bytes de cada entrada del diario (posición + registro + CRC). */
+    static final int TAMANO_ENTRADA = 4 + TAMANO_REGISTRO + 4;
+    /** Número de entradas que se leen en cada bloque al reproducir el diario. */
+    private static final int ENTRADAS_POR_BLOQUE = 4096;
+
+    /** Fichero del diario. */
+    private final File RUTA_DIARIO;
+
+    /** Bloqueo de las anotaciones y del estado del {@code force} agrupado. */
+    private final Lock bloqueo = new ReentrantLock();
+    /** Señala el final de cada {@code force}. */
+    private final Condition forzado = bloqueo.newCondition();
+
+    /** Canal abierto sobre el diario para añadir anotaciones (se abre con la primera). */
+    private FileChannel canal;
+    /** Número de secuencia de la última anotación escrita en el diario. */
+    private long ultimaEscrita = 0;
+    /** Número de secuencia de la última anotación que ha llegado al disco. */
+    private long ultimaForzada = 0;
+    /** Indica si algún hilo está forzando el diario. */
+    private boolean forzando = false;
+    /** Bytes anotados por este gestor desde que se vació el diario por última vez. */
+    private long tamano = 0;
+
+    /**
+     * @param rutaDiario fichero del diario.
+     */
+    DiariCanvis(File rutaDiario) {
+        this.RUTA_DIARIO = rutaDiario;
+    }
+
+    /**
+     * Vuelve a escribir en el fichero de productos la última imagen de cada registro entre las entradas completas
+     * del diario, fuerza el fichero de productos y vacía el diario.
+     *
+     * @param rutaDatos fichero de productos.
+     * @param sumas     sumas de control del fichero de productos, que se actualizan con cada imagen aplicada.
+     * @return número de registros cuyo contenido ha cambiado al aplicar el diario (si es mayor que 0, los índices
+     * pueden estar desactualizados).
+     * @throws IOException si ocurre un error al leer el diario o al escribir en el fichero de productos.
+     */
+    int reproducir(File rutaDatos, SumesControl sumas) throws IOException {
+        bloqueo.lock();
+        try {
+            if (!RUTA_DIARIO.exists() || RUTA_DIARIO.length() == 0) {
+                return 0;
+            }
+
+            // Nos quedamos con la última imagen de cada registro: si un registro se sobrescribió varias veces (por
+            // ejemplo, se eliminó y se reutilizó), las imágenes intermedias no deben contar como cambios
+            Map<Integer, byte[]> imagenes = new HashMap<>();
+            try (FileChannel diario = FileChannel.open(RUTA_DIARIO.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer bloque = ByteBuffer.allocate(ENTRADAS_POR_BLOQUE * TAMANO_ENTRADA);
+                long leidos = 0;
+                boolean completo = true;
+
+                while (completo) {
+                    bloque.clear();
+                    while (bloque.hasRemaining() && diario.read(bloque, leidos + bloque.position()) > 0) {
+                        // Se sigue leyendo hasta llenar el bloque o llegar al final del diario
+                    }
+                    // Solo se procesan las entradas completas; el resto se vuelve a leer con el siguiente bloque
+                    int entradasCompletas = bloque.position() / TAMANO_ENTRADA * TAMANO_ENTRADA;
+                    completo = bloque.position() == bloque.capacity();
+                    leidos += entradasCompletas;
+                    bloque.flip().limit(entradasCompletas);
+
+                    for (int inicio = 0; inicio < entradasCompletas; inicio += TAMANO_ENTRADA) {
+                        if (!entradaValida(bloque, inicio)) {
+                            completo = false;
+                            break;
+                        }
+                        byte[] imagen = new byte[TAMANO_REGISTRO];
+                        bloque.get(inicio + 4, imagen);
+                        imagenes.put(bloque.getInt(inicio), imagen);
+                    }
+                }
+            }
+
+            int recuperados = 0;
+            try (FileChannel datos = FileChannel.open(rutaDatos.toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer actual = ByteBuffer.allocate(TAMANO_REGISTRO);
+                for (Map.Entry<Integer, byte[]> entrada : imagenes.entrySet()) {
+                    int posicion = entrada.getKey();
+                    long posicionDatos = CapcaleraFitxer.posicion(posicion);
+                    if (posicionDatos + TAMANO_REGISTRO > datos.size()) {
+                        continue;
+                    }
+
+                    ByteBuffer imagen = ByteBuffer.wrap(entrada.getValue());
+                    actual.clear();
+                    while (actual.hasRemaining()) {
+                        datos.read(actual, posicionDatos + actual.position());
+                    }
+                    if (!actual.flip().equals(imagen)) {
+                        CanalFitxer.escribirCompleto(datos, imagen, posicionDatos);
+                        recuperados++;
+                    }
+                    sumas.actualizar(posicion, imagen, 0);
+                }
+
+                datos.force(false);
+                sumas.forzar();
+            }
+
+            vaciarBloqueado();
+            return recuperados;
+
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Anota en el diario las imágenes de uno o varios registros con una sola escritura. La anotación no es
+     * duradera hasta que se llama a {@link #esperar(long)} con el número de secuencia devuelto.
+     *
+     * @param posiciones   posiciones (en número de registro) de los registros.
+     * @param registros    imágenes de los registros, una detrás de otra.
+     * @param numRegistros número de registros a anotar.
+     * @return número de secuencia de la anotación.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    long anotar(int[] posiciones, byte[] registros, int numRegistros) throws IOException {
+        ByteBuffer entradas = ByteBuffer.allocate(numRegistros * TAMANO_ENTRADA);
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < numRegistros; i++) {
+            int inicio = i * TAMANO_ENTRADA;
+            entradas.putInt(posiciones[i]);
+            entradas.put(registros, i * TAMANO_REGISTRO, TAMANO_REGISTRO);
+            crc.reset();
+            crc.update(entradas.array(), inicio, 4 + TAMANO_REGISTRO);
+            entradas.putInt((int) crc.getValue());
+        }
+        entradas.flip();
+
+        bloqueo.lock();
+        try {
+            if (canal == null) {
+                abrirCanal();
+                tamano = canal.size();
+            }
+            while (entradas.hasRemaining()) {
+                canal.write(entradas);
+            }
+            tamano += entradas.limit();
+            return ++ultimaEscrita;
+
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Espera a que la anotación indicada (y todas las anteriores) llegue al disco. Si ningún otro hilo está
+     * forzando el diario, fuerza todas las anotaciones escritas hasta el momento; si no, espera a que termine ese
+     * {@code force} y, si no incluía la anotación, se agrupa en el siguiente.
+     *
+     * @param secuencia número de secuencia devuelto por {@link #anotar(int[], byte[], int)}.
+     * @throws IOException si ocurre un error al forzar el diario.
+     */
+    void esperar(long secuencia) throws IOException {
+        bloqueo.lock();
+        try {
+            while (ultimaForzada < secuencia) {
+                if (forzando) {
+                    forzado.awaitUninterruptibly();
+                    continue;
+                }
+
+                // Este hilo fuerza el diario para todas las anotaciones escritas hasta ahora
+                forzando = true;
+                long objetivo = ultimaEscrita;
+                FileChannel canalForzado = canal;
+                boolean correcto = false;
+                bloqueo.unlock();
+                try {
+                    canalForzado.force(false);
+                    correcto = true;
+                } finally {
+                    bloqueo.lock();
+                    forzando = false;
+                    if (correcto) {
+                        ultimaForzada = Math.max(ultimaForzada, objetivo);
+                    }
+                    forzado.signalAll();
+                }
+            }
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /** @return bytes anotados por este gestor desde que se vació el diario por última vez. */
+    long tamano() {
+        bloqueo.lock();
+        try {
+            return tamano;
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Vacía el diario. Debe llamarse después de forzar el fichero de productos y sin modificaciones en curso, ya
+     * que sus anotaciones se descartan.
+     *
+     * @throws IOException si ocurre un error al truncar el diario.
+     */
+    void vaciar() throws IOException {
+        bloqueo.lock();
+        try {
+            vaciarBloqueado();
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Cierra el canal sobre el diario. Si después se anota o se vacía, se abre de nuevo.
+     *
+     * @throws IOException si ocurre un error al cerrar el canal.
+     */
+    @Override
+    public void close() throws IOException {
+        bloqueo.lock();
+        try {
+            if (canal != null) {
+                canal.close();
+                canal = null;
+            }
+        } finally {
+            bloqueo.unlock();
+        }
+    }
+
+    /**
+     * Trunca el diario y fuerza el truncado, para que las entradas descartadas no puedan reproducirse sobre un
+     * fichero de productos posterior (por ejemplo, compactado). Debe llamarse con el bloqueo tomado.
+     *
+     * @throws IOException si ocurre un error al truncar el diario.
+     */
+    private void vaciarBloqueado() throws IOException {
+        if (canal == null && (!RUTA_DIARIO.exists() || RUTA_DIARIO.length() == 0)) {
+            return;
+        }
+        if (canal == null) {
+            abrirCanal();
+        }
+        canal.truncate(0);
+        canal.force(true);
+        tamano = 0;
+        ultimaForzada = ultimaEscrita;
+    }
+
+    /**
+     * Abre el canal sobre el diario para añadir anotaciones al final. Debe llamarse con el bloqueo tomado.
+     *
+     * @throws IOException si no se puede abrir el diario.
+     */
+    private void abrirCanal() throws IOException {
+        canal = FileChannel.open(RUTA_DIARIO.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * @param bloque bloque leído del diario.
+     * @param inicio posición (en bytes) donde comienza la entrada.
+     * @return {@code true} si el CRC de la entrada corresponde a su contenido.
+     */
+    private static boolean entradaValida(ByteBuffer bloque, int inicio) {
+        CRC32C crc = new CRC32C();
+        crc.update(bloque.slice(inicio, 4 + TAMANO_REGISTRO));
+        return (int) crc.getValue() == bloque.getInt(inicio + 4 + TAMANO_REGISTRO);
+    }
+}
@@ -0,0 +1,198 @@
+package persistencia;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Canal de escritura que comprime lo que recibe por bloques independientes (ver {@link ArxiuComprimit}) en un hilo
+ * del conjunto de compresión, de modo que el recorrido que genera los datos no espera a la compresión.
+ * <p>
+ * Los datos se acumulan en bloques de {@link #TAMANO_BLOQUE} bytes. Cada bloque lleno se envía a comprimir y el
+ * canal sigue aceptando datos; los bloques comprimidos se escriben en el fichero en su orden original. Como mucho
+ * hay {@link #MAXIMO_PENDIENTES} bloques pendientes: si el recorrido es más rápido que la compresión, espera a que
+ * se escriba el más antiguo, así que la memoria utilizada no depende del tamaño de la exportación.
+ * </p>
+ */
+final class EscriptorComprimit implements WritableByteChannel {
+
+    /** Tamaño en bytes de los datos sin comprimir de cada bloque. */
+    static final int TAMANO_BLOQUE = 1 << 18;
+    /** Tamaño en bytes de la cabecera gzip de cada bloque, incluido el campo extra con sus tamaños. */
+    static final int TAMANO_CABECERA = 24;
+    /** Tamaño en bytes del final gzip de cada bloque (CRC32 y tamaño original). */
+    static final int TAMANO_FINAL = 8;
+    /** Nivel de compresión de {@link Deflater}: el de {@code gzip -6}, equilibrado entre tiempo y tamaño. */
+    private static final int NIVEL = 6;
+    /** Número de hilos que comprimen o descomprimen bloques, compartidos por todas las exportaciones. */
+    private static final int HILOS = Runtime.getRuntime().availableProcessors();
+    /** Número máximo de bloques enviados a comprimir que aún no se han escrito. */
+    private static final int MAXIMO_PENDIENTES = 2 * HILOS;
+
+    /** Hilos que comprimen y descomprimen los bloques. */
+    static final ExecutorService TAREAS_COMPRESION = Executors.newFixedThreadPool(HILOS, tarea -> {
+        Thread hilo = new Thread(tarea, "compressio-blocs");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    /** Canal abierto sobre el fichero comprimido. */
+    private final FileChannel canal;
+    /** Bloques enviados a comprimir que aún no se han escrito, en orden. */
+    private final ArrayDeque<Future<ByteBuffer>> pendientes = new ArrayDeque<>();
+
+    /** Datos sin comprimir del bloque en curso. */
+    private byte[] bloque = new byte[TAMANO_BLOQUE];
+    /** Número de bytes ocupados del bloque en curso. */
+    private int ocupados = 0;
+    /** Número de bloques escritos en el fichero. */
+    private int escritos = 0;
+    /** Indica si el canal está abierto. */
+    private boolean abierto = true;
+
+    /**
+     * @param canal canal abierto para escritura sobre el fichero comprimido (vacío). Se cierra con este canal.
+     */
+    EscriptorComprimit(FileChannel canal) {
+        this.canal = canal;
+    }
+
+    @Override
+    public int write(ByteBuffer datos) throws IOException {
+        int total = datos.remaining();
+        while (datos.hasRemaining()) {
+            int cantidad = Math.min(datos.remaining(), TAMANO_BLOQUE - ocupados);
+            datos.get(bloque, ocupados, cantidad);
+            ocupados += cantidad;
+            if (ocupados == TAMANO_BLOQUE) {
+                enviar();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return abierto;
+    }
+
+    /**
+     * Comprime el último bloque, espera a que se escriban todos y cierra el fichero. Una exportación vacía se
+     * escribe como un único bloque vacío, así que el fichero siempre es un gzip válido.
+     *
+     * @throws IOException si ocurre un error al comprimir o al escribir.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!abierto) {
+            return;
+        }
+        abierto = false;
+        try {
+            if (ocupados > 0 || escritos + pendientes.size() == 0) {
+                enviar();
+            }
+            while (!pendientes.isEmpty()) {
+                escribirSiguiente();
+            }
+        } finally {
+            for (Future<ByteBuffer> pendiente : pendientes) {
+                pendiente.cancel(false);
+            }
+            canal.close();
+        }
+    }
+
+    /**
+     * Comprime un bloque como un miembro gzip independiente. Además de la cabecera habitual, el miembro tiene un
+     * campo extra ({@code PB}) con su propio tamaño y el de los datos originales, que permite recorrer los bloques
+     * sin descomprimirlos.
+     *
+     * @param datos    datos a comprimir.
+     * @param longitud número de bytes de los datos.
+     * @return miembro gzip completo, listo para escribirse.
+     */
+    static ByteBuffer comprimir(byte[] datos, int longitud) {
+        Deflater deflater = new Deflater(NIVEL, true);
+        byte[] salida = new byte[TAMANO_CABECERA + longitud + longitud / 1000 + 64 + TAMANO_FINAL];
+        int comprimidos = TAMANO_CABECERA;
+        try {
+            deflater.setInput(datos, 0, longitud);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (comprimidos == salida.length - TAMANO_FINAL) {
+                    salida = Arrays.copyOf(salida, salida.length * 2);
+                }
+                comprimidos += deflater.deflate(salida, comprimidos, salida.length - TAMANO_FINAL - comprimidos);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(datos, 0, longitud);
+        int tamanoMiembro = comprimidos + TAMANO_FINAL;
+        ByteBuffer miembro = ByteBuffer.wrap(salida, 0, tamanoMiembro).order(ByteOrder.LITTLE_ENDIAN);
+        miembro.put(0, (byte) 0x1F).put(1, (byte) 0x8B).put(2, (byte) 8).put(3, (byte) 4)
+                .putInt(4, 0).put(8, (byte) 0).put(9, (byte) 0xFF)
+                .putShort(10, (short) 12).put(12, (byte) 'P').put(13, (byte) 'B').putShort(14, (short) 8)
+                .putInt(16, tamanoMiembro).putInt(20, longitud);
+        miembro.putInt(comprimidos, (int) crc.getValue()).putInt(comprimidos + 4, longitud);
+        return miembro;
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Envía a comprimir el bloque en curso y empieza uno nuevo. Si ya hay demasiados bloques pendientes, antes
+     * escribe el más antiguo.
+     *
+     * @throws IOException si ocurre un error al comprimir o al escribir un bloque anterior.
+     */
+    private void enviar() throws IOException {
+        byte[] datos = bloque;
+        int longitud = ocupados;
+        pendientes.add(TAREAS_COMPRESION.submit(() -> comprimir(datos, longitud)));
+        bloque = new byte[TAMANO_BLOQUE];
+        ocupados = 0;
+
+        while (pendientes.size() > MAXIMO_PENDIENTES) {
+            escribirSiguiente();
+        }
+    }
+
+    /**
+     * Espera a que se comprima el bloque pendiente más antiguo y lo escribe al final del fichero.
+     *
+     * @throws IOException si ocurre un error al comprimir o al escribir.
+     */
+    private void escribirSiguiente() throws IOException {
+        ByteBuffer miembro;
+        try {
+            miembro = pendientes.peek().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Exportación interrumpida.");
+        } catch (ExecutionException e) {
+            throw new IOException("Error al comprimir un bloque: " + e.getCause().getMessage(), e.getCause());
+        }
+        pendientes.remove();
+        while (miembro.hasRemaining()) {
+            canal.write(miembro);
+        }
+        escritos++;
+    }
+}
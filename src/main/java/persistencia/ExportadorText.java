@@ -0,0 +1,272 @@
+package persistencia;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Escribe registros de productos en un fichero de texto, una línea por producto con el mismo formato que
+ * {@code PrintWriter.printf("%d;%s;%.2f;%d;%b\n", ...)}, sin construir objetos {@code Producte} ni cadenas
+ * intermedias.
+ * <p>
+ * Cada registro se codifica directamente desde el buffer que lo contiene a un buffer de salida reutilizable, que
+ * se escribe con un {@link FileChannel} cuando se llena. Los números se formatean a mano; solo se recurre a
+ * {@link String#format} en los casos en que el resultado podría diferir del de {@code printf}: precios negativos,
+ * muy grandes o cuyo redondeo a dos decimales cae justo en un empate, nombres con espacios iniciales, y
+ * configuraciones regionales o juegos de caracteres poco habituales. Así la salida es idéntica byte a byte a la
+ * de la implementación anterior.
+ * </p>
+ * <p>
+ * Si se pide una exportación comprimida, el buffer de salida se escribe en un {@link EscriptorComprimit}, que
+ * comprime el texto por bloques en segundo plano; el resultado puede leerse con {@link ArxiuComprimit} o con
+ * cualquier herramienta gzip.
+ * </p>
+ */
+final class ExportadorText implements Closeable {
+
+    /** Formato de cada línea, igual al de la exportación original. */
+    private static final String FORMATO = "%d;%s;%.2f;%d;%b\n";
+    /** Tamaño del buffer de salida. */
+    private static final int TAMANO_BUFFER = 1 << 16;
+    /** Espacio que se reserva en el buffer para una línea formateada a mano (la más larga ocupa menos). */
+    private static final int MAXIMO_LINEA = 512;
+    /** Precio a partir del cual no se utiliza el formateo rápido (en céntimos, el error del doble sería visible). */
+    private static final double MAXIMO_PRECIO_RAPIDO = 1e10;
+    /** Distancia mínima a un empate (x.xx5) para redondear los céntimos sin riesgo de diferir de {@code printf}. */
+    private static final double MARGEN_EMPATE = 1e-3;
+    private static final byte[] VERDADERO = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSO = "false".getBytes(StandardCharsets.US_ASCII);
+
+    /** Canal abierto sobre el fichero de exportación (directamente o a través del compresor). */
+    private final WritableByteChannel canal;
+    /** Buffer de salida reutilizable. */
+    private final ByteBuffer salida = ByteBuffer.allocate(TAMANO_BUFFER);
+    /** Configuración regional con la que {@code printf} formatea los números. */
+    private final Locale locale;
+    /** Juego de caracteres con el que {@code PrintWriter} codifica el texto. */
+    private final Charset charset;
+    /** Separador decimal de la configuración regional. */
+    private final byte separadorDecimal;
+    /** Si la configuración regional y el juego de caracteres permiten formatear a mano. */
+    private final boolean formatoRapido;
+
+    /**
+     * Crea (o vacía si ya existe) el fichero de exportación.
+     *
+     * @param fichero fichero de exportación.
+     * @throws IOException si no se puede abrir.
+     */
+    ExportadorText(File fichero) throws IOException {
+        this(fichero, false);
+    }
+
+    /**
+     * Crea (o vacía si ya existe) el fichero de exportación.
+     *
+     * @param fichero   fichero de exportación.
+     * @param comprimir {@code true} para escribir el texto comprimido por bloques (ver {@link ArxiuComprimit}).
+     * @throws IOException si no se puede abrir.
+     */
+    ExportadorText(File fichero, boolean comprimir) throws IOException {
+        FileChannel fc = FileChannel.open(fichero.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        this.canal = comprimir ? new EscriptorComprimit(fc) : fc;
+        this.locale = Locale.getDefault();
+        this.charset = Charset.defaultCharset();
+
+        // Solo formateamos a mano si los dígitos, el separador y el texto ASCII se codifican como en ASCII
+        DecimalFormatSymbols simbolos = DecimalFormatSymbols.getInstance(locale);
+        char separador = simbolos.getDecimalSeparator();
+        this.separadorDecimal = (byte) separador;
+        this.formatoRapido = simbolos.getZeroDigit() == '0' && separador < 0x80
+                && (charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.ISO_8859_1)
+                || charset.equals(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Escribe la línea del registro que comienza en la posición indicada del buffer.
+     *
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void escribir(ByteBuffer buffer, int inicio) throws IOException {
+        int codigo = buffer.getInt(inicio + RegistreProducte.OFFSET_CODIGO);
+        double precio = buffer.getDouble(inicio + RegistreProducte.OFFSET_PRECIO);
+        int stock = buffer.getInt(inicio + RegistreProducte.OFFSET_STOCK);
+        boolean descatalogado = buffer.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) != 0;
+
+        long centimos = centimos(precio);
+        if (!formatoRapido || codigo < 0 || stock < 0 || centimos < 0 || !nombreAscii(buffer, inicio)) {
+            String linea = String.format(locale, FORMATO, codigo, RegistreProducte.leerNombre(buffer, inicio).strip(),
+                    precio, stock, descatalogado);
+            escribirBytes(linea.getBytes(charset));
+            return;
+        }
+
+        if (salida.remaining() < MAXIMO_LINEA) {
+            vaciar();
+        }
+        escribirEntero(codigo);
+        salida.put((byte) ';');
+        escribirNombre(buffer, inicio);
+        salida.put((byte) ';');
+        escribirEntero(centimos / 100);
+        salida.put(separadorDecimal);
+        salida.put((byte) ('0' + centimos / 10 % 10));
+        salida.put((byte) ('0' + centimos % 10));
+        salida.put((byte) ';');
+        escribirEntero(stock);
+        salida.put((byte) ';');
+        salida.put(descatalogado ? VERDADERO : FALSO);
+        salida.put((byte) '\n');
+    }
+
+    /**
+     * Escribe en el fichero lo que queda en el buffer de salida y lo cierra.
+     *
+     * @throws IOException si ocurre un error de escritura.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            vaciar();
+        } finally {
+            canal.close();
+        }
+    }
+
+    /**
+     * Redondea un precio a céntimos igual que {@code %.2f} (redondeo HALF_UP sobre su representación decimal).
+     *
+     * @param precio precio a redondear.
+     * @return céntimos, o -1 si el precio no puede formatearse a mano con seguridad.
+     */
+    private static long centimos(double precio) {
+        if (!(precio >= 0 && precio < MAXIMO_PRECIO_RAPIDO) || (precio == 0 && 1 / precio < 0)) {
+            return -1;
+        }
+
+        double valor = precio * 100;
+        double entero = Math.floor(valor);
+        // Cerca de un empate el resultado depende de la representación decimal exacta del precio
+        if (Math.abs(valor - entero - 0.5) < MARGEN_EMPATE) {
+            return -1;
+        }
+        return (long) (valor - entero > 0.5 ? entero + 1 : entero);
+    }
+
+    /**
+     * Comprueba que el nombre del registro está formado solo por caracteres ASCII no nulos y no comienza por un
+     * espacio en blanco, de modo que sus bytes pueden copiarse tal cual (quitando el relleno final).
+     *
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return {@code true} si el nombre puede copiarse directamente.
+     */
+    private static boolean nombreAscii(ByteBuffer buffer, int inicio) {
+        int pos = inicio + RegistreProducte.OFFSET_NOMBRE + 2;
+        int longitud = buffer.getShort(inicio + RegistreProducte.OFFSET_NOMBRE) & 0xFFFF;
+        if (longitud > RegistreProducte.LONGITUD_NOMBRE) {
+            return false;
+        }
+
+        for (int i = 0; i < longitud; i++) {
+            byte b = buffer.get(pos + i);
+            if (b <= 0 || (i == 0 && Character.isWhitespace(b))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copia el nombre ASCII del registro sin el relleno final (como {@code strip()}).
+     *
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     */
+    private void escribirNombre(ByteBuffer buffer, int inicio) {
+        int pos = inicio + RegistreProducte.OFFSET_NOMBRE + 2;
+        int fin = pos + (buffer.getShort(inicio + RegistreProducte.OFFSET_NOMBRE) & 0xFFFF);
+        while (fin > pos && Character.isWhitespace(buffer.get(fin - 1))) {
+            fin--;
+        }
+        for (int i = pos; i < fin; i++) {
+            salida.put(buffer.get(i));
+        }
+    }
+
+    /**
+     * Escribe un entero no negativo en decimal.
+     *
+     * @param valor valor a escribir.
+     */
+    private void escribirEntero(long valor) {
+        if (valor < 10) {
+            salida.put((byte) ('0' + valor));
+            return;
+        }
+
+        int inicio = salida.position();
+        while (valor > 0) {
+            salida.put((byte) ('0' + valor % 10));
+            valor /= 10;
+        }
+
+        // Los dígitos se han escrito al revés
+        for (int i = inicio, j = salida.position() - 1; i < j; i++, j--) {
+            byte b = salida.get(i);
+            salida.put(i, salida.get(j));
+            salida.put(j, b);
+        }
+    }
+
+    /**
+     * Escribe bytes ya codificados en el buffer de salida, vaciándolo antes si no caben.
+     *
+     * @param bytes bytes a escribir.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void escribirBytes(byte[] bytes) throws IOException {
+        if (salida.remaining() < bytes.length) {
+            vaciar();
+        }
+        if (bytes.length > salida.remaining()) {
+            escribirCompleto(ByteBuffer.wrap(bytes));
+        } else {
+            salida.put(bytes);
+        }
+    }
+
+    /**
+     * Escribe en el fichero el contenido del buffer de salida y lo deja vacío.
+     *
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void vaciar() throws IOException {
+        salida.flip();
+        escribirCompleto(salida);
+        salida.clear();
+    }
+
+    /**
+     * Escribe todo el contenido de un buffer al final del fichero.
+     *
+     * @param buffer buffer a escribir.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void escribirCompleto(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            canal.write(buffer);
+        }
+    }
+}
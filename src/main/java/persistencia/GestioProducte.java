@@ -1,22 +1,88 @@
 package persistencia;
 
+import model.InformeImportacio;
+import model.InformeIntegritat;
+import model.MovimentStock;
 import model.Producte;
+import model.ResumInventari;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Clase que gestiona el almacenamiento, modificación, exportación y búsqueda de productos
  * en ficheros binarios y de texto. Implementa la interfaz {@link Gestionable}.
  * <p>
- * Cada producto se guarda en un fichero binario con registros de longitud fija (69 bytes).
+ * Cada producto se guarda en un fichero binario con registros de longitud fija (69 bytes), precedidos por una
+ * cabecera versionada con el número de registros y la secuencia de códigos (ver {@link CapcaleraFitxer}).
  * La clase utiliza {@link RandomAccessFile} para realizar operaciones de lectura y escritura directa.
  * </p>
+ * <p>
+ * Puede utilizarse desde varios hilos a la vez:
+ * </p>
+ * <ul>
+ *     <li>las altas se serializan, de modo que la asignación de códigos y posiciones es única;</li>
+ *     <li>las operaciones de lectura-modificación-escritura sobre un registro bloquean únicamente ese registro
+ *     (mediante un conjunto fijo de bloqueos repartidos por posición), así que las actualizaciones de productos
+ *     distintos avanzan en paralelo;</li>
+ *     <li>{@link #esborrarDescatalogats()}, que cambia la posición de los registros, excluye las modificaciones
+ *     mientras copia los productos activos y las consultas solo mientras sustituye el fichero, mediante dos
+ *     bloqueos de lectura/escritura.</li>
+ * </ul>
+ * <p>
+ * Las modificaciones de registros existentes se anotan antes en un diario de escritura anticipada
+ * ({@code productos.bin.wal}, ver {@link DiariCanvis}) que se fuerza al disco agrupando las modificaciones
+ * concurrentes, y el diario se reproduce al crear el gestor. El fichero de productos se fuerza y el diario se
+ * vacía en los puntos de control ({@link #puntControl()}), que se ejecutan en segundo plano cuando el diario
+ * crece, y al cerrar el gestor ({@link #close()}).
+ * </p>
+ * <p>
+ * {@link #esborrarProducte(int)} marca el registro como libre en lugar de reescribir el fichero, y las altas
+ * reutilizan los registros libres (ver {@link LlistaLliures}), así que la posición de un producto no depende de
+ * su código. Los registros libres se eliminan físicamente con {@link #compactar()}, que se ejecuta en segundo
+ * plano cuando son más de la mitad del fichero.
+ * </p>
+ * <p>
+ * Opcionalmente ({@link #activarSumesControl()}) cada registro tiene una suma de control CRC32C en un fichero
+ * lateral (ver {@link SumesControl}), que {@link #verificarIntegritat()} comprueba en un único recorrido y que, en
+ * modo estricto ({@link #setModeEstricte(boolean)}), se comprueba en cada lectura de un registro.
+ * </p>
+ * <p>
+ * También opcionalmente ({@link #activarColumnes()}) el código, el precio, el stock y el estado de cada registro se
+ * copian por columnas en ficheros laterales (ver {@link ColumnesInventari}), de modo que
+ * {@link #resumInventari()} solo lee esos campos en lugar de los registros completos. Las búsquedas, que devuelven
+ * productos completos, no utilizan las columnas.
+ * </p>
+ * <p>
+ * Las exportaciones pueden escribirse comprimidas por bloques ({@link #setExportacioComprimida(boolean)}, ver
+ * {@link ArxiuComprimit}), comprimiendo en paralelo mientras se recorre el fichero.
+ * </p>
  */
-public class GestioProducte implements Gestionable {
+public class GestioProducte implements Gestionable, Closeable {
 
     /** Ruta del fichero principal de productos (binario). */
     private final File RUTA_PRODUCTOS;
@@ -24,10 +90,60 @@ public class GestioProducte implements Gestionable {
     private final File RUTA_SIN_STOCK;
     /** Ruta del fichero de exportación de productos descatalogados. */
     private final File RUTA_DESCATALOGADO;
-    /** Ruta del fichero temporal utilizado para eliminar descatalogados. */
-    private final File RUTA_TEMP = new File("temp/productos-temp.bin");
     /** Tamaño fijo en bytes de cada registro de producto. */
-    private final int TAMANO_REGISTRO = 69;
+    private final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Número máximo de registros que se procesan en memoria en cada lectura o escritura por bloques. */
+    private final int REGISTROS_POR_ESCRITURA = 8192;
+    /** Índice primario persistente código → posición de registro. */
+    private final IndexCodis INDICE_CODIGOS;
+    /** Índice secundario persistente nombre → posiciones de registro. */
+    private final IndexNoms INDICE_NOMBRES;
+    /** Índices de bitmap persistentes de los registros sin stock y descatalogados. */
+    private final IndexEstat INDICE_ESTADO;
+    /** Acceso de las consultas con {@link Condicio} a los índices anteriores. */
+    private final IndexsConsulta INDICES_CONSULTA;
+    /** Bloqueo del fichero: lectura para acceder a él, escritura para sustituirlo por el compactado. */
+    private final ReentrantReadWriteLock BLOQUEO_FICHERO = new ReentrantReadWriteLock();
+    /** Bloqueo de modificaciones: lectura para modificar el fichero, escritura para compactarlo. */
+    private final ReentrantReadWriteLock BLOQUEO_MODIFICACIONES = new ReentrantReadWriteLock();
+    /** Bloqueo que serializa las altas (asignación de código y posición al final del fichero). */
+    private final Lock BLOQUEO_ALTAS = new ReentrantLock();
+    /** Bloqueos de registro; cada registro se protege con el de su posición módulo el número de bloqueos. */
+    private final Lock[] BLOQUEOS_REGISTRO = new Lock[64];
+    /** Número de registros que caben en una página de disco de 4 KB. */
+    private final int REGISTROS_POR_PAGINA = 4096 / TAMANO_REGISTRO;
+    /** Número mínimo de registros que recorre cada tarea de un recorrido en paralelo. */
+    private final int REGISTROS_POR_TAREA = 4 * RecorregutParallel.REGISTROS_POR_BLOQUE;
+
+    /** Diario de escritura anticipada de las modificaciones de registros existentes. */
+    private final DiariCanvis DIARIO;
+    /** Tamaño del diario (en bytes) a partir del cual se programa un punto de control en segundo plano. */
+    private final long TAMANO_MAXIMO_DIARIO = 4L << 20;
+    /** Lista persistente de registros libres. */
+    private final LlistaLliures REGISTROS_LIBRES;
+    /** Cabecera del fichero de productos: número de registros, número de productos y secuencia de códigos. */
+    private final CapcaleraFitxer CAPCALERA;
+    /** Sumas de control de los registros (solo se mantienen si están activadas para el fichero). */
+    private final SumesControl SUMAS;
+    /** Columnas de los campos numéricos de los registros (solo se mantienen si están activadas para el fichero). */
+    private final ColumnesInventari COLUMNAS;
+    /** Hilo compartido por todos los gestores que ejecuta los puntos de control y compactaciones en segundo plano. */
+    private static final ExecutorService TAREAS_SEGUNDO_PLANO = Executors.newSingleThreadExecutor(tarea -> {
+        Thread hilo = new Thread(tarea, "manteniment-productes");
+        hilo.setDaemon(true);
+        return hilo;
+    });
+
+    /** Número mínimo de registros del fichero para recorrerlo en paralelo (ver {@link #setLlindarParallel(int)}). */
+    private volatile int llindarParallel = 1 << 18;
+    /** Indica si cada lectura de un registro comprueba su suma de control (ver {@link #setModeEstricte(boolean)}). */
+    private volatile boolean modoEstricto = false;
+    /** Indica si las exportaciones se escriben comprimidas (ver {@link #setExportacioComprimida(boolean)}). */
+    private volatile boolean exportacionComprimida = false;
+    /** Indica si hay un punto de control programado que aún no se ha ejecutado. */
+    private final AtomicBoolean puntoControlProgramado = new AtomicBoolean(false);
+    /** Indica si hay una compactación programada que aún no se ha ejecutado. */
+    private final AtomicBoolean compactacionProgramada = new AtomicBoolean(false);
 
     /**
      * Constructor principal.
@@ -40,11 +156,75 @@ public class GestioProducte implements Gestionable {
         this.RUTA_PRODUCTOS = rutaProductos;
         this.RUTA_SIN_STOCK = rutaSinStock;
         this.RUTA_DESCATALOGADO = rutaDescatalogado;
+
+        // Cargamos la cabecera (migrando el fichero si aún no tiene) y reproducimos el diario por si el proceso
+        // anterior se interrumpió mientras sobrescribía algún registro
+        validarFichero(rutaProductos);
+        this.CAPCALERA = new CapcaleraFitxer(rutaProductos);
+        this.DIARIO = new DiariCanvis(new File(rutaProductos.getPath() + ".wal"));
+        this.SUMAS = new SumesControl(rutaProductos);
+        this.COLUMNAS = new ColumnesInventari(rutaProductos);
+        int recuperados = 0;
+        try {
+            CAPCALERA.abrir();
+            if (CAPCALERA.sumasActivadas()) {
+                SUMAS.cargar(CAPCALERA.numRegistros());
+            }
+            if (CAPCALERA.columnasActivadas()) {
+                COLUMNAS.cargar(CAPCALERA.numRegistros());
+            }
+            recuperados = DIARIO.reproducir(rutaProductos, SUMAS);
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+
+        // Cargamos (o reconstruimos si no existen o están desactualizados) los índices del fichero de productos
+        this.INDICE_CODIGOS = new IndexCodis(rutaProductos, TAMANO_REGISTRO, CAPCALERA);
+        this.INDICE_NOMBRES = new IndexNoms(rutaProductos, TAMANO_REGISTRO, CAPCALERA);
+        this.INDICE_ESTADO = new IndexEstat(rutaProductos, TAMANO_REGISTRO, CAPCALERA);
+        this.REGISTROS_LIBRES = new LlistaLliures(rutaProductos, TAMANO_REGISTRO, CAPCALERA);
+        this.INDICES_CONSULTA = new IndexsConsulta() {
+            @Override
+            public int[] codigo(int codigo) {
+                int posicion = INDICE_CODIGOS.buscar(codigo);
+                return posicion < 0 ? new int[0] : new int[]{posicion};
+            }
+
+            @Override
+            public int[] nombre(String nombre) { return INDICE_NOMBRES.buscar(nombre); }
+
+            @Override
+            public int[] prefijo(String prefijo) { return INDICE_NOMBRES.buscarPrefijo(prefijo); }
+
+            @Override
+            public int[] sinStock() { return INDICE_ESTADO.buscarSinStock(); }
+
+            @Override
+            public int[] descatalogados() { return INDICE_ESTADO.buscarDescatalogados(); }
+        };
+
+        for (int i = 0; i < BLOQUEOS_REGISTRO.length; i++) {
+            BLOQUEOS_REGISTRO[i] = new ReentrantLock();
+        }
+
+        // Si el diario ha cambiado algún registro, los índices pueden no reflejar su contenido
+        if (recuperados > 0) {
+            try {
+                CAPCALERA.recontar();
+                if (COLUMNAS.activa()) {
+                    COLUMNAS.activar(CAPCALERA.numRegistros());
+                }
+            } catch (IOException e) {
+                System.err.println("Error! " + e.getMessage());
+            }
+            reconstruirIndices();
+            REGISTROS_LIBRES.reconstruir();
+        }
     }
 
     /**
-     * Añade un nuevo producto al fichero binario de productos.
-     * Genera automáticamente el código del producto (último código + 1).
+     * Añade un nuevo producto al fichero binario de productos, reutilizando un registro libre si lo hay.
+     * Genera automáticamente el código del producto a partir de la secuencia guardada en la cabecera del fichero.
      *
      * @param p producto a añadir.
      * @return código generado del nuevo producto o -1 si ocurre un error.
@@ -60,24 +240,46 @@ public class GestioProducte implements Gestionable {
         }
 
         // Validar los datos del producto
-        validarDatos(p);
+        RegistreProducte.validarDatos(p);
 
+        bloquearModificacion();
+        BLOQUEO_ALTAS.lock();
         try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "rw")) {
-            // Generar código para el producto cogiendo el último código + 1
-            int totalRegistros = (int) (RUTA_PRODUCTOS.length() / TAMANO_REGISTRO);
-
-            // En caso de que el total de registros sea 0 se asigna directamente el código 1
-            if (totalRegistros == 0) {
-                codigoGenerado = 1;
+            // Generar código para el producto a partir de la secuencia (si no hay registros será el 1)
+            codigoGenerado = CAPCALERA.reservarCodigos(1);
+            INDICE_NOMBRES.comprobarSincronizado();
+            INDICE_ESTADO.comprobarSincronizado();
+            p.setCodigo(codigoGenerado);
 
+            // Reutilizar un registro libre si lo hay; si no, añadir el nuevo producto al final de productos.bin
+            ByteBuffer registro = ByteBuffer.allocate(TAMANO_REGISTRO);
+            RegistreProducte.escribir(registro, 0, p);
+            int posicion = extraerRegistroLibre(raf);
+            if (posicion >= 0) {
+                Lock bloqueo = bloqueoRegistro(posicion);
+                bloqueo.lock();
+                try {
+                    sobrescribirRegistro(raf, posicion, registro.array());
+                } finally {
+                    bloqueo.unlock();
+                }
+                CAPCALERA.registrarAltas(raf.getChannel(), 0, 1);
             } else {
-                Producte ultimoRegistro = leerProducto(raf, totalRegistros - 1);
-                codigoGenerado = ultimoRegistro.getCodigo() + 1;
+                // La cabecera se actualiza después de escribir el registro, que hasta entonces no forma parte del
+                // fichero
+                posicion = CAPCALERA.numRegistros();
+                raf.seek(posicionRegistro(posicion));
+                raf.write(registro.array());
+                SUMAS.actualizar(posicion, registro, 0);
+                COLUMNAS.actualizar(posicion, registro, 0);
+                CAPCALERA.registrarAltas(raf.getChannel(), 1, 1);
             }
 
-            // Añadir el nuevo producto a productos.bin
-            p.setCodigo(codigoGenerado);
-            escribirProducto(raf, p, raf.length());
+            // Registrar el producto en los índices
+            INDICE_CODIGOS.anadir(codigoGenerado, posicion);
+            INDICE_NOMBRES.anadir(p.getNombre(), posicion);
+            INDICE_ESTADO.actualizar(posicion, p.getStock(), p.isDescatalogado());
+            sincronizarLaterales();
             System.out.printf("[%d] %s añadido correctamente.\n", p.getCodigo(), p.getNombre().strip());
 
         } catch (FileNotFoundException e) {
@@ -88,11 +290,95 @@ public class GestioProducte implements Gestionable {
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
             return -1;
+        } finally {
+            BLOQUEO_ALTAS.unlock();
+            desbloquearModificacion();
         }
 
         return codigoGenerado;
     }
 
+    /**
+     * Añade varios productos al final del fichero binario de una sola vez.
+     * Valida todos los productos antes de escribir nada, reserva un rango consecutivo de códigos de la secuencia
+     * de la cabecera y escribe los registros con un {@link FileChannel} en bloques de
+     * {@link #REGISTROS_POR_ESCRITURA} registros, en lugar de abrir el fichero para cada producto.
+     *
+     * @param productos productos a añadir, en el orden en que se les asignarán los códigos.
+     * @return códigos generados en el mismo orden que los productos, o un array vacío si ocurre un error.
+     * @throws ProducteNoValidException si los datos de algún producto son inválidos (no se añade ninguno).
+     */
+    @Override
+    public int[] afegirProductes(Collection<Producte> productos) throws ProducteNoValidException {
+        // Validar integridad del fichero productos.bin
+        if (!validarFichero(RUTA_PRODUCTOS)) {
+            return new int[0];
+        }
+
+        // Validar los datos de todos los productos antes de escribir ninguno
+        List<Producte> lista = new ArrayList<>(productos);
+        for (Producte p : lista) {
+            RegistreProducte.validarDatos(p);
+        }
+
+        int[] codigos = new int[lista.size()];
+        if (lista.isEmpty()) {
+            return codigos;
+        }
+
+        bloquearModificacion();
+        BLOQUEO_ALTAS.lock();
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.WRITE)) {
+            // Reservar el rango de códigos de una sola vez (si no hay registros el primero será el 1). El bloque se
+            // escribe siempre al final del fichero, sin reutilizar registros libres, para hacerlo de una sola vez.
+            int primerCodigo = CAPCALERA.reservarCodigos(lista.size());
+            int primeraPosicion = CAPCALERA.numRegistros();
+            INDICE_NOMBRES.comprobarSincronizado();
+            INDICE_ESTADO.comprobarSincronizado();
+
+            // Codificar los registros en un buffer y escribirlo al final del fichero, bloque a bloque
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(lista.size(), REGISTROS_POR_ESCRITURA) * TAMANO_REGISTRO);
+            long posicion = posicionRegistro(primeraPosicion);
+            for (int i = 0; i < lista.size(); i++) {
+                Producte p = lista.get(i);
+                codigos[i] = primerCodigo + i;
+                p.setCodigo(codigos[i]);
+                RegistreProducte.escribir(buffer, buffer.position(), p);
+                buffer.position(buffer.position() + TAMANO_REGISTRO);
+
+                if (!buffer.hasRemaining() || i == lista.size() - 1) {
+                    int registrosBloque = buffer.position() / TAMANO_REGISTRO;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        posicion += canal.write(buffer, posicion);
+                    }
+                    SUMAS.actualizarBloque(primeraPosicion + i + 1 - registrosBloque, buffer, 0, registrosBloque);
+                    COLUMNAS.actualizarBloque(primeraPosicion + i + 1 - registrosBloque, buffer, 0,
+                            registrosBloque);
+                    buffer.clear();
+                }
+            }
+
+            // Confirmar el bloque en la cabecera y registrarlo en los índices
+            CAPCALERA.registrarAltas(canal, lista.size(), lista.size());
+            INDICE_CODIGOS.anadirBloque(primerCodigo, primeraPosicion, lista.size());
+            INDICE_NOMBRES.anadirBloque(lista, primeraPosicion);
+            INDICE_ESTADO.anadirBloque(lista, primeraPosicion);
+            sincronizarLaterales();
+            System.out.printf("[%d-%d] %d productos añadidos correctamente.\n",
+                    codigos[0], codigos[codigos.length - 1], codigos.length);
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+            return new int[0];
+        } finally {
+            BLOQUEO_ALTAS.unlock();
+            desbloquearModificacion();
+        }
+
+        return codigos;
+    }
+
     /**
      * Busca un producto por su código en el fichero binario.
      *
@@ -111,41 +397,30 @@ public class GestioProducte implements Gestionable {
         }
 
         /*
-        Sabiendo el tamaño en bytes de cada registro, recorremos de código en código hasta que coincida, comenzando
-        desde la posición 0 y sumando el tamaño del registro en cada iteración. En el momento que encontremos un
-        código coincidente, llamaremos al metodo leerProducto() indicandole la posición inicial, en este caso la misma
-        del código. Debido a que el código es un campo con valores únicos, en caso de encontrar un código coincidente
-        hacemos un break para dejar de iterar. Como la instancia de RandomAccessFile está en el try-with-resources se
-        cerrará de manera automática.
+        En lugar de recorrer el fichero de código en código, consultamos el índice primario para obtener
+        directamente la posición del registro y leemos únicamente ese producto. Si el código no está registrado,
+        localizarRegistro() lanzará ProducteNoExistentException. Como la instancia de RandomAccessFile está en el
+        try-with-resources se cerrará de manera automática.
          */
+        bloquearLectura();
         try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "r")) {
-            int posCodigo = 0;
-            int codigoRegistro;
-
-            // Iteramos de código en código
-            for (int i = posCodigo; i <= raf.length(); i += TAMANO_REGISTRO) {
-                // Posicionar el pointer, recoger el código y comprobar si es el que buscamos
-                raf.seek(i);
-                codigoRegistro = raf.readInt();
-
-                // Si encontramos el código coincidente, leemos el producto completo
-                if (codigoRegistro == codigo) {
-                    p = leerProducto(raf, (i / TAMANO_REGISTRO));
-                    break;
-                }
+            int posicion = localizarRegistro(raf, codigo);
+            Lock bloqueo = bloqueoRegistro(posicion);
+            bloqueo.lock();
+            try {
+                p = leerProducto(raf, posicion);
+            } finally {
+                bloqueo.unlock();
             }
 
-        // En caso de capturar EOFException significará que no existe ningún producto con ese código registrado
-        } catch (EOFException e) {
-            throw new ProducteNoExistentException(
-                    "No existe ningún producto registrado con el código \'" + codigo + "\'.");
-
         } catch (FileNotFoundException e) {
             System.err.println("Error! No se ha podido encontrar el archivo " + RUTA_PRODUCTOS);
             
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
             return p;
+        } finally {
+            BLOQUEO_FICHERO.readLock().unlock();
         }
 
         return p;
@@ -159,123 +434,303 @@ public class GestioProducte implements Gestionable {
      */
     @Override
     public List<Producte> cercaPerNom(String nombre) {
-        List<Producte> productos = new ArrayList<>();
+        return leerPorNombre(nombre, false);
+    }
+
+    /**
+     * Busca todos los productos cuyo nombre comienza por el prefijo indicado (ignorando mayúsculas/minúsculas).
+     *
+     * @param prefijo comienzo del nombre a buscar.
+     * @return lista de productos cuyo nombre comienza por el prefijo.
+     */
+    @Override
+    public List<Producte> cercaPerPrefix(String prefijo) {
+        return leerPorNombre(prefijo, true);
+    }
 
-        // Le damos formato al nombre introducido
-        nombre = formatearNombre(nombre);
+    /**
+     * Devuelve una lista de productos que no tienen stock y no están descatalogados.
+     *
+     * @return lista de productos sin stock.
+     */
+    @Override
+    public List<Producte> cercaSenseStock() {
+        /*
+        En lugar de recorrer todo el fichero de Stock en Stock, los índices de bitmap nos dan directamente las
+        posiciones de los registros con Stock = 0 que no están descatalogados, así que solo leemos esos registros.
+         */
+        return buscarConIndice(INDICE_ESTADO::buscarSinStock, CondicioRegistre.SIN_STOCK, CondicioRegistre.SIN_STOCK,
+                INDICE_ESTADO::reconstruir);
+    }
 
+    /**
+     * Devuelve una lista de productos descatalogados.
+     *
+     * @return lista de productos descatalogados.
+     */
+    @Override
+    public List<Producte> cercaDescatalogats() {
         /*
-        Sabiendo el tamaño en bytes de cada registro, recorremos de nombre en nombre hasta que coincida, comenzando
-        desde la posición 4 (inicio del campo nombre de primer registro) y sumando el tamaño del registro en cada
-        iteración. En el momento que encontremos un nombre coincidente, llamaremos al metodo leerProducto() indicandole
-        la posición inicial del producto, en este caso la del nombre - 4. Debido a que el nombre es un campo con valores
-        que se pueden repetir, aunque encontremos coincidentes debemos iterar hata el final. Como la instancia de
-        RandomAccessFile está en el try-with-resources se cerrará de manera automática.
+        En lugar de recorrer todo el fichero de campo Descatalogado en campo Descatalogado, el índice de bitmap nos
+        da directamente las posiciones de los registros descatalogados, así que solo leemos esos registros.
          */
-        try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "r")) {
-            int posNombre = 4;
-            String nombreRegistro;
-
-            // Iteramos de código en código
-            for (int i = posNombre; i < raf.length(); i += TAMANO_REGISTRO) {
-                // Posicionar el pointer, recoger el nombre y comprobar si es el que buscamos
-                raf.seek(i);
-                nombreRegistro = raf.readUTF();
-
-                // Si encontramos el nombre coincidente, leemos el producto completo
-                if (nombreRegistro.equalsIgnoreCase(nombre)) {
-                    productos.add(leerProducto(raf, ((i - posNombre) / TAMANO_REGISTRO)));
-                }
-            }
+        return buscarConIndice(INDICE_ESTADO::buscarDescatalogados, CondicioRegistre.DESCATALOGADO,
+                CondicioRegistre.DESCATALOGADO, INDICE_ESTADO::reconstruir);
+    }
+
+    /**
+     * Busca los productos que cumplen una condición arbitraria.
+     * <p>
+     * Si la condición tiene un plan de índices (ver {@link Condicio}), solo se leen los registros candidatos que
+     * devuelven los índices y se comprueba sobre ellos la condición completa; en caso contrario se recorre el
+     * fichero por bloques (en paralelo si es lo bastante grande). En ambos casos la condición se evalúa sobre los
+     * bytes de los campos que necesita y solo se decodifican los registros coincidentes.
+     * </p>
+     *
+     * @param condicio condición que deben cumplir los productos.
+     * @return lista de productos coincidentes en orden de código.
+     */
+    @Override
+    public List<Producte> cerca(Condicio condicio) {
+        if (condicio.tieneIndice()) {
+            return buscarConIndice(() -> condicio.posiciones(INDICES_CONSULTA), condicio.condicionIndice(),
+                    condicio.registro(), this::reconstruirIndices);
+        }
 
+        try {
+            return recorrer(condicio.registro());
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
+            return new ArrayList<>();
         }
+    }
 
-        return productos;
+    /**
+     * Calcula el resumen del inventario de todos los productos. Ver {@link #resumInventari(Condicio)}.
+     *
+     * @return resumen del inventario.
+     */
+    @Override
+    public ResumInventari resumInventari() {
+        return resumInventari(null);
     }
 
     /**
-     * Devuelve una lista de productos que no tienen stock y no están descatalogados.
+     * Calcula el resumen del inventario (recuentos por estado, stock total, valor del stock y estadísticas de
+     * precio) de los productos que cumplen una condición, en un único recorrido y sin crear ningún
+     * {@link Producte}: de cada registro solo se leen el precio, el stock y el estado.
+     * <p>
+     * Si la condición tiene un plan de índices con pocos candidatos solo se leen esos registros; en otro caso se
+     * recorre el fichero por bloques, en paralelo si tiene al menos {@link #getLlindarParallel()} registros. Sin
+     * condición y con las columnas activadas ({@link #activarColumnes()}) se recorren las columnas en lugar de los
+     * registros.
+     * </p>
      *
-     * @return lista de productos sin stock.
+     * @param condicio condición que deben cumplir los productos, o {@code null} para incluirlos todos.
+     * @return resumen del inventario (vacío si ocurre un error de lectura).
      */
     @Override
-    public List<Producte> cercaSenseStock() {
-        List<Producte> productos = new ArrayList<>();
+    public ResumInventari resumInventari(Condicio condicio) {
+        CondicioRegistre filtro = condicio == null ? CondicioRegistre.TODOS : condicio.registro();
 
-        /*
-        Sabiendo el tamaño en bytes de cada registro y que el campo Stock se registra justo antes del campo
-        Descatalogado, recorremos de Stock en Stock hasta que encontremos uno con Stock = 0, comenzando desde la
-        posición 64 (inicio del campo Stock de primer registro) y sumando el tamaño del registro en cada
-        iteración. En el momento que encontremos un Stock = 0, comprobaremos si está descatalogado. En caso de que NO lo
-        esté llamaremos al metodo leerProducto() indicandole la posición inicial del producto, en este caso la del
-        Stock - 64, añadiremos ese producto al List y continuaremos iterando. Como la instancia de RandomAccessFile
-        está en el try-with-resources se cerrará de manera automática.
-         */
-        try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "r")) {
-            int posStock = 64;
-            int stock;
-            boolean descatalogado;
-
-            // Iteramos de stock en stock
-            for (int i = posStock; i < raf.length(); i += TAMANO_REGISTRO) {
-                // Posicionar el pointer, recoger el stock y si está descatalogado
-                raf.seek(i);
-                stock = raf.readInt();
-                descatalogado = raf.readBoolean();
-
-                // En el caso en que se cumplan las condiciones, leeremos el producto y lo añadiremos al List
-                if (stock == 0 && !descatalogado) {
-                    productos.add(leerProducto(raf, ((i - posStock) / TAMANO_REGISTRO)));
+        bloquearLectura();
+        try {
+            int numRegistros = CAPCALERA.numRegistros();
+            if (condicio == null) {
+                AcumuladorInventari columnas = COLUMNAS.resumir(numRegistros, REGISTROS_POR_TAREA,
+                        numRegistros >= llindarParallel);
+                if (columnas != null) {
+                    return columnas.resumen();
+                }
+            }
+            if (condicio != null && condicio.tieneIndice()) {
+                int[] posiciones = condicio.posiciones(INDICES_CONSULTA);
+                if (numRegistros < llindarParallel || posiciones.length <= numRegistros / REGISTROS_POR_PAGINA) {
+                    AcumuladorInventari acumulador = new AcumuladorInventari();
+                    if (!visitarPosiciones(posiciones, condicio.condicionIndice(), filtro, acumulador,
+                            AcumuladorInventari::acumular)) {
+                        reconstruirIndices();
+                        acumulador = new AcumuladorInventari();
+                        visitarPosiciones(condicio.posiciones(INDICES_CONSULTA), condicio.condicionIndice(), filtro,
+                                acumulador, AcumuladorInventari::acumular);
+                    }
+                    return acumulador.resumen();
                 }
             }
 
+            try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ)) {
+                return RecorregutParallel.reducir(canal, numRegistros, filtro, REGISTROS_POR_TAREA,
+                        numRegistros >= llindarParallel, AcumuladorInventari::new, AcumuladorInventari::acumular,
+                        AcumuladorInventari::combinar).resumen();
+            }
+
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
+            return new AcumuladorInventari().resumen();
+        } finally {
+            BLOQUEO_FICHERO.readLock().unlock();
         }
-
-        return productos;
     }
 
     /**
-     * Devuelve una lista de productos descatalogados.
+     * Pasa a la acción una vista ({@link ProducteView}) de cada registro que cumple la condición, en el orden del
+     * fichero y sin decodificarlo.
+     * <p>
+     * La misma vista se sitúa sobre cada registro coincidente, así que el recorrido no crea ningún objeto por
+     * registro: la acción lee solo los campos que necesita y materializa un {@link Producte} con
+     * {@link ProducteView#aProducte()} únicamente si lo conserva. La vista solo es válida durante cada llamada.
+     * </p>
+     * <p>
+     * Si la condición tiene un plan de índices con pocos candidatos solo se leen esos registros (y, si el índice
+     * está desactualizado, se reconstruye y se vuelven a leer antes de entregar ninguno); en otro caso se recorre el
+     * fichero por bloques en el hilo actual. Los registros coincidentes se copian con el fichero bloqueado y la
+     * acción se llama después de liberarlo, así que puede modificar el gestor (o esperar a otro hilo que lo
+     * modifique) sin bloquearse contra una compactación. Igual que los {@code Stream}, el recorrido por bloques
+     * sigue leyendo el fichero que había al empezar aunque se compacte, y cada bloque refleja las modificaciones
+     * hechas hasta leerlo.
+     * </p>
      *
-     * @return lista de productos descatalogados.
+     * @param condicio condición que deben cumplir los productos, o {@code null} para incluirlos todos.
+     * @param accion   acción que recibe cada registro coincidente.
      */
     @Override
-    public List<Producte> cercaDescatalogats() {
-        List<Producte> productos = new ArrayList<>();
+    public void visita(Condicio condicio, Consumer<ProducteView> accion) {
+        CondicioRegistre filtro = condicio == null ? CondicioRegistre.TODOS : condicio.registro();
+        ProducteView vista = new ProducteView();
 
-        /*
-        Sabiendo el tamaño en bytes de cada registro, recorremos de campo Descatalogado en campo Descatalogado hasta que
-        encontremos uno con Descatalogado = true, comenzando desde la posición 68 (inicio del campo Descatalogado del
-        primer registro) y sumando el tamaño del registro en cada iteración. En el momento que encontremos un
-        Descatalogado = true llamaremos al metodo leerProducto() indicandole la posición inicial del producto, en este
-        caso la del Descatalogado - 68, añadiremos ese producto al List y continuaremos iterando. Como la instancia de
-        RandomAccessFile está en el try-with-resources se cerrará de manera automática.
-         */
-        try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "r")) {
-            int posDescatalogado = 68;
-            boolean descatalogado;
-
-            // Iteramos de campo descatalogado en campo descatalogado
-            for (int i = posDescatalogado; i < raf.length(); i += TAMANO_REGISTRO) {
-                // Posicionar el pointer, recoger el campo descatalogadostock y si está descatalogado
-                raf.seek(i);
-                descatalogado = raf.readBoolean();
-
-                // En el caso en que esté descatalogado, leeremos el producto y lo añadiremos al List
-                if (descatalogado) {
-                    productos.add(leerProducto(raf, ((i - posDescatalogado) / TAMANO_REGISTRO)));
+        try {
+            if (condicio != null && condicio.tieneIndice()) {
+                ByteBuffer coincidentes = copiarCandidatos(condicio, filtro);
+                if (coincidentes != null) {
+                    entregar(coincidentes, vista, accion);
+                    return;
+                }
+            }
+
+            FileChannel canal;
+            int numRegistros;
+            bloquearLectura();
+            try {
+                canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ);
+                numRegistros = CAPCALERA.numRegistros();
+            } finally {
+                BLOQUEO_FICHERO.readLock().unlock();
+            }
+
+            try (canal) {
+                ByteBuffer coincidentes =
+                        ByteBuffer.allocate(RecorregutParallel.REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+                int primero = 0;
+                while (primero < numRegistros) {
+                    coincidentes.clear();
+                    BLOQUEO_FICHERO.readLock().lock();
+                    try {
+                        primero += RecorregutParallel.copiarBloque(canal, primero, numRegistros, filtro, coincidentes);
+                    } finally {
+                        BLOQUEO_FICHERO.readLock().unlock();
+                    }
+                    entregar(coincidentes.flip(), vista, accion);
                 }
             }
 
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
         }
+    }
 
-        return productos;
+    /**
+     * Copia, con el fichero bloqueado, los registros que cumplen la condición entre los candidatos de su plan de
+     * índices. Si el índice está desactualizado se reconstruye y se vuelven a leer los candidatos.
+     *
+     * @param condicio condición con plan de índices.
+     * @param filtro   condición que deben cumplir los registros copiados.
+     * @return registros coincidentes, listos para leer, o {@code null} si hay demasiados candidatos y conviene
+     * recorrer el fichero.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private ByteBuffer copiarCandidatos(Condicio condicio, CondicioRegistre filtro) throws IOException {
+        bloquearLectura();
+        try {
+            int[] posiciones = condicio.posiciones(INDICES_CONSULTA);
+            if (posiciones.length > CAPCALERA.numRegistros() / REGISTROS_POR_PAGINA) {
+                return null;
+            }
+
+            ByteBuffer coincidentes = ByteBuffer.allocate(posiciones.length * TAMANO_REGISTRO);
+            if (!visitarPosiciones(posiciones, condicio.condicionIndice(), filtro, coincidentes,
+                    RecorregutParallel::copiar)) {
+                reconstruirIndices();
+                posiciones = condicio.posiciones(INDICES_CONSULTA);
+                coincidentes = ByteBuffer.allocate(posiciones.length * TAMANO_REGISTRO);
+                visitarPosiciones(posiciones, condicio.condicionIndice(), filtro, coincidentes,
+                        RecorregutParallel::copiar);
+            }
+            return coincidentes.flip();
+
+        } finally {
+            BLOQUEO_FICHERO.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sitúa la vista sobre cada registro del buffer y la pasa a la acción. Se llama sin ningún bloqueo tomado.
+     *
+     * @param registros registros a entregar, entre el principio y el límite del buffer.
+     * @param vista     vista que se sitúa sobre cada registro.
+     * @param accion    acción que recibe cada registro.
+     */
+    private void entregar(ByteBuffer registros, ProducteView vista, Consumer<ProducteView> accion) {
+        for (int inicio = 0; inicio < registros.limit(); inicio += TAMANO_REGISTRO) {
+            accion.accept(vista.situar(registros, inicio));
+        }
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos cuyo nombre coincide con el indicado (ignorando
+     * mayúsculas/minúsculas). Ver {@link #obrirFlux(Supplier, Predicate)}.
+     *
+     * @param nombre nombre del producto a buscar.
+     * @return {@code Stream} de productos con ese nombre, que debe cerrarse.
+     */
+    @Override
+    public Stream<Producte> fluxPerNom(String nombre) {
+        String clave = IndexNoms.normalizar(nombre);
+        return obrirFlux(() -> INDICE_NOMBRES.buscar(nombre), p -> IndexNoms.normalizar(p.getNombre()).equals(clave));
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos cuyo nombre comienza por el prefijo indicado (ignorando
+     * mayúsculas/minúsculas). Ver {@link #obrirFlux(Supplier, Predicate)}.
+     *
+     * @param prefijo comienzo del nombre a buscar.
+     * @return {@code Stream} de productos cuyo nombre comienza por el prefijo, que debe cerrarse.
+     */
+    @Override
+    public Stream<Producte> fluxPerPrefix(String prefijo) {
+        String clave = prefijo.toUpperCase();
+        return obrirFlux(() -> INDICE_NOMBRES.buscarPrefijo(prefijo),
+                p -> IndexNoms.normalizar(p.getNombre()).startsWith(clave));
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos que no tienen stock y no están descatalogados. Ver
+     * {@link #obrirFlux(Supplier, Predicate)}.
+     *
+     * @return {@code Stream} de productos sin stock, que debe cerrarse.
+     */
+    @Override
+    public Stream<Producte> fluxSenseStock() {
+        return obrirFlux(INDICE_ESTADO::buscarSinStock, p -> p.getStock() == 0 && !p.isDescatalogado());
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos descatalogados. Ver {@link #obrirFlux(Supplier, Predicate)}.
+     *
+     * @return {@code Stream} de productos descatalogados, que debe cerrarse.
+     */
+    @Override
+    public Stream<Producte> fluxDescatalogats() {
+        return obrirFlux(INDICE_ESTADO::buscarDescatalogados, Producte::isDescatalogado);
     }
 
     /**
@@ -284,23 +739,14 @@ public class GestioProducte implements Gestionable {
      */
     @Override
     public void exportarSenseStock() {
-        // Validar integridad del fichero sin-stock.bin
-        if (!validarFichero(RUTA_SIN_STOCK)) {
+        // Validar integridad del fichero sin-stock.txt (o sin-stock.txt.gz si la exportación es comprimida)
+        File destino = destinoExportacion(RUTA_SIN_STOCK);
+        if (!validarFichero(destino)) {
             return;
         }
 
-        // Obtener todos los productos registrados con Stock = 0 y Descatalogado = false
-        List<Producte> productos = cercaSenseStock();
-
-        // Escribir todos los productos obtenidos en el fichero sin-stock.txt
-        try (PrintWriter pw = new PrintWriter(RUTA_SIN_STOCK)) {
-            for (Producte p : productos) {
-                pw.printf("%d;%s;%.2f;%d;%b\n",
-                        p.getCodigo(), p.getNombre().strip(), p.getPrecio(), p.getStock(), p.isDescatalogado());
-            }
-        } catch (IOException e) {
-            System.err.println("Error! " + e.getMessage());
-        }
+        // Escribir en el fichero sin-stock.txt todos los productos con Stock = 0 y Descatalogado = false
+        exportar(destino, false);
     }
 
     /**
@@ -309,23 +755,158 @@ public class GestioProducte implements Gestionable {
      */
     @Override
     public void exportarDescatalogats() {
-        // Validar integridad del fichero descatalogado.txt
-        if (!validarFichero(RUTA_DESCATALOGADO)) {
+        // Validar integridad del fichero descatalogado.txt (o descatalogado.txt.gz si la exportación es comprimida)
+        File destino = destinoExportacion(RUTA_DESCATALOGADO);
+        if (!validarFichero(destino)) {
             return;
         }
 
-        // Obtener todos los productos registrados con Descatalogado = true
-        List<Producte> productos = cercaDescatalogats();
+        // Escribir en el fichero descatalogado.txt todos los productos con Descatalogado = true
+        exportar(destino, true);
+    }
+
+    /**
+     * Importa un fichero de texto con el formato de las exportaciones ({@code codigo;nombre;precio;stock;
+     * descatalogado}, un producto por línea), por ejemplo uno generado por {@link #exportarSenseStock()} en otro
+     * sistema.
+     * <p>
+     * El fichero se divide en tramos que se analizan en paralelo en los hilos del {@code ForkJoinPool}, mapeados en
+     * memoria y sin construir objetos por línea (ver {@link ImportadorText}). Los registros de cada tramo se
+     * escriben al final del fichero de productos con una sola escritura, en el orden del fichero de texto, mientras
+     * se analizan los siguientes, y la cabecera y los índices se actualizan después de cada tramo como en
+     * {@link #afegirProductes(Collection)}. Si se conservan los códigos, que pueden llegar en cualquier orden, los
+     * de cada tramo se fusionan con el índice de códigos y se añaden a su diario ({@link IndexCodis#anadirCodigos}).
+     * </p>
+     * <p>
+     * Las líneas no válidas (y, si se conservan los códigos, las de códigos que ya existen o que se repiten en el
+     * fichero) no se importan y se devuelven en el informe con su número de línea; el resto se importan igualmente.
+     * </p>
+     *
+     * @param fichero          fichero de texto a importar.
+     * @param conservarCodigos {@code true} para conservar el código de cada línea (la secuencia de códigos continúa
+     *                         después del mayor), {@code false} para asignar códigos nuevos de la secuencia en el
+     *                         orden del fichero.
+     * @return informe de la importación, o {@code null} si ocurre un error de lectura o escritura (los tramos ya
+     *         escritos se conservan).
+     */
+    public InformeImportacio importar(File fichero, boolean conservarCodigos) {
+        // Validar integridad del fichero productos.bin
+        if (!validarFichero(RUTA_PRODUCTOS)) {
+            return null;
+        }
+
+        int maximoPendientes = ForkJoinPool.getCommonPoolParallelism() + 1;
+        ArrayDeque<Future<ImportadorText.Tramo>> pendientes = new ArrayDeque<>();
+        ImportadorText.ConjuntoCodigos codigosImportados = new ImportadorText.ConjuntoCodigos();
+        List<Long> lineasRechazadas = new ArrayList<>();
+        List<String> motivos = new ArrayList<>();
+        long numLineas = 0;
+        long importados = 0;
+        boolean completada = false;
+
+        bloquearModificacion();
+        BLOQUEO_ALTAS.lock();
+        try (ImportadorText importador = new ImportadorText(fichero);
+             FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.WRITE)) {
+            INDICE_CODIGOS.comprobarSincronizado();
+            INDICE_NOMBRES.comprobarSincronizado();
+            INDICE_ESTADO.comprobarSincronizado();
+            int numTramos = importador.numTramos();
+            int siguienteTramo = 0;
+
+            for (int t = 0; t < numTramos; t++) {
+                // Mantener en análisis los tramos siguientes mientras se escribe este
+                while (siguienteTramo < numTramos && pendientes.size() < maximoPendientes) {
+                    int tramo = siguienteTramo++;
+                    pendientes.add(ForkJoinPool.commonPool().submit(
+                            () -> importador.analizar(tramo, conservarCodigos)));
+                }
+                ImportadorText.Tramo tramo = esperarTramo(pendientes.peek());
+                pendientes.remove();
+
+                // Asignar los códigos o comprobar los del fichero antes de escribir los registros
+                ByteBuffer registros = tramo.registros;
+                int primerCodigo = 0;
+                if (conservarCodigos) {
+                    int mayor = 0;
+                    int i = 0;
+                    while (i < tramo.numRegistros) {
+                        int codigo = registros.getInt(i * TAMANO_REGISTRO);
+                        if (INDICE_CODIGOS.contiene(codigo)) {
+                            tramo.descartar(i, ImportadorText.CODIGO_EXISTENTE);
+                        } else if (!codigosImportados.anadir(codigo)) {
+                            tramo.descartar(i, ImportadorText.CODIGO_REPETIDO);
+                        } else {
+                            mayor = Math.max(mayor, codigo);
+                            i++;
+                        }
+                    }
+                    CAPCALERA.avanzarSecuencia(mayor);
+                } else if (tramo.numRegistros > 0) {
+                    primerCodigo = CAPCALERA.reservarCodigos(tramo.numRegistros);
+                    for (int i = 0; i < tramo.numRegistros; i++) {
+                        registros.putInt(i * TAMANO_REGISTRO, primerCodigo + i);
+                    }
+                }
+
+                if (tramo.numRegistros > 0) {
+                    int primeraPosicion = CAPCALERA.numRegistros();
+                    registros.clear().limit(tramo.numRegistros * TAMANO_REGISTRO);
+                    long posicion = posicionRegistro(primeraPosicion);
+                    while (registros.hasRemaining()) {
+                        posicion += canal.write(registros, posicion);
+                    }
+                    SUMAS.actualizarBloque(primeraPosicion, registros, 0, tramo.numRegistros);
+                    COLUMNAS.actualizarBloque(primeraPosicion, registros, 0, tramo.numRegistros);
+                    CAPCALERA.registrarAltas(canal, tramo.numRegistros, tramo.numRegistros);
+                    importados += tramo.numRegistros;
+
+                    // Registrar el tramo en los índices
+                    List<Producte> productos = new ArrayList<>(tramo.numRegistros);
+                    for (int i = 0; i < tramo.numRegistros; i++) {
+                        productos.add(RegistreProducte.leer(registros, i * TAMANO_REGISTRO));
+                    }
+                    if (conservarCodigos) {
+                        int[] codigos = new int[tramo.numRegistros];
+                        for (int i = 0; i < tramo.numRegistros; i++) {
+                            codigos[i] = registros.getInt(i * TAMANO_REGISTRO);
+                        }
+                        INDICE_CODIGOS.anadirCodigos(codigos, primeraPosicion);
+                    } else {
+                        INDICE_CODIGOS.anadirBloque(primerCodigo, primeraPosicion, tramo.numRegistros);
+                    }
+                    INDICE_NOMBRES.anadirBloque(productos, primeraPosicion);
+                    INDICE_ESTADO.anadirBloque(productos, primeraPosicion);
+                }
 
-        // Escribir todos los productos obtenidos en el fichero descatalogado.txt
-        try (PrintWriter pw = new PrintWriter(RUTA_DESCATALOGADO)) {
-            for (Producte p : productos) {
-                pw.printf("%d;%s;%.2f;%d;%b\n",
-                        p.getCodigo(), p.getNombre().strip(), p.getPrecio(), p.getStock(), p.isDescatalogado());
+                for (int i = 0; i < tramo.numRechazadas; i++) {
+                    lineasRechazadas.add(numLineas + tramo.rechazadas[i] + 1);
+                    motivos.add(tramo.motivos[i]);
+                }
+                numLineas += tramo.numLineas;
             }
+            sincronizarLaterales();
+            completada = true;
+            System.out.printf("%d productos importados correctamente (%d líneas rechazadas).\n", importados,
+                    lineasRechazadas.size());
+
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
+            return null;
+        } finally {
+            for (Future<ImportadorText.Tramo> pendiente : pendientes) {
+                pendiente.cancel(false);
+            }
+            // Si la importación se interrumpe, los índices pueden no reflejar los tramos ya escritos
+            if (!completada && importados > 0) {
+                reconstruirIndices();
+            }
+            BLOQUEO_ALTAS.unlock();
+            desbloquearModificacion();
         }
+
+        return new InformeImportacio(numLineas, importados,
+                lineasRechazadas.stream().mapToLong(Long::longValue).toArray(), motivos.toArray(new String[0]));
     }
 
     /**
@@ -338,37 +919,48 @@ public class GestioProducte implements Gestionable {
     @Override
     public void modificarProducte(Producte p) throws ProducteNoValidException, ProducteNoExistentException {
         // Validamos el producto recibido
-        validarDatos(p);
+        RegistreProducte.validarDatos(p);
 
         // Debido a que el campo Código es único lo utilizaremos para encontrar el producto a modificar
-        long posicion = -1L;
+        bloquearModificacion();
         try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "rw")) {
-            /*
-             Buscamos la posición del producto a modificar, comenzando desde el byte 0 (codigo del registro 1) iterando
-             de TAMANO_REGISTRO en TAMANO_REGISTRO.
-             */
-            for (int i = 0; i <= raf.length(); i += TAMANO_REGISTRO) {
-                if (raf.readInt() == p.getCodigo()) {
-                    posicion = i;
-                    break;
+            // Obtenemos la posición del producto a modificar a partir del índice de códigos
+            int posicion = localizarRegistro(raf, p.getCodigo());
+
+            Lock bloqueo = bloqueoRegistro(posicion);
+            bloqueo.lock();
+            try {
+                // Guardamos el nombre anterior para poder actualizar el índice de nombres si cambia
+                byte[] anterior = leerRegistro(raf, posicion);
+                comprobarCodigo(anterior, p.getCodigo());
+                String nombreAnterior = RegistreProducte.leerNombre(ByteBuffer.wrap(anterior), 0);
+
+                // Una vez localizado el registro del Producto a modificar lo sobreescribimos con los nuevos valores
+                ByteBuffer registro = ByteBuffer.allocate(TAMANO_REGISTRO);
+                RegistreProducte.escribir(registro, 0, p);
+                sobrescribirRegistro(raf, posicion, registro.array());
+                CAPCALERA.registrarModificacion(raf.getChannel());
+
+                if (!IndexNoms.normalizar(nombreAnterior).equals(IndexNoms.normalizar(p.getNombre()))) {
+                    INDICE_NOMBRES.eliminar(nombreAnterior, posicion);
+                    INDICE_NOMBRES.anadir(p.getNombre(), posicion);
                 }
+                INDICE_ESTADO.actualizar(posicion, p.getStock(), p.isDescatalogado());
+            } finally {
+                bloqueo.unlock();
             }
+            sincronizarLaterales();
 
-            // Una vez localizado el registro del Producto a modificar lo sobreescribimos con los nuevos valores
-            escribirProducto(raf, p, posicion);
-
-        // En caso de capturar EOFException significará que no existe ningún producto con ese código registrado
-        } catch (EOFException e) {
-            throw new ProducteNoExistentException(
-                        "No existe ningún producto registrado con el código \'" + p.getCodigo() + "\'.");
         } catch (FileNotFoundException e) {
             System.err.println("Error! No se ha podido encontrar el archivo \"" +
                     RUTA_PRODUCTOS.getPath() + "\".");
 
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
+        } finally {
+            desbloquearModificacion();
         }
-
+        programarPuntoControlSiNecesario();
     }
 
     /**
@@ -383,52 +975,125 @@ public class GestioProducte implements Gestionable {
     @Override
     public void modificarStock(int codigo, int cantidad, boolean incrementar) throws ProducteNoExistentException, StockNoValidException {
         // Debido a que el campo Código es único lo utilizaremos para encontrar el producto a modificar
+        bloquearModificacion();
         try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "rw")) {
-            long posicionStock = -1L;
-            int stock = 0;
-
-            /*
-             Buscamos la posición del producto a modificar, comenzando desde el byte 0 (codigo del registro 1) iterando
-             de TAMANO_REGISTRO en TAMANO_REGISTRO.
-             */
-            for (int i = 0; i <= raf.length(); i += TAMANO_REGISTRO) {
-                if (raf.readInt() == codigo) {
-                    posicionStock = i + 64;
-                    raf.seek(posicionStock);
-                    stock = raf.readInt();
-                    break;
+            // Obtenemos la posición del producto a partir del índice de códigos y leemos su stock actual
+            int posicion = localizarRegistro(raf, codigo);
+
+            // La lectura y la escritura del stock se hacen con el registro bloqueado para no perder actualizaciones
+            Lock bloqueo = bloqueoRegistro(posicion);
+            bloqueo.lock();
+            try {
+                byte[] registro = leerRegistro(raf, posicion);
+                comprobarCodigo(registro, codigo);
+                int stock = ByteBuffer.wrap(registro).getInt(RegistreProducte.OFFSET_STOCK);
+
+                // Validar el nuevo valor de Stock
+                if (cantidad < 0) {
+                    throw new StockNoValidException("El valor a incrementar/decrementar tiene que > 0.");
+                } else if (!incrementar && stock - cantidad < 0) {
+                    throw new StockNoValidException("El nuevo valor de Stock no es válido.");
                 }
-            }
 
-            // Validar el nuevo valor de Stock
-            if (cantidad < 0) {
-                throw new StockNoValidException("El valor a incrementar/decrementar tiene que > 0.");
-            } else if (!incrementar && stock - cantidad < 0) {
-                throw new StockNoValidException("El nuevo valor de Stock no es válido.");
-            }
+                // Calcular el nuevo stock
+                if (incrementar) {
+                    stock += cantidad;
+                } else {
+                    stock -= cantidad;
+                }
 
-            // Calcular el nuevo stock
-            if (incrementar) {
-                stock += cantidad;
-            } else {
-                stock -= cantidad;
+                // Modificar el stock del producto
+                ByteBuffer.wrap(registro).putInt(RegistreProducte.OFFSET_STOCK, stock);
+                sobrescribirRegistro(raf, posicion, registro);
+                CAPCALERA.registrarModificacion(raf.getChannel());
+                INDICE_ESTADO.actualizarStock(posicion, stock);
+            } finally {
+                bloqueo.unlock();
             }
+            sincronizarLaterales();
 
-            // Modificar el stock del producto
-            raf.seek(posicionStock);
-            raf.writeInt(stock);
-
-        // En caso de capturar EOFException significará que no existe ningún producto con ese código registrado
-        } catch (EOFException e) {
-            throw new ProducteNoExistentException(
-                        "No existe ningún producto registrado con el código \'" + codigo + "\'.");
         } catch (FileNotFoundException e) {
             System.err.println("Error! No se ha podido encontrar el archivo \"" +
                     RUTA_PRODUCTOS.getPath() + "\".");
 
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
+        } finally {
+            desbloquearModificacion();
+        }
+        programarPuntoControlSiNecesario();
+    }
+
+    /**
+     * Aplica un lote de movimientos de stock de una sola vez, con semántica de todo o nada.
+     * <p>
+     * Los movimientos se agrupan por registro (ver {@link LotMoviments}) y el fichero se recorre una vez en
+     * orden creciente para leer el stock actual de cada registro afectado. Si todos los movimientos son válidos,
+     * se escribe el stock resultante de cada registro en un segundo recorrido secuencial; si alguno no lo es, no
+     * se modifica nada.
+     * </p>
+     *
+     * @param movimientos movimientos a aplicar (código y unidades a sumar o restar).
+     * @throws MovimentsNoValidsException si algún producto no existe o algún stock resultante sería negativo;
+     *                                    incluye el motivo de cada movimiento no válido.
+     */
+    @Override
+    public void modificarStocks(List<MovimentStock> movimientos) throws MovimentsNoValidsException {
+        // Los movimientos de un lote suelen afectar a casi todos los bloqueos, así que se toman todos (en orden)
+        bloquearModificacion();
+        for (Lock bloqueo : BLOQUEOS_REGISTRO) {
+            bloqueo.lock();
+        }
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Agrupamos los movimientos por registro y leemos el stock actual de los registros afectados. Si
+            // algún registro no contiene el código esperado, el índice está desactualizado y se reconstruye.
+            LotMoviments lote = new LotMoviments(movimientos, INDICE_CODIGOS::buscar);
+            byte[] registros = new byte[lote.numRegistros() * TAMANO_REGISTRO];
+            int[] stocksActuales = leerStocks(canal, lote, registros);
+            if (stocksActuales == null) {
+                INDICE_CODIGOS.reconstruir();
+                lote = new LotMoviments(movimientos, INDICE_CODIGOS::buscar);
+                registros = new byte[lote.numRegistros() * TAMANO_REGISTRO];
+                stocksActuales = leerStocks(canal, lote, registros);
+                if (stocksActuales == null) {
+                    throw new IOException("El índice de códigos no corresponde al fichero de productos.");
+                }
+            }
+
+            // Validar todos los movimientos antes de escribir ninguno
+            lote.validar(stocksActuales);
+
+            // Anotar en el diario todos los registros afectados con el nuevo stock y esperar a que lleguen al disco
+            ByteBuffer imagenes = ByteBuffer.wrap(registros);
+            for (int i = 0; i < lote.numRegistros(); i++) {
+                imagenes.putInt(i * TAMANO_REGISTRO + RegistreProducte.OFFSET_STOCK, lote.stock(i));
+            }
+            DIARIO.esperar(DIARIO.anotar(lote.posiciones(), registros, lote.numRegistros()));
+
+            // Escribir el nuevo stock de cada registro afectado
+            ByteBuffer stock = ByteBuffer.allocate(4);
+            for (int i = 0; i < lote.numRegistros(); i++) {
+                stock.clear();
+                stock.putInt(lote.stock(i)).flip();
+                long posicionStock = posicionRegistro(lote.posicion(i)) + RegistreProducte.OFFSET_STOCK;
+                CanalFitxer.escribirCompleto(canal, stock, posicionStock);
+            }
+            CAPCALERA.registrarModificacion(canal);
+            SUMAS.actualizar(lote.posiciones(), registros, lote.numRegistros());
+            COLUMNAS.actualizarStocks(lote.posiciones(), lote.stocks(), lote.numRegistros());
+            INDICE_ESTADO.actualizarStocks(lote.posiciones(), lote.stocks(), lote.numRegistros());
+            sincronizarLaterales();
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            for (int i = BLOQUEOS_REGISTRO.length - 1; i >= 0; i--) {
+                BLOQUEOS_REGISTRO[i].unlock();
+            }
+            desbloquearModificacion();
         }
+        programarPuntoControlSiNecesario();
     }
 
     /**
@@ -440,100 +1105,827 @@ public class GestioProducte implements Gestionable {
     @Override
     public void descatalogarProducte(int codigo) throws ProducteNoExistentException {
         // Debido a que el campo Código es único lo utilizaremos para encontrar el producto a modificar
-        long posicion = -1L;
+        bloquearModificacion();
         try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "rw")) {
-            /*
-             Buscamos la posición del producto a modificar, comenzando desde el byte 0 (codigo del registro 1) iterando
-             de TAMANO_REGISTRO en TAMANO_REGISTRO.
-             */
-            for (int i = 0; i <= raf.length(); i += TAMANO_REGISTRO) {
-                if (raf.readInt() == codigo) {
-                    posicion = i;
-                    break;
-                }
+            // Obtenemos la posición del producto a modificar a partir del índice de códigos
+            int posicion = localizarRegistro(raf, codigo);
+
+            Lock bloqueo = bloqueoRegistro(posicion);
+            bloqueo.lock();
+            try {
+                // Una vez localizado el registro del Producto a modificar, cambiaremos su valor de Descatalogado
+                byte[] registro = leerRegistro(raf, posicion);
+                comprobarCodigo(registro, codigo);
+                registro[RegistreProducte.OFFSET_DESCATALOGADO] = 1;
+                sobrescribirRegistro(raf, posicion, registro);
+                CAPCALERA.registrarModificacion(raf.getChannel());
+                INDICE_ESTADO.marcarDescatalogado(posicion);
+            } finally {
+                bloqueo.unlock();
             }
+            sincronizarLaterales();
 
-            // Una vez localizado el registro del Producto a modificar, cambiaremos su valor de Descatalogado
-            raf.seek(posicion + 68);
-            raf.writeBoolean(true);
+        } catch (FileNotFoundException e) {
+            System.err.println("Error! No se ha podido encontrar el archivo \"" +
+                    RUTA_PRODUCTOS.getPath() + "\".");
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            desbloquearModificacion();
+        }
+        programarPuntoControlSiNecesario();
+    }
+
+    /**
+     * Elimina un producto sin reescribir el fichero: su registro se marca como libre (todos sus bytes a cero), se
+     * quita de los índices y se añade a la lista de registros libres para que lo reutilice un alta posterior.
+     * Su código no se vuelve a asignar.
+     *
+     * @param codigo código del producto a eliminar.
+     * @throws ProducteNoExistentException si el producto no existe.
+     */
+    @Override
+    public void esborrarProducte(int codigo) throws ProducteNoExistentException {
+        bloquearModificacion();
+        try (RandomAccessFile raf = new RandomAccessFile(RUTA_PRODUCTOS, "rw")) {
+            int posicion = localizarRegistro(raf, codigo);
+
+            Lock bloqueo = bloqueoRegistro(posicion);
+            bloqueo.lock();
+            try {
+                byte[] registro = leerRegistro(raf, posicion);
+                comprobarCodigo(registro, codigo);
+                String nombre = RegistreProducte.leerNombre(ByteBuffer.wrap(registro), 0);
+
+                sobrescribirRegistro(raf, posicion, new byte[TAMANO_REGISTRO]);
+                INDICE_CODIGOS.eliminar(codigo);
+                INDICE_NOMBRES.eliminar(nombre, posicion);
+                INDICE_ESTADO.eliminar(posicion);
+                REGISTROS_LIBRES.anadir(posicion);
+                CAPCALERA.registrarBaja(raf.getChannel());
+            } finally {
+                bloqueo.unlock();
+            }
+            sincronizarLaterales();
 
-            // En caso de capturar EOFException significará que no existe ningún producto con ese código registrado
-        } catch (EOFException e) {
-            throw new ProducteNoExistentException(
-                                "No existe ningún producto registrado con el código \'" + codigo + "\'.");
         } catch (FileNotFoundException e) {
             System.err.println("Error! No se ha podido encontrar el archivo \"" +
                     RUTA_PRODUCTOS.getPath() + "\".");
 
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
+        } finally {
+            desbloquearModificacion();
         }
+        programarPuntoControlSiNecesario();
+        programarCompactacionSiNecesario();
     }
 
     /**
      * Elimina físicamente todos los productos descatalogados del fichero principal.
-     * Crea un fichero temporal con los productos activos y reemplaza el original.
+     * <p>
+     * Los productos activos se copian por bloques a un fichero hermano ({@code productos.bin.compactant}), que
+     * después sustituye al original con un único movimiento atómico, así que si el proceso se interrumpe el
+     * fichero de productos queda completo en su versión anterior o en la nueva. Mientras se copian los productos
+     * no se permiten modificaciones, pero las consultas siguen funcionando sobre el fichero original; solo
+     * quedan bloqueadas durante la sustitución.
+     * </p>
      */
     @Override
     public void esborrarDescatalogats() {
-        // Primero creamos un fichero temporal donde guardaremos todos los productos sin descatalogar
-        validarFichero(RUTA_TEMP);
-
-        /*
-        Aprovecharemos que el metodo cercaDescatalogats() nos devuelve un List con todos los descatalogados, para
-        conocer sus códigos iteraremos sobre todos esos productos guardando el valor de su código en un HashSet para
-        poder comprobar de manera rápida y eficiente si un código concreto está en la lista de descatalogados. De
-        esta manera, iteraremos de código en código del fichero productos, y en caso de que el HashSet no contenga
-        ese código lo añadiremos al fichero temporal.
-         */
-        try (RandomAccessFile rafTemp = new RandomAccessFile(RUTA_TEMP, "rw");
-            RandomAccessFile rafProd = new RandomAccessFile(RUTA_PRODUCTOS, "r")) {
-            List<Producte> descatalogados = cercaDescatalogats();
-
-            // Hacemos el HashSet de códigos
-            Set<Integer> codigosDesc = new HashSet<>();
-            for (Producte p : descatalogados) {
-                codigosDesc.add(p.getCodigo());
-            }
-
-            // Buscamos todos los productos NO descatalogados
-            int codigo;
-            long numProductos = rafProd.length() / 69;
-            for (int i = 0; i / 69 < numProductos; i += 69) {
-                rafProd.seek(i);
-                codigo = rafProd.readInt();
-
-                // Si NO está descatalogado, lo leemos entero y lo escribimos en el fichero temporal
-                if (!codigosDesc.contains(codigo)) {
-                    Producte p = new Producte(
-                            codigo,
-                            rafProd.readUTF(),
-                            rafProd.readDouble(),
-                            rafProd.readInt(),
-                            rafProd.readBoolean()
-                    );
-                    escribirProducto(rafTemp, p, rafTemp.length());
-                    // Devolvemos el pointer a la posicion inicial del producto
-                    rafProd.seek(i);
-                }
+        BLOQUEO_MODIFICACIONES.writeLock().lock();
+        CAPCALERA.comprobar();
+        try {
+            if (INDICE_ESTADO.buscarDescatalogados().length > 0 || REGISTROS_LIBRES.numLibres() > 0) {
+                // Las entradas del diario se refieren a las posiciones actuales, así que se aplican antes
+                aplicarDiario();
+                compactar(true);
             }
 
         } catch (IOException e) {
             System.err.println("Error! " + e.getMessage());
+        } finally {
+            BLOQUEO_MODIFICACIONES.writeLock().unlock();
         }
+    }
 
-        /*
-        Una vez escritos todos los productos NO descatalogados en el fichero temporal, eliminaremos el fichero
-        productos.bin y renombraremos el temporal con ese nombre. De esta manera conseguiremos un fichero productos.bin
-        que contendrá todos los productos excepto los descatalogados.
-         */
-        RUTA_PRODUCTOS.delete();
-        RUTA_TEMP.renameTo(RUTA_PRODUCTOS);
+    /**
+     * Establece el número mínimo de registros que debe tener el fichero para que las búsquedas con muchos
+     * resultados recorran el fichero en paralelo en lugar de leer uno a uno los registros del índice. Por debajo
+     * de ese tamaño el coste de repartir el trabajo entre hilos no compensa.
+     *
+     * @param registros número mínimo de registros ({@code Integer.MAX_VALUE} para no recorrerlo nunca en paralelo).
+     */
+    public void setLlindarParallel(int registros) {
+        if (registros < 0) {
+            throw new IllegalArgumentException("El umbral de recorrido en paralelo no puede ser negativo.");
+        }
+        this.llindarParallel = registros;
     }
 
-    // ------------------------------------------------------------------------
-    // MÉTODOS PRIVADOS AUXILIARES
-    // ------------------------------------------------------------------------
+    /** @return número mínimo de registros del fichero para recorrerlo en paralelo. */
+    public int getLlindarParallel() { return llindarParallel; }
+
+    /**
+     * Elimina físicamente los registros libres, copiando los productos a un fichero compactado que sustituye al
+     * original igual que en {@link #esborrarDescatalogats()}, pero conservando los descatalogados.
+     * <p>
+     * No es necesario llamarlo: los registros libres se reutilizan en las altas y la compactación se programa en
+     * segundo plano cuando son más de la mitad del fichero (y al menos {@link #REGISTROS_POR_ESCRITURA}).
+     * </p>
+     */
+    public void compactar() {
+        compactacionProgramada.set(false);
+        BLOQUEO_MODIFICACIONES.writeLock().lock();
+        CAPCALERA.comprobar();
+        try {
+            if (REGISTROS_LIBRES.numLibres() > 0) {
+                aplicarDiario();
+                compactar(false);
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            BLOQUEO_MODIFICACIONES.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Punto de control: fuerza al disco las modificaciones escritas en el fichero de productos, vacía el diario
+     * de escritura anticipada, cuyas anotaciones ya no son necesarias, incorpora a la instantánea del índice de
+     * códigos las altas de su diario ({@link IndexCodis#consolidar()}) y marca los índices y la lista de registros
+     * libres como al día, para que el siguiente gestor los cargue sin reconstruirlos. Espera a que terminen las
+     * modificaciones en curso y las excluye mientras se fuerza el fichero.
+     * <p>
+     * Se ejecuta automáticamente en segundo plano cuando el diario supera los 4 MB, así que solo es necesario
+     * llamarlo para acotar el trabajo de reproducción del diario (por ejemplo, antes de cerrar la aplicación).
+     * </p>
+     */
+    public void puntControl() {
+        BLOQUEO_MODIFICACIONES.writeLock().lock();
+        CAPCALERA.comprobar();
+        try {
+            aplicarDiario();
+            INDICE_CODIGOS.consolidar();
+            sincronizarLaterales();
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            BLOQUEO_MODIFICACIONES.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Hace un punto de control ({@link #puntControl()}) y cierra el canal que mantiene abierto sobre el fichero de
+     * productos, así que el diario queda vacío y el siguiente gestor (de cualquier tipo) no lo reproduce. Si
+     * después se vuelve a utilizar el gestor, el canal se abre de nuevo.
+     */
+    @Override
+    public void close() {
+        BLOQUEO_MODIFICACIONES.writeLock().lock();
+        CAPCALERA.comprobar();
+        try {
+            aplicarDiario();
+            INDICE_CODIGOS.consolidar();
+            sincronizarLaterales();
+            CAPCALERA.close();
+            DIARIO.close();
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            BLOQUEO_MODIFICACIONES.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Activa las sumas de control por registro: calcula el CRC32C de todos los registros, lo guarda en un fichero
+     * lateral ({@code productos.bin.crc}) y lo indica en la cabecera del fichero de productos, así que a partir de
+     * entonces cada escritura actualiza también la suma del registro (también en los siguientes gestores). Espera
+     * a que terminen las modificaciones en curso. Si ya estaban activadas, no hace nada.
+     */
+    public void activarSumesControl() {
+        BLOQUEO_MODIFICACIONES.writeLock().lock();
+        CAPCALERA.comprobar();
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.WRITE)) {
+            if (!CAPCALERA.sumasActivadas()) {
+                SUMAS.activar(CAPCALERA.numRegistros());
+                CAPCALERA.activar(canal, CapcaleraFitxer.SUMAS_CONTROL);
+                sincronizarLaterales();
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            BLOQUEO_MODIFICACIONES.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Activa las columnas de los campos numéricos: copia el código, el precio, el stock y el estado de todos los
+     * registros en ficheros laterales (uno por campo, ver {@link ColumnesInventari}) y lo indica en la cabecera del
+     * fichero de productos, así que a partir de entonces cada escritura actualiza también las columnas (también en
+     * los siguientes gestores) y {@link #resumInventari()} las recorre en lugar de los registros. Espera a que
+     * terminen las modificaciones en curso. Si ya estaban activadas, no hace nada.
+     */
+    public void activarColumnes() {
+        BLOQUEO_MODIFICACIONES.writeLock().lock();
+        CAPCALERA.comprobar();
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.WRITE)) {
+            if (!CAPCALERA.columnasActivadas()) {
+                COLUMNAS.activar(CAPCALERA.numRegistros());
+                CAPCALERA.activar(canal, CapcaleraFitxer.COLUMNAS);
+                sincronizarLaterales();
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            BLOQUEO_MODIFICACIONES.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Activa o desactiva el modo estricto: con las sumas de control activadas, cada lectura de un registro
+     * comprueba su suma y, si no coincide, lanza {@link RegistreCorrupteException} en lugar de devolver datos
+     * erróneos. Cada lectura pasa a leer también 4 bytes del fichero lateral. Se comprueban las lecturas por código
+     * y las de los candidatos de las consultas, visitas y resúmenes resueltos con los índices; ni los recorridos
+     * completos del fichero por bloques ni los {@code Stream} comprueban las sumas (para eso está
+     * {@link #verificarIntegritat()}).
+     *
+     * @param estricto {@code true} para comprobar las sumas en cada lectura.
+     */
+    public void setModeEstricte(boolean estricto) {
+        this.modoEstricto = estricto;
+    }
+
+    /** @return {@code true} si cada lectura de un registro comprueba su suma de control. */
+    public boolean isModeEstricte() { return modoEstricto; }
+
+    /**
+     * Activa o desactiva la exportación comprimida: {@link #exportarSenseStock()} y {@link #exportarDescatalogats()}
+     * escriben el mismo texto comprimido por bloques en un fichero con la extensión {@code .gz} añadida a la ruta
+     * de exportación (por ejemplo, {@code sin-stock.txt.gz}). El resultado es un gzip válido que también puede
+     * leerse por partes o descomprimirse en paralelo con {@link ArxiuComprimit}.
+     *
+     * @param comprimida {@code true} para comprimir las exportaciones.
+     */
+    public void setExportacioComprimida(boolean comprimida) {
+        this.exportacionComprimida = comprimida;
+    }
+
+    /** @return {@code true} si las exportaciones se escriben comprimidas. */
+    public boolean isExportacioComprimida() { return exportacionComprimida; }
+
+    /**
+     * Verifica la suma de control de todos los registros en un único recorrido por bloques, en paralelo si el
+     * fichero tiene al menos {@link #getLlindarParallel()} registros. Espera a que terminen las modificaciones en
+     * curso y las excluye mientras verifica, pero no bloquea las consultas.
+     *
+     * @return informe con las posiciones de los registros corruptos, o {@code null} si ocurre un error de lectura.
+     * @throws IllegalStateException si las sumas de control no están activadas (ver {@link #activarSumesControl()}).
+     */
+    public InformeIntegritat verificarIntegritat() {
+        if (!SUMAS.activa()) {
+            throw new IllegalStateException("Las sumas de control no están activadas para el fichero "
+                    + RUTA_PRODUCTOS.getName() + ".");
+        }
+
+        BLOQUEO_MODIFICACIONES.writeLock().lock();
+        CAPCALERA.comprobar();
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ)) {
+            int numRegistros = CAPCALERA.numRegistros();
+            int[] corruptos = SUMAS.verificar(canal, numRegistros, REGISTROS_POR_TAREA,
+                    numRegistros >= llindarParallel);
+            return new InformeIntegritat(numRegistros, corruptos);
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+            return null;
+        } finally {
+            BLOQUEO_MODIFICACIONES.writeLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Toma el bloqueo de lectura del fichero de productos y comprueba, una sola vez para toda la consulta, si otro
+     * gestor ha escrito la cabecera ({@link CapcaleraFitxer#comprobar()}).
+     */
+    private void bloquearLectura() {
+        BLOQUEO_FICHERO.readLock().lock();
+        CAPCALERA.comprobar();
+    }
+
+    /**
+     * Toma los bloqueos necesarios para modificar el fichero de productos: primero el de modificaciones (que
+     * excluye la compactación) y después el de lectura del fichero. Después comprueba, una sola vez para toda la
+     * modificación, si otro gestor ha escrito la cabecera ({@link CapcaleraFitxer#comprobar()}).
+     */
+    private void bloquearModificacion() {
+        BLOQUEO_MODIFICACIONES.readLock().lock();
+        BLOQUEO_FICHERO.readLock().lock();
+        CAPCALERA.comprobar();
+    }
+
+    /**
+     * Libera los bloqueos tomados con {@link #bloquearModificacion()}.
+     */
+    private void desbloquearModificacion() {
+        BLOQUEO_FICHERO.readLock().unlock();
+        BLOQUEO_MODIFICACIONES.readLock().unlock();
+    }
+
+    /**
+     * Copia los productos que se conservan (todos salvo los registros libres y, si se indica, los descatalogados)
+     * al fichero compactado y lo utiliza para reemplazar el original. Debe llamarse con el bloqueo de escritura de
+     * modificaciones.
+     * <p>
+     * El fichero original se lee por bloques de {@link #REGISTROS_POR_ESCRITURA} registros. Dentro de cada
+     * bloque los registros que se conservan se desplazan hacia el principio y el bloque resultante se escribe de
+     * una sola vez. Los ficheros laterales se calculan después, también por bloques, a partir del fichero
+     * compactado, así que la memoria utilizada no depende del número de registros (salvo la de los propios
+     * índices).
+     * </p>
+     *
+     * @param eliminarDescatalogados {@code true} para eliminar también los productos descatalogados.
+     * @throws IOException si ocurre un error al copiar o al sustituir el fichero.
+     */
+    private void compactar(boolean eliminarDescatalogados) throws IOException {
+        File compactado = new File(RUTA_PRODUCTOS.getPath() + ".compactant");
+        int numRegistros = CAPCALERA.numRegistros();
+        int copiados = 0;
+
+        try (FileChannel origen = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ);
+             FileChannel destino = FileChannel.open(compactado.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_ESCRITURA * TAMANO_REGISTRO);
+            byte[] bytes = bloque.array();
+            long posicionDestino = CapcaleraFitxer.TAMANO;
+
+            for (int primero = 0; primero < numRegistros; primero += REGISTROS_POR_ESCRITURA) {
+                int cantidad = Math.min(REGISTROS_POR_ESCRITURA, numRegistros - primero);
+                bloque.clear().limit(cantidad * TAMANO_REGISTRO);
+                long posicionOrigen = posicionRegistro(primero);
+                while (bloque.hasRemaining()) {
+                    if (origen.read(bloque, posicionOrigen + bloque.position()) < 0) {
+                        throw new EOFException("El fichero de productos se ha truncado durante la compactación.");
+                    }
+                }
+
+                // Desplazamos los registros activos hacia el principio del bloque
+                int activos = 0;
+                for (int i = 0; i < cantidad; i++) {
+                    int inicio = i * TAMANO_REGISTRO;
+                    boolean descatalogado = bytes[inicio + RegistreProducte.OFFSET_DESCATALOGADO] != 0;
+                    if (RegistreProducte.libre(bloque, inicio) || (eliminarDescatalogados && descatalogado)) {
+                        continue;
+                    }
+
+                    int nuevoInicio = activos * TAMANO_REGISTRO;
+                    if (nuevoInicio != inicio) {
+                        System.arraycopy(bytes, inicio, bytes, nuevoInicio, TAMANO_REGISTRO);
+                    }
+                    activos++;
+                }
+
+                bloque.position(0).limit(activos * TAMANO_REGISTRO);
+                while (bloque.hasRemaining()) {
+                    posicionDestino += destino.write(bloque, posicionDestino);
+                }
+                copiados += activos;
+            }
+
+            // La cabecera se escribe al final, con el número de registros copiados. El contenido debe estar en disco
+            // antes de que el fichero compactado sustituya al original
+            ByteBuffer cabecera = CAPCALERA.cabecera(copiados, copiados);
+            CanalFitxer.escribirCompleto(destino, cabecera, 0);
+            destino.force(true);
+        }
+
+        // Las sumas y las columnas se calculan por bloques a partir del fichero compactado
+        SUMAS.preparar(compactado, copiados);
+        COLUMNAS.preparar(compactado, copiados);
+
+        // Sustituimos el fichero y los índices sin que ninguna consulta pueda ver un estado intermedio
+        BLOQUEO_FICHERO.writeLock().lock();
+        try {
+            try {
+                Files.move(compactado.toPath(), RUTA_PRODUCTOS.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(compactado.toPath(), RUTA_PRODUCTOS.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            // Las posiciones de los productos han cambiado, así que los índices se reconstruyen por bloques a partir
+            // del fichero compactado, sin cargar antes todos sus campos en memoria
+            CAPCALERA.recargar();
+            SUMAS.confirmar();
+            COLUMNAS.confirmar();
+            reconstruirIndices();
+            REGISTROS_LIBRES.reemplazar();
+        } finally {
+            BLOQUEO_FICHERO.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Exporta los productos sin stock o descatalogados en un único recorrido secuencial del fichero de productos.
+     * <p>
+     * El fichero se lee por bloques de {@link #REGISTROS_POR_ESCRITURA} registros y cada registro que cumple la
+     * condición se codifica directamente desde el bloque con {@link ExportadorText}, sin construir una lista de
+     * productos, así que la memoria utilizada no depende del tamaño del fichero.
+     * </p>
+     *
+     * @param fichero        fichero de exportación.
+     * @param descatalogados {@code true} para exportar los descatalogados, {@code false} para los que no tienen
+     *                       stock (y no están descatalogados).
+     */
+    private void exportar(File fichero, boolean descatalogados) {
+        bloquearLectura();
+        try (FileChannel origen = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ);
+             ExportadorText exportador = new ExportadorText(fichero, exportacionComprimida)) {
+            int numRegistros = CAPCALERA.numRegistros();
+            ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_ESCRITURA * TAMANO_REGISTRO);
+            CondicioRegistre condicion = descatalogados ? CondicioRegistre.DESCATALOGADO : CondicioRegistre.SIN_STOCK;
+
+            for (int primero = 0; primero < numRegistros; primero += REGISTROS_POR_ESCRITURA) {
+                int cantidad = Math.min(REGISTROS_POR_ESCRITURA, numRegistros - primero);
+                bloque.clear().limit(cantidad * TAMANO_REGISTRO);
+                long posicion = posicionRegistro(primero);
+                while (bloque.hasRemaining()) {
+                    if (origen.read(bloque, posicion + bloque.position()) < 0) {
+                        throw new EOFException("El fichero de productos se ha truncado durante la exportación.");
+                    }
+                }
+
+                for (int inicio = 0; inicio < cantidad * TAMANO_REGISTRO; inicio += TAMANO_REGISTRO) {
+                    if (condicion.cumple(bloque, inicio)) {
+                        exportador.escribir(bloque, inicio);
+                    }
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        } finally {
+            BLOQUEO_FICHERO.readLock().unlock();
+        }
+    }
+
+    /**
+     * Obtiene el fichero en el que se escribe una exportación, según si está activada la exportación comprimida.
+     *
+     * @param fichero ruta de exportación configurada.
+     * @return la misma ruta, o la ruta con la extensión {@code .gz} añadida si la exportación es comprimida.
+     */
+    private File destinoExportacion(File fichero) {
+        return exportacionComprimida ? new File(fichero.getPath() + ".gz") : fichero;
+    }
+
+    /**
+     * Obtiene, a partir del índice de códigos, la posición del registro que contiene el código indicado.
+     * <p>
+     * Antes de devolverla comprueba que el registro apuntado contiene realmente ese código. Si no es así, el
+     * índice está desactualizado (por ejemplo, el fichero se ha modificado desde fuera), así que se reconstruye
+     * y se vuelve a buscar.
+     * </p>
+     *
+     * @param raf    acceso aleatorio al fichero.
+     * @param codigo código del producto.
+     * @return posición (en número de registro) del producto.
+     * @throws ProducteNoExistentException si no existe un producto con ese código.
+     * @throws IOException                 si ocurre un error de lectura.
+     */
+    private int localizarRegistro(RandomAccessFile raf, int codigo) throws ProducteNoExistentException, IOException {
+        int posicion = INDICE_CODIGOS.buscar(codigo);
+
+        if (posicion >= 0 && !contieneCodigo(raf, posicion, codigo)) {
+            INDICE_CODIGOS.reconstruir();
+            posicion = INDICE_CODIGOS.buscar(codigo);
+        }
+
+        if (posicion < 0) {
+            throw new ProducteNoExistentException(
+                    "No existe ningún producto registrado con el código \'" + codigo + "\'.");
+        }
+
+        return posicion;
+    }
+
+    /**
+     * Lee el stock actual de los registros afectados por un lote de movimientos, recorriéndolos en orden
+     * creciente, y comprueba que cada uno contiene el código esperado.
+     *
+     * @param canal     canal abierto sobre el fichero de productos.
+     * @param lote      lote de movimientos agrupados por registro.
+     * @param registros array donde se copian los registros afectados, uno detrás de otro.
+     * @return stock actual de cada registro afectado, o {@code null} si algún registro no contiene el código
+     * esperado (el índice de códigos está desactualizado).
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private int[] leerStocks(FileChannel canal, LotMoviments lote, byte[] registros) throws IOException {
+        int[] stocks = new int[lote.numRegistros()];
+
+        for (int i = 0; i < lote.numRegistros(); i++) {
+            long posicion = posicionRegistro(lote.posicion(i));
+            ByteBuffer registro = ByteBuffer.wrap(registros, i * TAMANO_REGISTRO, TAMANO_REGISTRO).slice();
+            while (registro.hasRemaining()) {
+                if (canal.read(registro, posicion + registro.position()) < 0) {
+                    return null;
+                }
+            }
+
+            if (registro.getInt(RegistreProducte.OFFSET_CODIGO) != lote.codigo(i)) {
+                return null;
+            }
+            comprobarSuma(lote.posicion(i), registro, 0);
+            stocks[i] = registro.getInt(RegistreProducte.OFFSET_STOCK);
+        }
+
+        return stocks;
+    }
+
+    /**
+     * @param posicion posición (en número de registro).
+     * @return bloqueo que protege el registro.
+     */
+    private Lock bloqueoRegistro(int posicion) {
+        return BLOQUEOS_REGISTRO[posicion % BLOQUEOS_REGISTRO.length];
+    }
+
+    /**
+     * Busca mediante el índice de nombres los productos cuyo nombre coincide con el indicado o comienza por él.
+     *
+     * @param texto   nombre o prefijo a buscar.
+     * @param prefijo {@code true} para buscar por prefijo, {@code false} para buscar el nombre exacto.
+     * @return lista de productos coincidentes en orden de código.
+     */
+    private List<Producte> leerPorNombre(String texto, boolean prefijo) {
+        if (prefijo) {
+            CondicioRegistre condicion = CondicioRegistre.prefijo(texto);
+            return buscarConIndice(() -> INDICE_NOMBRES.buscarPrefijo(texto), condicion, condicion,
+                    INDICE_NOMBRES::reconstruir);
+        }
+
+        CondicioRegistre condicion = CondicioRegistre.nombre(texto);
+        return buscarConIndice(() -> INDICE_NOMBRES.buscar(texto), condicion, condicion, INDICE_NOMBRES::reconstruir);
+    }
+
+    /**
+     * Lee los productos de las posiciones que devuelve un índice.
+     * <p>
+     * El índice devuelve directamente las posiciones (ordenadas) de los registros candidatos, así que solo se
+     * leen esos registros, y de ellos solo se decodifican los que cumplen el filtro. Si alguno de los registros
+     * leídos no cumple la condición del índice, el índice está desactualizado: se reconstruye y se repite la
+     * búsqueda una única vez.
+     * </p>
+     * <p>
+     * Si el fichero tiene al menos {@link #getLlindarParallel()} registros y hay de media más de un registro
+     * candidato por página de disco, leerlos uno a uno acabaría leyendo igualmente todo el fichero, así que en su
+     * lugar se recorre el fichero completo en paralelo con {@link RecorregutParallel}.
+     * </p>
+     *
+     * @param consulta        obtiene del índice las posiciones de los registros candidatos.
+     * @param condicionIndice condición que cumplen todos los candidatos si el índice está actualizado.
+     * @param filtro          condición que deben cumplir los productos devueltos (implica la del índice).
+     * @param reconstruir     reconstruye el índice si está desactualizado.
+     * @return lista de productos coincidentes en orden de código.
+     */
+    private List<Producte> buscarConIndice(Supplier<int[]> consulta, CondicioRegistre condicionIndice,
+                                           CondicioRegistre filtro, Runnable reconstruir) {
+        bloquearLectura();
+        try {
+            int[] posiciones = consulta.get();
+            int numRegistros = CAPCALERA.numRegistros();
+            if (numRegistros >= llindarParallel && posiciones.length > numRegistros / REGISTROS_POR_PAGINA) {
+                return recorrer(filtro);
+            }
+
+            List<Producte> productos = leerPosiciones(posiciones, condicionIndice, filtro);
+            if (productos == null) {
+                reconstruir.run();
+                productos = leerPosiciones(consulta.get(), condicionIndice, filtro);
+            }
+            return productos == null ? new ArrayList<>() : productos;
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+            return new ArrayList<>();
+        } finally {
+            BLOQUEO_FICHERO.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recorre el fichero completo por bloques y devuelve los productos que cumplen la condición, decodificando
+     * solo esos registros. Si el fichero tiene al menos {@link #getLlindarParallel()} registros, el recorrido se
+     * reparte entre los hilos del {@code ForkJoinPool}.
+     *
+     * @param condicion condición que deben cumplir los registros.
+     * @return lista de productos coincidentes en orden de código.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private List<Producte> recorrer(CondicioRegistre condicion) throws IOException {
+        bloquearLectura();
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ)) {
+            int numRegistros = CAPCALERA.numRegistros();
+            return RecorregutParallel.buscar(canal, numRegistros, condicion, REGISTROS_POR_TAREA,
+                    numRegistros >= llindarParallel);
+        } finally {
+            BLOQUEO_FICHERO.readLock().unlock();
+        }
+    }
+
+    /**
+     * Abre un {@code Stream} perezoso sobre los registros de las posiciones que devuelve un índice.
+     * <p>
+     * Al abrirlo solo se obtienen del índice las posiciones coincidentes y se abre un canal sobre el fichero;
+     * cada producto se lee y se decodifica cuando el {@code Stream} lo consume (ver {@link CursorProductes}), así
+     * que {@code limit}, {@code findFirst} o {@code count} no construyen ninguna lista de productos. El canal se
+     * libera al cerrar el {@code Stream} (o al llegar a su final), por lo que debe usarse con
+     * try-with-resources.
+     * </p>
+     * <p>
+     * El canal se abre con el fichero bloqueado, así que una compactación posterior no afecta al recorrido: el
+     * canal sigue apuntando al fichero anterior, cuyo contenido coincide con las posiciones del índice. Los
+     * registros modificados después de abrirlo que ya no cumplen la condición se descartan.
+     * </p>
+     *
+     * @param consulta  obtiene del índice las posiciones de los registros coincidentes.
+     * @param condicion condición que deben cumplir los productos leídos.
+     * @return {@code Stream} de productos coincidentes en orden de código, o vacío si ocurre un error.
+     */
+    private Stream<Producte> obrirFlux(Supplier<int[]> consulta, Predicate<Producte> condicion) {
+        bloquearLectura();
+        try {
+            // Las posiciones se leen en orden de código, que deja de ser el del fichero al reutilizar registros libres
+            int[] posiciones = INDICE_CODIGOS.ordenarPorCodigo(consulta.get());
+            if (posiciones.length == 0) {
+                return Stream.empty();
+            }
+
+            CursorProductes cursor = new CursorProductes(
+                    FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ), posiciones, condicion);
+            return StreamSupport.stream(cursor, false).onClose(cursor::cerrar);
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+            return Stream.empty();
+        } finally {
+            BLOQUEO_FICHERO.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lee los registros de las posiciones indicadas y decodifica los que cumplen el filtro.
+     *
+     * @param posiciones      posiciones (en número de registro) a leer.
+     * @param condicionIndice condición que deben cumplir todos los registros leídos.
+     * @param filtro          condición que deben cumplir los productos devueltos.
+     * @return lista de productos leídos, en orden de código, o {@code null} si alguna posición no existe o no cumple
+     * la condición del índice.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private List<Producte> leerPosiciones(int[] posiciones, CondicioRegistre condicionIndice, CondicioRegistre filtro)
+            throws IOException {
+        List<Producte> productos = new ArrayList<>();
+        boolean correcto = visitarPosiciones(posiciones, condicionIndice, filtro, productos,
+                (lista, registro, inicio) -> lista.add(RegistreProducte.leer(registro, inicio)));
+        if (!correcto) {
+            return null;
+        }
+
+        // Al reutilizar registros libres el orden del fichero deja de ser el de los códigos
+        productos.sort(Comparator.comparingInt(Producte::getCodigo));
+        return productos;
+    }
+
+    /**
+     * Lee los registros de las posiciones indicadas y pasa al acumulador los que cumplen el filtro, sin
+     * decodificarlos.
+     *
+     * @param posiciones      posiciones (en número de registro) a leer.
+     * @param condicionIndice condición que deben cumplir todos los registros leídos.
+     * @param filtro          condición que deben cumplir los registros que se acumulan.
+     * @param acumulado       acumulador.
+     * @param accion          añade un registro al acumulador.
+     * @param <A>             tipo del acumulador.
+     * @return {@code false} si alguna posición no existe o no cumple la condición del índice.
+     * @throws IOException               si ocurre un error de lectura.
+     * @throws RegistreCorrupteException en modo estricto, si algún registro leído no corresponde a su suma de
+     *                                   control.
+     */
+    private <A> boolean visitarPosiciones(int[] posiciones, CondicioRegistre condicionIndice, CondicioRegistre filtro,
+                                          A acumulado, RecorregutParallel.AccionRegistre<A> accion)
+            throws IOException {
+        if (posiciones.length == 0) {
+            return true;
+        }
+
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ)) {
+            long tamano = canal.size();
+            ByteBuffer registro = ByteBuffer.allocate(TAMANO_REGISTRO);
+            for (int posicion : posiciones) {
+                if (posicionRegistro(posicion + 1) > tamano) {
+                    return false;
+                }
+
+                registro.clear();
+                while (registro.hasRemaining()) {
+                    if (canal.read(registro, posicionRegistro(posicion) + registro.position()) < 0) {
+                        return false;
+                    }
+                }
+
+                comprobarSuma(posicion, registro, 0);
+                if (!condicionIndice.cumple(registro, 0)) {
+                    return false;
+                }
+                if (filtro.cumple(registro, 0)) {
+                    accion.aceptar(acumulado, registro, 0);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Espera a que termine el análisis de un tramo de una importación.
+     *
+     * @param tramo tarea que analiza el tramo.
+     * @return tramo analizado.
+     * @throws IOException si el análisis falla o se interrumpe.
+     */
+    private static ImportadorText.Tramo esperarTramo(Future<ImportadorText.Tramo> tramo) throws IOException {
+        try {
+            return tramo.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Importación interrumpida.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Error al analizar el fichero: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Reconstruye todos los índices a partir del fichero de productos.
+     */
+    private void reconstruirIndices() {
+        INDICE_CODIGOS.reconstruir();
+        INDICE_NOMBRES.reconstruir();
+        INDICE_ESTADO.reconstruir();
+    }
+
+    /**
+     * Marca los índices y la lista de registros libres como al día con el número de modificaciones actual de la
+     * cabecera. Se llama al terminar cada modificación, después de actualizar la cabecera y los ficheros laterales,
+     * así que el siguiente gestor los carga sin reconstruirlos aunque este no se haya cerrado; solo los reconstruye
+     * si otro proceso ha modificado el fichero de productos sin actualizarlos.
+     *
+     * @throws IOException si no se puede actualizar algún fichero lateral.
+     */
+    private void sincronizarLaterales() throws IOException {
+        INDICE_CODIGOS.sincronizar();
+        INDICE_NOMBRES.sincronizar();
+        INDICE_ESTADO.sincronizar();
+        REGISTROS_LIBRES.sincronizar();
+    }
+
+    /**
+     * Comprueba si el registro de la posición indicada contiene el código indicado.
+     *
+     * @param raf      acceso aleatorio al fichero.
+     * @param posicion posición (en número de registro).
+     * @param codigo   código esperado.
+     * @return {@code true} si el registro existe y contiene ese código.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private boolean contieneCodigo(RandomAccessFile raf, int posicion, int codigo) throws IOException {
+        if (posicionRegistro(posicion + 1) > raf.length()) {
+            return false;
+        }
+
+        raf.seek(posicionRegistro(posicion));
+        return raf.readInt() == codigo;
+    }
+
+    /**
+     * Calcula la posición en bytes donde comienza un registro.
+     *
+     * @param posicion posición (en número de registro).
+     * @return posición en bytes dentro del fichero.
+     */
+    private long posicionRegistro(int posicion) {
+        return CapcaleraFitxer.posicion(posicion);
+    }
 
     /**
      * Lee un producto completo desde una posición concreta del fichero.
@@ -541,9 +1933,15 @@ public class GestioProducte implements Gestionable {
      * @param raf       acceso aleatorio al fichero.
      * @param posicion  posición (en número de registro).
      * @return objeto {@link Producte} leído.
-     * @throws IOException si ocurre un error de lectura.
+     * @throws IOException               si ocurre un error de lectura.
+     * @throws RegistreCorrupteException en modo estricto, si el registro no corresponde a su suma de control.
      */
     private Producte leerProducto(RandomAccessFile raf, int posicion) throws IOException {
+        // En modo estricto se lee el registro completo para comprobar su suma antes de decodificarlo
+        if (modoEstricto && SUMAS.activa()) {
+            return RegistreProducte.leer(ByteBuffer.wrap(leerRegistro(raf, posicion)), 0);
+        }
+
         Producte p = null;
         int codigo, stock;
         String nombre;
@@ -551,7 +1949,7 @@ public class GestioProducte implements Gestionable {
         boolean descatalogado;
 
         // Ubicamos el pointer en la posicion inicial del registro deseado y leemos todos los campos de registro
-        raf.seek(posicion * TAMANO_REGISTRO);
+        raf.seek(posicionRegistro(posicion));
         codigo = raf.readInt();
         nombre = raf.readUTF();
         precio = raf.readDouble();
@@ -565,63 +1963,132 @@ public class GestioProducte implements Gestionable {
     }
 
     /**
-     * Escribe un producto completo en el fichero binario en la posición indicada.
+     * Lee el registro completo de la posición indicada.
      *
-     * @param raf       acceso aleatorio al fichero.
-     * @param p         producto a escribir.
-     * @param posicion  posición (en bytes) donde escribir.
-     * @throws IOException si ocurre un error de escritura.
+     * @param raf      acceso aleatorio al fichero.
+     * @param posicion posición (en número de registro).
+     * @return bytes del registro.
+     * @throws IOException               si ocurre un error de lectura.
+     * @throws RegistreCorrupteException en modo estricto, si el registro no corresponde a su suma de control.
      */
-    private void escribirProducto(RandomAccessFile raf, Producte p, long posicion) throws IOException {
-        // Ubicamos el pointer en el final del fichero
-        raf.seek(posicion);
+    private byte[] leerRegistro(RandomAccessFile raf, int posicion) throws IOException {
+        byte[] registro = new byte[TAMANO_REGISTRO];
+        raf.seek(posicionRegistro(posicion));
+        raf.readFully(registro);
+        comprobarSuma(posicion, ByteBuffer.wrap(registro), 0);
+        return registro;
+    }
 
-        // Escribimos todos los campos de producto
-        raf.writeInt(p.getCodigo());
-        raf.writeUTF(p.getNombre());
-        raf.writeDouble(p.getPrecio());
-        raf.writeInt(p.getStock());
-        raf.writeBoolean(p.isDescatalogado());
+    /**
+     * En modo estricto, comprueba que un registro leído corresponde a su suma de control.
+     *
+     * @param posicion posición (en número de registro).
+     * @param registro buffer que contiene el registro leído.
+     * @param inicio   posición (en bytes) donde comienza el registro dentro del buffer.
+     * @throws IOException               si ocurre un error al leer la suma.
+     * @throws RegistreCorrupteException si el registro no corresponde a su suma de control.
+     */
+    private void comprobarSuma(int posicion, ByteBuffer registro, int inicio) throws IOException {
+        if (modoEstricto && !SUMAS.correcto(posicion, registro, inicio)) {
+            throw new RegistreCorrupteException("El registro " + posicion + " del fichero "
+                    + RUTA_PRODUCTOS.getName() + " está corrupto (su suma de control no coincide).");
+        }
     }
 
     /**
-     * Valida los datos de un producto (nombre, precio y stock).
+     * Sobrescribe un registro existente: anota su nuevo contenido en el diario, espera a que la anotación llegue
+     * al disco (agrupada con las de otros hilos) y después lo escribe en el fichero de productos. Debe llamarse
+     * con el bloqueo del registro.
      *
-     * @param p producto a validar.
-     * @throws ProducteNoValidException si algún campo no cumple las restricciones.
+     * @param raf      acceso aleatorio al fichero.
+     * @param posicion posición (en número de registro).
+     * @param registro nuevo contenido del registro.
+     * @throws IOException si ocurre un error al escribir en el diario o en el fichero.
      */
-    private void validarDatos(Producte p) throws ProducteNoValidException {
+    private void sobrescribirRegistro(RandomAccessFile raf, int posicion, byte[] registro) throws IOException {
+        DIARIO.esperar(DIARIO.anotar(new int[]{posicion}, registro, 1));
+        raf.seek(posicionRegistro(posicion));
+        raf.write(registro);
+        SUMAS.actualizar(posicion, ByteBuffer.wrap(registro), 0);
+        COLUMNAS.actualizar(posicion, ByteBuffer.wrap(registro), 0);
+    }
 
-        // Nombre
-        p.setNombre(formatearNombre(p.getNombre()));
+    /**
+     * Fuerza el fichero de productos y vacía el diario. Debe llamarse con el bloqueo de escritura de
+     * modificaciones.
+     *
+     * @throws IOException si ocurre un error al forzar el fichero o al vaciar el diario.
+     */
+    private void aplicarDiario() throws IOException {
+        puntoControlProgramado.set(false);
+        if (DIARIO.tamano() == 0) {
+            return;
+        }
 
-        // Precio
-        if (p.getPrecio() < 0) {
-            throw new ProducteNoValidException("Precio inferior a 0.");
+        try (FileChannel canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.WRITE)) {
+            canal.force(false);
         }
+        SUMAS.forzar();
+        COLUMNAS.forzar();
+        DIARIO.vaciar();
+    }
 
-        // Stock
-        if (p.getStock() < 0) {
-            throw new ProducteNoValidException("Stock inferior a 0.");
+    /**
+     * Programa una compactación en segundo plano si los registros libres son más de la mitad del fichero (y al
+     * menos {@link #REGISTROS_POR_ESCRITURA}) y no hay otra programada.
+     */
+    private void programarCompactacionSiNecesario() {
+        int libres = REGISTROS_LIBRES.numLibres();
+        if (libres >= REGISTROS_POR_ESCRITURA && libres > CAPCALERA.numRegistros() / 2
+                && compactacionProgramada.compareAndSet(false, true)) {
+            TAREAS_SEGUNDO_PLANO.execute(this::compactar);
         }
     }
 
     /**
-     * Formatea el nombre del producto a mayúsculas y lo rellena con espacios hasta 50 caracteres.
+     * Extrae de la lista un registro libre para reutilizarlo. Si la lista no corresponde al fichero (por ejemplo,
+     * por una interrupción entre la actualización de ambos), descarta las posiciones que ya no están libres.
      *
-     * @param nombre nombre original.
-     * @return nombre formateado y completado.
+     * @param raf acceso aleatorio al fichero.
+     * @return posición (en número de registro) de un registro libre o -1 si no hay ninguno.
+     * @throws IOException si ocurre un error de lectura.
      */
-    private String formatearNombre(String nombre) {
-        StringBuilder nombreBuilder = new StringBuilder(nombre.toUpperCase());
-
-        if (nombre.length() < 50) {
-            for (int i = nombre.length(); i < 50; i++) {
-                nombreBuilder.append(" ");
+    private int extraerRegistroLibre(RandomAccessFile raf) throws IOException {
+        int posicion;
+        while ((posicion = REGISTROS_LIBRES.extraer()) >= 0) {
+            if (posicionRegistro(posicion) + TAMANO_REGISTRO <= raf.length()) {
+                raf.seek(posicionRegistro(posicion) + RegistreProducte.OFFSET_CODIGO);
+                if (raf.readInt() == RegistreProducte.CODIGO_LIBRE) {
+                    return posicion;
+                }
             }
         }
+        return -1;
+    }
 
-        return nombreBuilder.toString();
+    /**
+     * Comprueba, con el bloqueo del registro tomado, que el registro localizado sigue conteniendo el producto
+     * (otro hilo puede haberlo eliminado y reutilizado el registro después de localizarlo).
+     *
+     * @param registro bytes del registro.
+     * @param codigo   código esperado.
+     * @throws ProducteNoExistentException si el registro ya no contiene ese código.
+     */
+    private static void comprobarCodigo(byte[] registro, int codigo) throws ProducteNoExistentException {
+        if (ByteBuffer.wrap(registro).getInt(RegistreProducte.OFFSET_CODIGO) != codigo) {
+            throw new ProducteNoExistentException(
+                    "No existe ningún producto registrado con el código \'" + codigo + "\'.");
+        }
+    }
+
+    /**
+     * Programa un punto de control en segundo plano si el diario supera {@link #TAMANO_MAXIMO_DIARIO} y no hay
+     * otro programado.
+     */
+    private void programarPuntoControlSiNecesario() {
+        if (DIARIO.tamano() > TAMANO_MAXIMO_DIARIO && puntoControlProgramado.compareAndSet(false, true)) {
+            TAREAS_SEGUNDO_PLANO.execute(this::puntControl);
+        }
     }
 
     /**
@@ -630,13 +2097,15 @@ public class GestioProducte implements Gestionable {
      * @param fichero fichero a validar.
      * @return {@code true} si se ha validado correctamente, {@code false} si ocurre un error.
      */
-    private boolean validarFichero(File fichero) {
+    static boolean validarFichero(File fichero) {
         boolean ficheroValidado = true;
 
-        // Validar directorio
-        File rutaFichero = new File(fichero.getPath().substring(0, fichero.getPath().lastIndexOf("\\")));
+        // Validar directorio (independientemente del separador de rutas del sistema)
+        File rutaFichero = fichero.getAbsoluteFile().getParentFile();
         try {
-            rutaFichero.mkdirs();
+            if (rutaFichero != null) {
+                rutaFichero.mkdirs();
+            }
             fichero.createNewFile();
         } catch (IOException e) {
             System.err.printf("Error al crear el fichero %s: %s\n", fichero.getName(), e.getMessage());
@@ -0,0 +1,349 @@
+package persistencia;
+
+import model.MovimentStock;
+import model.Producte;
+import model.ResumInventari;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Fachada asíncrona de un {@link Gestionable}: cada operación se ejecuta en un hilo virtual y devuelve un
+ * {@link CompletableFuture}, de modo que quien la llama (por ejemplo, el hilo de una petición) no se bloquea
+ * mientras el gestor accede al fichero.
+ * <p>
+ * Las lecturas y escrituras de ficheros bloquean también el hilo portador del hilo virtual (la JVM lo compensa
+ * añadiendo portadores temporalmente), así que el número de operaciones que se ejecutan a la vez sobre el gestor está
+ * limitado: las que superan el límite esperan en su hilo virtual, sin bloquear a quien las ha pedido.
+ * </p>
+ * <p>
+ * Las consultas idénticas que coinciden en el tiempo se agrupan: si llega un {@link #cercaPerCodi(int)} del mismo
+ * código (o una búsqueda por el mismo nombre, etc.) mientras hay otra en curso, se resuelve con el resultado de
+ * esta en lugar de volver a leer el fichero. Cada llamada recibe su propia copia de los productos, ya que
+ * {@link Producte} es mutable. Cuando termina una modificación, las consultas en curso dejan de poder agruparse,
+ * así que una consulta pedida después de completarse una modificación siempre la refleja. También se agrupan las
+ * exportaciones simultáneas al mismo fichero. Las consultas con una {@link Condicio} no se agrupan, porque dos
+ * condiciones equivalentes no tienen por qué ser iguales.
+ * </p>
+ * <p>
+ * Los métodos {@code flux...} reciben la acción a aplicar a cada producto, que se ejecuta en el hilo virtual
+ * mientras se recorre el fichero, igual que la de {@link #visita(Condicio, Consumer)}.
+ * </p>
+ */
+public class GestioProducteAsincron implements AutoCloseable {
+
+    /** Gestor sobre el que se ejecutan las operaciones. */
+    private final Gestionable gestor;
+    /** Hilos virtuales, uno por operación. */
+    private final ExecutorService hilos = Executors.newVirtualThreadPerTaskExecutor();
+    /** Limita el número de operaciones que se ejecutan a la vez sobre el gestor. */
+    private final Semaphore enEjecucion;
+    /** Consultas en curso que pueden agruparse, por operación y argumento. */
+    private final ConcurrentHashMap<Consulta, CompletableFuture<?>> consultas = new ConcurrentHashMap<>();
+    /** Número de consultas resueltas con el resultado de otra idéntica en curso. */
+    private final LongAdder agrupadas = new LongAdder();
+
+    /**
+     * Constructor principal.
+     *
+     * @param gestor        gestor sobre el que se ejecutan las operaciones.
+     * @param maximoEnCurso número máximo de operaciones que se ejecutan a la vez sobre el gestor.
+     */
+    public GestioProducteAsincron(Gestionable gestor, int maximoEnCurso) {
+        if (maximoEnCurso < 1) {
+            throw new IllegalArgumentException("El número máximo de operaciones en curso debe ser mayor que 0.");
+        }
+        this.gestor = gestor;
+        this.enEjecucion = new Semaphore(maximoEnCurso);
+    }
+
+    public CompletableFuture<Integer> afegirProducte(Producte p) {
+        return modificar(() -> gestor.afegirProducte(p));
+    }
+
+    public CompletableFuture<int[]> afegirProductes(Collection<Producte> productos) {
+        return modificar(() -> gestor.afegirProductes(productos));
+    }
+
+    public CompletableFuture<Producte> cercaPerCodi(int codigo) {
+        return consultar(new Consulta("codigo", codigo), () -> gestor.cercaPerCodi(codigo),
+                GestioProducteAsincron::copiar);
+    }
+
+    public CompletableFuture<List<Producte>> cercaPerNom(String nombre) {
+        return consultar(new Consulta("nombre", nombre), () -> gestor.cercaPerNom(nombre),
+                GestioProducteAsincron::copiar);
+    }
+
+    public CompletableFuture<List<Producte>> cercaPerPrefix(String prefijo) {
+        return consultar(new Consulta("prefijo", prefijo), () -> gestor.cercaPerPrefix(prefijo),
+                GestioProducteAsincron::copiar);
+    }
+
+    public CompletableFuture<List<Producte>> cercaSenseStock() {
+        return consultar(new Consulta("sinStock", null), gestor::cercaSenseStock, GestioProducteAsincron::copiar);
+    }
+
+    public CompletableFuture<List<Producte>> cercaDescatalogats() {
+        return consultar(new Consulta("descatalogados", null), gestor::cercaDescatalogats,
+                GestioProducteAsincron::copiar);
+    }
+
+    public CompletableFuture<List<Producte>> cerca(Condicio condicio) {
+        return ejecutar(() -> gestor.cerca(condicio), false);
+    }
+
+    public CompletableFuture<ResumInventari> resumInventari() {
+        // ResumInventari es inmutable, así que puede compartirse
+        return consultar(new Consulta("resumen", null), gestor::resumInventari, resumen -> resumen);
+    }
+
+    public CompletableFuture<ResumInventari> resumInventari(Condicio condicio) {
+        return ejecutar(() -> gestor.resumInventari(condicio), false);
+    }
+
+    public CompletableFuture<Void> visita(Condicio condicio, Consumer<ProducteView> accion) {
+        return ejecutar(() -> {
+            gestor.visita(condicio, accion);
+            return null;
+        }, false);
+    }
+
+    public CompletableFuture<Void> fluxPerNom(String nombre, Consumer<Producte> accion) {
+        return recorrer(() -> gestor.fluxPerNom(nombre), accion);
+    }
+
+    public CompletableFuture<Void> fluxPerPrefix(String prefijo, Consumer<Producte> accion) {
+        return recorrer(() -> gestor.fluxPerPrefix(prefijo), accion);
+    }
+
+    public CompletableFuture<Void> fluxSenseStock(Consumer<Producte> accion) {
+        return recorrer(gestor::fluxSenseStock, accion);
+    }
+
+    public CompletableFuture<Void> fluxDescatalogats(Consumer<Producte> accion) {
+        return recorrer(gestor::fluxDescatalogats, accion);
+    }
+
+    public CompletableFuture<Void> exportarSenseStock() {
+        return consultar(new Consulta("exportarSinStock", null), () -> {
+            gestor.exportarSenseStock();
+            return null;
+        }, nada -> nada);
+    }
+
+    public CompletableFuture<Void> exportarDescatalogats() {
+        return consultar(new Consulta("exportarDescatalogados", null), () -> {
+            gestor.exportarDescatalogats();
+            return null;
+        }, nada -> nada);
+    }
+
+    public CompletableFuture<Void> modificarProducte(Producte p) {
+        return modificar(() -> {
+            gestor.modificarProducte(p);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> modificarStock(int codigo, int cantidad, boolean incrementar) {
+        return modificar(() -> {
+            gestor.modificarStock(codigo, cantidad, incrementar);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> modificarStocks(List<MovimentStock> movimientos) {
+        return modificar(() -> {
+            gestor.modificarStocks(movimientos);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> descatalogarProducte(int codigo) {
+        return modificar(() -> {
+            gestor.descatalogarProducte(codigo);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> esborrarProducte(int codigo) {
+        return modificar(() -> {
+            gestor.esborrarProducte(codigo);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> esborrarDescatalogats() {
+        return modificar(() -> {
+            gestor.esborrarDescatalogats();
+            return null;
+        });
+    }
+
+    /** @return número de consultas resueltas con el resultado de otra idéntica que estaba en curso. */
+    public long getConsultesAgrupades() { return agrupadas.sum(); }
+
+    /**
+     * Espera a que terminen las operaciones pedidas y deja de aceptar operaciones nuevas.
+     */
+    @Override
+    public void close() {
+        hilos.close();
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Ejecuta una operación en un hilo virtual cuando hay sitio entre las operaciones en curso.
+     *
+     * @param operacion operación sobre el gestor.
+     * @param modifica  {@code true} si la operación modifica productos: al terminar, las consultas en curso dejan
+     *                  de poder agruparse.
+     * @return resultado de la operación.
+     */
+    private <T> CompletableFuture<T> ejecutar(Supplier<T> operacion, boolean modifica) {
+        return CompletableFuture.supplyAsync(() -> {
+            enEjecucion.acquireUninterruptibly();
+            try {
+                return operacion.get();
+            } finally {
+                // Antes de completar la modificación, para que ninguna consulta posterior se agrupe con una
+                // anterior a ella
+                if (modifica) {
+                    consultas.clear();
+                }
+                enEjecucion.release();
+            }
+        }, hilos);
+    }
+
+    /**
+     * Ejecuta una operación que modifica productos.
+     *
+     * @param operacion operación sobre el gestor.
+     * @return resultado de la operación.
+     */
+    private <T> CompletableFuture<T> modificar(Supplier<T> operacion) {
+        return ejecutar(operacion, true);
+    }
+
+    /**
+     * Ejecuta una consulta o, si ya hay una idéntica en curso, espera a su resultado.
+     *
+     * @param consulta identificador de la consulta.
+     * @param lectura  consulta sobre el gestor.
+     * @param copia    copia el resultado para cada llamada.
+     * @return copia del resultado de la consulta.
+     */
+    private <T> CompletableFuture<T> consultar(Consulta consulta, Supplier<T> lectura, UnaryOperator<T> copia) {
+        CompletableFuture<T> nueva = new CompletableFuture<>();
+        @SuppressWarnings("unchecked")
+        CompletableFuture<T> enCurso = (CompletableFuture<T>) consultas.putIfAbsent(consulta, nueva);
+        if (enCurso != null) {
+            agrupadas.increment();
+            return enCurso.thenApply(copia);
+        }
+
+        CompletableFuture<T> lecturaEnCurso;
+        try {
+            lecturaEnCurso = ejecutar(lectura, false);
+        } catch (RejectedExecutionException e) {
+            // Ya cerrado: la consulta no llega a ejecutarse y las agrupadas con ella reciben el mismo error
+            consultas.remove(consulta, nueva);
+            nueva.completeExceptionally(e);
+            throw e;
+        }
+        lecturaEnCurso.whenComplete((resultado, error) -> {
+            consultas.remove(consulta, nueva);
+            if (error == null) {
+                nueva.complete(resultado);
+            } else {
+                nueva.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error);
+            }
+        });
+        return nueva.thenApply(copia);
+    }
+
+    /**
+     * Recorre un flujo de productos en un hilo virtual, cerrándolo al terminar.
+     *
+     * @param flujo  obtiene el flujo del gestor.
+     * @param accion acción a aplicar a cada producto.
+     * @return se completa al terminar el recorrido.
+     */
+    private CompletableFuture<Void> recorrer(Supplier<Stream<Producte>> flujo, Consumer<Producte> accion) {
+        return ejecutar(() -> {
+            try (Stream<Producte> productos = flujo.get()) {
+                productos.forEach(accion);
+            }
+            return null;
+        }, false);
+    }
+
+    /**
+     * @param p producto a copiar (puede ser {@code null} si ocurre un error de lectura).
+     * @return copia independiente del producto.
+     */
+    private static Producte copiar(Producte p) {
+        return p == null ? null
+                : new Producte(p.getCodigo(), p.getNombre(), p.getPrecio(), p.getStock(), p.isDescatalogado());
+    }
+
+    /**
+     * @param productos productos a copiar.
+     * @return lista nueva con una copia de cada producto.
+     */
+    private static List<Producte> copiar(List<Producte> productos) {
+        List<Producte> copia = new ArrayList<>(productos.size());
+        for (Producte p : productos) {
+            copia.add(copiar(p));
+        }
+        return copia;
+    }
+
+    /**
+     * Identificador de una consulta que puede agruparse: operación y argumento.
+     */
+    private static final class Consulta {
+
+        /** Nombre de la operación. */
+        private final String operacion;
+        /** Argumento de la operación ({@code null} si no tiene). */
+        private final Object argumento;
+
+        Consulta(String operacion, Object argumento) {
+            this.operacion = operacion;
+            this.argumento = argumento;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Consulta otra)) return false;
+            return operacion.equals(otra.operacion) && Objects.equals(argumento, otra.argumento);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * operacion.hashCode() + Objects.hashCode(argumento);
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package persistencia;
+
+import model.MovimentStock;
+import model.Producte;
+import model.ResumInventari;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Decorador de {@link Gestionable} que mantiene en memoria los productos consultados con
+ * {@link #cercaPerCodi(int)}, de modo que las consultas repetidas de los mismos códigos no acceden al fichero.
+ * <p>
+ * La caché está limitada por número de entradas, por tamaño estimado en bytes o por ambos, y cuando se llena
+ * expulsa los productos usados hace más tiempo (LRU). Todas las modificaciones pasan por el decorador, que
+ * invalida las entradas afectadas después de aplicarlas sobre el gestor decorado, así que las lecturas siempre
+ * son coherentes con el fichero. El resto de búsquedas se delegan directamente.
+ * </p>
+ * <p>
+ * Los productos guardados en la caché no se entregan nunca directamente: cada consulta devuelve una copia, ya que
+ * {@link Producte} es mutable.
+ * </p>
+ */
+public class GestioProducteCache implements Gestionable {
+
+    /** Tamaño estimado en bytes de una entrada sin contar los caracteres del nombre. */
+    private static final int TAMANO_BASE_ENTRADA = 112;
+
+    /** Gestor decorado. */
+    private final Gestionable gestor;
+    /** Número máximo de entradas (0 si no hay límite). */
+    private final int maximoEntradas;
+    /** Tamaño máximo estimado en bytes (0 si no hay límite). */
+    private final long maximoBytes;
+    /** Productos en caché por código, en orden de uso (el primero es el usado hace más tiempo). */
+    private final LinkedHashMap<Integer, Producte> productos = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** Tamaño estimado en bytes de las entradas actuales. */
+    private long bytes = 0;
+    /** Se incrementa con cada invalidación; evita guardar un producto leído antes de una modificación. */
+    private long generacion = 0;
+    /** Número de consultas resueltas desde la caché. */
+    private long aciertos = 0;
+    /** Número de consultas que han tenido que leer del gestor decorado. */
+    private long fallos = 0;
+    /** Número de entradas expulsadas para respetar los límites. */
+    private long expulsiones = 0;
+
+    /**
+     * Constructor principal.
+     *
+     * @param gestor         gestor decorado.
+     * @param maximoEntradas número máximo de productos en caché (0 para no limitarlo).
+     * @param maximoBytes    tamaño máximo estimado en bytes de la caché (0 para no limitarlo).
+     */
+    public GestioProducteCache(Gestionable gestor, int maximoEntradas, long maximoBytes) {
+        if (maximoEntradas < 0 || maximoBytes < 0) {
+            throw new IllegalArgumentException("Los límites de la caché no pueden ser negativos.");
+        }
+        this.gestor = gestor;
+        this.maximoEntradas = maximoEntradas;
+        this.maximoBytes = maximoBytes;
+    }
+
+    @Override
+    public int afegirProducte(Producte p) throws ProducteNoValidException {
+        return gestor.afegirProducte(p);
+    }
+
+    @Override
+    public int[] afegirProductes(Collection<Producte> productos) throws ProducteNoValidException {
+        return gestor.afegirProductes(productos);
+    }
+
+    /**
+     * Busca un producto por su código, primero en la caché y, si no está, en el gestor decorado.
+     *
+     * @param codigo código único del producto.
+     * @return copia del producto encontrado o {@code null} si ocurre un error de lectura.
+     * @throws ProducteNoValidException    si el código es menor que 1.
+     * @throws ProducteNoExistentException si no existe un producto con ese código.
+     */
+    @Override
+    public Producte cercaPerCodi(int codigo) throws ProducteNoValidException, ProducteNoExistentException {
+        long generacionLectura;
+        synchronized (this) {
+            Producte p = productos.get(codigo);
+            if (p != null) {
+                aciertos++;
+                return copiar(p);
+            }
+            fallos++;
+            generacionLectura = generacion;
+        }
+
+        Producte p = gestor.cercaPerCodi(codigo);
+        if (p == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            // Si mientras se leía se ha modificado algún producto, lo leído podría estar desactualizado
+            if (generacion == generacionLectura && !productos.containsKey(codigo)) {
+                Producte copia = copiar(p);
+                productos.put(codigo, copia);
+                bytes += tamanoEstimado(copia);
+                expulsar();
+            }
+        }
+
+        return p;
+    }
+
+    @Override
+    public List<Producte> cercaPerNom(String nombre) {
+        return gestor.cercaPerNom(nombre);
+    }
+
+    @Override
+    public List<Producte> cercaPerPrefix(String prefijo) {
+        return gestor.cercaPerPrefix(prefijo);
+    }
+
+    @Override
+    public List<Producte> cercaSenseStock() {
+        return gestor.cercaSenseStock();
+    }
+
+    @Override
+    public List<Producte> cercaDescatalogats() {
+        return gestor.cercaDescatalogats();
+    }
+
+    @Override
+    public List<Producte> cerca(Condicio condicio) {
+        return gestor.cerca(condicio);
+    }
+
+    @Override
+    public ResumInventari resumInventari() {
+        return gestor.resumInventari();
+    }
+
+    @Override
+    public ResumInventari resumInventari(Condicio condicio) {
+        return gestor.resumInventari(condicio);
+    }
+
+    @Override
+    public void visita(Condicio condicio, Consumer<ProducteView> accion) {
+        gestor.visita(condicio, accion);
+    }
+
+    @Override
+    public Stream<Producte> fluxPerNom(String nombre) {
+        return gestor.fluxPerNom(nombre);
+    }
+
+    @Override
+    public Stream<Producte> fluxPerPrefix(String prefijo) {
+        return gestor.fluxPerPrefix(prefijo);
+    }
+
+    @Override
+    public Stream<Producte> fluxSenseStock() {
+        return gestor.fluxSenseStock();
+    }
+
+    @Override
+    public Stream<Producte> fluxDescatalogats() {
+        return gestor.fluxDescatalogats();
+    }
+
+    @Override
+    public void exportarSenseStock() {
+        gestor.exportarSenseStock();
+    }
+
+    @Override
+    public void exportarDescatalogats() {
+        gestor.exportarDescatalogats();
+    }
+
+    @Override
+    public void modificarProducte(Producte p) throws ProducteNoValidException, ProducteNoExistentException {
+        try {
+            gestor.modificarProducte(p);
+        } finally {
+            invalidar(p.getCodigo());
+        }
+    }
+
+    @Override
+    public void modificarStock(int codigo, int cantidad, boolean incrementar)
+            throws ProducteNoExistentException, StockNoValidException {
+        try {
+            gestor.modificarStock(codigo, cantidad, incrementar);
+        } finally {
+            invalidar(codigo);
+        }
+    }
+
+    @Override
+    public void modificarStocks(List<MovimentStock> movimientos) throws MovimentsNoValidsException {
+        try {
+            gestor.modificarStocks(movimientos);
+        } finally {
+            synchronized (this) {
+                for (MovimentStock m : movimientos) {
+                    invalidar(m.getCodigo());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void descatalogarProducte(int codigo) throws ProducteNoExistentException {
+        try {
+            gestor.descatalogarProducte(codigo);
+        } finally {
+            invalidar(codigo);
+        }
+    }
+
+    @Override
+    public void esborrarProducte(int codigo) throws ProducteNoExistentException {
+        try {
+            gestor.esborrarProducte(codigo);
+        } finally {
+            invalidar(codigo);
+        }
+    }
+
+    @Override
+    public void esborrarDescatalogats() {
+        try {
+            gestor.esborrarDescatalogats();
+        } finally {
+            vaciar();
+        }
+    }
+
+    /**
+     * Elimina todas las entradas de la caché (los contadores se conservan).
+     */
+    public synchronized void vaciar() {
+        productos.clear();
+        bytes = 0;
+        generacion++;
+    }
+
+    /** @return número de productos en caché. */
+    public synchronized int getEntradas() { return productos.size(); }
+
+    /** @return tamaño estimado en bytes de los productos en caché. */
+    public synchronized long getBytes() { return bytes; }
+
+    /** @return número de consultas resueltas desde la caché. */
+    public synchronized long getAciertos() { return aciertos; }
+
+    /** @return número de consultas que han tenido que leer del gestor decorado. */
+    public synchronized long getFallos() { return fallos; }
+
+    /** @return número de entradas expulsadas para respetar los límites. */
+    public synchronized long getExpulsiones() { return expulsiones; }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Elimina de la caché el producto indicado, si está.
+     *
+     * @param codigo código del producto.
+     */
+    private synchronized void invalidar(int codigo) {
+        Producte p = productos.remove(codigo);
+        if (p != null) {
+            bytes -= tamanoEstimado(p);
+        }
+        generacion++;
+    }
+
+    /**
+     * Expulsa los productos usados hace más tiempo hasta respetar los límites de la caché.
+     */
+    private void expulsar() {
+        Iterator<Map.Entry<Integer, Producte>> it = productos.entrySet().iterator();
+        while (it.hasNext() && superaLimites()) {
+            bytes -= tamanoEstimado(it.next().getValue());
+            it.remove();
+            expulsiones++;
+        }
+    }
+
+    /**
+     * @return {@code true} si la caché supera alguno de sus límites.
+     */
+    private boolean superaLimites() {
+        return (maximoEntradas > 0 && productos.size() > maximoEntradas)
+                || (maximoBytes > 0 && bytes > maximoBytes);
+    }
+
+    /**
+     * Estima la memoria que ocupa una entrada: el producto, su nombre y el nodo del mapa.
+     *
+     * @param p producto.
+     * @return tamaño estimado en bytes.
+     */
+    private static long tamanoEstimado(Producte p) {
+        return TAMANO_BASE_ENTRADA + (p.getNombre() == null ? 0 : p.getNombre().length());
+    }
+
+    /**
+     * @param p producto a copiar.
+     * @return copia independiente del producto.
+     */
+    private static Producte copiar(Producte p) {
+        return new Producte(p.getCodigo(), p.getNombre(), p.getPrecio(), p.getStock(), p.isDescatalogado());
+    }
+}
@@ -0,0 +1,963 @@
+package persistencia;
+
+import model.MovimentStock;
+import model.Producte;
+import model.ResumInventari;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Implementación de {@link Gestionable} que accede al fichero de productos mediante un {@link MappedByteBuffer}
+ * en lugar de abrir un {@link RandomAccessFile} en cada operación.
+ * <p>
+ * Utiliza exactamente el mismo formato de registro de 69 bytes que {@link GestioProducte} (ver
+ * {@link RegistreProducte}), así que ambos gestores pueden trabajar indistintamente sobre el mismo fichero. Los
+ * campos se decodifican directamente desde la región mapeada, de modo que los recorridos completos como
+ * {@link #cercaSenseStock()} o {@link #cercaDescatalogats()} no hacen ninguna llamada al sistema por registro.
+ * El fichero se mapea en segmentos de registros completos (a continuación de la cabecera, ver
+ * {@link CapcaleraFitxer}) y se vuelve a mapear cuando crece.
+ * </p>
+ * <p>
+ * Comparte con {@link GestioProducte} la cabecera, con la secuencia de códigos, y la lista de registros libres
+ * ({@link LlistaLliures}): los productos eliminados con {@link #esborrarProducte(int)} dejan un registro libre
+ * que los recorridos ignoran. Este gestor siempre añade al final del fichero; los registros libres los reutiliza
+ * {@link GestioProducte}. Si las sumas de control (ver {@link SumesControl}) o las columnas (ver
+ * {@link ColumnesInventari}) están activadas para el fichero, también las mantiene al escribir. Cada escritura,
+ * también las que modifican un registro en su sitio, actualiza el número de modificaciones de la cabecera, así que
+ * los índices de {@link GestioProducte} la detectan y se vuelven a cargar.
+ * </p>
+ * <p>
+ * No anota sus escrituras en el diario de escritura anticipada de {@link GestioProducte} ({@link DiariCanvis}):
+ * lo aplica y lo vacía al abrir el fichero y antes de escribir si otro gestor lo ha modificado, para que sus
+ * anotaciones no se reproduzcan más tarde sobre las escrituras de este gestor.
+ * </p>
+ * <p>
+ * A diferencia de {@link GestioProducte}, el fichero permanece abierto mientras se utiliza el gestor, por lo que
+ * debe cerrarse con {@link #close()}.
+ * </p>
+ */
+public class GestioProducteMapejat implements Gestionable, Closeable {
+
+    /** Tamaño fijo en bytes de cada registro de producto. */
+    private static final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Número de registros completos que caben en cada segmento mapeado (aprox. 1 GB). */
+    private static final int REGISTROS_POR_SEGMENTO = (1 << 30) / TAMANO_REGISTRO;
+    /** Número máximo de registros que se codifican en memoria antes de cada escritura al añadir en bloque. */
+    private static final int REGISTROS_POR_ESCRITURA = 8192;
+
+    /** Ruta del fichero principal de productos (binario). */
+    private final File RUTA_PRODUCTOS;
+    /** Ruta del fichero de exportación de productos sin stock. */
+    private final File RUTA_SIN_STOCK;
+    /** Ruta del fichero de exportación de productos descatalogados. */
+    private final File RUTA_DESCATALOGADO;
+    /** Canal abierto sobre el fichero de productos. */
+    private final FileChannel canal;
+    /** Lista persistente de registros libres. */
+    private final LlistaLliures REGISTROS_LIBRES;
+    /** Cabecera del fichero de productos: número de registros, número de productos y secuencia de códigos. */
+    private final CapcaleraFitxer CAPCALERA;
+    /** Sumas de control de los registros (solo se mantienen si están activadas para el fichero). */
+    private final SumesControl SUMAS;
+    /** Columnas de los campos numéricos de los registros (solo se mantienen si están activadas para el fichero). */
+    private final ColumnesInventari COLUMNAS;
+    /** Diario de escritura anticipada de {@link GestioProducte}, que se aplica y se vacía antes de escribir. */
+    private final DiariCanvis DIARIO;
+
+    /** Segmentos mapeados del fichero; cada uno contiene {@link #REGISTROS_POR_SEGMENTO} registros salvo el último. */
+    private MappedByteBuffer[] segmentos = new MappedByteBuffer[0];
+    /** Número de registros actualmente mapeados. */
+    private int numRegistros = 0;
+    /** Cambios externos de la cabecera con los que ya se ha aplicado el diario. */
+    private int cambiosExternos;
+
+    /**
+     * Constructor principal. Abre (creándolo si no existe) el fichero de productos y lo mapea en memoria.
+     *
+     * @param rutaProductos     fichero donde se almacenan los productos.
+     * @param rutaSinStock      fichero de exportación de productos sin stock.
+     * @param rutaDescatalogado fichero de exportación de productos descatalogados.
+     * @throws IOException si no se puede abrir o mapear el fichero de productos.
+     */
+    public GestioProducteMapejat(File rutaProductos, File rutaSinStock, File rutaDescatalogado) throws IOException {
+        this.RUTA_PRODUCTOS = rutaProductos;
+        this.RUTA_SIN_STOCK = rutaSinStock;
+        this.RUTA_DESCATALOGADO = rutaDescatalogado;
+
+        GestioProducte.validarFichero(RUTA_PRODUCTOS);
+        this.CAPCALERA = new CapcaleraFitxer(RUTA_PRODUCTOS);
+        CAPCALERA.abrir();
+        this.SUMAS = new SumesControl(RUTA_PRODUCTOS);
+        if (CAPCALERA.sumasActivadas()) {
+            SUMAS.cargar(CAPCALERA.numRegistros());
+        }
+        this.COLUMNAS = new ColumnesInventari(RUTA_PRODUCTOS);
+        if (CAPCALERA.columnasActivadas()) {
+            COLUMNAS.cargar(CAPCALERA.numRegistros());
+        }
+        this.canal = FileChannel.open(RUTA_PRODUCTOS.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.REGISTROS_LIBRES = new LlistaLliures(RUTA_PRODUCTOS, TAMANO_REGISTRO, CAPCALERA);
+        this.DIARIO = new DiariCanvis(new File(RUTA_PRODUCTOS.getPath() + ".wal"));
+        aplicarDiario();
+        this.cambiosExternos = CAPCALERA.cambiosExternos();
+        asegurarMapa();
+    }
+
+    /**
+     * Añade un nuevo producto al final del fichero. El código se obtiene de la secuencia de la cabecera.
+     *
+     * @param p producto a añadir.
+     * @return código generado del nuevo producto o -1 si ocurre un error.
+     * @throws ProducteNoValidException si los datos del producto son inválidos.
+     */
+    @Override
+    public synchronized int afegirProducte(Producte p) throws ProducteNoValidException {
+        RegistreProducte.validarDatos(p);
+
+        try {
+            comprobarDiario();
+            asegurarMapa();
+
+            int codigoGenerado = CAPCALERA.reservarCodigos(1);
+            p.setCodigo(codigoGenerado);
+
+            // Las escrituras al final del fichero se hacen a través del canal; se mapearán en la próxima operación
+            ByteBuffer registro = ByteBuffer.allocate(TAMANO_REGISTRO);
+            RegistreProducte.escribir(registro, 0, p);
+            long posicion = CapcaleraFitxer.posicion(numRegistros);
+            CanalFitxer.escribirCompleto(canal, registro, posicion);
+            SUMAS.actualizar(numRegistros, registro, 0);
+            COLUMNAS.actualizar(numRegistros, registro, 0);
+            CAPCALERA.registrarAltas(canal, 1, 1);
+            REGISTROS_LIBRES.sincronizar();
+            System.out.printf("[%d] %s añadido correctamente.\n", p.getCodigo(), p.getNombre().strip());
+
+            return codigoGenerado;
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Añade varios productos al final del fichero de una sola vez. Valida todos los productos antes de escribir
+     * nada, reserva un rango consecutivo de códigos y escribe los registros a través del canal en bloques de
+     * {@link #REGISTROS_POR_ESCRITURA} registros.
+     *
+     * @param productos productos a añadir, en el orden en que se les asignarán los códigos.
+     * @return códigos generados en el mismo orden que los productos, o un array vacío si ocurre un error.
+     * @throws ProducteNoValidException si los datos de algún producto son inválidos (no se añade ninguno).
+     */
+    @Override
+    public synchronized int[] afegirProductes(Collection<Producte> productos) throws ProducteNoValidException {
+        List<Producte> lista = new ArrayList<>(productos);
+        for (Producte p : lista) {
+            RegistreProducte.validarDatos(p);
+        }
+
+        int[] codigos = new int[lista.size()];
+        if (lista.isEmpty()) {
+            return codigos;
+        }
+
+        try {
+            comprobarDiario();
+            asegurarMapa();
+            int primerCodigo = CAPCALERA.reservarCodigos(lista.size());
+
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(lista.size(), REGISTROS_POR_ESCRITURA) * TAMANO_REGISTRO);
+            long posicion = CapcaleraFitxer.posicion(numRegistros);
+            int escritos = 0;
+            for (int i = 0; i < lista.size(); i++) {
+                Producte p = lista.get(i);
+                codigos[i] = primerCodigo + i;
+                p.setCodigo(codigos[i]);
+                RegistreProducte.escribir(buffer, buffer.position(), p);
+                buffer.position(buffer.position() + TAMANO_REGISTRO);
+
+                if (!buffer.hasRemaining() || i == lista.size() - 1) {
+                    int registrosBloque = buffer.position() / TAMANO_REGISTRO;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        posicion += canal.write(buffer, posicion);
+                    }
+                    SUMAS.actualizarBloque(numRegistros + escritos, buffer, 0, registrosBloque);
+                    COLUMNAS.actualizarBloque(numRegistros + escritos, buffer, 0, registrosBloque);
+                    escritos += registrosBloque;
+                    buffer.clear();
+                }
+            }
+            CAPCALERA.registrarAltas(canal, lista.size(), lista.size());
+            REGISTROS_LIBRES.sincronizar();
+            System.out.printf("[%d-%d] %d productos añadidos correctamente.\n",
+                    codigos[0], codigos[codigos.length - 1], codigos.length);
+
+            return codigos;
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+            return new int[0];
+        }
+    }
+
+    /**
+     * Busca un producto por su código. Como los códigos se asignan de forma creciente, primero se hace una
+     * búsqueda binaria sobre los registros mapeados y, si no se encuentra, un recorrido completo.
+     *
+     * @param codigo código único del producto.
+     * @return producto encontrado o {@code null} si ocurre un error de lectura.
+     * @throws ProducteNoValidException    si el código es menor que 1.
+     * @throws ProducteNoExistentException si no existe un producto con ese código.
+     */
+    @Override
+    public synchronized Producte cercaPerCodi(int codigo) throws ProducteNoValidException, ProducteNoExistentException {
+        if (codigo < 1) {
+            throw new ProducteNoValidException("Código no válido.");
+        }
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            return leerProducto(localizarRegistro(codigo));
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Busca todos los productos cuyo nombre coincide con el indicado (ignorando mayúsculas/minúsculas). Los
+     * nombres se comparan byte a byte sobre la región mapeada y solo se decodifican los coincidentes.
+     *
+     * @param nombre nombre del producto a buscar.
+     * @return lista de productos con ese nombre.
+     */
+    @Override
+    public synchronized List<Producte> cercaPerNom(String nombre) {
+        List<Producte> productos = new ArrayList<>();
+        byte[] nombreBuscado = RegistreProducte.codificar(RegistreProducte.formatearNombre(nombre));
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                if (RegistreProducte.nombreIgual(segmento(i), desplazamiento(i), nombreBuscado)) {
+                    productos.add(leerProducto(i));
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+
+        return productos;
+    }
+
+    /**
+     * Busca todos los productos cuyo nombre comienza por el prefijo indicado (ignorando mayúsculas/minúsculas).
+     *
+     * @param prefijo comienzo del nombre a buscar.
+     * @return lista de productos cuyo nombre comienza por el prefijo.
+     */
+    @Override
+    public synchronized List<Producte> cercaPerPrefix(String prefijo) {
+        List<Producte> productos = new ArrayList<>();
+        CondicioRegistre condicion = CondicioRegistre.prefijo(prefijo);
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                if (condicion.cumple(segmento(i), desplazamiento(i))) {
+                    productos.add(leerProducto(i));
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+
+        return productos;
+    }
+
+    /**
+     * Devuelve una lista de productos que no tienen stock y no están descatalogados.
+     *
+     * @return lista de productos sin stock.
+     */
+    @Override
+    public synchronized List<Producte> cercaSenseStock() {
+        List<Producte> productos = new ArrayList<>();
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                ByteBuffer segmento = segmento(i);
+                int inicio = desplazamiento(i);
+                if (CondicioRegistre.SIN_STOCK.cumple(segmento, inicio)) {
+                    productos.add(RegistreProducte.leer(segmento, inicio));
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+
+        return productos;
+    }
+
+    /**
+     * Devuelve una lista de productos descatalogados.
+     *
+     * @return lista de productos descatalogados.
+     */
+    @Override
+    public synchronized List<Producte> cercaDescatalogats() {
+        List<Producte> productos = new ArrayList<>();
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                ByteBuffer segmento = segmento(i);
+                int inicio = desplazamiento(i);
+                if (segmento.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) != 0) {
+                    productos.add(RegistreProducte.leer(segmento, inicio));
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+
+        return productos;
+    }
+
+    /**
+     * Busca los productos que cumplen una condición arbitraria. Este gestor no tiene índices, así que recorre la
+     * región mapeada evaluando la condición sobre los bytes de los campos que necesita, y solo decodifica los
+     * registros coincidentes.
+     *
+     * @param condicio condición que deben cumplir los productos.
+     * @return lista de productos coincidentes en el orden del fichero.
+     */
+    @Override
+    public synchronized List<Producte> cerca(Condicio condicio) {
+        List<Producte> productos = new ArrayList<>();
+        CondicioRegistre condicion = condicio.registro();
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                if (condicion.cumple(segmento(i), desplazamiento(i))) {
+                    productos.add(leerProducto(i));
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+
+        return productos;
+    }
+
+    /**
+     * Recorre la región mapeada y pasa a la acción una vista ({@link ProducteView}) de cada registro que cumple la
+     * condición, sin decodificarlo: la misma vista se sitúa sobre cada registro coincidente, así que el recorrido
+     * no reserva memoria por registro. La vista solo es válida durante cada llamada a la acción.
+     *
+     * @param condicio condición que deben cumplir los productos, o {@code null} para incluirlos todos.
+     * @param accion   acción que recibe cada registro coincidente, en el orden del fichero.
+     */
+    @Override
+    public synchronized void visita(Condicio condicio, Consumer<ProducteView> accion) {
+        CondicioRegistre condicion = condicio == null ? CondicioRegistre.TODOS : condicio.registro();
+        ProducteView vista = new ProducteView();
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                ByteBuffer segmento = segmento(i);
+                int inicio = desplazamiento(i);
+                if (condicion.cumple(segmento, inicio)) {
+                    accion.accept(vista.situar(segmento, inicio));
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Calcula el resumen del inventario de todos los productos. Ver {@link #resumInventari(Condicio)}.
+     *
+     * @return resumen del inventario.
+     */
+    @Override
+    public ResumInventari resumInventari() {
+        return resumInventari(null);
+    }
+
+    /**
+     * Calcula el resumen del inventario de los productos que cumplen una condición en un único recorrido de la
+     * región mapeada, leyendo solo el precio, el stock y el estado de cada registro.
+     *
+     * @param condicio condición que deben cumplir los productos, o {@code null} para incluirlos todos.
+     * @return resumen del inventario.
+     */
+    @Override
+    public synchronized ResumInventari resumInventari(Condicio condicio) {
+        CondicioRegistre condicion = condicio == null ? CondicioRegistre.TODOS : condicio.registro();
+        AcumuladorInventari acumulador = new AcumuladorInventari();
+
+        try {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                ByteBuffer segmento = segmento(i);
+                int inicio = desplazamiento(i);
+                if (condicion.cumple(segmento, inicio)) {
+                    acumulador.acumular(segmento, inicio);
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+
+        return acumulador.resumen();
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos cuyo nombre coincide con el indicado (ignorando
+     * mayúsculas/minúsculas). Ver {@link #obrirFlux(CondicioRegistre)}.
+     *
+     * @param nombre nombre del producto a buscar.
+     * @return {@code Stream} de productos con ese nombre.
+     */
+    @Override
+    public Stream<Producte> fluxPerNom(String nombre) {
+        return obrirFlux(CondicioRegistre.nombre(nombre));
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos cuyo nombre comienza por el prefijo indicado (ignorando
+     * mayúsculas/minúsculas). Ver {@link #obrirFlux(CondicioRegistre)}.
+     *
+     * @param prefijo comienzo del nombre a buscar.
+     * @return {@code Stream} de productos cuyo nombre comienza por el prefijo.
+     */
+    @Override
+    public Stream<Producte> fluxPerPrefix(String prefijo) {
+        return obrirFlux(CondicioRegistre.prefijo(prefijo));
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos que no tienen stock y no están descatalogados. Ver
+     * {@link #obrirFlux(CondicioRegistre)}.
+     *
+     * @return {@code Stream} de productos sin stock.
+     */
+    @Override
+    public Stream<Producte> fluxSenseStock() {
+        return obrirFlux(CondicioRegistre.SIN_STOCK);
+    }
+
+    /**
+     * Devuelve, de forma perezosa, los productos descatalogados. Ver {@link #obrirFlux(CondicioRegistre)}.
+     *
+     * @return {@code Stream} de productos descatalogados.
+     */
+    @Override
+    public Stream<Producte> fluxDescatalogats() {
+        return obrirFlux(CondicioRegistre.DESCATALOGADO);
+    }
+
+    /**
+     * Exporta a un fichero de texto todos los productos sin stock.
+     * Cada línea contiene los campos separados por punto y coma.
+     */
+    @Override
+    public void exportarSenseStock() {
+        exportar(RUTA_SIN_STOCK, false);
+    }
+
+    /**
+     * Exporta a un fichero de texto todos los productos descatalogados.
+     * Cada línea contiene los campos separados por punto y coma.
+     */
+    @Override
+    public void exportarDescatalogats() {
+        exportar(RUTA_DESCATALOGADO, true);
+    }
+
+    /**
+     * Modifica un producto existente sobrescribiendo su registro en la región mapeada.
+     *
+     * @param p producto con los nuevos valores.
+     * @throws ProducteNoValidException    si los datos son inválidos.
+     * @throws ProducteNoExistentException si el producto no existe.
+     */
+    @Override
+    public synchronized void modificarProducte(Producte p) throws ProducteNoValidException, ProducteNoExistentException {
+        RegistreProducte.validarDatos(p);
+
+        try {
+            comprobarDiario();
+            asegurarMapa();
+            int posicion = localizarRegistro(p.getCodigo());
+            RegistreProducte.escribir(segmento(posicion), desplazamiento(posicion), p);
+            actualizarLaterales(posicion);
+            CAPCALERA.registrarModificacion(canal);
+            REGISTROS_LIBRES.sincronizar();
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Modifica el stock de un producto, sumando o restando una cantidad.
+     *
+     * @param codigo      código del producto.
+     * @param cantidad    cantidad a modificar (> 0).
+     * @param incrementar true para sumar stock, false para restar.
+     * @throws ProducteNoExistentException si no existe el producto.
+     * @throws StockNoValidException       si la cantidad es inválida o el stock resultante sería negativo.
+     */
+    @Override
+    public synchronized void modificarStock(int codigo, int cantidad, boolean incrementar)
+            throws ProducteNoExistentException, StockNoValidException {
+        try {
+            comprobarDiario();
+            asegurarMapa();
+            int posicion = localizarRegistro(codigo);
+            ByteBuffer segmento = segmento(posicion);
+            int posicionStock = desplazamiento(posicion) + RegistreProducte.OFFSET_STOCK;
+            int stock = segmento.getInt(posicionStock);
+
+            // Validar el nuevo valor de Stock
+            if (cantidad < 0) {
+                throw new StockNoValidException("El valor a incrementar/decrementar tiene que > 0.");
+            } else if (!incrementar && stock - cantidad < 0) {
+                throw new StockNoValidException("El nuevo valor de Stock no es válido.");
+            }
+
+            segmento.putInt(posicionStock, incrementar ? stock + cantidad : stock - cantidad);
+            actualizarLaterales(posicion);
+            CAPCALERA.registrarModificacion(canal);
+            REGISTROS_LIBRES.sincronizar();
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Aplica un lote de movimientos de stock de una sola vez, con semántica de todo o nada. Los movimientos se
+     * agrupan por registro (ver {@link LotMoviments}), se validan contra el stock de la región mapeada y, solo
+     * si todos son válidos, se escribe el stock resultante de cada registro en orden creciente.
+     *
+     * @param movimientos movimientos a aplicar (código y unidades a sumar o restar).
+     * @throws MovimentsNoValidsException si algún producto no existe o algún stock resultante sería negativo;
+     *                                    incluye el motivo de cada movimiento no válido.
+     */
+    @Override
+    public synchronized void modificarStocks(List<MovimentStock> movimientos) throws MovimentsNoValidsException {
+        try {
+            comprobarDiario();
+            asegurarMapa();
+            LotMoviments lote = new LotMoviments(movimientos, codigo -> {
+                try {
+                    return localizarRegistro(codigo);
+                } catch (ProducteNoExistentException e) {
+                    return -1;
+                }
+            });
+
+            int[] stocksActuales = new int[lote.numRegistros()];
+            for (int i = 0; i < lote.numRegistros(); i++) {
+                int posicion = lote.posicion(i);
+                stocksActuales[i] = segmento(posicion).getInt(desplazamiento(posicion) + RegistreProducte.OFFSET_STOCK);
+            }
+            lote.validar(stocksActuales);
+
+            for (int i = 0; i < lote.numRegistros(); i++) {
+                int posicion = lote.posicion(i);
+                segmento(posicion).putInt(desplazamiento(posicion) + RegistreProducte.OFFSET_STOCK, lote.stock(i));
+                actualizarLaterales(posicion);
+            }
+            CAPCALERA.registrarModificacion(canal);
+            REGISTROS_LIBRES.sincronizar();
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Marca un producto como descatalogado.
+     *
+     * @param codigo código del producto a descatalogar.
+     * @throws ProducteNoExistentException si el producto no existe.
+     */
+    @Override
+    public synchronized void descatalogarProducte(int codigo) throws ProducteNoExistentException {
+        try {
+            comprobarDiario();
+            asegurarMapa();
+            int posicion = localizarRegistro(codigo);
+            segmento(posicion).put(desplazamiento(posicion) + RegistreProducte.OFFSET_DESCATALOGADO, (byte) 1);
+            actualizarLaterales(posicion);
+            CAPCALERA.registrarModificacion(canal);
+            REGISTROS_LIBRES.sincronizar();
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Elimina un producto marcando su registro como libre en la región mapeada y añadiéndolo a la lista de
+     * registros libres.
+     *
+     * @param codigo código del producto a eliminar.
+     * @throws ProducteNoExistentException si el producto no existe.
+     */
+    @Override
+    public synchronized void esborrarProducte(int codigo) throws ProducteNoExistentException {
+        try {
+            comprobarDiario();
+            asegurarMapa();
+            int posicion = localizarRegistro(codigo);
+            segmento(posicion).put(desplazamiento(posicion), new byte[TAMANO_REGISTRO]);
+            actualizarLaterales(posicion);
+            REGISTROS_LIBRES.anadir(posicion);
+            CAPCALERA.registrarBaja(canal);
+            REGISTROS_LIBRES.sincronizar();
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Elimina físicamente todos los productos descatalogados y los registros libres. Los registros que se
+     * conservan se desplazan hacia el principio dentro de la propia región mapeada y después se trunca el fichero.
+     */
+    @Override
+    public synchronized void esborrarDescatalogats() {
+        try {
+            // Las anotaciones del diario corresponden a las posiciones anteriores a la compactación
+            CAPCALERA.comprobar();
+            aplicarDiario();
+            cambiosExternos = CAPCALERA.cambiosExternos();
+            asegurarMapa();
+            byte[] registro = new byte[TAMANO_REGISTRO];
+            int destino = 0;
+
+            for (int i = 0; i < numRegistros; i++) {
+                ByteBuffer segmento = segmento(i);
+                int inicio = desplazamiento(i);
+                if (segmento.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) != 0
+                        || RegistreProducte.libre(segmento, inicio)) {
+                    continue;
+                }
+
+                // Solo hay que mover el registro si ya se ha eliminado alguno anterior
+                if (destino != i) {
+                    segmento.get(inicio, registro);
+                    segmento(destino).put(desplazamiento(destino), registro);
+                }
+                destino++;
+            }
+
+            if (destino != numRegistros) {
+                forzar();
+                canal.truncate(CapcaleraFitxer.posicion(destino));
+                CAPCALERA.reemplazar(canal, destino);
+                asegurarMapa();
+                REGISTROS_LIBRES.reemplazar();
+                if (SUMAS.activa()) {
+                    SUMAS.activar(destino);
+                }
+                if (COLUMNAS.activa()) {
+                    COLUMNAS.activar(destino);
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Vuelca a disco las modificaciones pendientes, marca la lista de registros libres como al día y cierra el
+     * fichero de productos.
+     *
+     * @throws IOException si ocurre un error al cerrar el fichero.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        forzar();
+        SUMAS.forzar();
+        COLUMNAS.forzar();
+        REGISTROS_LIBRES.sincronizar();
+        segmentos = new MappedByteBuffer[0];
+        numRegistros = 0;
+        canal.close();
+        CAPCALERA.close();
+        DIARIO.close();
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Vuelve a leer la cabecera, una sola vez para toda la modificación ({@link CapcaleraFitxer#comprobar()}), y
+     * si otro gestor ha modificado el fichero desde la última comprobación, aplica y vacía el diario de escritura
+     * anticipada antes de escribir. Sus anotaciones ya están en el fichero (salvo que el otro gestor se
+     * interrumpiera), pero si se quedaran en el diario se reproducirían después sobre las escrituras de este gestor.
+     *
+     * @throws IOException si ocurre un error al aplicar el diario.
+     */
+    private void comprobarDiario() throws IOException {
+        CAPCALERA.comprobar();
+        int cambios = CAPCALERA.cambiosExternos();
+        if (cambios != cambiosExternos) {
+            aplicarDiario();
+            cambiosExternos = cambios;
+        }
+    }
+
+    /**
+     * Vuelve a escribir en el fichero las imágenes del diario de escritura anticipada y lo vacía. Si alguna cambia
+     * un registro, recalcula la cabecera, las columnas y la lista de registros libres, como al abrir
+     * {@link GestioProducte}.
+     *
+     * @throws IOException si ocurre un error al aplicar el diario.
+     */
+    private void aplicarDiario() throws IOException {
+        if (DIARIO.reproducir(RUTA_PRODUCTOS, SUMAS) > 0) {
+            CAPCALERA.recontar();
+            if (COLUMNAS.activa()) {
+                COLUMNAS.activar(CAPCALERA.numRegistros());
+            }
+            REGISTROS_LIBRES.reconstruir();
+        }
+    }
+
+    /**
+     * Comprueba si el fichero ha cambiado de tamaño desde el último mapeo y, en ese caso, vuelve a mapear los
+     * segmentos afectados. Los segmentos completos que ya estaban mapeados se reutilizan.
+     *
+     * @throws IOException si no se puede mapear el fichero.
+     */
+    private void asegurarMapa() throws IOException {
+        int registros = CAPCALERA.numRegistros();
+        if (registros == numRegistros) {
+            return;
+        }
+
+        int numSegmentos = (registros + REGISTROS_POR_SEGMENTO - 1) / REGISTROS_POR_SEGMENTO;
+        MappedByteBuffer[] nuevos = Arrays.copyOf(segmentos, numSegmentos);
+
+        for (int s = 0; s < numSegmentos; s++) {
+            int registrosSegmento = Math.min(REGISTROS_POR_SEGMENTO, registros - s * REGISTROS_POR_SEGMENTO);
+            if (nuevos[s] == null || nuevos[s].capacity() != registrosSegmento * TAMANO_REGISTRO) {
+                nuevos[s] = canal.map(FileChannel.MapMode.READ_WRITE,
+                        CapcaleraFitxer.posicion(s * REGISTROS_POR_SEGMENTO),
+                        (long) registrosSegmento * TAMANO_REGISTRO);
+            }
+        }
+
+        segmentos = nuevos;
+        numRegistros = registros;
+    }
+
+    /**
+     * Abre un {@code Stream} perezoso que recorre la región mapeada y decodifica solo los registros que cumplen la
+     * condición, a medida que se consumen.
+     * <p>
+     * Cada avance del recorrido se hace con el gestor bloqueado y después de volver a comprobar el mapeo, así que
+     * el {@code Stream} puede consumirse mientras se modifica el fichero: si este se trunca, el recorrido termina
+     * en el nuevo final. Como no mantiene ningún recurso abierto, cerrarlo no es imprescindible.
+     * </p>
+     *
+     * @param condicion condición que deben cumplir los registros, evaluada sobre la región mapeada.
+     * @return {@code Stream} de productos coincidentes en el orden del fichero.
+     */
+    private Stream<Producte> obrirFlux(CondicioRegistre condicion) {
+        CAPCALERA.comprobar();
+        Spliterator<Producte> recorrido = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            /** Posición del siguiente registro a comprobar. */
+            private int siguiente = 0;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super Producte> accion) {
+                Producte p = null;
+                synchronized (GestioProducteMapejat.this) {
+                    try {
+                        asegurarMapa();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+
+                    while (p == null && siguiente < numRegistros) {
+                        int posicion = siguiente++;
+                        if (condicion.cumple(segmento(posicion), desplazamiento(posicion))) {
+                            p = leerProducto(posicion);
+                        }
+                    }
+                }
+
+                if (p == null) {
+                    return false;
+                }
+                accion.accept(p);
+                return true;
+            }
+        };
+
+        return StreamSupport.stream(recorrido, false);
+    }
+
+    /**
+     * Localiza el registro con el código indicado.
+     *
+     * @param codigo código del producto.
+     * @return posición (en número de registro).
+     * @throws ProducteNoExistentException si no existe un producto con ese código.
+     */
+    private int localizarRegistro(int codigo) throws ProducteNoExistentException {
+        // Búsqueda binaria: los códigos se generan de forma creciente
+        int bajo = 0;
+        int alto = numRegistros - 1;
+        while (bajo <= alto) {
+            int medio = (bajo + alto) >>> 1;
+            int codigoMedio = codigoEn(medio);
+            if (codigoMedio < codigo) {
+                bajo = medio + 1;
+            } else if (codigoMedio > codigo) {
+                alto = medio - 1;
+            } else {
+                return medio;
+            }
+        }
+
+        // Si el fichero no estuviera ordenado por código (por ejemplo, por registros libres o reutilizados),
+        // recorremos todos los registros
+        for (int i = 0; i < numRegistros; i++) {
+            if (codigoEn(i) == codigo) {
+                return i;
+            }
+        }
+
+        throw new ProducteNoExistentException(
+                "No existe ningún producto registrado con el código \'" + codigo + "\'.");
+    }
+
+    /**
+     * @param posicion posición (en número de registro).
+     * @return código almacenado en ese registro.
+     */
+    private int codigoEn(int posicion) {
+        return segmento(posicion).getInt(desplazamiento(posicion) + RegistreProducte.OFFSET_CODIGO);
+    }
+
+    /**
+     * @param posicion posición (en número de registro).
+     * @return producto almacenado en ese registro.
+     */
+    private Producte leerProducto(int posicion) {
+        return RegistreProducte.leer(segmento(posicion), desplazamiento(posicion));
+    }
+
+    /**
+     * @param posicion posición (en número de registro).
+     * @return segmento mapeado que contiene el registro.
+     */
+    private MappedByteBuffer segmento(int posicion) {
+        return segmentos[posicion / REGISTROS_POR_SEGMENTO];
+    }
+
+    /**
+     * @param posicion posición (en número de registro).
+     * @return posición en bytes del registro dentro de su segmento.
+     */
+    private int desplazamiento(int posicion) {
+        return (posicion % REGISTROS_POR_SEGMENTO) * TAMANO_REGISTRO;
+    }
+
+    /**
+     * Actualiza la suma de control y las columnas de un registro después de modificarlo en la región mapeada.
+     *
+     * @param posicion posición (en número de registro).
+     * @throws IOException si ocurre un error al escribir la suma o las columnas.
+     */
+    private void actualizarLaterales(int posicion) throws IOException {
+        SUMAS.actualizar(posicion, segmento(posicion), desplazamiento(posicion));
+        COLUMNAS.actualizar(posicion, segmento(posicion), desplazamiento(posicion));
+    }
+
+    /**
+     * Vuelca a disco las modificaciones realizadas sobre los segmentos mapeados.
+     */
+    private void forzar() {
+        for (MappedByteBuffer segmento : segmentos) {
+            segmento.force();
+        }
+    }
+
+    /**
+     * Escribe los productos sin stock o descatalogados en un fichero de texto, un producto por línea con los
+     * campos separados por punto y coma, con el mismo formato que {@link GestioProducte}. Los registros se
+     * codifican directamente desde la región mapeada con {@link ExportadorText}.
+     *
+     * @param fichero        fichero de exportación.
+     * @param descatalogados {@code true} para exportar los descatalogados, {@code false} para los que no tienen
+     *                       stock (y no están descatalogados).
+     */
+    private synchronized void exportar(File fichero, boolean descatalogados) {
+        if (!GestioProducte.validarFichero(fichero)) {
+            return;
+        }
+
+        CondicioRegistre condicion = descatalogados ? CondicioRegistre.DESCATALOGADO : CondicioRegistre.SIN_STOCK;
+        try (ExportadorText exportador = new ExportadorText(fichero)) {
+            CAPCALERA.comprobar();
+            asegurarMapa();
+            for (int i = 0; i < numRegistros; i++) {
+                ByteBuffer segmento = segmento(i);
+                int inicio = desplazamiento(i);
+                if (condicion.cumple(segmento, inicio)) {
+                    exportador.escribir(segmento, inicio);
+                }
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error! " + e.getMessage());
+        }
+    }
+}
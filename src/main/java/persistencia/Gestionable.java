@@ -1,22 +1,47 @@
 package persistencia;
 
+import model.MovimentStock;
 import model.Producte;
+import model.ResumInventari;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public interface Gestionable {
 
     int afegirProducte(Producte p) throws ProducteNoValidException;
 
+    int[] afegirProductes(Collection<Producte> productos) throws ProducteNoValidException;
+
     Producte cercaPerCodi(int codigo)
             throws ProducteNoValidException, ProducteNoExistentException;
 
     List<Producte> cercaPerNom(String nombre);
 
+    List<Producte> cercaPerPrefix(String prefijo);
+
     List<Producte> cercaSenseStock();
 
     List<Producte> cercaDescatalogats();
 
+    List<Producte> cerca(Condicio condicio);
+
+    ResumInventari resumInventari();
+
+    ResumInventari resumInventari(Condicio condicio);
+
+    void visita(Condicio condicio, Consumer<ProducteView> accion);
+
+    Stream<Producte> fluxPerNom(String nombre);
+
+    Stream<Producte> fluxPerPrefix(String prefijo);
+
+    Stream<Producte> fluxSenseStock();
+
+    Stream<Producte> fluxDescatalogats();
+
     void exportarSenseStock();
 
     void exportarDescatalogats();
@@ -28,9 +53,15 @@ public interface Gestionable {
             int codigo, int cantidad, boolean incrementar)
             throws ProducteNoExistentException, StockNoValidException;
 
+    void modificarStocks(List<MovimentStock> movimientos)
+            throws MovimentsNoValidsException;
+
     void descatalogarProducte(int codigo)
             throws ProducteNoExistentException;
 
+    void esborrarProducte(int codigo)
+            throws ProducteNoExistentException;
+
     void esborrarDescatalogats();
 
 }
@@ -0,0 +1,571 @@
+package persistencia;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Lee ficheros de texto con el formato de las exportaciones ({@code codigo;nombre;precio;stock;descatalogado}, ver
+ * {@link ExportadorText}) y codifica cada línea directamente como un registro de producto, sin construir objetos
+ * {@code Producte} ni cadenas intermedias.
+ * <p>
+ * El fichero se divide en tramos de unos {@link #TAMANO_TRAMO} bytes que terminan en un salto de línea, de modo que
+ * cada tramo puede analizarse en un hilo distinto ({@link #analizar(int, boolean)}). Cada tramo se mapea en memoria
+ * y sus líneas se recorren byte a byte: los números se convierten a mano y los nombres ASCII se pasan a mayúsculas
+ * y se rellenan directamente en el registro. Solo se construye un {@code String} para los nombres con caracteres no
+ * ASCII y para los precios con más de 15 cifras significativas, en los que la conversión a mano podría no
+ * coincidir con {@link Double#parseDouble(String)}.
+ * </p>
+ * <p>
+ * Las líneas se validan con las mismas reglas que {@link RegistreProducte#validarDatos(model.Producte)}. El nombre
+ * es todo lo que hay entre el primer punto y coma y los tres últimos, así que puede contener puntos y coma. El
+ * precio acepta tanto el punto como la coma decimal (la exportación utiliza el separador de la configuración
+ * regional). Las líneas vacías se ignoran; el resto de líneas no válidas se anotan con su número y el motivo.
+ * </p>
+ */
+final class ImportadorText implements Closeable {
+
+    /** Tamaño aproximado en bytes de cada tramo del fichero. */
+    static final int TAMANO_TRAMO = 1 << 22;
+    /** Número máximo de bytes de un campo numérico. */
+    private static final int MAXIMO_NUMERO = 64;
+    /** Máximo de cifras significativas para convertir un precio a mano (menor que 2^53). */
+    private static final int MAXIMO_CIFRAS_RAPIDO = 15;
+    /** Potencias de diez representables exactamente como {@code double}. */
+    private static final double[] POTENCIAS_DIEZ = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    static final String CAMPOS_INCORRECTOS = "Número de campos incorrecto.";
+    static final String CODIGO_NO_VALIDO = "Código no válido.";
+    static final String CODIGO_EXISTENTE = "Código ya existente.";
+    static final String CODIGO_REPETIDO = "Código repetido en el fichero.";
+    static final String NOMBRE_NO_VALIDO = "Nombre superior a " + RegistreProducte.LONGITUD_NOMBRE + " caracteres.";
+    static final String PRECIO_NO_VALIDO = "Precio no válido.";
+    static final String PRECIO_NEGATIVO = "Precio inferior a 0.";
+    static final String STOCK_NO_VALIDO = "Stock no válido.";
+    static final String STOCK_NEGATIVO = "Stock inferior a 0.";
+    static final String ESTADO_NO_VALIDO = "Estado de descatalogación no válido.";
+
+    /** Canal abierto sobre el fichero de texto. */
+    private final FileChannel canal;
+    /** Posición inicial de cada tramo; la última es el tamaño del fichero. */
+    private final long[] limites;
+    /** Juego de caracteres del fichero, el mismo con el que se exporta. */
+    private final Charset charset;
+    /** Si los nombres ASCII pueden pasarse a mayúsculas byte a byte igual que {@link String#toUpperCase()}. */
+    private final boolean nombreRapido;
+
+    /**
+     * Abre el fichero y calcula sus tramos.
+     *
+     * @param fichero fichero de texto a importar.
+     * @throws IOException si no se puede abrir o leer.
+     */
+    ImportadorText(File fichero) throws IOException {
+        this.canal = FileChannel.open(fichero.toPath(), StandardOpenOption.READ);
+        this.charset = Charset.defaultCharset();
+        // En algunas configuraciones regionales (turco, azerí...) la 'i' no pasa a mayúsculas como 'I'
+        this.nombreRapido = "i".toUpperCase().equals("I") && (charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.ISO_8859_1) || charset.equals(StandardCharsets.US_ASCII));
+        try {
+            this.limites = calcularLimites();
+        } catch (IOException e) {
+            canal.close();
+            throw e;
+        }
+    }
+
+    /** @return número de tramos del fichero. */
+    int numTramos() {
+        return limites.length - 1;
+    }
+
+    /**
+     * Analiza todas las líneas de un tramo. Puede llamarse desde varios hilos a la vez para tramos distintos.
+     *
+     * @param tramo            número de tramo.
+     * @param conservarCodigos {@code true} para leer el código de cada línea, {@code false} para ignorarlo (el
+     *                         registro se codifica con el código 0 y se le asigna uno al escribirlo).
+     * @return registros codificados y líneas rechazadas del tramo.
+     * @throws IOException si ocurre un error al mapear el tramo.
+     */
+    Tramo analizar(int tramo, boolean conservarCodigos) throws IOException {
+        long inicio = limites[tramo];
+        int longitud = (int) (limites[tramo + 1] - inicio);
+        Tramo resultado = new Tramo(longitud);
+        if (longitud == 0) {
+            return resultado;
+        }
+
+        MappedByteBuffer texto = canal.map(FileChannel.MapMode.READ_ONLY, inicio, longitud);
+        int pos = 0;
+        // Marca de orden de bytes UTF-8 al principio del fichero
+        if (tramo == 0 && longitud >= 3 && texto.get(0) == (byte) 0xEF && texto.get(1) == (byte) 0xBB
+                && texto.get(2) == (byte) 0xBF) {
+            pos = 3;
+        }
+
+        while (pos < longitud) {
+            int fin = pos;
+            while (fin < longitud && texto.get(fin) != '\n') {
+                fin++;
+            }
+            int finLinea = fin > pos && texto.get(fin - 1) == '\r' ? fin - 1 : fin;
+            if (finLinea > pos) {
+                String motivo = analizarLinea(texto, pos, finLinea, resultado, conservarCodigos);
+                if (motivo != null) {
+                    resultado.rechazar(resultado.numLineas, motivo);
+                }
+            }
+            resultado.numLineas++;
+            pos = fin + 1;
+        }
+        return resultado;
+    }
+
+    @Override
+    public void close() throws IOException {
+        canal.close();
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Divide el fichero en tramos de unos {@link #TAMANO_TRAMO} bytes, alargando cada uno hasta el siguiente salto
+     * de línea.
+     *
+     * @return posición inicial de cada tramo, seguida del tamaño del fichero.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private long[] calcularLimites() throws IOException {
+        long tamano = canal.size();
+        long[] resultado = new long[(int) (tamano / TAMANO_TRAMO) + 2];
+        int n = 1;
+        ByteBuffer lectura = ByteBuffer.allocate(4096);
+
+        long posicion = TAMANO_TRAMO;
+        while (posicion < tamano) {
+            // Buscar el siguiente salto de línea a partir de la posición aproximada
+            long salto = -1;
+            while (salto < 0 && posicion < tamano) {
+                lectura.clear();
+                int leidos = canal.read(lectura, posicion);
+                for (int i = 0; i < leidos; i++) {
+                    if (lectura.get(i) == '\n') {
+                        salto = posicion + i;
+                        break;
+                    }
+                }
+                posicion += Math.max(leidos, 0);
+            }
+            if (salto < 0 || salto + 1 >= tamano) {
+                break;
+            }
+            resultado[n++] = salto + 1;
+            posicion = salto + 1 + TAMANO_TRAMO;
+        }
+        resultado[n++] = tamano;
+        return Arrays.copyOf(resultado, n);
+    }
+
+    /**
+     * Analiza una línea y, si es válida, la codifica en el siguiente registro del tramo.
+     *
+     * @param texto            tramo mapeado.
+     * @param inicio           posición del primer byte de la línea.
+     * @param fin              posición siguiente al último byte de la línea (sin el salto de línea).
+     * @param tramo            tramo donde se añade el registro.
+     * @param conservarCodigos {@code true} para leer el código de la línea.
+     * @return {@code null} si la línea es válida, o el motivo por el que se rechaza.
+     */
+    private String analizarLinea(ByteBuffer texto, int inicio, int fin, Tramo tramo, boolean conservarCodigos) {
+        // El código termina en el primer punto y coma y los tres últimos campos en los tres últimos
+        int separadorCodigo = buscar(texto, inicio, fin, (byte) ';');
+        int separadorEstado = buscarUltimo(texto, inicio, fin, (byte) ';');
+        int separadorStock = buscarUltimo(texto, inicio, separadorEstado, (byte) ';');
+        int separadorPrecio = buscarUltimo(texto, inicio, separadorStock, (byte) ';');
+        if (separadorCodigo < 0 || separadorPrecio <= separadorCodigo) {
+            return CAMPOS_INCORRECTOS;
+        }
+
+        int codigo = 0;
+        if (conservarCodigos) {
+            long valor = entero(texto, inicio, separadorCodigo);
+            if (valor < 1) {
+                return CODIGO_NO_VALIDO;
+            }
+            codigo = (int) valor;
+        }
+
+        ByteBuffer registros = tramo.reservar();
+        int registro = tramo.numRegistros * RegistreProducte.TAMANO;
+        if (!escribirNombre(texto, separadorCodigo + 1, separadorPrecio, registros, registro)) {
+            return NOMBRE_NO_VALIDO;
+        }
+
+        // Los valores negativos se rechazan igual que en un alta, salvo el cero con signo ("-0.00")
+        boolean precioNegativo = separadorPrecio + 1 < separadorStock && texto.get(separadorPrecio + 1) == '-';
+        double precio = decimal(texto, separadorPrecio + (precioNegativo ? 2 : 1), separadorStock);
+        if (Double.isNaN(precio)) {
+            return PRECIO_NO_VALIDO;
+        }
+        if (precioNegativo) {
+            if (precio > 0) {
+                return PRECIO_NEGATIVO;
+            }
+            precio = -precio;
+        }
+
+        boolean stockNegativo = separadorStock + 1 < separadorEstado && texto.get(separadorStock + 1) == '-';
+        long stock = entero(texto, separadorStock + (stockNegativo ? 2 : 1), separadorEstado);
+        if (stock < 0) {
+            return STOCK_NO_VALIDO;
+        }
+        if (stockNegativo && stock > 0) {
+            return STOCK_NEGATIVO;
+        }
+
+        int estado = booleano(texto, separadorEstado + 1, fin);
+        if (estado < 0) {
+            return ESTADO_NO_VALIDO;
+        }
+
+        registros.putInt(registro + RegistreProducte.OFFSET_CODIGO, codigo);
+        registros.putDouble(registro + RegistreProducte.OFFSET_PRECIO, precio);
+        registros.putInt(registro + RegistreProducte.OFFSET_STOCK, (int) stock);
+        registros.put(registro + RegistreProducte.OFFSET_DESCATALOGADO, (byte) estado);
+        tramo.lineas[tramo.numRegistros] = tramo.numLineas;
+        tramo.numRegistros++;
+        return null;
+    }
+
+    /**
+     * Escribe el nombre formateado (en mayúsculas y rellenado con espacios, como
+     * {@link RegistreProducte#formatearNombre(String)}) en el campo nombre de un registro.
+     *
+     * @param texto     tramo mapeado.
+     * @param inicio    posición del primer byte del nombre.
+     * @param fin       posición siguiente al último byte del nombre.
+     * @param registros buffer de registros.
+     * @param registro  posición (en bytes) donde comienza el registro.
+     * @return {@code false} si el nombre formateado no cabe en el campo.
+     */
+    private boolean escribirNombre(ByteBuffer texto, int inicio, int fin, ByteBuffer registros, int registro) {
+        int destino = registro + RegistreProducte.OFFSET_NOMBRE + 2;
+        registros.putShort(registro + RegistreProducte.OFFSET_NOMBRE, (short) RegistreProducte.LONGITUD_NOMBRE);
+
+        boolean ascii = nombreRapido && fin - inicio <= RegistreProducte.LONGITUD_NOMBRE;
+        for (int i = inicio; ascii && i < fin; i++) {
+            byte b = texto.get(i);
+            if (b <= 0) {
+                ascii = false;
+            } else {
+                registros.put(destino + i - inicio, b >= 'a' && b <= 'z' ? (byte) (b - ('a' - 'A')) : b);
+            }
+        }
+
+        if (!ascii) {
+            // Nombres con caracteres no ASCII: se formatean igual que en un alta
+            byte[] bytes = new byte[fin - inicio];
+            texto.get(inicio, bytes);
+            String nombre = RegistreProducte.formatearNombre(new String(bytes, charset));
+            if (RegistreProducte.longitudUtf(nombre) != RegistreProducte.LONGITUD_NOMBRE) {
+                return false;
+            }
+            registros.put(destino, RegistreProducte.codificar(nombre));
+            return true;
+        }
+
+        for (int i = destino + fin - inicio; i < destino + RegistreProducte.LONGITUD_NOMBRE; i++) {
+            registros.put(i, (byte) ' ');
+        }
+        return true;
+    }
+
+    /**
+     * Convierte un campo formado solo por dígitos decimales.
+     *
+     * @param texto  tramo mapeado.
+     * @param inicio posición del primer byte del campo.
+     * @param fin    posición siguiente al último byte del campo.
+     * @return valor del campo, o -1 si está vacío, contiene otros caracteres o supera {@link Integer#MAX_VALUE}.
+     */
+    private static long entero(ByteBuffer texto, int inicio, int fin) {
+        if (inicio >= fin) {
+            return -1;
+        }
+        long valor = 0;
+        for (int i = inicio; i < fin; i++) {
+            int digito = texto.get(i) - '0';
+            if (digito < 0 || digito > 9) {
+                return -1;
+            }
+            valor = valor * 10 + digito;
+            if (valor > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return valor;
+    }
+
+    /**
+     * Convierte un campo decimal sin signo (dígitos con un punto o una coma decimal opcional). Con hasta 15 cifras
+     * significativas el resultado es una única división de dos {@code double} exactos, que redondea igual que
+     * {@link Double#parseDouble(String)}; con más cifras se recurre a este último.
+     *
+     * @param texto  tramo mapeado.
+     * @param inicio posición del primer byte del campo.
+     * @param fin    posición siguiente al último byte del campo.
+     * @return valor del campo, o {@link Double#NaN} si no es un número válido.
+     */
+    private static double decimal(ByteBuffer texto, int inicio, int fin) {
+        if (inicio >= fin || fin - inicio > MAXIMO_NUMERO) {
+            return Double.NaN;
+        }
+
+        long mantisa = 0;
+        int cifras = 0;
+        int decimales = 0;
+        int digitos = 0;
+        boolean separador = false;
+        for (int i = inicio; i < fin; i++) {
+            byte b = texto.get(i);
+            if (b == '.' || b == ',') {
+                if (separador) {
+                    return Double.NaN;
+                }
+                separador = true;
+                continue;
+            }
+            int digito = b - '0';
+            if (digito < 0 || digito > 9) {
+                return Double.NaN;
+            }
+            digitos++;
+            if (separador) {
+                decimales++;
+            }
+            if (mantisa != 0 || digito != 0) {
+                cifras++;
+            }
+            if (cifras <= MAXIMO_CIFRAS_RAPIDO) {
+                mantisa = mantisa * 10 + digito;
+            }
+        }
+        if (digitos == 0) {
+            return Double.NaN;
+        }
+
+        if (cifras <= MAXIMO_CIFRAS_RAPIDO && decimales < POTENCIAS_DIEZ.length) {
+            return mantisa / POTENCIAS_DIEZ[decimales];
+        }
+        byte[] bytes = new byte[fin - inicio];
+        texto.get(inicio, bytes);
+        return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII).replace(',', '.'));
+    }
+
+    /**
+     * Convierte un campo {@code true}/{@code false}, sin distinguir mayúsculas de minúsculas.
+     *
+     * @param texto  tramo mapeado.
+     * @param inicio posición del primer byte del campo.
+     * @param fin    posición siguiente al último byte del campo.
+     * @return 1 para {@code true}, 0 para {@code false} o -1 si no es ninguno de los dos.
+     */
+    private static int booleano(ByteBuffer texto, int inicio, int fin) {
+        if (igualSinMayusculas(texto, inicio, fin, "true")) {
+            return 1;
+        }
+        return igualSinMayusculas(texto, inicio, fin, "false") ? 0 : -1;
+    }
+
+    /**
+     * @param texto   tramo mapeado.
+     * @param inicio  posición del primer byte del campo.
+     * @param fin     posición siguiente al último byte del campo.
+     * @param palabra palabra ASCII en minúsculas.
+     * @return {@code true} si el campo es la palabra, sin distinguir mayúsculas de minúsculas.
+     */
+    private static boolean igualSinMayusculas(ByteBuffer texto, int inicio, int fin, String palabra) {
+        if (fin - inicio != palabra.length()) {
+            return false;
+        }
+        for (int i = 0; i < palabra.length(); i++) {
+            if ((texto.get(inicio + i) | 0x20) != palabra.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return posición de la primera aparición del byte en {@code [inicio, fin)}, o -1 si no aparece.
+     */
+    private static int buscar(ByteBuffer texto, int inicio, int fin, byte b) {
+        for (int i = inicio; i < fin; i++) {
+            if (texto.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return posición de la última aparición del byte en {@code [inicio, fin)}, o -1 si no aparece.
+     */
+    private static int buscarUltimo(ByteBuffer texto, int inicio, int fin, byte b) {
+        for (int i = fin - 1; i >= inicio; i--) {
+            if (texto.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Resultado del análisis de un tramo: registros codificados, uno detrás de otro, y líneas rechazadas. Los
+     * números de línea son relativos al tramo (empezando por 0).
+     */
+    static final class Tramo {
+
+        /** Registros codificados. */
+        ByteBuffer registros;
+        /** Número de registros codificados. */
+        int numRegistros = 0;
+        /** Número de línea de cada registro. */
+        int[] lineas;
+        /** Número de líneas del tramo. */
+        int numLineas = 0;
+        /** Números de línea de las líneas rechazadas. */
+        int[] rechazadas = new int[8];
+        /** Motivo del rechazo de cada línea. */
+        String[] motivos = new String[8];
+        /** Número de líneas rechazadas. */
+        int numRechazadas = 0;
+
+        /**
+         * @param longitud tamaño en bytes del tramo, para estimar el número de registros.
+         */
+        private Tramo(int longitud) {
+            int capacidad = Math.max(16, longitud / 32);
+            registros = ByteBuffer.allocate(capacidad * RegistreProducte.TAMANO);
+            lineas = new int[capacidad];
+        }
+
+        /**
+         * Asegura que cabe un registro más.
+         *
+         * @return buffer de registros.
+         */
+        private ByteBuffer reservar() {
+            if (numRegistros == lineas.length) {
+                lineas = Arrays.copyOf(lineas, numRegistros * 2);
+                registros = ByteBuffer.wrap(Arrays.copyOf(registros.array(),
+                        numRegistros * 2 * RegistreProducte.TAMANO));
+            }
+            return registros;
+        }
+
+        /**
+         * Anota una línea rechazada, manteniendo las líneas rechazadas ordenadas.
+         *
+         * @param linea  número de línea en el tramo.
+         * @param motivo motivo del rechazo.
+         */
+        private void rechazar(int linea, String motivo) {
+            if (numRechazadas == rechazadas.length) {
+                rechazadas = Arrays.copyOf(rechazadas, numRechazadas * 2);
+                motivos = Arrays.copyOf(motivos, numRechazadas * 2);
+            }
+            int i = numRechazadas;
+            while (i > 0 && rechazadas[i - 1] > linea) {
+                rechazadas[i] = rechazadas[i - 1];
+                motivos[i] = motivos[i - 1];
+                i--;
+            }
+            rechazadas[i] = linea;
+            motivos[i] = motivo;
+            numRechazadas++;
+        }
+
+        /**
+         * Descarta un registro codificado y rechaza su línea, por ejemplo si su código ya existe. Los registros
+         * siguientes se desplazan.
+         *
+         * @param indice número del registro dentro del tramo.
+         * @param motivo motivo del rechazo.
+         */
+        void descartar(int indice, String motivo) {
+            rechazar(lineas[indice], motivo);
+            byte[] array = registros.array();
+            System.arraycopy(array, (indice + 1) * RegistreProducte.TAMANO, array, indice * RegistreProducte.TAMANO,
+                    (numRegistros - indice - 1) * RegistreProducte.TAMANO);
+            System.arraycopy(lineas, indice + 1, lineas, indice, numRegistros - indice - 1);
+            numRegistros--;
+        }
+    }
+
+    /**
+     * Conjunto de códigos (mayores que 0) con direccionamiento abierto, para detectar códigos repetidos en el
+     * fichero importado sin reservar un objeto por código.
+     */
+    static final class ConjuntoCodigos {
+
+        /** Tabla de códigos; 0 indica una celda vacía. */
+        private int[] tabla = new int[1 << 12];
+        /** Número de códigos del conjunto. */
+        private int total = 0;
+
+        /**
+         * Añade un código al conjunto.
+         *
+         * @param codigo código mayor que 0.
+         * @return {@code false} si el código ya estaba en el conjunto.
+         */
+        boolean anadir(int codigo) {
+            if (2 * (total + 1) > tabla.length) {
+                int[] anterior = tabla;
+                tabla = new int[anterior.length * 2];
+                for (int c : anterior) {
+                    if (c != 0) {
+                        insertar(c);
+                    }
+                }
+            }
+            if (!insertar(codigo)) {
+                return false;
+            }
+            total++;
+            return true;
+        }
+
+        /**
+         * @param codigo código mayor que 0.
+         * @return {@code false} si el código ya estaba en la tabla.
+         */
+        private boolean insertar(int codigo) {
+            int mascara = tabla.length - 1;
+            // Hash multiplicativo: los bits altos del producto dependen de todos los bits del código
+            int i = (codigo * 0x9E3779B9) >>> Integer.numberOfLeadingZeros(mascara);
+            while (tabla[i] != 0) {
+                if (tabla[i] == codigo) {
+                    return false;
+                }
+                i = (i + 1) & mascara;
+            }
+            tabla[i] = codigo;
+            return true;
+        }
+    }
+}
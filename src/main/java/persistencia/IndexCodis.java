@@ -0,0 +1,592 @@
+package persistencia;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Índice primario persistente que relaciona el código de cada producto con la posición (número de registro)
+ * que ocupa dentro del fichero binario de productos.
+ * <p>
+ * El índice se guarda en un fichero lateral junto al de productos (por ejemplo {@code productos.bin.idx}) y se
+ * carga en memoria al construir el gestor. Las búsquedas por código se resuelven con una búsqueda binaria sobre
+ * los códigos ordenados, sin recorrer el fichero de productos. Si el fichero lateral no existe o no corresponde
+ * al estado actual del fichero de productos, el índice se reconstruye automáticamente. También se vuelve a cargar
+ * cuando otro gestor modifica el fichero de productos (ver {@link CapcaleraFitxer#cambiosExternos()}), pero no por
+ * las altas del propio gestor.
+ * </p>
+ * <p>
+ * En memoria se guarda también el código de cada posición, para devolver en orden de código las posiciones que
+ * obtienen los demás índices (ver {@link #ordenarPorCodigo(int[])}): al reutilizar registros libres, el orden del
+ * fichero deja de ser el de los códigos.
+ * </p>
+ * <p>
+ * Formato del fichero lateral: una cabecera de 16 bytes (número mágico, número de entradas de la instantánea y
+ * número de modificaciones del fichero de productos con el que está al día, ver {@link #sincronizar()}), una
+ * instantánea de pares (código, posición) de 8 bytes ordenados por código y un diario de pares con el mismo
+ * formato, en el orden en que se han producido, que se aplica sobre la instantánea al cargar.
+ * </p>
+ * <p>
+ * Mientras el diario está vacío, las altas con códigos mayores que todos los existentes se añaden al final de la
+ * instantánea y las bajas conservan el código de su entrada con la posición -1, de modo que eliminar solo escribe 4
+ * bytes. Las altas con otros códigos (al importar productos con sus propios códigos) no reescriben la instantánea:
+ * se añaden al diario, igual que todos los cambios posteriores (una baja es un par con la posición -1). La
+ * instantánea se reescribe, descartando las entradas eliminadas, en cada punto de control ({@link #consolidar()})
+ * o cuando el diario supera el tamaño del índice.
+ * </p>
+ */
+class IndexCodis {
+
+    /** Número mágico que identifica los ficheros de índice primario ("IDX2"). */
+    private static final int MAGICO = 0x49445832;
+    /** Tamaño en bytes de la cabecera del fichero de índice. */
+    private static final int TAMANO_CABECERA = 16;
+    /** Tamaño en bytes de cada entrada (código + posición). */
+    private static final int TAMANO_ENTRADA = 8;
+    /** Número de registros leídos en cada bloque al reconstruir el índice. */
+    private static final int REGISTROS_POR_BLOQUE = 4096;
+    /** Número mínimo de entradas del diario antes de plantearse reescribir la instantánea. */
+    private static final int MINIMO_DIARIO = 1024;
+
+    /** Fichero de productos indexado. */
+    private final File RUTA_DATOS;
+    /** Fichero lateral donde se persiste el índice. */
+    private final File RUTA_INDICE;
+    /** Tamaño fijo en bytes de cada registro del fichero de productos. */
+    private final int TAMANO_REGISTRO;
+    /** Cabecera del fichero de productos. */
+    private final CapcaleraFitxer CAPCALERA;
+
+    /** Códigos indexados, ordenados de menor a mayor. */
+    private int[] codigos = new int[16];
+    /** Posición (número de registro) de cada código, en el mismo orden que {@link #codigos}. */
+    private int[] posiciones = new int[16];
+    /** Número de entradas válidas del índice. */
+    private int total = 0;
+    /** Código del producto de cada posición ({@link RegistreProducte#CODIGO_LIBRE} si no hay ninguno). */
+    private int[] codigoPorPosicion = new int[16];
+    /** Número de entradas del diario posteriores a la última instantánea. */
+    private int entradasDiario = 0;
+    /** Número de modificaciones del fichero de productos con el que está al día el fichero lateral. */
+    private int modificacionesDatos = -1;
+    /** Cambios externos de la cabecera que ya se han tenido en cuenta. */
+    private int cambiosExternos;
+
+    /**
+     * Crea el índice primario del fichero indicado, cargándolo desde su fichero lateral o reconstruyéndolo si
+     * no existe o está desactualizado.
+     *
+     * @param rutaDatos      fichero de productos a indexar.
+     * @param tamanoRegistro tamaño en bytes de cada registro.
+     * @param capcalera      cabecera del fichero de productos, ya abierta.
+     */
+    IndexCodis(File rutaDatos, int tamanoRegistro, CapcaleraFitxer capcalera) {
+        this.RUTA_DATOS = rutaDatos;
+        this.RUTA_INDICE = new File(rutaDatos.getPath() + ".idx");
+        this.TAMANO_REGISTRO = tamanoRegistro;
+        this.CAPCALERA = capcalera;
+        this.cambiosExternos = capcalera.cambiosExternos();
+        cargar();
+    }
+
+    /**
+     * Busca la posición del registro que contiene el código indicado.
+     *
+     * @param codigo código del producto.
+     * @return posición (número de registro) o -1 si el código no está indexado.
+     */
+    synchronized int buscar(int codigo) {
+        comprobarSincronizado();
+
+        int i = Arrays.binarySearch(codigos, 0, total, codigo);
+        return i >= 0 ? posiciones[i] : -1;
+    }
+
+    /**
+     * Comprueba si un código está en el índice sin comprobar antes que el índice esté sincronizado con el fichero
+     * de productos. Lo utiliza la importación ({@link GestioProducte#importar(File, boolean)}), que añade registros
+     * al fichero antes de actualizar el índice; debe llamarse a {@link #comprobarSincronizado()} antes de empezar.
+     *
+     * @param codigo código del producto.
+     * @return {@code true} si el código está indexado.
+     */
+    synchronized boolean contiene(int codigo) {
+        int i = Arrays.binarySearch(codigos, 0, total, codigo);
+        return i >= 0 && posiciones[i] >= 0;
+    }
+
+    /**
+     * Ordena por el código de sus productos las posiciones que devuelve otro índice (ordenadas por posición). Si ya
+     * están en orden de código (el caso habitual si no se han reutilizado registros libres), no las copia.
+     *
+     * @param posiciones posiciones (en número de registro) a ordenar.
+     * @return las mismas posiciones en orden creciente de código; las que no tienen código quedan al principio.
+     */
+    synchronized int[] ordenarPorCodigo(int[] posiciones) {
+        comprobarSincronizado();
+
+        long[] pares = new long[posiciones.length];
+        boolean ordenado = true;
+        for (int i = 0; i < posiciones.length; i++) {
+            int posicion = posiciones[i];
+            int codigo = posicion < codigoPorPosicion.length
+                    ? codigoPorPosicion[posicion] : RegistreProducte.CODIGO_LIBRE;
+            pares[i] = ((long) codigo << 32) | (posicion & 0xFFFFFFFFL);
+            if (i > 0 && pares[i] < pares[i - 1]) {
+                ordenado = false;
+            }
+        }
+        if (ordenado) {
+            return posiciones;
+        }
+
+        Arrays.sort(pares);
+        int[] ordenadas = new int[posiciones.length];
+        for (int i = 0; i < pares.length; i++) {
+            ordenadas[i] = (int) pares[i];
+        }
+        return ordenadas;
+    }
+
+    /**
+     * Añade una entrada al índice y la persiste en el fichero lateral. Debe llamarse después de haber escrito
+     * el registro en el fichero de productos.
+     *
+     * @param codigo   código del producto añadido.
+     * @param posicion posición (número de registro) donde se ha escrito.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void anadir(int codigo, int posicion) throws IOException {
+        anadirBloque(codigo, posicion, 1);
+    }
+
+    /**
+     * Elimina del índice el código de un producto eliminado, marcando su entrada con la posición -1 tanto en
+     * memoria como en el fichero lateral.
+     *
+     * @param codigo código del producto eliminado.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void eliminar(int codigo) throws IOException {
+        int i = Arrays.binarySearch(codigos, 0, total, codigo);
+        if (i < 0 || posiciones[i] < 0) {
+            return;
+        }
+
+        asignarCodigo(posiciones[i], RegistreProducte.CODIGO_LIBRE);
+        posiciones[i] = -1;
+        if (entradasDiario > 0) {
+            // Con entradas en el diario la posición en memoria ya no es la de la instantánea
+            registrarEnDiario(ByteBuffer.allocate(TAMANO_ENTRADA).putInt(codigo).putInt(-1), 1);
+            return;
+        }
+
+        try (FileChannel fc = FileChannel.open(RUTA_INDICE.toPath(), StandardOpenOption.WRITE)) {
+            CanalFitxer.escribirCompleto(fc, ByteBuffer.allocate(4).putInt(-1).flip(),
+                    TAMANO_CABECERA + (long) i * TAMANO_ENTRADA + 4);
+        }
+    }
+
+    /**
+     * Añade al índice un bloque de códigos y posiciones consecutivos, escribiendo todas las entradas en el fichero
+     * lateral de una sola vez: al final de la instantánea si los códigos son mayores que los existentes y el diario
+     * está vacío, y en el diario en otro caso. Debe llamarse después de haber escrito los registros en el fichero
+     * de productos.
+     *
+     * @param primerCodigo    código del primer producto añadido.
+     * @param primeraPosicion posición (número de registro) del primer producto añadido.
+     * @param cantidad        número de productos añadidos.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void anadirBloque(int primerCodigo, int primeraPosicion, int cantidad) throws IOException {
+        // Si los códigos no son mayores que los existentes (o ya hay entradas en el diario) se registran en el
+        // diario, sin reescribir la instantánea
+        if (entradasDiario > 0 || (total > 0 && primerCodigo <= codigos[total - 1])) {
+            int[] nuevos = new int[cantidad];
+            for (int i = 0; i < cantidad; i++) {
+                nuevos[i] = primerCodigo + i;
+            }
+            anadirCodigos(nuevos, primeraPosicion);
+            return;
+        }
+
+        asegurarCapacidad(total + cantidad);
+        ByteBuffer entradas = ByteBuffer.allocate(cantidad * TAMANO_ENTRADA);
+        int primeraEntrada = total;
+        for (int i = 0; i < cantidad; i++) {
+            codigos[total] = primerCodigo + i;
+            posiciones[total] = primeraPosicion + i;
+            entradas.putInt(primerCodigo + i).putInt(primeraPosicion + i);
+            asignarCodigo(primeraPosicion + i, primerCodigo + i);
+            total++;
+        }
+
+        // Escribimos las nuevas entradas al final del fichero lateral y actualizamos su cabecera
+        ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA)
+                .putInt(MAGICO).putInt(total).putLong(modificacionesDatos);
+        try (FileChannel fc = FileChannel.open(RUTA_INDICE.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            CanalFitxer.escribirCompleto(fc, entradas.flip(), TAMANO_CABECERA + (long) primeraEntrada * TAMANO_ENTRADA);
+            CanalFitxer.escribirCompleto(fc, cabecera.flip(), 0);
+        }
+    }
+
+    /**
+     * Añade al índice los códigos, en cualquier orden, de un bloque de productos escritos en posiciones
+     * consecutivas, y los registra en el diario del fichero lateral de una sola vez. Las entradas se fusionan con
+     * las del índice en un único recorrido, sin insertarlas una a una. Debe llamarse después de haber escrito los
+     * registros en el fichero de productos.
+     *
+     * @param nuevos          códigos de los productos añadidos, en el orden de sus registros.
+     * @param primeraPosicion posición (número de registro) del primer producto añadido.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void anadirCodigos(int[] nuevos, int primeraPosicion) throws IOException {
+        int[] nuevasPosiciones = new int[nuevos.length];
+        ByteBuffer entradas = ByteBuffer.allocate(nuevos.length * TAMANO_ENTRADA);
+        for (int i = 0; i < nuevos.length; i++) {
+            nuevasPosiciones[i] = primeraPosicion + i;
+            entradas.putInt(nuevos[i]).putInt(primeraPosicion + i);
+        }
+        aplicar(nuevos, nuevasPosiciones, nuevos.length);
+        registrarEnDiario(entradas, nuevos.length);
+    }
+
+    /**
+     * Marca el fichero lateral como al día con el número de modificaciones actual del fichero de productos, para
+     * que otro gestor pueda cargarlo sin reconstruirlo. El gestor lo llama al terminar cada modificación, después de
+     * actualizar la cabecera y el fichero lateral.
+     *
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void sincronizar() throws IOException {
+        comprobarSincronizado();
+        int actuales = CAPCALERA.modificaciones();
+        if (actuales != modificacionesDatos && RUTA_INDICE.exists()) {
+            try (FileChannel fc = FileChannel.open(RUTA_INDICE.toPath(), StandardOpenOption.WRITE)) {
+                CanalFitxer.escribirCompleto(fc, ByteBuffer.allocate(8).putLong(actuales).flip(), 8);
+            }
+            modificacionesDatos = actuales;
+        }
+    }
+
+    /**
+     * Reescribe la instantánea del fichero lateral si el diario tiene entradas, descartando las de los productos
+     * eliminados. El gestor lo llama en cada punto de control.
+     *
+     * @throws IOException si no se puede escribir el fichero lateral.
+     */
+    synchronized void consolidar() throws IOException {
+        comprobarSincronizado();
+        if (entradasDiario > 0) {
+            guardar();
+        }
+    }
+
+    /**
+     * Reconstruye el índice recorriendo el fichero de productos por bloques y lo guarda en el fichero lateral.
+     */
+    synchronized void reconstruir() {
+        total = 0;
+        modificacionesDatos = CAPCALERA.modificaciones();
+
+        if (RUTA_DATOS.exists()) {
+            try (FileChannel fc = FileChannel.open(RUTA_DATOS.toPath(), StandardOpenOption.READ)) {
+                int numRegistros = CapcaleraFitxer.numRegistros(fc);
+                asegurarCapacidad(numRegistros);
+                ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+                boolean ordenado = true;
+
+                // Leemos bloques de registros completos y nos quedamos con el código (primer campo) de cada uno
+                for (int registro = 0; registro < numRegistros; registro += REGISTROS_POR_BLOQUE) {
+                    int registrosBloque = Math.min(REGISTROS_POR_BLOQUE, numRegistros - registro);
+                    bloque.clear().limit(registrosBloque * TAMANO_REGISTRO);
+                    long posicion = CapcaleraFitxer.posicion(registro);
+                    CanalFitxer.leerCompleto(fc, bloque, posicion);
+
+                    for (int j = 0; j < registrosBloque; j++) {
+                        int codigo = bloque.getInt(j * TAMANO_REGISTRO);
+                        if (codigo == RegistreProducte.CODIGO_LIBRE) {
+                            continue;
+                        }
+                        if (total > 0 && codigo <= codigos[total - 1]) {
+                            ordenado = false;
+                        }
+                        codigos[total] = codigo;
+                        posiciones[total] = registro + j;
+                        total++;
+                    }
+                }
+
+                if (!ordenado) {
+                    ordenar();
+                }
+
+            } catch (IOException e) {
+                System.err.println("Error! No se ha podido reconstruir el índice: " + e.getMessage());
+                total = 0;
+            }
+        }
+        indexarPosiciones();
+
+        try {
+            guardar();
+        } catch (IOException e) {
+            System.err.println("Error! No se ha podido guardar el índice: " + e.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Carga la instantánea del fichero lateral y aplica las entradas del diario. Si no existe, está dañado o fue
+     * generado para otra versión del fichero de productos, se reconstruye.
+     */
+    private void cargar() {
+        total = 0;
+        entradasDiario = 0;
+        if (!RUTA_INDICE.exists()) {
+            reconstruir();
+            return;
+        }
+
+        try (FileChannel fc = FileChannel.open(RUTA_INDICE.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+            CanalFitxer.leerCompleto(fc, cabecera, 0);
+            cabecera.flip();
+
+            int magico = cabecera.getInt();
+            int numEntradas = cabecera.getInt();
+            long modificaciones = cabecera.getLong();
+
+            if (magico != MAGICO || modificaciones != CAPCALERA.modificaciones()
+                    || fc.size() < TAMANO_CABECERA + (long) numEntradas * TAMANO_ENTRADA) {
+                reconstruir();
+                return;
+            }
+
+            // Leemos de golpe la instantánea y el diario. Una entrada incompleta al final (escritura
+            // interrumpida) se descarta
+            long inicioDiario = TAMANO_CABECERA + (long) numEntradas * TAMANO_ENTRADA;
+            int numDiario = (int) ((fc.size() - inicioDiario) / TAMANO_ENTRADA);
+            ByteBuffer entradas = ByteBuffer.allocate((numEntradas + numDiario) * TAMANO_ENTRADA);
+            CanalFitxer.leerCompleto(fc, entradas, TAMANO_CABECERA);
+            entradas.flip();
+
+            asegurarCapacidad(numEntradas);
+            for (int i = 0; i < numEntradas; i++) {
+                codigos[i] = entradas.getInt();
+                posiciones[i] = entradas.getInt();
+            }
+            total = numEntradas;
+
+            int[] codigosDiario = new int[numDiario];
+            int[] posicionesDiario = new int[numDiario];
+            for (int i = 0; i < numDiario; i++) {
+                codigosDiario[i] = entradas.getInt();
+                posicionesDiario[i] = entradas.getInt();
+            }
+            aplicar(codigosDiario, posicionesDiario, numDiario);
+            entradasDiario = numDiario;
+            modificacionesDatos = (int) modificaciones;
+            indexarPosiciones();
+
+        } catch (IOException e) {
+            reconstruir();
+        }
+    }
+
+    /**
+     * Si otro gestor ha modificado el fichero de productos desde la última comprobación, vuelve a cargar el índice
+     * (o lo reconstruye, si el fichero lateral no está al día) antes de utilizarlo.
+     */
+    synchronized void comprobarSincronizado() {
+        int cambios = CAPCALERA.cambiosExternos();
+        if (cambios != cambiosExternos) {
+            cambiosExternos = cambios;
+            cargar();
+        }
+    }
+
+    /**
+     * Aplica en memoria entradas (código, posición) en el orden indicado: si un código aparece varias veces
+     * prevalece su última entrada, y con la posición -1 el código queda eliminado. Las entradas se ordenan por
+     * código y se fusionan con las del índice en un único recorrido.
+     *
+     * @param nuevosCodigos    códigos de las entradas.
+     * @param nuevasPosiciones posición (número de registro) de cada código, o -1 si se ha eliminado.
+     * @param cantidad         número de entradas.
+     */
+    private void aplicar(int[] nuevosCodigos, int[] nuevasPosiciones, int cantidad) {
+        if (cantidad == 0) {
+            return;
+        }
+
+        // Ordenamos por código conservando el orden de llegada de las entradas de un mismo código
+        long[] orden = new long[cantidad];
+        for (int k = 0; k < cantidad; k++) {
+            orden[k] = ((long) nuevosCodigos[k] << 32) | k;
+        }
+        Arrays.sort(orden);
+
+        int[] codigosFusion = new int[Math.max(total + cantidad, 16)];
+        int[] posicionesFusion = new int[codigosFusion.length];
+        int i = 0;
+        int n = 0;
+        for (int k = 0; k < cantidad; k++) {
+            int codigo = (int) (orden[k] >> 32);
+            if (k + 1 < cantidad && (int) (orden[k + 1] >> 32) == codigo) {
+                continue;
+            }
+
+            while (i < total && codigos[i] < codigo) {
+                codigosFusion[n] = codigos[i];
+                posicionesFusion[n++] = posiciones[i++];
+            }
+            int posicion = nuevasPosiciones[(int) orden[k]];
+            if (i < total && codigos[i] == codigo) {
+                liberarCodigo(posiciones[i++], codigo);
+            } else if (posicion < 0) {
+                continue;
+            }
+            codigosFusion[n] = codigo;
+            posicionesFusion[n++] = posicion;
+            asignarCodigo(posicion, codigo);
+        }
+        System.arraycopy(codigos, i, codigosFusion, n, total - i);
+        System.arraycopy(posiciones, i, posicionesFusion, n, total - i);
+
+        codigos = codigosFusion;
+        posiciones = posicionesFusion;
+        total = n + total - i;
+    }
+
+    /**
+     * Añade entradas al final del diario del fichero lateral. Si el diario ha crecido más que el índice, reescribe
+     * el fichero completo.
+     *
+     * @param entradas    pares (código, posición) ya codificados, hasta la posición del buffer.
+     * @param numEntradas número de entradas.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void registrarEnDiario(ByteBuffer entradas, int numEntradas) throws IOException {
+        entradasDiario += numEntradas;
+
+        if (entradasDiario > MINIMO_DIARIO && entradasDiario > total) {
+            guardar();
+            return;
+        }
+
+        try (FileChannel fc = FileChannel.open(RUTA_INDICE.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            CanalFitxer.escribirCompleto(fc, entradas.flip(), fc.size());
+        }
+    }
+
+    /**
+     * Escribe el fichero lateral completo (cabecera e instantánea) a partir del contenido en memoria, descartando
+     * antes las entradas de los productos eliminados, y vacía el diario.
+     *
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void guardar() throws IOException {
+        int validas = 0;
+        for (int i = 0; i < total; i++) {
+            if (posiciones[i] >= 0) {
+                codigos[validas] = codigos[i];
+                posiciones[validas] = posiciones[i];
+                validas++;
+            }
+        }
+        total = validas;
+
+        ByteBuffer buffer = ByteBuffer.allocate(TAMANO_CABECERA + total * TAMANO_ENTRADA);
+        buffer.putInt(MAGICO).putInt(total).putLong(modificacionesDatos);
+        for (int i = 0; i < total; i++) {
+            buffer.putInt(codigos[i]).putInt(posiciones[i]);
+        }
+        buffer.flip();
+
+        try (FileChannel fc = FileChannel.open(RUTA_INDICE.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+        }
+        entradasDiario = 0;
+    }
+
+    /**
+     * Ordena las entradas por código cuando el fichero de productos no estaba ordenado.
+     */
+    private void ordenar() {
+        long[] pares = new long[total];
+        for (int i = 0; i < total; i++) {
+            pares[i] = ((long) codigos[i] << 32) | (posiciones[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(pares);
+        for (int i = 0; i < total; i++) {
+            codigos[i] = (int) (pares[i] >> 32);
+            posiciones[i] = (int) pares[i];
+        }
+    }
+
+    /**
+     * Vuelve a calcular el código de cada posición a partir de las entradas del índice.
+     */
+    private void indexarPosiciones() {
+        Arrays.fill(codigoPorPosicion, RegistreProducte.CODIGO_LIBRE);
+        for (int i = 0; i < total; i++) {
+            asignarCodigo(posiciones[i], codigos[i]);
+        }
+    }
+
+    /**
+     * Anota el código del producto de una posición, ampliando si es necesario el array en memoria.
+     *
+     * @param posicion posición (número de registro), o -1 (no hace nada).
+     * @param codigo   código del producto, o {@link RegistreProducte#CODIGO_LIBRE} si ya no hay ninguno.
+     */
+    private void asignarCodigo(int posicion, int codigo) {
+        if (posicion < 0) {
+            return;
+        }
+        if (posicion >= codigoPorPosicion.length) {
+            if (codigo == RegistreProducte.CODIGO_LIBRE) {
+                return;
+            }
+            codigoPorPosicion = Arrays.copyOf(codigoPorPosicion, Math.max(posicion + 1, codigoPorPosicion.length * 2));
+        }
+        codigoPorPosicion[posicion] = codigo;
+    }
+
+    /**
+     * Borra el código anotado en una posición si todavía es el del producto indicado (la posición puede haberse
+     * reutilizado ya para otro producto).
+     *
+     * @param posicion posición (número de registro), o -1 (no hace nada).
+     * @param codigo   código del producto que ha dejado la posición.
+     */
+    private void liberarCodigo(int posicion, int codigo) {
+        if (posicion >= 0 && posicion < codigoPorPosicion.length && codigoPorPosicion[posicion] == codigo) {
+            codigoPorPosicion[posicion] = RegistreProducte.CODIGO_LIBRE;
+        }
+    }
+
+    /**
+     * Garantiza que los arrays en memoria pueden contener al menos el número de entradas indicado.
+     *
+     * @param capacidad número de entradas necesario.
+     */
+    private void asegurarCapacidad(int capacidad) {
+        if (capacidad > codigos.length) {
+            int nuevaCapacidad = Math.max(capacidad, codigos.length * 2);
+            codigos = Arrays.copyOf(codigos, nuevaCapacidad);
+            posiciones = Arrays.copyOf(posiciones, nuevaCapacidad);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package persistencia;
+
+import model.Producte;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Índices de bitmap persistentes sobre el estado de los productos: qué registros tienen stock 0 y qué registros
+ * están descatalogados. Permiten resolver {@code cercaSenseStock} y {@code cercaDescatalogats} en un tiempo
+ * proporcional al número de coincidencias en lugar de al tamaño del fichero.
+ * <p>
+ * Ambos conjuntos de posiciones se guardan como {@link BitmapComprimit} en un fichero lateral
+ * ({@code productos.bin.bmp}) con la misma estructura que el índice de nombres: una cabecera de 16 bytes
+ * (número mágico, reservado y número de modificaciones del fichero de productos con el que está al día), una
+ * instantánea de los dos bitmaps y un diario de cambios posteriores que se aplica al cargar. Como los demás
+ * índices, se vuelve a cargar cuando otro gestor modifica el fichero de productos.
+ * </p>
+ */
+class IndexEstat {
+
+    /** Número mágico que identifica los ficheros de índices de estado ("BMP2"). */
+    private static final int MAGICO = 0x424D5032;
+    /** Entrada del diario: añadir la posición al bitmap de stock 0. */
+    private static final byte SIN_STOCK_SI = 1;
+    /** Entrada del diario: quitar la posición del bitmap de stock 0. */
+    private static final byte SIN_STOCK_NO = 2;
+    /** Entrada del diario: añadir la posición al bitmap de descatalogados. */
+    private static final byte DESCATALOGADO_SI = 3;
+    /** Entrada del diario: quitar la posición del bitmap de descatalogados. */
+    private static final byte DESCATALOGADO_NO = 4;
+    /** Tamaño en bytes de cada entrada del diario (operación + posición). */
+    private static final int TAMANO_ENTRADA_DIARIO = 5;
+    /** Número mínimo de entradas del diario antes de plantearse reescribir la instantánea. */
+    private static final int MINIMO_DIARIO = 4096;
+    /** Número de registros leídos en cada bloque al reconstruir el índice. */
+    private static final int REGISTROS_POR_BLOQUE = 4096;
+
+    /** Fichero de productos indexado. */
+    private final File RUTA_DATOS;
+    /** Fichero lateral donde se persisten los bitmaps. */
+    private final File RUTA_INDICE;
+    /** Tamaño fijo en bytes de cada registro del fichero de productos. */
+    private final int TAMANO_REGISTRO;
+    /** Cabecera del fichero de productos. */
+    private final CapcaleraFitxer CAPCALERA;
+
+    /** Posiciones de los registros con stock 0. */
+    private BitmapComprimit sinStock = new BitmapComprimit();
+    /** Posiciones de los registros descatalogados. */
+    private BitmapComprimit descatalogados = new BitmapComprimit();
+    /** Número de entradas del diario posteriores a la última instantánea. */
+    private int entradasDiario = 0;
+    /** Número de modificaciones del fichero de productos con el que está al día el fichero lateral. */
+    private int modificacionesDatos = -1;
+    /** Cambios externos de la cabecera que ya se han tenido en cuenta. */
+    private int cambiosExternos;
+
+    /**
+     * Crea los índices de estado del fichero indicado, cargándolos desde su fichero lateral o reconstruyéndolos
+     * si no existe o está desactualizado.
+     *
+     * @param rutaDatos      fichero de productos a indexar.
+     * @param tamanoRegistro tamaño en bytes de cada registro.
+     * @param capcalera      cabecera del fichero de productos, ya abierta.
+     */
+    IndexEstat(File rutaDatos, int tamanoRegistro, CapcaleraFitxer capcalera) {
+        this.RUTA_DATOS = rutaDatos;
+        this.RUTA_INDICE = new File(rutaDatos.getPath() + ".bmp");
+        this.TAMANO_REGISTRO = tamanoRegistro;
+        this.CAPCALERA = capcalera;
+        this.cambiosExternos = capcalera.cambiosExternos();
+        cargar();
+    }
+
+    /**
+     * @return posiciones (en orden creciente) de los registros con stock 0 que no están descatalogados.
+     */
+    synchronized int[] buscarSinStock() {
+        comprobarSincronizado();
+
+        int[] resultado = new int[sinStock.cardinalidad()];
+        int[] total = {0};
+        sinStock.recorrer(posicion -> {
+            if (!descatalogados.contiene(posicion)) {
+                resultado[total[0]++] = posicion;
+            }
+        });
+
+        return Arrays.copyOf(resultado, total[0]);
+    }
+
+    /**
+     * @return posiciones (en orden creciente) de los registros descatalogados.
+     */
+    synchronized int[] buscarDescatalogados() {
+        comprobarSincronizado();
+        return descatalogados.aArray();
+    }
+
+    /**
+     * Si otro gestor ha modificado el fichero de productos desde la última comprobación, vuelve a cargar los
+     * bitmaps (o los reconstruye, si el fichero lateral no está al día). Debe llamarse antes de modificar el
+     * fichero de productos.
+     */
+    synchronized void comprobarSincronizado() {
+        int cambios = CAPCALERA.cambiosExternos();
+        if (cambios != cambiosExternos) {
+            cambiosExternos = cambios;
+            cargar();
+        }
+    }
+
+    /**
+     * Marca el fichero lateral como al día con el número de modificaciones actual del fichero de productos, para
+     * que otro gestor pueda cargarlo sin reconstruirlo. El gestor lo llama al terminar cada modificación, después de
+     * actualizar la cabecera y el fichero lateral.
+     *
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void sincronizar() throws IOException {
+        comprobarSincronizado();
+        int actuales = CAPCALERA.modificaciones();
+        if (actuales != modificacionesDatos && RUTA_INDICE.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(RUTA_INDICE, "rw")) {
+                raf.seek(8);
+                raf.writeLong(actuales);
+            }
+            modificacionesDatos = actuales;
+        }
+    }
+
+    /**
+     * Actualiza los dos bitmaps con el estado de un registro. Debe llamarse después de haber escrito el registro
+     * en el fichero de productos. Solo se registran en el diario los bits que realmente cambian.
+     *
+     * @param posicion      posición (número de registro).
+     * @param stock         stock actual del registro.
+     * @param descatalogado si el registro está descatalogado.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void actualizar(int posicion, int stock, boolean descatalogado) throws IOException {
+        ByteBuffer entradas = ByteBuffer.allocate(2 * TAMANO_ENTRADA_DIARIO);
+        anotar(entradas, posicion, stock, descatalogado);
+        registrarEnDiario(entradas);
+    }
+
+    /**
+     * Actualiza los bitmaps con un bloque de productos escritos en posiciones consecutivas, registrando los
+     * cambios en el diario con una única escritura.
+     *
+     * @param productos       productos añadidos.
+     * @param primeraPosicion posición (número de registro) del primer producto.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void anadirBloque(List<Producte> productos, int primeraPosicion) throws IOException {
+        ByteBuffer entradas = ByteBuffer.allocate(2 * TAMANO_ENTRADA_DIARIO * productos.size());
+        int posicion = primeraPosicion;
+        for (Producte p : productos) {
+            anotar(entradas, posicion++, p.getStock(), p.isDescatalogado());
+        }
+        registrarEnDiario(entradas);
+    }
+
+    /**
+     * Actualiza el bitmap de stock 0 con el nuevo stock de varios registros, registrando los cambios en el
+     * diario con una única escritura.
+     *
+     * @param posiciones posiciones (número de registro).
+     * @param stocks     stock actual de cada registro.
+     * @param n          número de registros válidos de los arrays.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void actualizarStocks(int[] posiciones, int[] stocks, int n) throws IOException {
+        ByteBuffer entradas = ByteBuffer.allocate(TAMANO_ENTRADA_DIARIO * n);
+        for (int i = 0; i < n; i++) {
+            if (sinStock.actualizar(posiciones[i], stocks[i] == 0)) {
+                entradas.put(stocks[i] == 0 ? SIN_STOCK_SI : SIN_STOCK_NO).putInt(posiciones[i]);
+            }
+        }
+        if (entradas.position() > 0) {
+            registrarEnDiario(entradas);
+        }
+    }
+
+    /**
+     * Actualiza únicamente el bitmap de stock 0.
+     *
+     * @param posicion posición (número de registro).
+     * @param stock    stock actual del registro.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void actualizarStock(int posicion, int stock) throws IOException {
+        if (sinStock.actualizar(posicion, stock == 0)) {
+            registrarEnDiario(entrada(stock == 0 ? SIN_STOCK_SI : SIN_STOCK_NO, posicion));
+        }
+    }
+
+    /**
+     * Marca un registro como descatalogado.
+     *
+     * @param posicion posición (número de registro).
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void marcarDescatalogado(int posicion) throws IOException {
+        if (descatalogados.anadir(posicion)) {
+            registrarEnDiario(entrada(DESCATALOGADO_SI, posicion));
+        }
+    }
+
+    /**
+     * Quita un registro libre (de un producto eliminado) de los dos bitmaps.
+     *
+     * @param posicion posición (número de registro).
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void eliminar(int posicion) throws IOException {
+        ByteBuffer entradas = ByteBuffer.allocate(2 * TAMANO_ENTRADA_DIARIO);
+        anotar(entradas, posicion, -1, false);
+        registrarEnDiario(entradas);
+    }
+
+    /**
+     * Reconstruye ambos bitmaps recorriendo el fichero de productos por bloques y los guarda en el fichero
+     * lateral.
+     */
+    synchronized void reconstruir() {
+        sinStock = new BitmapComprimit();
+        descatalogados = new BitmapComprimit();
+        modificacionesDatos = CAPCALERA.modificaciones();
+
+        if (RUTA_DATOS.exists()) {
+            try (FileChannel fc = FileChannel.open(RUTA_DATOS.toPath(), StandardOpenOption.READ)) {
+                int numRegistros = CapcaleraFitxer.numRegistros(fc);
+                ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+
+                // Leemos bloques de registros completos y miramos únicamente los campos stock y descatalogado
+                for (int registro = 0; registro < numRegistros; registro += REGISTROS_POR_BLOQUE) {
+                    int registrosBloque = Math.min(REGISTROS_POR_BLOQUE, numRegistros - registro);
+                    bloque.clear().limit(registrosBloque * TAMANO_REGISTRO);
+                    long posicion = CapcaleraFitxer.posicion(registro);
+                    CanalFitxer.leerCompleto(fc, bloque, posicion);
+
+                    for (int j = 0; j < registrosBloque; j++) {
+                        int inicio = j * TAMANO_REGISTRO;
+                        if (RegistreProducte.libre(bloque, inicio)) {
+                            continue;
+                        }
+                        if (bloque.getInt(inicio + RegistreProducte.OFFSET_STOCK) == 0) {
+                            sinStock.anadir(registro + j);
+                        }
+                        if (bloque.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) != 0) {
+                            descatalogados.anadir(registro + j);
+                        }
+                    }
+                }
+
+            } catch (IOException e) {
+                System.err.println("Error! No se han podido reconstruir los índices de estado: " + e.getMessage());
+                sinStock = new BitmapComprimit();
+                descatalogados = new BitmapComprimit();
+            }
+        }
+
+        try {
+            guardar();
+        } catch (IOException e) {
+            System.err.println("Error! No se han podido guardar los índices de estado: " + e.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Carga la instantánea del fichero lateral y aplica las entradas del diario. Si no existe, está dañado o
+     * fue generado para otra versión del fichero de productos, se reconstruye.
+     */
+    private void cargar() {
+        entradasDiario = 0;
+        if (!RUTA_INDICE.exists()) {
+            reconstruir();
+            return;
+        }
+
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(RUTA_INDICE), 1 << 16))) {
+            int magico = dis.readInt();
+            dis.readInt();
+            long modificaciones = dis.readLong();
+
+            if (magico != MAGICO || modificaciones != CAPCALERA.modificaciones()) {
+                reconstruir();
+                return;
+            }
+
+            sinStock = BitmapComprimit.leer(dis);
+            descatalogados = BitmapComprimit.leer(dis);
+
+            // Diario: se aplica hasta el final del fichero, descartando una posible entrada incompleta
+            try {
+                while (true) {
+                    byte operacion = dis.readByte();
+                    int posicion = dis.readInt();
+                    switch (operacion) {
+                        case SIN_STOCK_SI -> sinStock.anadir(posicion);
+                        case SIN_STOCK_NO -> sinStock.eliminar(posicion);
+                        case DESCATALOGADO_SI -> descatalogados.anadir(posicion);
+                        case DESCATALOGADO_NO -> descatalogados.eliminar(posicion);
+                        default -> throw new IOException("Entrada de diario no válida.");
+                    }
+                    entradasDiario++;
+                }
+            } catch (EOFException e) {
+                // Fin del diario
+            }
+
+            modificacionesDatos = (int) modificaciones;
+
+        } catch (IOException e) {
+            reconstruir();
+        }
+    }
+
+    /**
+     * Actualiza los dos bitmaps con el estado de un registro y anota en el buffer las entradas del diario de
+     * los bits que han cambiado.
+     *
+     * @param entradas      buffer donde se anotan las entradas del diario.
+     * @param posicion      posición (número de registro).
+     * @param stock         stock actual del registro.
+     * @param descatalogado si el registro está descatalogado.
+     */
+    private void anotar(ByteBuffer entradas, int posicion, int stock, boolean descatalogado) {
+        if (sinStock.actualizar(posicion, stock == 0)) {
+            entradas.put(stock == 0 ? SIN_STOCK_SI : SIN_STOCK_NO).putInt(posicion);
+        }
+        if (descatalogados.actualizar(posicion, descatalogado)) {
+            entradas.put(descatalogado ? DESCATALOGADO_SI : DESCATALOGADO_NO).putInt(posicion);
+        }
+    }
+
+    /**
+     * Codifica una única entrada del diario.
+     *
+     * @param operacion tipo de cambio.
+     * @param posicion  posición del registro.
+     * @return buffer con la entrada.
+     */
+    private static ByteBuffer entrada(byte operacion, int posicion) {
+        return ByteBuffer.allocate(TAMANO_ENTRADA_DIARIO).put(operacion).putInt(posicion);
+    }
+
+    /**
+     * Añade las entradas anotadas al final del diario del fichero lateral. Si el diario ha crecido demasiado
+     * respecto a los bitmaps, reescribe el fichero completo.
+     *
+     * @param entradas buffer con las entradas anotadas.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void registrarEnDiario(ByteBuffer entradas) throws IOException {
+        if (entradas.position() == 0) {
+            return;
+        }
+        entradasDiario += entradas.position() / TAMANO_ENTRADA_DIARIO;
+
+        if (entradasDiario > MINIMO_DIARIO
+                && entradasDiario > sinStock.cardinalidad() + descatalogados.cardinalidad()) {
+            guardar();
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(RUTA_INDICE, "rw")) {
+            raf.seek(raf.length());
+            raf.write(entradas.array(), 0, entradas.position());
+        }
+    }
+
+    /**
+     * Escribe el fichero lateral completo (cabecera y bitmaps) y vacía el diario.
+     *
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void guardar() throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(RUTA_INDICE), 1 << 16))) {
+            dos.writeInt(MAGICO);
+            dos.writeInt(0);
+            dos.writeLong(modificacionesDatos);
+            sinStock.escribir(dos);
+            descatalogados.escribir(dos);
+        }
+        entradasDiario = 0;
+    }
+}
@@ -0,0 +1,472 @@
+package persistencia;
+
+import model.Producte;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Índice secundario persistente sobre el nombre de los productos. Permite búsquedas exactas y por prefijo
+ * (sin distinguir mayúsculas de minúsculas) sin recorrer el fichero de productos.
+ * <p>
+ * En memoria se mantiene un {@link TreeMap} ordenado por el nombre normalizado (sin el relleno de espacios y en
+ * mayúsculas) que asocia cada nombre con la lista ordenada de las posiciones de los registros que lo contienen.
+ * En disco se guarda en un fichero lateral ({@code productos.bin.nom}) formado por:
+ * </p>
+ * <ul>
+ *     <li>una cabecera de 16 bytes: número mágico, número de nombres de la instantánea y número de
+ *     modificaciones del fichero de productos con el que está al día (ver {@link #sincronizar()});</li>
+ *     <li>una instantánea ordenada por nombre: cada nombre seguido de su número de posiciones y las posiciones;</li>
+ *     <li>un diario de cambios posteriores (altas y bajas), que se aplica sobre la instantánea al cargar.</li>
+ * </ul>
+ * <p>
+ * Cada modificación solo añade una entrada al diario. Cuando el diario crece demasiado se reescribe la
+ * instantánea completa. El índice se vuelve a cargar cuando otro gestor modifica el fichero de productos (ver
+ * {@link CapcaleraFitxer#cambiosExternos()}).
+ * </p>
+ */
+class IndexNoms {
+
+    /** Número mágico que identifica los ficheros de índice de nombres ("NOM2"). */
+    private static final int MAGICO = 0x4E4F4D32;
+    /** Tamaño en bytes de la cabecera del fichero de índice. */
+    private static final int TAMANO_CABECERA = 16;
+    /** Marca de una entrada del diario que añade un nombre. */
+    private static final byte ALTA = '+';
+    /** Marca de una entrada del diario que elimina un nombre. */
+    private static final byte BAJA = '-';
+    /** Número mínimo de entradas del diario antes de plantearse reescribir la instantánea. */
+    private static final int MINIMO_DIARIO = 1024;
+    /** Número de registros leídos en cada bloque al reconstruir el índice. */
+    private static final int REGISTROS_POR_BLOQUE = 4096;
+
+    /** Fichero de productos indexado. */
+    private final File RUTA_DATOS;
+    /** Fichero lateral donde se persiste el índice. */
+    private final File RUTA_INDICE;
+    /** Tamaño fijo en bytes de cada registro del fichero de productos. */
+    private final int TAMANO_REGISTRO;
+    /** Cabecera del fichero de productos. */
+    private final CapcaleraFitxer CAPCALERA;
+
+    /** Posiciones (ordenadas) de los registros de cada nombre normalizado. */
+    private TreeMap<String, Posiciones> nombres = new TreeMap<>();
+    /** Número total de posiciones del índice. */
+    private int numPosiciones = 0;
+    /** Número de entradas del diario posteriores a la última instantánea. */
+    private int entradasDiario = 0;
+    /** Número de modificaciones del fichero de productos con el que está al día el fichero lateral. */
+    private int modificacionesDatos = -1;
+    /** Cambios externos de la cabecera que ya se han tenido en cuenta. */
+    private int cambiosExternos;
+
+    /**
+     * Crea el índice de nombres del fichero indicado, cargándolo desde su fichero lateral o reconstruyéndolo si
+     * no existe o está desactualizado.
+     *
+     * @param rutaDatos      fichero de productos a indexar.
+     * @param tamanoRegistro tamaño en bytes de cada registro.
+     * @param capcalera      cabecera del fichero de productos, ya abierta.
+     */
+    IndexNoms(File rutaDatos, int tamanoRegistro, CapcaleraFitxer capcalera) {
+        this.RUTA_DATOS = rutaDatos;
+        this.RUTA_INDICE = new File(rutaDatos.getPath() + ".nom");
+        this.TAMANO_REGISTRO = tamanoRegistro;
+        this.CAPCALERA = capcalera;
+        this.cambiosExternos = capcalera.cambiosExternos();
+        cargar();
+    }
+
+    /**
+     * Normaliza un nombre para utilizarlo como clave del índice: elimina el relleno final y lo pasa a mayúsculas.
+     *
+     * @param nombre nombre formateado o introducido por el usuario.
+     * @return nombre normalizado.
+     */
+    static String normalizar(String nombre) {
+        return nombre.stripTrailing().toUpperCase();
+    }
+
+    /**
+     * Busca los registros cuyo nombre coincide exactamente con el indicado.
+     *
+     * @param nombre nombre a buscar (se normaliza).
+     * @return posiciones de los registros, en orden creciente.
+     */
+    synchronized int[] buscar(String nombre) {
+        comprobarSincronizado();
+
+        Posiciones posiciones = nombres.get(normalizar(nombre));
+        return posiciones == null ? new int[0] : Arrays.copyOf(posiciones.valores, posiciones.total);
+    }
+
+    /**
+     * Busca los registros cuyo nombre comienza por el prefijo indicado.
+     *
+     * @param prefijo prefijo a buscar (se pasa a mayúsculas).
+     * @return posiciones de los registros, en orden creciente.
+     */
+    synchronized int[] buscarPrefijo(String prefijo) {
+        comprobarSincronizado();
+
+        String clave = prefijo.toUpperCase();
+        int[] resultado = new int[16];
+        int total = 0;
+
+        // Todas las claves que comienzan por el prefijo están entre el prefijo y el prefijo seguido del mayor char
+        for (Posiciones posiciones : nombres.subMap(clave, true, clave + Character.MAX_VALUE, true).values()) {
+            if (total + posiciones.total > resultado.length) {
+                resultado = Arrays.copyOf(resultado, Math.max(resultado.length * 2, total + posiciones.total));
+            }
+            System.arraycopy(posiciones.valores, 0, resultado, total, posiciones.total);
+            total += posiciones.total;
+        }
+
+        resultado = Arrays.copyOf(resultado, total);
+        Arrays.sort(resultado);
+        return resultado;
+    }
+
+    /**
+     * Si otro gestor ha modificado el fichero de productos desde la última comprobación, vuelve a cargar el índice
+     * (o lo reconstruye, si el fichero lateral no está al día). Debe llamarse antes de modificar el fichero de
+     * productos.
+     */
+    synchronized void comprobarSincronizado() {
+        int cambios = CAPCALERA.cambiosExternos();
+        if (cambios != cambiosExternos) {
+            cambiosExternos = cambios;
+            cargar();
+        }
+    }
+
+    /**
+     * Marca el fichero lateral como al día con el número de modificaciones actual del fichero de productos, para
+     * que otro gestor pueda cargarlo sin reconstruirlo. El gestor lo llama al terminar cada modificación, después de
+     * actualizar la cabecera y el fichero lateral.
+     *
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void sincronizar() throws IOException {
+        comprobarSincronizado();
+        int actuales = CAPCALERA.modificaciones();
+        if (actuales != modificacionesDatos && RUTA_INDICE.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(RUTA_INDICE, "rw")) {
+                raf.seek(8);
+                raf.writeLong(actuales);
+            }
+            modificacionesDatos = actuales;
+        }
+    }
+
+    /**
+     * Añade una entrada al índice y la registra en el diario. Debe llamarse después de haber escrito el
+     * registro en el fichero de productos.
+     *
+     * @param nombre   nombre del producto.
+     * @param posicion posición (número de registro).
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void anadir(String nombre, int posicion) throws IOException {
+        String clave = normalizar(nombre);
+        anadirEnMemoria(clave, posicion);
+        registrarEnDiario(entradaDiario(ALTA, clave, posicion), 1);
+    }
+
+    /**
+     * Añade al índice un bloque de productos escritos en posiciones consecutivas, registrándolos en el diario
+     * con una única escritura.
+     *
+     * @param productos       productos añadidos (con el nombre ya formateado).
+     * @param primeraPosicion posición (número de registro) del primer producto.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void anadirBloque(List<Producte> productos, int primeraPosicion) throws IOException {
+        ByteArrayOutputStream entradas = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(entradas);
+        int posicion = primeraPosicion;
+
+        for (Producte p : productos) {
+            String clave = normalizar(p.getNombre());
+            anadirEnMemoria(clave, posicion);
+            dos.writeByte(ALTA);
+            dos.writeUTF(clave);
+            dos.writeInt(posicion);
+            posicion++;
+        }
+
+        registrarEnDiario(entradas.toByteArray(), productos.size());
+    }
+
+    /**
+     * Elimina una entrada del índice y lo registra en el diario.
+     *
+     * @param nombre   nombre del producto.
+     * @param posicion posición (número de registro).
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void eliminar(String nombre, int posicion) throws IOException {
+        String clave = normalizar(nombre);
+        eliminarEnMemoria(clave, posicion);
+        registrarEnDiario(entradaDiario(BAJA, clave, posicion), 1);
+    }
+
+    /**
+     * Reconstruye el índice recorriendo el fichero de productos por bloques y lo guarda en el fichero lateral.
+     */
+    synchronized void reconstruir() {
+        nombres = new TreeMap<>();
+        numPosiciones = 0;
+        modificacionesDatos = CAPCALERA.modificaciones();
+
+        if (RUTA_DATOS.exists()) {
+            try (FileChannel fc = FileChannel.open(RUTA_DATOS.toPath(), StandardOpenOption.READ)) {
+                int numRegistros = CapcaleraFitxer.numRegistros(fc);
+                ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+
+                // Leemos bloques de registros completos y decodificamos únicamente el nombre de cada uno
+                for (int registro = 0; registro < numRegistros; registro += REGISTROS_POR_BLOQUE) {
+                    int registrosBloque = Math.min(REGISTROS_POR_BLOQUE, numRegistros - registro);
+                    bloque.clear().limit(registrosBloque * TAMANO_REGISTRO);
+                    long posicion = CapcaleraFitxer.posicion(registro);
+                    CanalFitxer.leerCompleto(fc, bloque, posicion);
+
+                    for (int j = 0; j < registrosBloque; j++) {
+                        if (RegistreProducte.libre(bloque, j * TAMANO_REGISTRO)) {
+                            continue;
+                        }
+                        String nombre = RegistreProducte.leerNombre(bloque, j * TAMANO_REGISTRO);
+                        anadirEnMemoria(normalizar(nombre), registro + j);
+                    }
+                }
+
+            } catch (IOException e) {
+                System.err.println("Error! No se ha podido reconstruir el índice de nombres: " + e.getMessage());
+                nombres = new TreeMap<>();
+                numPosiciones = 0;
+            }
+        }
+
+        try {
+            guardar();
+        } catch (IOException e) {
+            System.err.println("Error! No se ha podido guardar el índice de nombres: " + e.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Carga la instantánea del fichero lateral y aplica las entradas del diario. Si no existe, está dañado o
+     * fue generado para otra versión del fichero de productos, se reconstruye.
+     */
+    private void cargar() {
+        nombres = new TreeMap<>();
+        numPosiciones = 0;
+        entradasDiario = 0;
+        if (!RUTA_INDICE.exists()) {
+            reconstruir();
+            return;
+        }
+
+        try (DataInputStream dis = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(RUTA_INDICE), 1 << 16))) {
+            int magico = dis.readInt();
+            int numNombres = dis.readInt();
+            long modificaciones = dis.readLong();
+
+            if (magico != MAGICO || modificaciones != CAPCALERA.modificaciones()) {
+                reconstruir();
+                return;
+            }
+
+            // Instantánea
+            for (int i = 0; i < numNombres; i++) {
+                String clave = dis.readUTF();
+                Posiciones posiciones = new Posiciones(dis.readInt());
+                while (posiciones.total < posiciones.valores.length) {
+                    posiciones.valores[posiciones.total++] = dis.readInt();
+                }
+                nombres.put(clave, posiciones);
+                numPosiciones += posiciones.total;
+            }
+
+            // Diario: se aplica hasta el final del fichero. Una entrada incompleta al final (escritura
+            // interrumpida) se descarta.
+            try {
+                while (true) {
+                    byte operacion = dis.readByte();
+                    String clave = dis.readUTF();
+                    int posicion = dis.readInt();
+                    if (operacion == ALTA) {
+                        anadirEnMemoria(clave, posicion);
+                    } else {
+                        eliminarEnMemoria(clave, posicion);
+                    }
+                    entradasDiario++;
+                }
+            } catch (EOFException e) {
+                // Fin del diario
+            }
+
+            modificacionesDatos = (int) modificaciones;
+
+        } catch (IOException e) {
+            reconstruir();
+        }
+    }
+
+    /**
+     * Codifica una entrada del diario.
+     *
+     * @param operacion {@link #ALTA} o {@link #BAJA}.
+     * @param clave     nombre normalizado.
+     * @param posicion  posición del registro.
+     * @return bytes de la entrada.
+     * @throws IOException si ocurre un error al codificarla.
+     */
+    private static byte[] entradaDiario(byte operacion, String clave, int posicion) throws IOException {
+        ByteArrayOutputStream entrada = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(entrada);
+        dos.writeByte(operacion);
+        dos.writeUTF(clave);
+        dos.writeInt(posicion);
+        return entrada.toByteArray();
+    }
+
+    /**
+     * Añade entradas al final del diario del fichero lateral. Si el diario ha crecido demasiado respecto a la
+     * instantánea, reescribe el fichero completo.
+     *
+     * @param entradas    bytes de las entradas ya codificadas.
+     * @param numEntradas número de entradas.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void registrarEnDiario(byte[] entradas, int numEntradas) throws IOException {
+        entradasDiario += numEntradas;
+
+        if (entradasDiario > MINIMO_DIARIO && entradasDiario > numPosiciones) {
+            guardar();
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(RUTA_INDICE, "rw")) {
+            raf.seek(raf.length());
+            raf.write(entradas);
+        }
+    }
+
+    /**
+     * Escribe el fichero lateral completo (cabecera e instantánea) y vacía el diario.
+     *
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void guardar() throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(RUTA_INDICE), 1 << 16))) {
+            dos.writeInt(MAGICO);
+            dos.writeInt(nombres.size());
+            dos.writeLong(modificacionesDatos);
+
+            for (Map.Entry<String, Posiciones> entrada : nombres.entrySet()) {
+                Posiciones posiciones = entrada.getValue();
+                dos.writeUTF(entrada.getKey());
+                dos.writeInt(posiciones.total);
+                for (int i = 0; i < posiciones.total; i++) {
+                    dos.writeInt(posiciones.valores[i]);
+                }
+            }
+        }
+        entradasDiario = 0;
+    }
+
+    /**
+     * Añade la posición a la lista (ordenada) de posiciones del nombre.
+     *
+     * @param clave    nombre normalizado.
+     * @param posicion posición del registro.
+     */
+    private void anadirEnMemoria(String clave, int posicion) {
+        if (nombres.computeIfAbsent(clave, c -> new Posiciones(1)).anadir(posicion)) {
+            numPosiciones++;
+        }
+    }
+
+    /**
+     * Elimina la posición de la lista de posiciones del nombre.
+     *
+     * @param clave    nombre normalizado.
+     * @param posicion posición del registro.
+     */
+    private void eliminarEnMemoria(String clave, int posicion) {
+        Posiciones posiciones = nombres.get(clave);
+        if (posiciones != null && posiciones.eliminar(posicion)) {
+            numPosiciones--;
+            if (posiciones.total == 0) {
+                nombres.remove(clave);
+            }
+        }
+    }
+
+    /**
+     * Lista ordenada y ampliable de las posiciones de un nombre. Las altas suelen ir al final (los registros
+     * nuevos ocupan las últimas posiciones), así que añadir una posición no copia la lista salvo cuando hay que
+     * ampliar su capacidad, que se duplica.
+     */
+    private static final class Posiciones {
+
+        /** Posiciones en orden creciente; solo son válidas las {@link #total} primeras. */
+        private int[] valores;
+        /** Número de posiciones de la lista. */
+        private int total;
+
+        Posiciones(int capacidad) {
+            this.valores = new int[capacidad];
+        }
+
+        /**
+         * @param posicion posición a añadir.
+         * @return {@code false} si la posición ya estaba en la lista.
+         */
+        boolean anadir(int posicion) {
+            int i = total;
+            if (total > 0 && valores[total - 1] >= posicion) {
+                i = Arrays.binarySearch(valores, 0, total, posicion);
+                if (i >= 0) {
+                    return false;
+                }
+                i = -(i + 1);
+            }
+
+            if (total == valores.length) {
+                valores = Arrays.copyOf(valores, Math.max(4, total * 2));
+            }
+            System.arraycopy(valores, i, valores, i + 1, total - i);
+            valores[i] = posicion;
+            total++;
+            return true;
+        }
+
+        /**
+         * @param posicion posición a eliminar.
+         * @return {@code true} si la posición estaba en la lista.
+         */
+        boolean eliminar(int posicion) {
+            int i = Arrays.binarySearch(valores, 0, total, posicion);
+            if (i < 0) {
+                return false;
+            }
+            System.arraycopy(valores, i + 1, valores, i, total - i - 1);
+            total--;
+            return true;
+        }
+    }
+}
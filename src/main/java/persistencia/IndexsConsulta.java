@@ -0,0 +1,32 @@
+package persistencia;
+
+/**
+ * Índices que puede utilizar una {@link Condicio} para obtener las posiciones candidatas sin recorrer el
+ * fichero. Cada método devuelve posiciones (en número de registro) en orden creciente.
+ */
+interface IndexsConsulta {
+
+    /**
+     * @param codigo código del producto.
+     * @return posición del registro con ese código (vacío si no existe).
+     */
+    int[] codigo(int codigo);
+
+    /**
+     * @param nombre nombre (se ignoran mayúsculas/minúsculas).
+     * @return posiciones de los registros con ese nombre.
+     */
+    int[] nombre(String nombre);
+
+    /**
+     * @param prefijo comienzo del nombre (se ignoran mayúsculas/minúsculas).
+     * @return posiciones de los registros cuyo nombre comienza por el prefijo.
+     */
+    int[] prefijo(String prefijo);
+
+    /** @return posiciones de los registros sin stock que no están descatalogados. */
+    int[] sinStock();
+
+    /** @return posiciones de los registros descatalogados. */
+    int[] descatalogados();
+}
@@ -0,0 +1,283 @@
+package persistencia;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Lista persistente de los registros libres del fichero de productos (los de productos eliminados con
+ * {@code esborrarProducte}).
+ * <p>
+ * Las altas reutilizan primero los registros libres, así que eliminar un producto no obliga a reescribir el
+ * fichero. Como la posición de un producto ya no indica el orden de alta, el siguiente código se guarda en la
+ * cabecera del fichero de productos (ver {@link CapcaleraFitxer}); un código eliminado no se vuelve a asignar.
+ * </p>
+ * <p>
+ * Formato del fichero lateral ({@code productos.bin.lliures}): una cabecera de 24 bytes (número mágico, número de
+ * registros libres, número de modificaciones del fichero de productos con el que está al día y 8 bytes reservados)
+ * seguida de las posiciones libres como una pila. Extraer o añadir una posición solo escribe la cabecera y, como
+ * mucho, una entrada. Si el fichero lateral no existe o no corresponde al fichero de productos, se reconstruye
+ * recorriéndolo; también se vuelve a cargar cuando otro gestor modifica el fichero de productos.
+ * </p>
+ */
+class LlistaLliures {
+
+    /** Número mágico que identifica los ficheros de registros libres ("LLI2"). */
+    private static final int MAGICO = 0x4C4C4932;
+    /** Tamaño en bytes de la cabecera del fichero lateral. */
+    private static final int TAMANO_CABECERA = 24;
+    /** Número de registros leídos en cada bloque al reconstruir la lista. */
+    private static final int REGISTROS_POR_BLOQUE = 4096;
+
+    /** Fichero de productos. */
+    private final File RUTA_DATOS;
+    /** Fichero lateral donde se persiste la lista. */
+    private final File RUTA_LISTA;
+    /** Tamaño fijo en bytes de cada registro del fichero de productos. */
+    private final int TAMANO_REGISTRO;
+    /** Cabecera del fichero de productos. */
+    private final CapcaleraFitxer CAPCALERA;
+
+    /** Posiciones de los registros libres; la última es la siguiente que se reutiliza. */
+    private int[] libres = new int[16];
+    /** Número de posiciones libres. */
+    private int total = 0;
+    /** Número de modificaciones del fichero de productos con el que está al día el fichero lateral. */
+    private int modificacionesDatos = -1;
+    /** Cambios externos de la cabecera que ya se han tenido en cuenta. */
+    private int cambiosExternos;
+
+    /**
+     * Crea la lista de registros libres del fichero indicado, cargándola desde su fichero lateral o
+     * reconstruyéndola si no existe o está desactualizada.
+     *
+     * @param rutaDatos      fichero de productos.
+     * @param tamanoRegistro tamaño en bytes de cada registro.
+     * @param capcalera      cabecera del fichero de productos, ya abierta.
+     */
+    LlistaLliures(File rutaDatos, int tamanoRegistro, CapcaleraFitxer capcalera) {
+        this.RUTA_DATOS = rutaDatos;
+        this.RUTA_LISTA = new File(rutaDatos.getPath() + ".lliures");
+        this.TAMANO_REGISTRO = tamanoRegistro;
+        this.CAPCALERA = capcalera;
+        this.cambiosExternos = capcalera.cambiosExternos();
+        cargar();
+    }
+
+    /**
+     * Extrae un registro libre para reutilizarlo.
+     *
+     * @return posición (número de registro) del registro libre o -1 si no hay ninguno.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized int extraer() throws IOException {
+        comprobarSincronizado();
+        if (total == 0) {
+            return -1;
+        }
+
+        total--;
+        escribirCabecera();
+        return libres[total];
+    }
+
+    /**
+     * Añade un registro libre a la lista. Debe llamarse después de haber marcado el registro como libre en el
+     * fichero de productos.
+     *
+     * @param posicion posición (número de registro) del registro liberado.
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void anadir(int posicion) throws IOException {
+        asegurarCapacidad(total + 1);
+        libres[total++] = posicion;
+
+        try (FileChannel fc = FileChannel.open(RUTA_LISTA.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            CanalFitxer.escribirCompleto(fc, ByteBuffer.allocate(4).putInt(posicion).flip(),
+                    TAMANO_CABECERA + (long) (total - 1) * 4);
+            CanalFitxer.escribirCompleto(fc, cabecera(), 0);
+        }
+    }
+
+    /**
+     * Marca el fichero lateral como al día con el número de modificaciones actual del fichero de productos, para
+     * que otro gestor pueda cargarlo sin reconstruirlo. El gestor lo llama al terminar cada modificación, después de
+     * actualizar la cabecera y el fichero lateral.
+     *
+     * @throws IOException si no se puede actualizar el fichero lateral.
+     */
+    synchronized void sincronizar() throws IOException {
+        comprobarSincronizado();
+        int actuales = CAPCALERA.modificaciones();
+        if (actuales != modificacionesDatos) {
+            modificacionesDatos = actuales;
+            escribirCabecera();
+        }
+    }
+
+    /**
+     * Vacía la lista después de reescribir el fichero de productos sin registros libres.
+     *
+     * @throws IOException si no se puede guardar el fichero lateral.
+     */
+    synchronized void reemplazar() throws IOException {
+        total = 0;
+        modificacionesDatos = CAPCALERA.modificaciones();
+        guardar();
+    }
+
+    /**
+     * @return número de registros libres.
+     */
+    synchronized int numLibres() {
+        return total;
+    }
+
+    /**
+     * Reconstruye la lista recorriendo el fichero de productos por bloques y la guarda en el fichero lateral.
+     */
+    synchronized void reconstruir() {
+        total = 0;
+        modificacionesDatos = CAPCALERA.modificaciones();
+
+        if (RUTA_DATOS.exists()) {
+            try (FileChannel fc = FileChannel.open(RUTA_DATOS.toPath(), StandardOpenOption.READ)) {
+                int numRegistros = CapcaleraFitxer.numRegistros(fc);
+                ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+
+                // Leemos bloques de registros completos y miramos únicamente el código de cada uno
+                for (int registro = 0; registro < numRegistros; registro += REGISTROS_POR_BLOQUE) {
+                    int registrosBloque = Math.min(REGISTROS_POR_BLOQUE, numRegistros - registro);
+                    bloque.clear().limit(registrosBloque * TAMANO_REGISTRO);
+                    CanalFitxer.leerCompleto(fc, bloque, CapcaleraFitxer.posicion(registro));
+
+                    for (int j = 0; j < registrosBloque; j++) {
+                        if (RegistreProducte.libre(bloque, j * TAMANO_REGISTRO)) {
+                            asegurarCapacidad(total + 1);
+                            libres[total++] = registro + j;
+                        }
+                    }
+                }
+
+            } catch (IOException e) {
+                System.err.println("Error! No se ha podido reconstruir la lista de registros libres: "
+                        + e.getMessage());
+                total = 0;
+            }
+        }
+
+        try {
+            guardar();
+        } catch (IOException e) {
+            System.err.println("Error! No se ha podido guardar la lista de registros libres: " + e.getMessage());
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Carga la lista desde el fichero lateral. Si no existe, está dañado o fue generado para otra versión del
+     * fichero de productos, se reconstruye.
+     */
+    private void cargar() {
+        total = 0;
+        if (!RUTA_LISTA.exists()) {
+            reconstruir();
+            return;
+        }
+
+        try (FileChannel fc = FileChannel.open(RUTA_LISTA.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+            CanalFitxer.leerCompleto(fc, cabecera, 0);
+            cabecera.flip();
+
+            int magico = cabecera.getInt();
+            int numLibres = cabecera.getInt();
+            long modificaciones = cabecera.getLong();
+
+            if (magico != MAGICO || modificaciones != CAPCALERA.modificaciones() || numLibres < 0
+                    || fc.size() < TAMANO_CABECERA + (long) numLibres * 4) {
+                reconstruir();
+                return;
+            }
+
+            ByteBuffer posiciones = ByteBuffer.allocate(numLibres * 4);
+            CanalFitxer.leerCompleto(fc, posiciones, TAMANO_CABECERA);
+            posiciones.flip();
+
+            asegurarCapacidad(numLibres);
+            posiciones.asIntBuffer().get(libres, 0, numLibres);
+            total = numLibres;
+            modificacionesDatos = (int) modificaciones;
+
+        } catch (IOException e) {
+            reconstruir();
+        }
+    }
+
+    /**
+     * Si otro gestor ha modificado el fichero de productos desde la última comprobación, vuelve a cargar la lista
+     * (o la reconstruye, si el fichero lateral no está al día) antes de utilizarla.
+     */
+    private void comprobarSincronizado() {
+        int cambios = CAPCALERA.cambiosExternos();
+        if (cambios != cambiosExternos) {
+            cambiosExternos = cambios;
+            cargar();
+        }
+    }
+
+    /**
+     * @return cabecera del fichero lateral con los valores actuales.
+     */
+    private ByteBuffer cabecera() {
+        return ByteBuffer.allocate(TAMANO_CABECERA)
+                .putInt(MAGICO).putInt(total).putLong(modificacionesDatos).putLong(0L)
+                .flip();
+    }
+
+    /**
+     * Escribe únicamente la cabecera del fichero lateral.
+     *
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void escribirCabecera() throws IOException {
+        try (FileChannel fc = FileChannel.open(RUTA_LISTA.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE)) {
+            CanalFitxer.escribirCompleto(fc, cabecera(), 0);
+        }
+    }
+
+    /**
+     * Escribe el fichero lateral completo a partir del contenido en memoria.
+     *
+     * @throws IOException si ocurre un error de escritura.
+     */
+    private void guardar() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(TAMANO_CABECERA + total * 4);
+        buffer.put(cabecera());
+        buffer.asIntBuffer().put(libres, 0, total);
+        buffer.position(buffer.capacity()).flip();
+
+        try (FileChannel fc = FileChannel.open(RUTA_LISTA.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CanalFitxer.escribirCompleto(fc, buffer, 0);
+        }
+    }
+
+    /**
+     * Garantiza que el array en memoria puede contener al menos el número de posiciones indicado.
+     *
+     * @param capacidad número de posiciones necesario.
+     */
+    private void asegurarCapacidad(int capacidad) {
+        if (capacidad > libres.length) {
+            libres = Arrays.copyOf(libres, Math.max(capacidad, libres.length * 2));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package persistencia;
+
+import model.MovimentStock;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Lote de movimientos de stock agrupados por registro, compartido por los gestores para aplicar
+ * {@code modificarStocks}.
+ * <p>
+ * Los movimientos se ordenan por la posición de su registro (conservando el orden original entre los movimientos
+ * de un mismo producto), de modo que cada registro afectado se lee y se escribe una única vez y el fichero se
+ * recorre de forma secuencial. Los movimientos de un mismo producto se validan en orden sobre el stock que van
+ * dejando los anteriores, con las mismas reglas que {@code modificarStock}.
+ * </p>
+ */
+final class LotMoviments {
+
+    /** Movimientos del lote en su orden original. */
+    private final List<MovimentStock> movimientos;
+    /** Movimientos con registro ordenados por posición: {@code (posición << 32) | índice del movimiento}. */
+    private final long[] orden;
+    /** Número de movimientos con registro. */
+    private final int numMovimientos;
+    /** Posiciones distintas de los registros afectados, en orden creciente. */
+    private final int[] posiciones;
+    /** Código que debe contener cada registro afectado. */
+    private final int[] codigos;
+    /** Número de registros afectados. */
+    private final int numRegistros;
+    /** Stock resultante de cada registro afectado, calculado por {@link #validar(int[])}. */
+    private final int[] stocks;
+    /** Motivo del error de cada movimiento no válido, indexado por su posición en el lote. */
+    private final Map<Integer, String> errores = new TreeMap<>();
+
+    /**
+     * Agrupa los movimientos por registro.
+     *
+     * @param movimientos movimientos a aplicar.
+     * @param localizar   función que devuelve la posición del registro de un código, o -1 si no existe.
+     */
+    LotMoviments(List<MovimentStock> movimientos, IntUnaryOperator localizar) {
+        this.movimientos = movimientos;
+
+        long[] orden = new long[movimientos.size()];
+        int n = 0;
+        for (int i = 0; i < movimientos.size(); i++) {
+            int codigo = movimientos.get(i).getCodigo();
+            int posicion = codigo < 1 ? -1 : localizar.applyAsInt(codigo);
+            if (posicion < 0) {
+                errores.put(i, "No existe ningún producto registrado con el código \'" + codigo + "\'.");
+            } else {
+                orden[n++] = ((long) posicion << 32) | i;
+            }
+        }
+        Arrays.sort(orden, 0, n);
+        this.orden = orden;
+        this.numMovimientos = n;
+
+        // Posiciones distintas de los registros afectados
+        int[] posiciones = new int[n];
+        int[] codigos = new int[n];
+        int distintas = 0;
+        for (int i = 0; i < n; i++) {
+            int posicion = (int) (orden[i] >>> 32);
+            if (distintas == 0 || posiciones[distintas - 1] != posicion) {
+                posiciones[distintas] = posicion;
+                codigos[distintas++] = movimientos.get((int) orden[i]).getCodigo();
+            }
+        }
+        this.posiciones = posiciones;
+        this.codigos = codigos;
+        this.numRegistros = distintas;
+        this.stocks = new int[distintas];
+    }
+
+    /**
+     * @return número de registros distintos afectados por el lote.
+     */
+    int numRegistros() {
+        return numRegistros;
+    }
+
+    /**
+     * @param i índice del registro afectado (de 0 a {@link #numRegistros()} - 1).
+     * @return posición del registro, en orden creciente según {@code i}.
+     */
+    int posicion(int i) {
+        return posiciones[i];
+    }
+
+    /**
+     * @param i índice del registro afectado (de 0 a {@link #numRegistros()} - 1).
+     * @return código que debe contener el registro.
+     */
+    int codigo(int i) {
+        return codigos[i];
+    }
+
+    /**
+     * @param i índice del registro afectado (de 0 a {@link #numRegistros()} - 1).
+     * @return stock resultante del registro después de aplicar sus movimientos.
+     */
+    int stock(int i) {
+        return stocks[i];
+    }
+
+    /**
+     * @return posiciones distintas de los registros afectados, en orden creciente.
+     */
+    int[] posiciones() {
+        return posiciones;
+    }
+
+    /**
+     * @return stock resultante de cada registro afectado.
+     */
+    int[] stocks() {
+        return stocks;
+    }
+
+    /**
+     * Valida todos los movimientos contra el stock actual de sus registros y calcula el stock resultante.
+     * Un movimiento no válido se descarta y los siguientes del mismo producto se validan sin él.
+     *
+     * @param stocksActuales stock actual de cada registro afectado, en el orden de {@link #posicion(int)}.
+     * @throws MovimentsNoValidsException si algún movimiento no es válido.
+     */
+    void validar(int[] stocksActuales) throws MovimentsNoValidsException {
+        int registro = -1;
+        int stock = 0;
+
+        for (int i = 0; i < numMovimientos; i++) {
+            int posicion = (int) (orden[i] >>> 32);
+            int indice = (int) orden[i];
+
+            if (registro < 0 || posiciones[registro] != posicion) {
+                registro++;
+                stock = stocksActuales[registro];
+            }
+
+            // Igual que en modificarStock, el stock resultante no puede ser negativo (ni desbordarse)
+            long nuevoStock = (long) stock + movimientos.get(indice).getDelta();
+            if (nuevoStock < 0 || nuevoStock > Integer.MAX_VALUE) {
+                errores.put(indice, "El nuevo valor de Stock no es válido.");
+            } else {
+                stock = (int) nuevoStock;
+            }
+            stocks[registro] = stock;
+        }
+
+        if (!errores.isEmpty()) {
+            throw new MovimentsNoValidsException(errores);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package persistencia;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Excepción lanzada cuando uno o más movimientos de un lote de stock no son válidos. En ese caso no se aplica
+ * ningún movimiento del lote.
+ */
+public class MovimentsNoValidsException extends StockNoValidException {
+
+    /** Motivo del error de cada movimiento no válido, indexado por su posición en el lote. */
+    private final Map<Integer, String> errores;
+
+    /**
+     * @param errores motivo del error de cada movimiento no válido, indexado por su posición en el lote.
+     */
+    public MovimentsNoValidsException(Map<Integer, String> errores) {
+        super("Hay " + errores.size() + " movimientos de stock no válidos. No se ha aplicado ninguno.");
+        this.errores = Collections.unmodifiableMap(errores);
+    }
+
+    /** @return motivo del error de cada movimiento no válido, indexado por su posición en el lote. */
+    public Map<Integer, String> getErrores() {
+        return errores;
+    }
+}
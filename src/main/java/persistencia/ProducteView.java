@@ -0,0 +1,153 @@
+package persistencia;
+
+import model.Producte;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Vista de solo lectura sobre un registro de producto que lee cada campo directamente de los bytes del registro
+ * (ver {@link RegistreProducte}), sin decodificarlo ni crear ningún objeto.
+ * <p>
+ * Los recorridos con {@link Gestionable#visita(Condicio, java.util.function.Consumer)} reutilizan una misma vista
+ * para todos los registros: antes de cada llamada la sitúan sobre el registro siguiente del bloque leído, así que
+ * recorrer el fichero no reserva memoria por registro. Por eso la vista solo es válida durante la llamada en la que
+ * se recibe; para conservar un producto hay que materializarlo con {@link #aProducte()}.
+ * </p>
+ * <p>
+ * El nombre se compara sin decodificarlo con {@link #nombreIgual(byte[])} y {@link #nombreEmpiezaPor(byte[])},
+ * a partir de un texto codificado una sola vez con {@link #codificarNombre(String)}.
+ * </p>
+ */
+public final class ProducteView {
+
+    /** Buffer (bloque leído o segmento mapeado) que contiene el registro actual. */
+    private ByteBuffer buffer;
+    /** Posición (en bytes) donde comienza el registro actual dentro del buffer. */
+    private int inicio;
+
+    ProducteView() {}
+
+    /**
+     * Sitúa la vista sobre un registro.
+     *
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return esta vista.
+     */
+    ProducteView situar(ByteBuffer buffer, int inicio) {
+        this.buffer = buffer;
+        this.inicio = inicio;
+        return this;
+    }
+
+    /** @return código del producto. */
+    public int codigo() {
+        return buffer.getInt(inicio + RegistreProducte.OFFSET_CODIGO);
+    }
+
+    /** @return precio del producto. */
+    public double precio() {
+        return buffer.getDouble(inicio + RegistreProducte.OFFSET_PRECIO);
+    }
+
+    /** @return stock del producto. */
+    public int stock() {
+        return buffer.getInt(inicio + RegistreProducte.OFFSET_STOCK);
+    }
+
+    /** @return {@code true} si el producto está descatalogado. */
+    public boolean descatalogado() {
+        return buffer.get(inicio + RegistreProducte.OFFSET_DESCATALOGADO) != 0;
+    }
+
+    /**
+     * Compara el nombre del producto con un nombre codificado con {@link #codificarNombre(String)}, ignorando
+     * mayúsculas/minúsculas y sin decodificarlo.
+     *
+     * @param nombre nombre codificado.
+     * @return {@code true} si coinciden.
+     */
+    public boolean nombreIgual(byte[] nombre) {
+        return RegistreProducte.nombreIgual(buffer, inicio, nombre);
+    }
+
+    /**
+     * Comprueba si el nombre del producto comienza por un prefijo codificado con {@link #codificarPrefijo(String)},
+     * ignorando mayúsculas/minúsculas y sin decodificarlo.
+     *
+     * @param prefijo prefijo codificado.
+     * @return {@code true} si el nombre comienza por el prefijo.
+     */
+    public boolean nombreEmpiezaPor(byte[] prefijo) {
+        return RegistreProducte.nombreEmpiezaPor(buffer, inicio, prefijo);
+    }
+
+    /**
+     * Copia los bytes del nombre (UTF-8 modificado, con el relleno de espacios) en el array indicado.
+     *
+     * @param destino array de al menos {@link #longitudNombre()} bytes.
+     * @return número de bytes copiados.
+     */
+    public int copiarNombre(byte[] destino) {
+        int longitud = longitudNombre();
+        buffer.get(inicio + RegistreProducte.OFFSET_NOMBRE + 2, destino, 0, longitud);
+        return longitud;
+    }
+
+    /** @return número de bytes del nombre codificado (50 en los registros escritos por los gestores). */
+    public int longitudNombre() {
+        return buffer.getShort(inicio + RegistreProducte.OFFSET_NOMBRE) & 0xFFFF;
+    }
+
+    /**
+     * Decodifica el nombre. A diferencia del resto de métodos, crea una cadena.
+     *
+     * @return nombre tal y como está almacenado (con el relleno de espacios).
+     */
+    public String nombre() {
+        return RegistreProducte.leerNombre(buffer, inicio);
+    }
+
+    /**
+     * Materializa el registro actual en un {@link Producte} independiente de la vista.
+     *
+     * @return producto leído.
+     */
+    public Producte aProducte() {
+        return RegistreProducte.leer(buffer, inicio);
+    }
+
+    /**
+     * Codifica un nombre para compararlo con {@link #nombreIgual(byte[])}. Debe hacerse una sola vez, antes del
+     * recorrido.
+     *
+     * @param nombre nombre a buscar.
+     * @return nombre formateado y codificado como en los registros.
+     */
+    public static byte[] codificarNombre(String nombre) {
+        return RegistreProducte.codificar(RegistreProducte.formatearNombre(nombre));
+    }
+
+    /**
+     * Codifica un prefijo para compararlo con {@link #nombreEmpiezaPor(byte[])}. Debe hacerse una sola vez, antes
+     * del recorrido.
+     *
+     * @param prefijo comienzo del nombre a buscar.
+     * @return prefijo codificado como en los registros.
+     */
+    public static byte[] codificarPrefijo(String prefijo) {
+        return RegistreProducte.codificar(prefijo.toUpperCase());
+    }
+
+    /** @return representación textual legible del registro (decodifica el nombre). */
+    @Override
+    public String toString() {
+        return "ProducteView{" +
+                "codigo=" + codigo() +
+                ", nombre='" + nombre().strip() + '\'' +
+                ", precio=" + precio() +
+                ", stock=" + stock() +
+                ", descatalogado=" + descatalogado() +
+                '}';
+    }
+}
@@ -0,0 +1,325 @@
+package persistencia;
+
+import model.Producte;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.StreamSupport;
+
+/**
+ * Recorrido completo de un fichero de productos que puede repartirse entre varios hilos del {@code ForkJoinPool}.
+ * <p>
+ * El rango de registros se divide en tramos de bloques completos (alineados a los 69 bytes de cada registro) y
+ * cada tramo se lee por bloques con lecturas posicionales {@code FileChannel.read(buffer, posicion)}, que pueden
+ * hacerse a la vez sobre el mismo canal. La condición se evalúa sobre los bytes del registro y solo se decodifican
+ * los coincidentes. Como el {@code Spliterator} es ordenado, los resultados de todos los tramos se unen en el
+ * orden del fichero, y después se ordenan por código: al reutilizar registros libres, el orden del fichero deja de
+ * ser el de los códigos (si no se han reutilizado, la lista ya está ordenada y ordenarla es lineal).
+ * </p>
+ */
+final class RecorregutParallel implements Spliterator<Producte> {
+
+    /** Tamaño fijo en bytes de cada registro de producto. */
+    private static final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Número de registros que se leen en cada acceso al fichero; los tramos son múltiplos de este valor. */
+    static final int REGISTROS_POR_BLOQUE = 8192;
+
+    /** Canal abierto sobre el fichero de productos, compartido por todos los tramos. */
+    private final FileChannel canal;
+    /** Condición que deben cumplir los registros. */
+    private final CondicioRegistre condicion;
+    /** Número mínimo de registros de un tramo para seguir dividiéndolo. */
+    private final int registrosMinimos;
+    /** Posición del siguiente registro a leer. */
+    private int primero;
+    /** Posición siguiente al último registro del tramo. */
+    private final int fin;
+
+    /** Bloque con los últimos registros leídos (se reserva al empezar a leer el tramo). */
+    private ByteBuffer bloque;
+    /** Posición del primer registro del bloque leído. */
+    private int primeroBloque = 0;
+    /** Número de registros del bloque leído. */
+    private int registrosBloque = 0;
+
+    /**
+     * @param canal            canal abierto sobre el fichero de productos.
+     * @param condicion        condición que deben cumplir los registros.
+     * @param primero          posición del primer registro del tramo.
+     * @param fin              posición siguiente al último registro del tramo.
+     * @param registrosMinimos número mínimo de registros de un tramo para seguir dividiéndolo.
+     */
+    private RecorregutParallel(FileChannel canal, CondicioRegistre condicion, int primero, int fin,
+                               int registrosMinimos) {
+        this.canal = canal;
+        this.condicion = condicion;
+        this.primero = primero;
+        this.fin = fin;
+        this.registrosMinimos = Math.max(registrosMinimos, REGISTROS_POR_BLOQUE);
+    }
+
+    /**
+     * Busca todos los registros del fichero que cumplen la condición.
+     *
+     * @param canal            canal abierto sobre el fichero de productos.
+     * @param numRegistros     número de registros del fichero.
+     * @param condicion        condición que deben cumplir los registros.
+     * @param registrosMinimos número mínimo de registros que recorre cada tarea.
+     * @param paralelo         {@code true} para repartir el recorrido entre los hilos del {@code ForkJoinPool},
+     *                         {@code false} para recorrerlo en el hilo actual.
+     * @return productos coincidentes en orden de código.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    static List<Producte> buscar(FileChannel canal, int numRegistros, CondicioRegistre condicion,
+                                 int registrosMinimos, boolean paralelo) throws IOException {
+        RecorregutParallel recorrido = new RecorregutParallel(canal, condicion, 0, numRegistros, registrosMinimos);
+        try {
+            List<Producte> productos = new ArrayList<>(StreamSupport.stream(recorrido, paralelo).toList());
+            productos.sort(Comparator.comparingInt(Producte::getCodigo));
+            return productos;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reduce todos los registros del fichero que cumplen la condición sin decodificarlos: cada tramo acumula sus
+     * registros sobre su propio acumulador y después se combinan los de todos los tramos, en orden.
+     *
+     * @param canal            canal abierto sobre el fichero de productos.
+     * @param numRegistros     número de registros del fichero.
+     * @param condicion        condición que deben cumplir los registros.
+     * @param registrosMinimos número mínimo de registros que recorre cada tarea.
+     * @param paralelo         {@code true} para repartir el recorrido entre los hilos del {@code ForkJoinPool},
+     *                         {@code false} para recorrerlo en el hilo actual.
+     * @param crear            crea un acumulador vacío.
+     * @param acumular         añade un registro a un acumulador.
+     * @param combinar         combina dos acumuladores (el segundo corresponde a registros posteriores).
+     * @param <A>              tipo del acumulador.
+     * @return acumulador con todos los registros coincidentes.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    static <A> A reducir(FileChannel canal, int numRegistros, CondicioRegistre condicion, int registrosMinimos,
+                         boolean paralelo, Supplier<A> crear, AccionRegistre<A> acumular,
+                         BinaryOperator<A> combinar) throws IOException {
+        RecorregutParallel recorrido = new RecorregutParallel(canal, condicion, 0, numRegistros, registrosMinimos);
+        try {
+            if (!paralelo) {
+                A acumulado = crear.get();
+                recorrido.visitar(acumulado, acumular);
+                return acumulado;
+            }
+            return new TareaReduccion<>(recorrido, crear, acumular, combinar).invoke();
+
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Lee un bloque de registros a partir de una posición y copia en el destino los que cumplen la condición, para
+     * tratarlos después sin mantener bloqueado el fichero.
+     *
+     * @param canal        canal abierto sobre el fichero de productos.
+     * @param primero      posición del primer registro del bloque.
+     * @param numRegistros número de registros del fichero.
+     * @param condicion    condición que deben cumplir los registros copiados.
+     * @param destino      buffer con espacio para {@link #REGISTROS_POR_BLOQUE} registros; los coincidentes se
+     *                     copian a partir de su posición actual.
+     * @return número de registros leídos (0 si {@code primero} ya es el final del fichero).
+     * @throws IOException si ocurre un error de lectura.
+     */
+    static int copiarBloque(FileChannel canal, int primero, int numRegistros, CondicioRegistre condicion,
+                            ByteBuffer destino) throws IOException {
+        int fin = Math.min(primero + REGISTROS_POR_BLOQUE, numRegistros);
+        RecorregutParallel recorrido = new RecorregutParallel(canal, condicion, primero, fin, REGISTROS_POR_BLOQUE);
+        recorrido.visitar(destino, RecorregutParallel::copiar);
+        return Math.max(fin - primero, 0);
+    }
+
+    /**
+     * Copia un registro del bloque a continuación de los que ya contiene el destino.
+     *
+     * @param destino buffer donde se copia el registro, a partir de su posición actual.
+     * @param bloque  bloque que contiene el registro.
+     * @param inicio  posición (en bytes) donde comienza el registro.
+     */
+    static void copiar(ByteBuffer destino, ByteBuffer bloque, int inicio) {
+        destino.put(destino.position(), bloque, inicio, TAMANO_REGISTRO);
+        destino.position(destino.position() + TAMANO_REGISTRO);
+    }
+
+    @Override
+    public Spliterator<Producte> trySplit() {
+        int registros = fin - primero;
+        if (registros < 2 * registrosMinimos) {
+            return null;
+        }
+
+        // El primer tramo se queda con la mitad, redondeada a bloques completos
+        int mitad = primero + (registros / 2 / REGISTROS_POR_BLOQUE) * REGISTROS_POR_BLOQUE;
+        RecorregutParallel anterior = new RecorregutParallel(canal, condicion, primero, mitad, registrosMinimos);
+        primero = mitad;
+        return anterior;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Producte> accion) {
+        try {
+            while (primero < fin) {
+                int posicion = primero++;
+                if (posicion >= primeroBloque + registrosBloque) {
+                    cargar(posicion);
+                }
+
+                int inicio = (posicion - primeroBloque) * TAMANO_REGISTRO;
+                if (condicion.cumple(bloque, inicio)) {
+                    accion.accept(RegistreProducte.leer(bloque, inicio));
+                    return true;
+                }
+            }
+            return false;
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Producte> accion) {
+        try {
+            while (primero < fin) {
+                cargar(primero);
+                for (int inicio = 0; inicio < registrosBloque * TAMANO_REGISTRO; inicio += TAMANO_REGISTRO) {
+                    if (condicion.cumple(bloque, inicio)) {
+                        accion.accept(RegistreProducte.leer(bloque, inicio));
+                    }
+                }
+                primero += registrosBloque;
+            }
+
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        return fin - primero;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    /**
+     * Recorre los registros que quedan en el tramo y pasa al acumulador los que cumplen la condición.
+     *
+     * @param acumulado acumulador.
+     * @param acumular  añade un registro al acumulador.
+     * @param <A>       tipo del acumulador.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private <A> void visitar(A acumulado, AccionRegistre<A> acumular) throws IOException {
+        while (primero < fin) {
+            cargar(primero);
+            for (int inicio = 0; inicio < registrosBloque * TAMANO_REGISTRO; inicio += TAMANO_REGISTRO) {
+                if (condicion.cumple(bloque, inicio)) {
+                    acumular.aceptar(acumulado, bloque, inicio);
+                }
+            }
+            primero += registrosBloque;
+        }
+    }
+
+    /**
+     * Lee en el bloque los registros del tramo a partir de la posición indicada.
+     *
+     * @param posicion posición (en número de registro) del primer registro a leer.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private void cargar(int posicion) throws IOException {
+        if (bloque == null) {
+            bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+        }
+
+        int registros = Math.min(REGISTROS_POR_BLOQUE, fin - posicion);
+        long inicio = CapcaleraFitxer.posicion(posicion);
+        bloque.clear().limit(registros * TAMANO_REGISTRO);
+        while (bloque.hasRemaining()) {
+            if (canal.read(bloque, inicio + bloque.position()) < 0) {
+                throw new EOFException("El fichero de productos se ha truncado durante la lectura.");
+            }
+        }
+
+        primeroBloque = posicion;
+        registrosBloque = registros;
+    }
+
+    /**
+     * Acción que añade a un acumulador el registro que comienza en una posición del bloque.
+     *
+     * @param <A> tipo del acumulador.
+     */
+    @FunctionalInterface
+    interface AccionRegistre<A> {
+        /**
+         * @param acumulado acumulador.
+         * @param bloque    bloque que contiene el registro.
+         * @param inicio    posición (en bytes) donde comienza el registro.
+         */
+        void aceptar(A acumulado, ByteBuffer bloque, int inicio);
+    }
+
+    /**
+     * Tarea del {@code ForkJoinPool} que divide un tramo mientras sea posible y reduce cada parte por separado.
+     *
+     * @param <A> tipo del acumulador.
+     */
+    private static final class TareaReduccion<A> extends RecursiveTask<A> {
+
+        private final RecorregutParallel recorrido;
+        private final Supplier<A> crear;
+        private final AccionRegistre<A> acumular;
+        private final BinaryOperator<A> combinar;
+
+        TareaReduccion(RecorregutParallel recorrido, Supplier<A> crear, AccionRegistre<A> acumular,
+                       BinaryOperator<A> combinar) {
+            this.recorrido = recorrido;
+            this.crear = crear;
+            this.acumular = acumular;
+            this.combinar = combinar;
+        }
+
+        @Override
+        protected A compute() {
+            RecorregutParallel anterior = (RecorregutParallel) recorrido.trySplit();
+            if (anterior == null) {
+                A acumulado = crear.get();
+                try {
+                    recorrido.visitar(acumulado, acumular);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return acumulado;
+            }
+
+            TareaReduccion<A> izquierda = new TareaReduccion<>(anterior, crear, acumular, combinar);
+            izquierda.fork();
+            A derecha = new TareaReduccion<>(recorrido, crear, acumular, combinar).compute();
+            return combinar.apply(izquierda.join(), derecha);
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package persistencia;
+
+public class RegistreCorrupteException extends RuntimeException {
+    public RegistreCorrupteException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,298 @@
+package persistencia;
+
+import model.Producte;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describe el formato binario de los registros de producto y permite codificarlos y decodificarlos directamente
+ * sobre un {@link ByteBuffer}. Lo comparten todas las implementaciones de {@link Gestionable} para garantizar que
+ * escriben y leen exactamente los mismos bytes.
+ * <p>
+ * Cada registro ocupa 69 bytes con la misma disposición que generan {@code RandomAccessFile.writeInt/writeUTF/
+ * writeDouble/writeBoolean}:
+ * </p>
+ * <pre>
+ *  0  código         int     (4 bytes)
+ *  4  nombre         UTF     (2 bytes de longitud + 50 bytes)
+ * 56  precio         double  (8 bytes)
+ * 64  stock          int     (4 bytes)
+ * 68  descatalogado  boolean (1 byte)
+ * </pre>
+ * <p>
+ * Un registro con código {@link #CODIGO_LIBRE} (todos sus bytes a cero) es un registro libre: el de un producto
+ * eliminado con {@code esborrarProducte}, que puede reutilizarse en un alta posterior. Los recorridos lo ignoran.
+ * </p>
+ */
+final class RegistreProducte {
+
+    /** Tamaño fijo en bytes de cada registro. */
+    static final int TAMANO = 69;
+    /** Desplazamiento del campo código dentro del registro. */
+    static final int OFFSET_CODIGO = 0;
+    /** Desplazamiento del campo nombre (longitud UTF incluida) dentro del registro. */
+    static final int OFFSET_NOMBRE = 4;
+    /** Desplazamiento del campo precio dentro del registro. */
+    static final int OFFSET_PRECIO = 56;
+    /** Desplazamiento del campo stock dentro del registro. */
+    static final int OFFSET_STOCK = 64;
+    /** Desplazamiento del campo descatalogado dentro del registro. */
+    static final int OFFSET_DESCATALOGADO = 68;
+    /** Longitud (en caracteres y en bytes) del nombre formateado. */
+    static final int LONGITUD_NOMBRE = 50;
+    /** Código de los registros libres (los códigos asignados empiezan en 1). */
+    static final int CODIGO_LIBRE = 0;
+
+    private RegistreProducte() {}
+
+    /**
+     * Decodifica el registro que comienza en la posición indicada del buffer.
+     *
+     * @param buffer  buffer que contiene el registro.
+     * @param inicio  posición (en bytes) donde comienza el registro.
+     * @return producto leído.
+     */
+    static Producte leer(ByteBuffer buffer, int inicio) {
+        return new Producte(
+                buffer.getInt(inicio + OFFSET_CODIGO),
+                leerNombre(buffer, inicio),
+                buffer.getDouble(inicio + OFFSET_PRECIO),
+                buffer.getInt(inicio + OFFSET_STOCK),
+                buffer.get(inicio + OFFSET_DESCATALOGADO) != 0
+        );
+    }
+
+    /**
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return {@code true} si es un registro libre (de un producto eliminado).
+     */
+    static boolean libre(ByteBuffer buffer, int inicio) {
+        return buffer.getInt(inicio + OFFSET_CODIGO) == CODIGO_LIBRE;
+    }
+
+    /**
+     * Decodifica el nombre (UTF-8 modificado, como {@code readUTF}) del registro que comienza en la posición
+     * indicada.
+     *
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @return nombre tal y como está almacenado (con el relleno de espacios).
+     */
+    static String leerNombre(ByteBuffer buffer, int inicio) {
+        return decodificar(buffer, inicio + OFFSET_NOMBRE + 2, buffer.getShort(inicio + OFFSET_NOMBRE) & 0xFFFF);
+    }
+
+    /**
+     * Decodifica un texto en UTF-8 modificado.
+     *
+     * @param buffer   buffer que contiene el texto.
+     * @param pos      posición (en bytes) del primer byte del texto.
+     * @param longitud número de bytes del texto.
+     * @return texto decodificado.
+     */
+    private static String decodificar(ByteBuffer buffer, int pos, int longitud) {
+        int fin = pos + longitud;
+        char[] caracteres = new char[longitud];
+        int n = 0;
+
+        while (pos < fin) {
+            int b = buffer.get(pos) & 0xFF;
+            if (b < 0x80) {
+                caracteres[n++] = (char) b;
+                pos++;
+            } else if ((b & 0xE0) == 0xC0) {
+                caracteres[n++] = (char) (((b & 0x1F) << 6) | (buffer.get(pos + 1) & 0x3F));
+                pos += 2;
+            } else {
+                caracteres[n++] = (char) (((b & 0x0F) << 12) | ((buffer.get(pos + 1) & 0x3F) << 6)
+                        | (buffer.get(pos + 2) & 0x3F));
+                pos += 3;
+            }
+        }
+
+        return new String(caracteres, 0, n);
+    }
+
+    /**
+     * Codifica un producto en el buffer a partir de la posición indicada.
+     *
+     * @param buffer buffer destino.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @param p      producto (con el nombre ya formateado).
+     * @throws ProducteNoValidException si el nombre codificado no ocupa exactamente los bytes del registro.
+     */
+    static void escribir(ByteBuffer buffer, int inicio, Producte p) throws ProducteNoValidException {
+        String nombre = p.getNombre();
+        if (longitudUtf(nombre) != LONGITUD_NOMBRE) {
+            throw new ProducteNoValidException("El nombre no cabe en un registro de " + TAMANO + " bytes.");
+        }
+
+        buffer.putInt(inicio + OFFSET_CODIGO, p.getCodigo());
+        buffer.putShort(inicio + OFFSET_NOMBRE, (short) LONGITUD_NOMBRE);
+        codificar(buffer, inicio + OFFSET_NOMBRE + 2, nombre);
+        buffer.putDouble(inicio + OFFSET_PRECIO, p.getPrecio());
+        buffer.putInt(inicio + OFFSET_STOCK, p.getStock());
+        buffer.put(inicio + OFFSET_DESCATALOGADO, (byte) (p.isDescatalogado() ? 1 : 0));
+    }
+
+    /**
+     * Compara el nombre almacenado en un registro con un nombre ya formateado, sin decodificarlo.
+     * Equivale a {@code equalsIgnoreCase} para nombres ASCII.
+     *
+     * @param buffer buffer que contiene el registro.
+     * @param inicio posición (en bytes) donde comienza el registro.
+     * @param nombre nombre formateado codificado en UTF-8 modificado.
+     * @return {@code true} si coinciden.
+     */
+    static boolean nombreIgual(ByteBuffer buffer, int inicio, byte[] nombre) {
+        return compararNombre(buffer, inicio, nombre, false);
+    }
+
+    /**
+     * Comprueba si el nombre almacenado en un registro comienza por el prefijo indicado, sin decodificarlo.
+     * Ignora mayúsculas/minúsculas igual que {@link #nombreIgual(ByteBuffer, int, byte[])}.
+     *
+     * @param buffer  buffer que contiene el registro.
+     * @param inicio  posición (en bytes) donde comienza el registro.
+     * @param prefijo prefijo codificado en UTF-8 modificado.
+     * @return {@code true} si el nombre comienza por el prefijo.
+     */
+    static boolean nombreEmpiezaPor(ByteBuffer buffer, int inicio, byte[] prefijo) {
+        return compararNombre(buffer, inicio, prefijo, true);
+    }
+
+    /**
+     * Compara el nombre almacenado en un registro con un texto codificado, completo o como prefijo.
+     *
+     * @param buffer  buffer que contiene el registro.
+     * @param inicio  posición (en bytes) donde comienza el registro.
+     * @param nombre  texto codificado en UTF-8 modificado.
+     * @param prefijo {@code true} si basta con que el nombre comience por el texto.
+     * @return {@code true} si coinciden.
+     */
+    private static boolean compararNombre(ByteBuffer buffer, int inicio, byte[] nombre, boolean prefijo) {
+        int longitud = buffer.getShort(inicio + OFFSET_NOMBRE) & 0xFFFF;
+        if (prefijo ? nombre.length > longitud : nombre.length != longitud) {
+            return false;
+        }
+
+        int pos = inicio + OFFSET_NOMBRE + 2;
+        for (int i = 0; i < nombre.length; i++) {
+            int a = buffer.get(pos + i);
+            int b = nombre[i];
+            if (a != b) {
+                // Solo ignoramos mayúsculas/minúsculas en caracteres ASCII; el resto se compara decodificado
+                if (a < 0 || b < 0) {
+                    String almacenado = leerNombre(buffer, inicio);
+                    String buscado = decodificar(ByteBuffer.wrap(nombre), 0, nombre.length);
+                    return prefijo
+                            ? almacenado.toUpperCase().startsWith(buscado.toUpperCase())
+                            : almacenado.equalsIgnoreCase(buscado);
+                }
+                if (Character.toUpperCase((char) a) != Character.toUpperCase((char) b)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Codifica un texto en UTF-8 modificado (el formato de {@code writeUTF}, sin los 2 bytes de longitud).
+     *
+     * @param texto texto a codificar.
+     * @return bytes codificados.
+     */
+    static byte[] codificar(String texto) {
+        byte[] bytes = new byte[longitudUtf(texto)];
+        codificar(ByteBuffer.wrap(bytes), 0, texto);
+        return bytes;
+    }
+
+    /**
+     * Codifica un texto en UTF-8 modificado en el buffer a partir de la posición indicada.
+     *
+     * @param buffer buffer destino.
+     * @param pos    posición (en bytes) donde escribir el primer byte.
+     * @param texto  texto a codificar.
+     */
+    private static void codificar(ByteBuffer buffer, int pos, String texto) {
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put(pos++, (byte) c);
+            } else if (c <= 0x07FF) {
+                buffer.put(pos++, (byte) (0xC0 | (c >> 6)));
+                buffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put(pos++, (byte) (0xE0 | (c >> 12)));
+                buffer.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Calcula cuántos bytes ocupa un texto codificado en UTF-8 modificado.
+     *
+     * @param texto texto a medir.
+     * @return número de bytes.
+     */
+    static int longitudUtf(String texto) {
+        int longitud = 0;
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                longitud++;
+            } else if (c <= 0x07FF) {
+                longitud += 2;
+            } else {
+                longitud += 3;
+            }
+        }
+        return longitud;
+    }
+
+    /**
+     * Valida los datos de un producto (nombre, precio y stock) y formatea su nombre.
+     *
+     * @param p producto a validar.
+     * @throws ProducteNoValidException si algún campo no cumple las restricciones.
+     */
+    static void validarDatos(Producte p) throws ProducteNoValidException {
+
+        // Nombre
+        p.setNombre(formatearNombre(p.getNombre()));
+        if (longitudUtf(p.getNombre()) != LONGITUD_NOMBRE) {
+            throw new ProducteNoValidException("Nombre superior a " + LONGITUD_NOMBRE + " caracteres.");
+        }
+
+        // Precio
+        if (p.getPrecio() < 0) {
+            throw new ProducteNoValidException("Precio inferior a 0.");
+        }
+
+        // Stock
+        if (p.getStock() < 0) {
+            throw new ProducteNoValidException("Stock inferior a 0.");
+        }
+    }
+
+    /**
+     * Formatea el nombre del producto a mayúsculas y lo rellena con espacios hasta ocupar los 50 bytes del campo
+     * (los caracteres no ASCII ocupan más de un byte, así que en ese caso el nombre tiene menos de 50 caracteres).
+     *
+     * @param nombre nombre original.
+     * @return nombre formateado y completado.
+     */
+    static String formatearNombre(String nombre) {
+        StringBuilder nombreBuilder = new StringBuilder(nombre.toUpperCase());
+
+        for (int i = longitudUtf(nombreBuilder.toString()); i < LONGITUD_NOMBRE; i++) {
+            nombreBuilder.append(" ");
+        }
+
+        return nombreBuilder.toString();
+    }
+}
@@ -0,0 +1,427 @@
+package persistencia;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32C;
+
+/**
+ * Sumas de control (CRC32C) de los registros del fichero de productos, guardadas en un fichero lateral
+ * ({@code productos.bin.crc}).
+ * <p>
+ * Son opcionales: se activan una vez para cada fichero (ver {@link CapcaleraFitxer#sumasActivadas()}) y, a partir
+ * de entonces, cada escritura de un registro actualiza también su suma. Si un registro se escribe a medias o se
+ * corrompe en el disco, su contenido deja de corresponder a la suma, así que la verificación completa
+ * ({@link #verificar(FileChannel, int, int, boolean)}) y las lecturas en modo estricto lo detectan en lugar de
+ * devolver datos erróneos. Mientras no están activadas, todas las actualizaciones se ignoran.
+ * </p>
+ * <p>
+ * Formato del fichero lateral: una cabecera de 8 bytes (número mágico y 4 bytes reservados) seguida de la suma de
+ * cada registro (int), en el orden de los registros, así que actualizar la suma de un registro solo escribe 4 bytes.
+ * Se calcula con {@link CRC32C}, que la JVM acelera con las instrucciones específicas del procesador.
+ * </p>
+ */
+final class SumesControl {
+
+    /** Número mágico que identifica los ficheros de sumas de control ("CRC1"). */
+    private static final int MAGICO = 0x43524331;
+    /** Tamaño en bytes de la cabecera del fichero lateral. */
+    private static final int TAMANO_CABECERA = 8;
+    /** Tamaño fijo en bytes de cada registro de producto. */
+    private static final int TAMANO_REGISTRO = RegistreProducte.TAMANO;
+    /** Número de registros que se leen en cada acceso al fichero al calcular o verificar todas las sumas. */
+    private static final int REGISTROS_POR_BLOQUE = 8192;
+
+    /** Fichero de productos. */
+    private final File RUTA_DATOS;
+    /** Fichero lateral con las sumas de control. */
+    private final File RUTA_SUMAS;
+    /** Fichero lateral nuevo que sustituirá al actual (por ejemplo, el de un fichero compactado). */
+    private final File RUTA_TEMPORAL;
+
+    /** Indica si las sumas de control están activadas para el fichero. */
+    private volatile boolean activa = false;
+    /** Canal abierto sobre el fichero lateral (se abre con la primera actualización). */
+    private FileChannel canal;
+
+    /**
+     * @param rutaDatos fichero de productos.
+     */
+    SumesControl(File rutaDatos) {
+        this.RUTA_DATOS = rutaDatos;
+        this.RUTA_SUMAS = new File(rutaDatos.getPath() + ".crc");
+        this.RUTA_TEMPORAL = new File(rutaDatos.getPath() + ".crc.nou");
+    }
+
+    /**
+     * Activa las sumas de un fichero que ya las tenía activadas. Si el fichero lateral no existe, no contiene las
+     * sumas de todos los registros o quedó a medio sustituir (por ejemplo, por una compactación interrumpida), las
+     * vuelve a calcular a partir del contenido actual.
+     *
+     * @param numRegistros número de registros del fichero de productos.
+     * @throws IOException si no se pueden calcular las sumas.
+     */
+    synchronized void cargar(int numRegistros) throws IOException {
+        activa = true;
+        if (RUTA_TEMPORAL.exists() || !RUTA_SUMAS.exists() || RUTA_SUMAS.length() < posicionSuma(numRegistros)
+                || !cabeceraValida()) {
+            System.err.println("Error! Faltan sumas de control de " + RUTA_DATOS.getName()
+                    + "; se vuelven a calcular.");
+            activar(numRegistros);
+        }
+    }
+
+    /**
+     * Calcula las sumas de todos los registros del fichero de productos, las guarda y las activa.
+     *
+     * @param numRegistros número de registros del fichero de productos.
+     * @throws IOException si ocurre un error al leer el fichero o al guardar las sumas.
+     */
+    synchronized void activar(int numRegistros) throws IOException {
+        escribirTemporal(RUTA_DATOS, numRegistros);
+        activa = true;
+        confirmar();
+    }
+
+    /**
+     * @return {@code true} si las sumas de control están activadas.
+     */
+    boolean activa() {
+        return activa;
+    }
+
+    /**
+     * Actualiza la suma de un registro después de escribirlo.
+     *
+     * @param posicion posición (en número de registro).
+     * @param registro buffer que contiene el registro escrito.
+     * @param inicio   posición (en bytes) donde comienza el registro dentro del buffer.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void actualizar(int posicion, ByteBuffer registro, int inicio) throws IOException {
+        if (!activa) {
+            return;
+        }
+        CanalFitxer.escribirCompleto(canal(), ByteBuffer.allocate(4).putInt(0, calcular(registro, inicio)),
+                posicionSuma(posicion));
+    }
+
+    /**
+     * Actualiza las sumas de varios registros consecutivos después de escribirlos de una sola vez.
+     *
+     * @param primero      posición (en número de registro) del primer registro.
+     * @param registros    buffer que contiene los registros escritos, uno detrás de otro.
+     * @param inicio       posición (en bytes) donde comienza el primer registro dentro del buffer.
+     * @param numRegistros número de registros.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void actualizarBloque(int primero, ByteBuffer registros, int inicio, int numRegistros) throws IOException {
+        if (!activa) {
+            return;
+        }
+        ByteBuffer sumas = ByteBuffer.allocate(numRegistros * 4);
+        for (int i = 0; i < numRegistros; i++) {
+            sumas.putInt(calcular(registros, inicio + i * TAMANO_REGISTRO));
+        }
+        CanalFitxer.escribirCompleto(canal(), sumas.flip(), posicionSuma(primero));
+    }
+
+    /**
+     * Actualiza las sumas de varios registros no consecutivos, por ejemplo los de un lote de movimientos.
+     *
+     * @param posiciones   posiciones (en número de registro) de los registros, en orden creciente.
+     * @param registros    contenido de los registros escritos, uno detrás de otro.
+     * @param numRegistros número de registros.
+     * @throws IOException si ocurre un error de escritura.
+     */
+    void actualizar(int[] posiciones, byte[] registros, int numRegistros) throws IOException {
+        if (!activa) {
+            return;
+        }
+        ByteBuffer imagenes = ByteBuffer.wrap(registros);
+        for (int i = 0; i < numRegistros; i++) {
+            actualizar(posiciones[i], imagenes, i * TAMANO_REGISTRO);
+        }
+    }
+
+    /**
+     * Comprueba que el contenido de un registro corresponde a su suma de control. Si las sumas no están activadas,
+     * cualquier registro es correcto.
+     *
+     * @param posicion posición (en número de registro).
+     * @param registro buffer que contiene el registro leído.
+     * @param inicio   posición (en bytes) donde comienza el registro dentro del buffer.
+     * @return {@code true} si el registro corresponde a su suma.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    boolean correcto(int posicion, ByteBuffer registro, int inicio) throws IOException {
+        if (!activa) {
+            return true;
+        }
+        ByteBuffer suma = ByteBuffer.allocate(4);
+        FileChannel fc = canal();
+        while (suma.hasRemaining()) {
+            if (fc.read(suma, posicionSuma(posicion) + suma.position()) < 0) {
+                return false;
+            }
+        }
+        return suma.getInt(0) == calcular(registro, inicio);
+    }
+
+    /**
+     * Verifica las sumas de todos los registros del fichero. El fichero se divide en tramos de bloques completos
+     * que se verifican en las tareas del {@code ForkJoinPool}, con lecturas posicionales sobre los mismos canales.
+     *
+     * @param datos            canal abierto sobre el fichero de productos.
+     * @param numRegistros     número de registros del fichero.
+     * @param registrosMinimos número mínimo de registros que verifica cada tarea.
+     * @param paralelo         {@code true} para repartir la verificación entre los hilos del {@code ForkJoinPool},
+     *                         {@code false} para hacerla en el hilo actual.
+     * @return posiciones de los registros corruptos (o sin suma), ordenadas de menor a mayor.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    int[] verificar(FileChannel datos, int numRegistros, int registrosMinimos, boolean paralelo)
+            throws IOException {
+        // Se abre un canal propio sobre el fichero lateral, por si otro gestor lo ha sustituido
+        int minimo = Math.max(registrosMinimos, REGISTROS_POR_BLOQUE);
+        try (FileChannel sumas = FileChannel.open(RUTA_SUMAS.toPath(), StandardOpenOption.READ)) {
+            if (!paralelo) {
+                return verificarTramo(datos, sumas, 0, numRegistros);
+            }
+            return new TareaVerificacion(datos, sumas, 0, numRegistros, minimo).invoke();
+
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Calcula las sumas de todos los registros de un fichero de productos nuevo (por ejemplo, compactado) y las
+     * escribe en un fichero lateral hermano, que sustituye al actual con {@link #confirmar()} después de sustituir el
+     * fichero de productos. Si el proceso se interrumpe entre ambas sustituciones, las sumas se vuelven a calcular
+     * al cargarlas.
+     *
+     * @param datos        fichero de productos nuevo.
+     * @param numRegistros número de registros del fichero nuevo.
+     * @throws IOException si ocurre un error al leer el fichero o al escribir las sumas.
+     */
+    synchronized void preparar(File datos, int numRegistros) throws IOException {
+        if (activa) {
+            escribirTemporal(datos, numRegistros);
+        }
+    }
+
+    /**
+     * Sustituye el fichero lateral por el escrito con {@link #preparar(File, int)} con un único movimiento atómico.
+     *
+     * @throws IOException si no se puede sustituir el fichero lateral.
+     */
+    synchronized void confirmar() throws IOException {
+        if (!activa || !RUTA_TEMPORAL.exists()) {
+            return;
+        }
+
+        if (canal != null) {
+            canal.close();
+            canal = null;
+        }
+        try {
+            Files.move(RUTA_TEMPORAL.toPath(), RUTA_SUMAS.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(RUTA_TEMPORAL.toPath(), RUTA_SUMAS.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Fuerza al disco las sumas escritas, por ejemplo en un punto de control.
+     *
+     * @throws IOException si ocurre un error al forzar el fichero lateral.
+     */
+    synchronized void forzar() throws IOException {
+        if (canal != null) {
+            canal.force(false);
+        }
+    }
+
+    /**
+     * Calcula la suma de control de un registro.
+     *
+     * @param registro buffer que contiene el registro.
+     * @param inicio   posición (en bytes) donde comienza el registro dentro del buffer.
+     * @return CRC32C de los 69 bytes del registro.
+     */
+    static int calcular(ByteBuffer registro, int inicio) {
+        CRC32C crc = new CRC32C();
+        if (registro.hasArray()) {
+            crc.update(registro.array(), registro.arrayOffset() + inicio, TAMANO_REGISTRO);
+        } else {
+            crc.update(registro.slice(inicio, TAMANO_REGISTRO));
+        }
+        return (int) crc.getValue();
+    }
+
+    // ------------------------------------------------------------------------
+    // MÉTODOS PRIVADOS AUXILIARES
+    // ------------------------------------------------------------------------
+
+    /**
+     * Calcula las sumas de todos los registros de un fichero de productos y las escribe en el fichero lateral
+     * temporal. El fichero se lee por bloques y las sumas de cada bloque se escriben a continuación, así que no se
+     * cargan todas en memoria.
+     *
+     * @param datos        fichero de productos.
+     * @param numRegistros número de registros del fichero.
+     * @throws IOException si ocurre un error al leer el fichero o al escribir las sumas.
+     */
+    private void escribirTemporal(File datos, int numRegistros) throws IOException {
+        try (FileChannel origen = FileChannel.open(datos.toPath(), StandardOpenOption.READ);
+             FileChannel destino = FileChannel.open(RUTA_TEMPORAL.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            CanalFitxer.escribirCompleto(destino, ByteBuffer.allocate(TAMANO_CABECERA).putInt(0, MAGICO), 0);
+
+            ByteBuffer bloque = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * TAMANO_REGISTRO);
+            ByteBuffer sumas = ByteBuffer.allocate(REGISTROS_POR_BLOQUE * 4);
+            for (int primero = 0; primero < numRegistros; primero += REGISTROS_POR_BLOQUE) {
+                int registros = Math.min(REGISTROS_POR_BLOQUE, numRegistros - primero);
+                bloque.clear().limit(registros * TAMANO_REGISTRO);
+                CanalFitxer.leerCompleto(origen, bloque, CapcaleraFitxer.posicion(primero));
+                sumas.clear();
+                for (int i = 0; i < registros; i++) {
+                    sumas.putInt(calcular(bloque, i * TAMANO_REGISTRO));
+                }
+                CanalFitxer.escribirCompleto(destino, sumas.flip(), posicionSuma(primero));
+            }
+            destino.force(true);
+        }
+    }
+
+    /**
+     * @return canal abierto sobre el fichero lateral, que se abre (y se crea si no existe) la primera vez.
+     * @throws IOException si no se puede abrir el fichero lateral.
+     */
+    private synchronized FileChannel canal() throws IOException {
+        if (canal == null) {
+            canal = FileChannel.open(RUTA_SUMAS.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (canal.size() < TAMANO_CABECERA) {
+                CanalFitxer.escribirCompleto(canal, ByteBuffer.allocate(TAMANO_CABECERA).putInt(0, MAGICO), 0);
+            }
+        }
+        return canal;
+    }
+
+    /**
+     * @return {@code true} si el fichero lateral comienza por el número mágico.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private boolean cabeceraValida() throws IOException {
+        try (FileChannel fc = FileChannel.open(RUTA_SUMAS.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer cabecera = ByteBuffer.allocate(TAMANO_CABECERA);
+            CanalFitxer.leerCompleto(fc, cabecera, 0);
+            return cabecera.getInt(0) == MAGICO;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Verifica las sumas de un tramo de registros, leyéndolo por bloques.
+     *
+     * @param datos   canal abierto sobre el fichero de productos.
+     * @param sumas   canal abierto sobre el fichero lateral.
+     * @param primero posición del primer registro del tramo.
+     * @param fin     posición siguiente al último registro del tramo.
+     * @return posiciones de los registros corruptos del tramo, ordenadas de menor a mayor.
+     * @throws IOException si ocurre un error de lectura.
+     */
+    private static int[] verificarTramo(FileChannel datos, FileChannel sumas, int primero, int fin)
+            throws IOException {
+        ByteBuffer bloque = ByteBuffer.allocate(Math.min(REGISTROS_POR_BLOQUE, Math.max(fin - primero, 0))
+                * TAMANO_REGISTRO);
+        ByteBuffer bloqueSumas = ByteBuffer.allocate(bloque.capacity() / TAMANO_REGISTRO * 4);
+        int[] corruptos = new int[0];
+        int numCorruptos = 0;
+
+        for (int posicion = primero; posicion < fin; posicion += REGISTROS_POR_BLOQUE) {
+            int registros = Math.min(REGISTROS_POR_BLOQUE, fin - posicion);
+            bloque.clear().limit(registros * TAMANO_REGISTRO);
+            CanalFitxer.leerCompleto(datos, bloque, CapcaleraFitxer.posicion(posicion));
+
+            // Los registros sin suma (el fichero lateral es más corto) se consideran corruptos
+            bloqueSumas.clear().limit(registros * 4);
+            long inicioSumas = posicionSuma(posicion);
+            while (bloqueSumas.hasRemaining() && sumas.read(bloqueSumas, inicioSumas + bloqueSumas.position()) > 0) {
+                // Se sigue leyendo hasta llenar el bloque o llegar al final del fichero lateral
+            }
+            int conSuma = bloqueSumas.position() / 4;
+
+            for (int i = 0; i < registros; i++) {
+                if (i >= conSuma || bloqueSumas.getInt(i * 4) != calcular(bloque, i * TAMANO_REGISTRO)) {
+                    if (numCorruptos == corruptos.length) {
+                        corruptos = Arrays.copyOf(corruptos, Math.max(16, corruptos.length * 2));
+                    }
+                    corruptos[numCorruptos++] = posicion + i;
+                }
+            }
+        }
+
+        return Arrays.copyOf(corruptos, numCorruptos);
+    }
+
+    /**
+     * @param posicion posición (en número de registro).
+     * @return posición en bytes de la suma del registro dentro del fichero lateral.
+     */
+    private static long posicionSuma(int posicion) {
+        return TAMANO_CABECERA + (long) posicion * 4;
+    }
+
+    /**
+     * Tarea del {@code ForkJoinPool} que divide un tramo por la mitad (en bloques completos) mientras sea mayor
+     * que el mínimo y verifica cada parte por separado.
+     */
+    private static final class TareaVerificacion extends RecursiveTask<int[]> {
+
+        private final FileChannel datos;
+        private final FileChannel sumas;
+        private final int primero;
+        private final int fin;
+        private final int registrosMinimos;
+
+        TareaVerificacion(FileChannel datos, FileChannel sumas, int primero, int fin, int registrosMinimos) {
+            this.datos = datos;
+            this.sumas = sumas;
+            this.primero = primero;
+            this.fin = fin;
+            this.registrosMinimos = registrosMinimos;
+        }
+
+        @Override
+        protected int[] compute() {
+            int registros = fin - primero;
+            if (registros < 2 * registrosMinimos) {
+                try {
+                    return verificarTramo(datos, sumas, primero, fin);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            int mitad = primero + (registros / 2 / REGISTROS_POR_BLOQUE) * REGISTROS_POR_BLOQUE;
+            TareaVerificacion izquierda = new TareaVerificacion(datos, sumas, primero, mitad, registrosMinimos);
+            izquierda.fork();
+            int[] derecha = new TareaVerificacion(datos, sumas, mitad, fin, registrosMinimos).compute();
+            int[] anteriores = izquierda.join();
+
+            int[] corruptos = Arrays.copyOf(anteriores, anteriores.length + derecha.length);
+            System.arraycopy(derecha, 0, corruptos, anteriores.length, derecha.length);
+            return corruptos;
+        }
+    }
+}
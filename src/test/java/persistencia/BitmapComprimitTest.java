@@ -0,0 +1,62 @@
+package persistencia;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BitmapComprimitTest {
+
+    @Test
+    public void testAnadirIEliminar() {
+        BitmapComprimit bitmap = new BitmapComprimit();
+        assertTrue(bitmap.anadir(5));
+        assertFalse(bitmap.anadir(5));
+        assertTrue(bitmap.anadir(70000));
+        assertTrue(bitmap.anadir(1));
+
+        assertArrayEquals(new int[]{1, 5, 70000}, bitmap.aArray());
+        assertTrue(bitmap.contiene(70000));
+        assertFalse(bitmap.contiene(4));
+
+        assertTrue(bitmap.eliminar(5));
+        assertFalse(bitmap.eliminar(5));
+        assertTrue(bitmap.eliminar(70000));
+        assertArrayEquals(new int[]{1}, bitmap.aArray());
+    }
+
+    @Test
+    public void testContenedorDenso() {
+        BitmapComprimit bitmap = new BitmapComprimit();
+
+        // Más de 4096 valores en el mismo contenedor obligan a pasar a bitmap, y al vaciarse a volver a array
+        for (int i = 0; i < 10000; i++) {
+            bitmap.anadir(i * 3);
+        }
+        assertEquals(10000, bitmap.cardinalidad());
+        assertTrue(bitmap.contiene(29997));
+        assertFalse(bitmap.contiene(29998));
+
+        for (int i = 0; i < 9990; i++) {
+            bitmap.eliminar(i * 3);
+        }
+        assertEquals(10, bitmap.cardinalidad());
+        assertEquals(29970, bitmap.aArray()[0]);
+    }
+
+    @Test
+    public void testSerializacion() throws IOException {
+        BitmapComprimit bitmap = new BitmapComprimit();
+        for (int i = 0; i < 6000; i++) {
+            bitmap.anadir(i);
+        }
+        bitmap.anadir(1 << 20);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bitmap.escribir(new DataOutputStream(bytes));
+        BitmapComprimit leido = BitmapComprimit.leer(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertArrayEquals(bitmap.aArray(), leido.aArray());
+    }
+}
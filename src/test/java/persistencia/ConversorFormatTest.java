@@ -0,0 +1,129 @@
+package persistencia;
+
+import model.Producte;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConversorFormatTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File productosFile;
+    private File compactoFile;
+    private GestioProducte gestor;
+
+    @BeforeEach
+    public void setUp() {
+        productosFile = new File(tempDir.toString(), "productos.bin");
+        compactoFile = new File(tempDir.toString(), "productos.compacte");
+        gestor = new GestioProducte(productosFile, new File(tempDir.toString(), "sin-stock.txt"),
+                new File(tempDir.toString(), "descatalogado.txt"));
+    }
+
+    @Test
+    public void testConversioIDaITornada() throws IOException {
+        gestor.afegirProducte(new Producte("Ratón óptico", 12.5, 3, false));
+        gestor.afegirProducte(new Producte("Borrado", 1.0, 1, false));
+        gestor.afegirProducte(new Producte("Café ñandú", 7.25, 0, true));
+        gestor.esborrarProducte(2);
+        gestor.puntControl();
+
+        assertEquals(2, ConversorFormat.arxivar(productosFile, compactoFile, 24, true));
+        assertTrue(compactoFile.length() < productosFile.length());
+        assertThrows(IOException.class, () -> new GestioProducteMapejat(compactoFile,
+                new File(tempDir.toString(), "a.txt"), new File(tempDir.toString(), "b.txt")));
+
+        File devuelto = new File(tempDir.toString(), "devuelto.bin");
+        assertEquals(2, ConversorFormat.restaurar(compactoFile, devuelto));
+        GestioProducte convertido = new GestioProducte(devuelto, new File(tempDir.toString(), "a.txt"),
+                new File(tempDir.toString(), "b.txt"));
+
+        Producte raton = convertido.cercaPerCodi(1);
+        assertEquals("RATÓN ÓPTICO", raton.getNombre().strip());
+        assertEquals(12.5, raton.getPrecio());
+        assertEquals(3, raton.getStock());
+        Producte cafe = convertido.cercaPerCodi(3);
+        assertEquals("CAFÉ ÑANDÚ", cafe.getNombre().strip());
+        assertTrue(cafe.isDescatalogado());
+        assertThrows(ProducteNoExistentException.class, () -> convertido.cercaPerCodi(2));
+        assertEquals(List.of(1, 3), convertido.cercaPerPrefix("").stream().map(Producte::getCodigo).toList());
+
+        // La secuencia de códigos se conserva a través de las conversiones
+        assertEquals(4, convertido.afegirProducte(new Producte("Nuevo", 1.0, 1, false)));
+    }
+
+    @Test
+    public void testCodecCompacte() {
+        CodecCompacte codec = new CodecCompacte(8, true);
+        assertEquals(22, codec.tamano());
+        assertEquals(codec.formato(), CodecCompacte.deFormato(codec.formato()).formato());
+        assertThrows(IllegalArgumentException.class, () -> CodecCompacte.deFormato(0x7F));
+        assertThrows(IllegalArgumentException.class, () -> new CodecCompacte(0, true));
+
+        ByteBuffer buffer = ByteBuffer.allocate(codec.tamano());
+        codec.escribir(buffer, 0, new Producte(5, "ÀÉÎ   ", 19.999, 4, true));
+        Producte leido = codec.leer(buffer, 0);
+        assertEquals("ÀÉÎ", leido.getNombre());
+        assertEquals(20.0, leido.getPrecio());
+        assertEquals(20.0, codec.precio(buffer, 0));
+        assertEquals(4, codec.stock(buffer, 0));
+        assertTrue(codec.descatalogado(buffer, 0));
+        assertFalse(codec.libre(buffer, 0));
+
+        // "ÀÉÎÕÜ" ocupa 10 bytes en UTF-8, más que el ancho del campo
+        assertThrows(ProducteNoValidException.class,
+                () -> codec.escribir(buffer, 0, new Producte(6, "ÀÉÎÕÜ", 1.0, 1, false)));
+        assertThrows(ProducteNoValidException.class,
+                () -> codec.escribir(buffer, 0, new Producte(6, "A", 1e10, 1, false)));
+    }
+
+    @Test
+    public void testConversioNoValida() throws IOException {
+        gestor.afegirProducte(new Producte("Un nombre bastante largo", 1.0, 1, false));
+        gestor.puntControl();
+
+        assertThrows(ProducteNoValidException.class,
+                () -> ConversorFormat.arxivar(productosFile, compactoFile, 8, false));
+        assertFalse(compactoFile.exists());
+        assertFalse(new File(compactoFile.getPath() + ".convertint").exists());
+
+        File vacio = new File(tempDir.toString(), "vacio.bin");
+        assertTrue(vacio.createNewFile());
+        assertThrows(IOException.class, () -> ConversorFormat.restaurar(vacio, compactoFile));
+
+        // Solo se archivan ficheros del formato clásico y solo se recuperan los archivados
+        assertThrows(IOException.class, () -> ConversorFormat.restaurar(productosFile, compactoFile));
+        ConversorFormat.arxivar(productosFile, compactoFile, 24, false);
+        assertThrows(IOException.class, () -> ConversorFormat.arxivar(compactoFile, vacio, 24, false));
+    }
+
+    @Test
+    public void testConversionSobreDestinoConColumnas() throws IOException {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+        gestor.puntControl();
+
+        File destino = new File(tempDir.toString(), "destino.bin");
+        ConversorFormat.arxivar(productosFile, compactoFile, 24, true);
+        ConversorFormat.restaurar(compactoFile, destino);
+        GestioProducte gestorDestino = new GestioProducte(destino, new File(tempDir.toString(), "a.txt"),
+                new File(tempDir.toString(), "b.txt"));
+        gestorDestino.activarColumnes();
+        assertTrue(new File(destino.getPath() + ".col.stock").exists());
+
+        // Las columnas del destino anterior ya no le corresponden
+        ConversorFormat.restaurar(compactoFile, destino);
+        for (String campo : List.of("codigo", "precio", "stock", "descatalogado")) {
+            assertFalse(new File(destino.getPath() + ".col." + campo).exists());
+        }
+    }
+}
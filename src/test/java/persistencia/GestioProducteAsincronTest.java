@@ -0,0 +1,145 @@
+package persistencia;
+
+import model.Producte;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GestioProducteAsincronTest {
+
+    @TempDir
+    Path tempDir;
+
+    /** Bloquea las búsquedas por código hasta que se abre. */
+    private final CountDownLatch abierto = new CountDownLatch(1);
+    /** Número de búsquedas por código que llegan al gestor. */
+    private final AtomicInteger lecturas = new AtomicInteger();
+    /** Se abre cuando han llegado al gestor dos búsquedas por código. */
+    private final CountDownLatch dosEnCurso = new CountDownLatch(2);
+    /** Búsquedas por código ejecutándose a la vez sobre el gestor, y el máximo alcanzado. */
+    private final AtomicInteger enCurso = new AtomicInteger();
+    private final AtomicInteger maximoEnCurso = new AtomicInteger();
+
+    private GestioProducte gestorFichero;
+
+    @BeforeEach
+    public void setUp() {
+        gestorFichero = new GestioProducte(
+                new File(tempDir.toString(), "productos.bin"),
+                new File(tempDir.toString(), "sin-stock.txt"),
+                new File(tempDir.toString(), "descatalogado.txt")) {
+            @Override
+            public Producte cercaPerCodi(int codigo) {
+                lecturas.incrementAndGet();
+                maximoEnCurso.accumulateAndGet(enCurso.incrementAndGet(), Math::max);
+                dosEnCurso.countDown();
+                try {
+                    abierto.await(10, TimeUnit.SECONDS);
+                    return super.cercaPerCodi(codigo);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                } finally {
+                    enCurso.decrementAndGet();
+                }
+            }
+        };
+        gestorFichero.afegirProductes(List.of(
+                new Producte("Prod1", 5.0, 5, false),
+                new Producte("Prod2", 6.0, 0, false),
+                new Producte("Prod3", 7.0, 3, false)));
+    }
+
+    @Test
+    public void testConsultasAgrupadas() throws Exception {
+        try (GestioProducteAsincron asincron = new GestioProducteAsincron(gestorFichero, 4)) {
+            List<CompletableFuture<Producte>> resultados = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                resultados.add(asincron.cercaPerCodi(1));
+            }
+            abierto.countDown();
+
+            // Una sola lectura del fichero para las 50 consultas, cada una con su propia copia
+            Set<Producte> copias = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (CompletableFuture<Producte> resultado : resultados) {
+                Producte p = resultado.get(10, TimeUnit.SECONDS);
+                assertEquals("PROD1", p.getNombre().strip());
+                copias.add(p);
+            }
+            assertEquals(1, lecturas.get());
+            assertEquals(49, asincron.getConsultesAgrupades());
+            assertEquals(50, copias.size());
+        }
+    }
+
+    @Test
+    public void testModificacionVisibleEnConsultasPosteriores() throws Exception {
+        abierto.countDown();
+        try (GestioProducteAsincron asincron = new GestioProducteAsincron(gestorFichero, 4)) {
+            assertEquals(5, asincron.cercaPerCodi(1).get().getStock());
+            asincron.modificarStock(1, 10, true).get();
+            assertEquals(15, asincron.cercaPerCodi(1).get().getStock());
+
+            assertEquals(4, asincron.afegirProducte(new Producte("Prod4", 8.0, 1, false)).get());
+            assertEquals(List.of(2), asincron.cercaSenseStock().get().stream().map(Producte::getCodigo).toList());
+        }
+    }
+
+    @Test
+    public void testLimiteOperacionesEnCurso() throws Exception {
+        try (GestioProducteAsincron asincron = new GestioProducteAsincron(gestorFichero, 2)) {
+            List<CompletableFuture<Producte>> resultados = new ArrayList<>();
+            for (int codigo = 1; codigo <= 3; codigo++) {
+                resultados.add(asincron.cercaPerCodi(codigo));
+            }
+            assertTrue(dosEnCurso.await(10, TimeUnit.SECONDS));
+            assertEquals(2, enCurso.get());
+
+            abierto.countDown();
+            for (int i = 0; i < resultados.size(); i++) {
+                assertEquals(i + 1, resultados.get(i).get(10, TimeUnit.SECONDS).getCodigo());
+            }
+            assertEquals(2, maximoEnCurso.get());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new GestioProducteAsincron(gestorFichero, 0));
+    }
+
+    @Test
+    public void testErrorEnConsulta() {
+        abierto.countDown();
+        try (GestioProducteAsincron asincron = new GestioProducteAsincron(gestorFichero, 4)) {
+            ExecutionException e = assertThrows(ExecutionException.class, () -> asincron.cercaPerCodi(99).get());
+            assertInstanceOf(ProducteNoExistentException.class, e.getCause());
+
+            e = assertThrows(ExecutionException.class, () -> asincron.esborrarProducte(99).get());
+            assertInstanceOf(ProducteNoExistentException.class, e.getCause());
+        }
+    }
+
+    @Test
+    public void testConsultaDespuesDeCerrar() throws Exception {
+        abierto.countDown();
+        GestioProducteAsincron asincron = new GestioProducteAsincron(gestorFichero, 4);
+        asincron.close();
+
+        // La consulta rechazada no se queda pendiente: las siguientes idénticas también se rechazan
+        assertThrows(RejectedExecutionException.class, () -> asincron.cercaPerCodi(1));
+        assertThrows(RejectedExecutionException.class, () -> asincron.cercaPerCodi(1));
+        assertEquals(0, asincron.getConsultesAgrupades());
+    }
+}
@@ -0,0 +1,106 @@
+package persistencia;
+
+import model.MovimentStock;
+import model.Producte;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GestioProducteCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private GestioProducte gestorFichero;
+
+    @BeforeEach
+    public void setUp() {
+        gestorFichero = new GestioProducte(
+                new File(tempDir.toString(), "productos.bin"),
+                new File(tempDir.toString(), "sin-stock.txt"),
+                new File(tempDir.toString(), "descatalogado.txt"));
+        gestorFichero.afegirProductes(List.of(
+                new Producte("Prod1", 5.0, 5, false),
+                new Producte("Prod2", 6.0, 0, false),
+                new Producte("Prod3", 7.0, 3, false)));
+    }
+
+    @Test
+    public void testAciertosYFallos() {
+        GestioProducteCache cache = new GestioProducteCache(gestorFichero, 10, 0);
+
+        assertEquals("PROD1", cache.cercaPerCodi(1).getNombre().strip());
+        assertEquals("PROD1", cache.cercaPerCodi(1).getNombre().strip());
+        cache.cercaPerCodi(2);
+
+        assertEquals(1, cache.getAciertos());
+        assertEquals(2, cache.getFallos());
+        assertEquals(2, cache.getEntradas());
+
+        // Los productos devueltos son copias: modificarlos no altera la caché
+        cache.cercaPerCodi(1).setNombre("OTRO");
+        assertEquals("PROD1", cache.cercaPerCodi(1).getNombre().strip());
+
+        assertThrows(ProducteNoExistentException.class, () -> cache.cercaPerCodi(99));
+    }
+
+    @Test
+    public void testExpulsionLru() {
+        GestioProducteCache cache = new GestioProducteCache(gestorFichero, 2, 0);
+
+        cache.cercaPerCodi(1);
+        cache.cercaPerCodi(2);
+        cache.cercaPerCodi(1);
+        cache.cercaPerCodi(3);
+
+        // El 2 es el usado hace más tiempo, así que es el expulsado
+        assertEquals(1, cache.getExpulsiones());
+        cache.cercaPerCodi(1);
+        assertEquals(2, cache.getAciertos());
+        cache.cercaPerCodi(2);
+        assertEquals(4, cache.getFallos());
+    }
+
+    @Test
+    public void testLimiteBytes() {
+        GestioProducteCache cache = new GestioProducteCache(gestorFichero, 0, 400);
+
+        for (int codigo = 1; codigo <= 3; codigo++) {
+            cache.cercaPerCodi(codigo);
+        }
+
+        assertTrue(cache.getBytes() <= 400);
+        assertEquals(1, cache.getExpulsiones());
+        assertEquals(2, cache.getEntradas());
+    }
+
+    @Test
+    public void testModificacionesCoherentes() {
+        GestioProducteCache cache = new GestioProducteCache(gestorFichero, 10, 0);
+        cache.cercaPerCodi(1);
+        cache.cercaPerCodi(2);
+        cache.cercaPerCodi(3);
+
+        cache.modificarStock(1, 2, true);
+        assertEquals(7, cache.cercaPerCodi(1).getStock());
+
+        cache.modificarProducte(new Producte(2, "Nuevo", 9.0, 1, false));
+        assertEquals("NUEVO", cache.cercaPerCodi(2).getNombre().strip());
+
+        cache.modificarStocks(List.of(new MovimentStock(3, -3)));
+        assertEquals(0, cache.cercaPerCodi(3).getStock());
+
+        cache.descatalogarProducte(3);
+        assertTrue(cache.cercaPerCodi(3).isDescatalogado());
+
+        cache.esborrarDescatalogats();
+        assertEquals(0, cache.getEntradas());
+        assertThrows(ProducteNoExistentException.class, () -> cache.cercaPerCodi(3));
+    }
+}
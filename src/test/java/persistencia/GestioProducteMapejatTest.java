@@ -0,0 +1,327 @@
+package persistencia;
+
+import model.MovimentStock;
+import model.Producte;
+import model.ResumInventari;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GestioProducteMapejatTest {
+
+    @TempDir
+    Path tempDir;
+
+    private File productosFile;
+    private File sinStockFile;
+    private File descatalogadoFile;
+    private GestioProducteMapejat gestor;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        productosFile = new File(tempDir.toString(), "productos.bin");
+        sinStockFile = new File(tempDir.toString(), "sin-stock.txt");
+        descatalogadoFile = new File(tempDir.toString(), "descatalogado.txt");
+        gestor = new GestioProducteMapejat(productosFile, sinStockFile, descatalogadoFile);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        gestor.close();
+    }
+
+    @Test
+    public void testAfegirICercaPerCodi() {
+        int codigo = gestor.afegirProducte(new Producte("Producto1", 10.0, 5, false));
+        assertEquals(1, codigo);
+        assertEquals(2, gestor.afegirProducte(new Producte("Producto2", 11.0, 6, false)));
+
+        Producte result = gestor.cercaPerCodi(codigo);
+        assertEquals("PRODUCTO1", result.getNombre().strip());
+        assertEquals(10.0, result.getPrecio());
+        assertEquals(5, result.getStock());
+        assertThrows(ProducteNoExistentException.class, () -> gestor.cercaPerCodi(999));
+        assertThrows(ProducteNoValidException.class, () -> gestor.cercaPerCodi(0));
+    }
+
+    @Test
+    public void testCerques() {
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, false));
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, true));
+        gestor.afegirProducte(new Producte("Teclado", 5.0, 2, false));
+
+        assertEquals(2, gestor.cercaPerNom("mouse").size());
+        assertEquals(2, gestor.cercaPerPrefix("mou").size());
+        assertEquals(3, gestor.cercaPerPrefix("").size());
+        assertEquals(1, gestor.cercaSenseStock().size());
+        assertEquals(1, gestor.cercaDescatalogats().size());
+    }
+
+    @Test
+    public void testFluxos() {
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, false));
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, true));
+        gestor.afegirProducte(new Producte("Teclado", 5.0, 2, false));
+
+        try (Stream<Producte> flux = gestor.fluxPerNom("mouse")) {
+            assertEquals(List.of(1, 2), flux.map(Producte::getCodigo).toList());
+        }
+        try (Stream<Producte> flux = gestor.fluxPerPrefix("")) {
+            assertEquals(1, flux.limit(1).count());
+        }
+
+        // El recorrido termina en el nuevo final si el fichero se trunca mientras se consume
+        try (Stream<Producte> flux = gestor.fluxSenseStock()) {
+            Iterator<Producte> it = flux.iterator();
+            assertEquals(1, it.next().getCodigo());
+            gestor.esborrarDescatalogats();
+            assertFalse(it.hasNext());
+        }
+        try (Stream<Producte> flux = gestor.fluxDescatalogats()) {
+            assertEquals(0, flux.count());
+        }
+    }
+
+    @Test
+    public void testCercaCondicio() {
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, false));
+        gestor.afegirProducte(new Producte("Mouse", 15.0, 4, true));
+        gestor.afegirProducte(new Producte("Teclado", 25.0, 2, false));
+
+        assertEquals(List.of(2, 3), gestor.cerca(Condicio.preuEntre(10, 30)).stream().map(Producte::getCodigo).toList());
+        assertEquals(List.of(1), gestor.cerca(Condicio.nom("mouse").i(Condicio.stockMenorQue(3)))
+                .stream().map(Producte::getCodigo).toList());
+        assertEquals(List.of(1, 3), gestor.cerca(Condicio.descatalogat().no())
+                .stream().map(Producte::getCodigo).toList());
+    }
+
+    @Test
+    public void testVisita() {
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, false));
+        gestor.afegirProducte(new Producte("Mouse", 15.0, 4, true));
+        gestor.afegirProducte(new Producte("Teclado", 25.0, 2, false));
+        gestor.esborrarProducte(1);
+
+        List<Integer> codigos = new ArrayList<>();
+        gestor.visita(null, vista -> codigos.add(vista.codigo()));
+        assertEquals(List.of(2, 3), codigos);
+
+        byte[] mouse = ProducteView.codificarNombre("mouse");
+        List<Producte> productos = new ArrayList<>();
+        gestor.visita(Condicio.preuEntre(10, 30), vista -> {
+            if (vista.nombreIgual(mouse)) {
+                productos.add(vista.aProducte());
+            }
+        });
+        assertEquals(1, productos.size());
+        assertEquals(15.0, productos.get(0).getPrecio());
+        assertTrue(productos.get(0).isDescatalogado());
+    }
+
+    @Test
+    public void testResumInventari() {
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, false));
+        gestor.afegirProducte(new Producte("Mouse", 15.0, 4, true));
+        gestor.afegirProducte(new Producte("Teclado", 25.0, 2, false));
+
+        ResumInventari resumen = gestor.resumInventari();
+        assertEquals(3, resumen.getNumProductos());
+        assertEquals(1, resumen.getNumActivos());
+        assertEquals(1, resumen.getNumSinStock());
+        assertEquals(1, resumen.getNumDescatalogados());
+        assertEquals(6, resumen.getStockTotal());
+        assertEquals(110.0, resumen.getValorTotal());
+        assertEquals(5.0, resumen.getPrecioMinimo());
+        assertEquals(25.0, resumen.getPrecioMaximo());
+        assertEquals(15.0, resumen.getPrecioMedio());
+
+        assertEquals(60.0, gestor.resumInventari(Condicio.nom("mouse")).getValorTotal());
+        assertTrue(Double.isNaN(gestor.resumInventari(Condicio.codi(9)).getPrecioMedio()));
+    }
+
+    @Test
+    public void testModificacions() {
+        int codigo = gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+
+        gestor.modificarStock(codigo, 3, true);
+        assertEquals(8, gestor.cercaPerCodi(codigo).getStock());
+        assertThrows(StockNoValidException.class, () -> gestor.modificarStock(codigo, 20, false));
+
+        gestor.modificarProducte(new Producte(codigo, "ProdMod", 10.0, 3, false));
+        assertEquals("PRODMOD", gestor.cercaPerCodi(codigo).getNombre().strip());
+
+        gestor.descatalogarProducte(codigo);
+        assertTrue(gestor.cercaPerCodi(codigo).isDescatalogado());
+    }
+
+    @Test
+    public void testModificarStocks() {
+        gestor.afegirProductes(List.of(new Producte("Prod1", 5.0, 5, false), new Producte("Prod2", 5.0, 1, false)));
+
+        gestor.modificarStocks(List.of(new MovimentStock(2, 4), new MovimentStock(1, -5)));
+        assertEquals(0, gestor.cercaPerCodi(1).getStock());
+        assertEquals(5, gestor.cercaPerCodi(2).getStock());
+
+        assertThrows(MovimentsNoValidsException.class,
+                () -> gestor.modificarStocks(List.of(new MovimentStock(2, -1), new MovimentStock(1, -1))));
+        assertEquals(5, gestor.cercaPerCodi(2).getStock());
+    }
+
+    @Test
+    public void testEsborrarDescatalogats() {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, true));
+        gestor.afegirProducte(new Producte("Prod2", 5.0, 5, false));
+        gestor.afegirProducte(new Producte("Prod3", 5.0, 5, true));
+
+        gestor.esborrarDescatalogats();
+
+        assertEquals(0, gestor.cercaDescatalogats().size());
+        assertEquals("PROD2", gestor.cercaPerCodi(2).getNombre().strip());
+        assertEquals(CapcaleraFitxer.posicion(1), productosFile.length());
+    }
+
+    @Test
+    public void testEsborrarProducte() throws IOException {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 0, false));
+        gestor.afegirProducte(new Producte("Prod2", 6.0, 0, true));
+        gestor.afegirProducte(new Producte("Prod3", 7.0, 0, false));
+
+        gestor.esborrarProducte(3);
+        assertThrows(ProducteNoExistentException.class, () -> gestor.cercaPerCodi(3));
+        assertEquals(1, gestor.cercaSenseStock().size());
+        assertEquals(2, gestor.cercaPerPrefix("PROD").size());
+        assertEquals(4, gestor.afegirProducte(new Producte("Prod4", 8.0, 8, false)));
+
+        // GestioProducte reutiliza el registro libre y continúa la misma secuencia
+        gestor.close();
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(5, otroGestor.afegirProducte(new Producte("Prod5", 9.0, 9, false)));
+        assertEquals(CapcaleraFitxer.posicion(4), productosFile.length());
+
+        gestor = new GestioProducteMapejat(productosFile, sinStockFile, descatalogadoFile);
+        gestor.esborrarProducte(1);
+        gestor.esborrarDescatalogats();
+        assertEquals(CapcaleraFitxer.posicion(2), productosFile.length());
+        assertEquals(6, gestor.afegirProducte(new Producte("Prod6", 1.0, 1, false)));
+    }
+
+    @Test
+    public void testCompatibleAmbGestioProducte() throws IOException {
+        File otroFichero = new File(tempDir.toString(), "productos-raf.bin");
+        GestioProducte gestorRaf = new GestioProducte(otroFichero, sinStockFile, descatalogadoFile);
+
+        // Las mismas operaciones deben producir exactamente los mismos bytes con ambos gestores, salvo el número de
+        // modificaciones de la cabecera (y su CRC), que cada fichero empieza en un valor distinto
+        for (Gestionable g : List.of(gestor, gestorRaf)) {
+            g.afegirProducte(new Producte("Prod1", 23.99, 100, false));
+            g.afegirProducte(new Producte("Prod2", 2.5, 0, false));
+            g.modificarStock(1, 10, false);
+            g.descatalogarProducte(2);
+        }
+        byte[] bytesRaf = Files.readAllBytes(otroFichero.toPath());
+        byte[] bytesMapejat = Files.readAllBytes(productosFile.toPath());
+        assertArrayEquals(Arrays.copyOf(bytesRaf, 24), Arrays.copyOf(bytesMapejat, 24));
+        assertArrayEquals(Arrays.copyOfRange(bytesRaf, CapcaleraFitxer.TAMANO, bytesRaf.length),
+                Arrays.copyOfRange(bytesMapejat, CapcaleraFitxer.TAMANO, bytesMapejat.length));
+
+        // Y lo que escribe uno lo puede leer el otro
+        gestorRaf.afegirProducte(new Producte("Prod3", 1.0, 1, false));
+        try (GestioProducteMapejat lector = new GestioProducteMapejat(otroFichero, sinStockFile, descatalogadoFile)) {
+            assertEquals("PROD3", lector.cercaPerCodi(3).getNombre().strip());
+            assertEquals(90, lector.cercaPerCodi(1).getStock());
+        }
+    }
+
+    @Test
+    public void testDiarioConAmbosGestores() throws Exception {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+        gestor.afegirProducte(new Producte("Prod2", 6.0, 6, false));
+        File diario = new File(productosFile.getPath() + ".wal");
+
+        // Las anotaciones de GestioProducte no se reproducen sobre las escrituras posteriores de este gestor
+        GestioProducte gestorRaf = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        gestorRaf.modificarStock(1, 5, true);
+        gestorRaf.modificarStock(2, 1, true);
+        assertTrue(diario.length() > 0);
+        gestor.modificarStock(1, 7, false);
+        gestor.esborrarProducte(2);
+        assertEquals(0, diario.length());
+
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(3, otroGestor.cercaPerCodi(1).getStock());
+        assertThrows(ProducteNoExistentException.class, () -> otroGestor.cercaPerCodi(2));
+
+        // Al abrir el gestor mapeado también se aplica y se vacía el diario
+        otroGestor.modificarStock(1, 1, true);
+        assertTrue(diario.length() > 0);
+        try (GestioProducteMapejat lector = new GestioProducteMapejat(productosFile, sinStockFile, descatalogadoFile)) {
+            assertEquals(0, diario.length());
+            assertEquals(4, lector.cercaPerCodi(1).getStock());
+        }
+
+        // Al cerrar GestioProducte se hace un punto de control
+        otroGestor.modificarStock(1, 1, true);
+        assertTrue(diario.length() > 0);
+        otroGestor.close();
+        assertEquals(0, diario.length());
+        assertEquals(5, new GestioProducte(productosFile, sinStockFile, descatalogadoFile).cercaPerCodi(1).getStock());
+    }
+
+    @Test
+    public void testModificacionesVisiblesEnIndices() throws IOException {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+        gestor.afegirProducte(new Producte("Prod2", 6.0, 2, false));
+        GestioProducte gestorRaf = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(List.of(), gestorRaf.cercaSenseStock().stream().map(Producte::getCodigo).toList());
+
+        // Las modificaciones en su sitio no cambian la longitud del fichero, pero los índices las detectan
+        gestor.modificarStock(2, 2, false);
+        assertEquals(List.of(2), gestorRaf.cercaSenseStock().stream().map(Producte::getCodigo).toList());
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(List.of(2), otroGestor.cercaSenseStock().stream().map(Producte::getCodigo).toList());
+
+        gestor.modificarProducte(new Producte(1, "Teclado", 5.0, 5, false));
+        gestor.descatalogarProducte(1);
+        assertEquals(List.of(1), gestorRaf.cercaPerNom("teclado").stream().map(Producte::getCodigo).toList());
+        assertEquals(List.of(1), gestorRaf.cercaDescatalogats().stream().map(Producte::getCodigo).toList());
+
+        gestor.modificarStocks(List.of(new MovimentStock(2, 4)));
+        otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(List.of(), otroGestor.cercaSenseStock().stream().map(Producte::getCodigo).toList());
+        assertEquals(4, gestorRaf.cercaPerCodi(2).getStock());
+    }
+
+    @Test
+    public void testSumesControl() throws IOException {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+        gestor.close();
+        GestioProducte gestorFicheros = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        gestorFicheros.activarSumesControl();
+
+        // El gestor mapeado mantiene las sumas activadas por el otro gestor
+        gestor = new GestioProducteMapejat(productosFile, sinStockFile, descatalogadoFile);
+        gestor.afegirProductes(List.of(new Producte("Prod2", 6.0, 6, false), new Producte("Prod3", 7.0, 0, false)));
+        gestor.modificarStock(1, 2, true);
+        gestor.modificarStocks(List.of(new MovimentStock(2, -1)));
+        gestor.descatalogarProducte(3);
+        gestor.esborrarProducte(2);
+        assertTrue(gestorFicheros.verificarIntegritat().isCorrecto());
+
+        gestor.esborrarDescatalogats();
+        assertEquals(1, gestorFicheros.verificarIntegritat().getNumRegistros());
+        assertTrue(gestorFicheros.verificarIntegritat().isCorrecto());
+    }
+}
@@ -1,6 +1,10 @@
 package persistencia;
 
+import model.InformeImportacio;
+import model.InformeIntegritat;
+import model.MovimentStock;
 import model.Producte;
+import model.ResumInventari;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -8,10 +12,30 @@ import org.junit.jupiter.api.io.TempDir;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -346,4 +370,1257 @@ public class GestioProducteTest {
             fail("No debería lanzar ninguna excepción");
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testIndiceCodigosPersistente() {
+        try {
+            gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+            gestor.afegirProducte(new Producte("Prod2", 6.0, 6, false));
+
+            // Un nuevo gestor sobre el mismo fichero carga el índice y continúa la numeración
+            GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+            assertEquals("PROD2", otroGestor.cercaPerCodi(2).getNombre().strip());
+            assertEquals(3, otroGestor.afegirProducte(new Producte("Prod3", 7.0, 7, false)));
+        } catch (Exception e) {
+            fail("No debería lanzar ninguna excepción");
+        }
+    }
+
+    @Test
+    public void testIndiceCodigosDiario() throws IOException {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            productos.add(new Producte("Prod" + i, 1.0, 1, false));
+        }
+        gestor.afegirProductes(productos);
+        for (int codigo = 10; codigo < 20; codigo++) {
+            gestor.esborrarProducte(codigo);
+        }
+
+        // Las altas con códigos intermedios y las bajas posteriores se añaden al diario sin reescribir la instantánea
+        File texto = new File(tempDir.toString(), "importar.txt");
+        Files.writeString(texto.toPath(), "10;Diez;1.00;1;false\n11;Once;1.00;1;false\n12;Doce;1.00;1;false\n");
+        assertEquals(3, gestor.importar(texto, true).getNumImportados());
+        gestor.esborrarProducte(11);
+        File indice = new File(productosFile.getPath() + ".idx");
+        assertEquals(16 + 2000 * 8 + 4 * 8, indice.length());
+
+        // Otro gestor aplica el diario sin reconstruir el índice, aunque no se haya cerrado el primero
+        indice.setLastModified(0);
+        GestioProducte otro = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(0, indice.lastModified());
+        assertEquals("DIEZ", otro.cercaPerCodi(10).getNombre().strip());
+        assertEquals("DOCE", otro.cercaPerCodi(12).getNombre().strip());
+        assertThrows(ProducteNoExistentException.class, () -> otro.cercaPerCodi(11));
+        assertThrows(ProducteNoExistentException.class, () -> otro.cercaPerCodi(13));
+        assertEquals(2000, otro.cercaPerCodi(2000).getCodigo());
+
+        // El punto de control incorpora el diario a la instantánea
+        otro.puntControl();
+        assertEquals(16 + 1992 * 8, indice.length());
+        assertEquals(2001, otro.afegirProducte(new Producte("Nuevo", 1.0, 1, false)));
+        assertEquals("DOCE", new GestioProducte(productosFile, sinStockFile, descatalogadoFile)
+                .cercaPerCodi(12).getNombre().strip());
+    }
+
+    @Test
+    public void testIndiceCodigosReconstruido() {
+        try {
+            gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+            gestor.afegirProducte(new Producte("Prod2", 6.0, 6, true));
+            gestor.afegirProducte(new Producte("Prod3", 7.0, 7, false));
+            gestor.esborrarDescatalogats();
+
+            // Sin fichero de índice, el gestor lo reconstruye a partir del fichero de productos
+            new File(productosFile.getPath() + ".idx").delete();
+            GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+            assertEquals("PROD3", otroGestor.cercaPerCodi(3).getNombre().strip());
+            assertThrows(ProducteNoExistentException.class, () -> otroGestor.cercaPerCodi(2));
+
+            otroGestor.modificarStock(3, 3, true);
+            assertEquals(10, otroGestor.cercaPerCodi(3).getStock());
+        } catch (Exception e) {
+            fail("No debería lanzar ninguna excepción");
+        }
+    }
+
+    @Test
+    public void testCercaPerPrefix() {
+        try {
+            gestor.afegirProducte(new Producte("Mouse", 10.0, 5, false));
+            gestor.afegirProducte(new Producte("Monitor", 12.0, 2, false));
+            gestor.afegirProducte(new Producte("Teclado", 12.0, 2, false));
+            gestor.afegirProducte(new Producte("Mousepad", 12.0, 2, false));
+
+            List<Producte> lista = gestor.cercaPerPrefix("mo");
+            assertEquals(3, lista.size());
+            assertEquals(List.of(1, 2, 4), lista.stream().map(Producte::getCodigo).toList());
+            assertEquals(2, gestor.cercaPerPrefix("MOUSE").size());
+            assertEquals(0, gestor.cercaPerPrefix("raton").size());
+        } catch (Exception e) {
+            fail("No debería lanzar ninguna excepción");
+        }
+    }
+
+    @Test
+    public void testIndiceNombresActualizado() {
+        try {
+            int codigo = gestor.afegirProducte(new Producte("Mouse", 10.0, 5, false));
+            gestor.afegirProducte(new Producte("Teclado", 10.0, 5, true));
+            gestor.modificarProducte(new Producte(codigo, "Raton", 10.0, 5, false));
+
+            assertEquals(0, gestor.cercaPerNom("Mouse").size());
+            assertEquals(1, gestor.cercaPerNom("raton").size());
+
+            gestor.esborrarDescatalogats();
+            assertEquals(0, gestor.cercaPerNom("Teclado").size());
+
+            // El índice persistido (instantánea + diario) se carga desde otro gestor
+            GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+            otroGestor.afegirProducte(new Producte("Raton", 1.0, 1, false));
+            assertEquals(2, otroGestor.cercaPerNom("RATON").size());
+            assertEquals(2, new GestioProducte(productosFile, sinStockFile, descatalogadoFile)
+                    .cercaPerPrefix("rat").size());
+        } catch (Exception e) {
+            fail("No debería lanzar ninguna excepción");
+        }
+    }
+
+    @Test
+    public void testIndiceNombresRepetidos() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            productos.add(new Producte("Mouse", 1.0, 1, false));
+        }
+        int[] codigos = gestor.afegirProductes(productos);
+        gestor.esborrarProducte(codigos[2999]);
+        gestor.esborrarProducte(codigos[10]);
+
+        // El alta reutiliza un registro libre, en medio de la lista de posiciones del nombre, pero los resultados
+        // siguen en orden de código
+        int nuevo = gestor.afegirProducte(new Producte("mouse", 1.0, 1, false));
+        List<Integer> esperados = new ArrayList<>();
+        for (int i = 0; i < 2999; i++) {
+            if (i != 10) {
+                esperados.add(codigos[i]);
+            }
+        }
+        esperados.add(nuevo);
+        assertEquals(esperados, gestor.cercaPerNom("MOUSE").stream().map(Producte::getCodigo).toList());
+        try (Stream<Producte> flujo = gestor.fluxPerNom("mouse")) {
+            assertEquals(esperados, flujo.map(Producte::getCodigo).toList());
+        }
+        GestioProducte otro = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(esperados, otro.cercaPerNom("mouse").stream().map(Producte::getCodigo).toList());
+        try (Stream<Producte> flujo = otro.fluxPerPrefix("MOU")) {
+            assertEquals(esperados, flujo.map(Producte::getCodigo).toList());
+        }
+
+        // También al recorrer el fichero completo en paralelo
+        otro.setLlindarParallel(1);
+        assertEquals(esperados, otro.cercaPerNom("mouse").stream().map(Producte::getCodigo).toList());
+        assertEquals(esperados, otro.cerca(Condicio.stockMenorQue(2)).stream().map(Producte::getCodigo).toList());
+    }
+
+    @Test
+    public void testIndicesEstadoActualizados() {
+        try {
+            int codigo1 = gestor.afegirProducte(new Producte("Prod1", 5.0, 2, false));
+            int codigo2 = gestor.afegirProducte(new Producte("Prod2", 5.0, 0, false));
+
+            gestor.modificarStock(codigo1, 2, false);
+            assertEquals(2, gestor.cercaSenseStock().size());
+
+            gestor.modificarStock(codigo2, 1, true);
+            gestor.descatalogarProducte(codigo1);
+            assertEquals(0, gestor.cercaSenseStock().size());
+            assertEquals(List.of(codigo1), gestor.cercaDescatalogats().stream().map(Producte::getCodigo).toList());
+
+            // Los bitmaps persistidos (instantánea + diario) se cargan desde otro gestor
+            GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+            assertEquals(1, otroGestor.cercaDescatalogats().size());
+            otroGestor.modificarProducte(new Producte(codigo2, "Prod2", 5.0, 0, false));
+            assertEquals(List.of(codigo2), otroGestor.cercaSenseStock().stream().map(Producte::getCodigo).toList());
+        } catch (Exception e) {
+            fail("No debería lanzar ninguna excepción");
+        }
+    }
+
+    @Test
+    public void testAfegirProductes() {
+        try {
+            gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+            int[] codigos = gestor.afegirProductes(List.of(
+                    new Producte("Mouse", 10.0, 0, false),
+                    new Producte("Teclado", 20.0, 3, true),
+                    new Producte("Monitor", 30.0, 1, false)));
+
+            assertArrayEquals(new int[]{2, 3, 4}, codigos);
+            assertEquals(CapcaleraFitxer.posicion(4), productosFile.length());
+            assertEquals("TECLADO", gestor.cercaPerCodi(3).getNombre().strip());
+            assertEquals(2, gestor.cercaPerPrefix("mo").size());
+            assertEquals(1, gestor.cercaSenseStock().size());
+            assertEquals(1, gestor.cercaDescatalogats().size());
+            assertEquals(5, gestor.afegirProducte(new Producte("Prod5", 5.0, 5, false)));
+
+            // Los índices del bloque se cargan correctamente desde otro gestor
+            GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+            assertEquals(30.0, otroGestor.cercaPerCodi(4).getPrecio());
+            assertEquals(1, otroGestor.cercaPerNom("mouse").size());
+        } catch (Exception e) {
+            fail("No debería lanzar ninguna excepción");
+        }
+    }
+
+    @Test
+    public void testAfegirProductesInvalid() {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+
+        // Si algún producto no es válido no se añade ninguno
+        assertThrows(ProducteNoValidException.class, () -> gestor.afegirProductes(List.of(
+                new Producte("Prod2", 5.0, 5, false),
+                new Producte("Prod3", -1.0, 5, false))));
+        assertEquals(CapcaleraFitxer.posicion(1), productosFile.length());
+        assertEquals(0, gestor.afegirProductes(List.of()).length);
+    }
+
+    @Test
+    public void testModificarStocks() {
+        try {
+            gestor.afegirProductes(List.of(
+                    new Producte("Prod1", 5.0, 5, false),
+                    new Producte("Prod2", 5.0, 0, false),
+                    new Producte("Prod3", 5.0, 2, false)));
+
+            // Los movimientos de un mismo producto se aplican en orden, aunque estén desordenados en el lote
+            gestor.modificarStocks(List.of(
+                    new MovimentStock(3, -2),
+                    new MovimentStock(1, -5),
+                    new MovimentStock(2, 4),
+                    new MovimentStock(1, 3),
+                    new MovimentStock(2, -1)));
+
+            assertEquals(3, gestor.cercaPerCodi(1).getStock());
+            assertEquals(3, gestor.cercaPerCodi(2).getStock());
+            assertEquals(0, gestor.cercaPerCodi(3).getStock());
+            assertEquals(List.of(3), gestor.cercaSenseStock().stream().map(Producte::getCodigo).toList());
+        } catch (Exception e) {
+            fail("No debería lanzar ninguna excepción");
+        }
+    }
+
+    @Test
+    public void testModificarStocksInvalid() {
+        gestor.afegirProductes(List.of(
+                new Producte("Prod1", 5.0, 5, false),
+                new Producte("Prod2", 5.0, 1, false)));
+
+        List<MovimentStock> movimientos = List.of(
+                new MovimentStock(1, -3),
+                new MovimentStock(2, -2),
+                new MovimentStock(99, 1),
+                new MovimentStock(1, -3));
+        MovimentsNoValidsException e = assertThrows(MovimentsNoValidsException.class,
+                () -> gestor.modificarStocks(movimientos));
+
+        // Se informa de cada movimiento no válido por su posición en el lote y no se aplica ninguno
+        assertEquals(Set.of(1, 2, 3), e.getErrores().keySet());
+        assertEquals("El nuevo valor de Stock no es válido.", e.getErrores().get(1));
+        assertEquals(5, gestor.cercaPerCodi(1).getStock());
+        assertEquals(1, gestor.cercaPerCodi(2).getStock());
+    }
+
+    @Test
+    public void testConcurrenciaSinPerdidas() throws Exception {
+        int hilos = 8;
+        int operaciones = 400;
+        int[] codigos = gestor.afegirProductes(List.of(
+                new Producte("Prod1", 5.0, 0, false),
+                new Producte("Prod2", 5.0, 0, false),
+                new Producte("Prod3", 5.0, 0, false),
+                new Producte("Prod4", 5.0, 0, false)));
+
+        ExecutorService ejecutor = Executors.newFixedThreadPool(hilos + 1);
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Future<List<Integer>>> altas = new ArrayList<>();
+
+        // Cada hilo incrementa el stock de todos los productos y da de alta productos nuevos mientras otro
+        // hilo reorganiza el fichero
+        for (int h = 0; h < hilos; h++) {
+            altas.add(ejecutor.submit(() -> {
+                salida.await();
+                List<Integer> nuevos = new ArrayList<>();
+                for (int i = 0; i < operaciones; i++) {
+                    gestor.modificarStock(codigos[i % codigos.length], 1, true);
+                    if (i % 20 == 0) {
+                        nuevos.add(gestor.afegirProducte(new Producte("Nuevo", 1.0, 1, false)));
+                    }
+                }
+                return nuevos;
+            }));
+        }
+        Future<?> reorganizacion = ejecutor.submit(() -> {
+            salida.await();
+            for (int i = 0; i < 5; i++) {
+                gestor.esborrarDescatalogats();
+            }
+            return null;
+        });
+
+        salida.countDown();
+        Set<Integer> codigosNuevos = new HashSet<>();
+        for (Future<List<Integer>> alta : altas) {
+            codigosNuevos.addAll(alta.get(60, TimeUnit.SECONDS));
+        }
+        reorganizacion.get(60, TimeUnit.SECONDS);
+        ejecutor.shutdown();
+
+        // Ningún incremento se ha perdido y no se ha repetido ningún código
+        for (int codigo : codigos) {
+            assertEquals(hilos * operaciones / codigos.length, gestor.cercaPerCodi(codigo).getStock());
+        }
+        assertEquals(hilos * operaciones / 20, codigosNuevos.size());
+        assertEquals(codigos.length + codigosNuevos.size(), (productosFile.length() - CapcaleraFitxer.TAMANO) / 69);
+        for (int codigo : codigosNuevos) {
+            assertEquals("NUEVO", gestor.cercaPerCodi(codigo).getNombre().strip());
+        }
+    }
+
+    @Test
+    public void testEsborrarDescatalogatsPorBloques() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            productos.add(new Producte("Prod" + i, 1.0, i % 5, i % 3 == 0));
+        }
+        gestor.afegirProductes(productos);
+
+        gestor.esborrarDescatalogats();
+
+        // Quedan los productos activos, en el mismo orden y con los índices actualizados
+        assertEquals(CapcaleraFitxer.posicion(13333), productosFile.length());
+        assertFalse(new File(productosFile.getPath() + ".compactant").exists());
+        assertEquals(0, gestor.cercaDescatalogats().size());
+        assertEquals("PROD19999", gestor.cercaPerCodi(20000).getNombre().strip());
+        assertThrows(ProducteNoExistentException.class, () -> gestor.cercaPerCodi(19999));
+        assertEquals(List.of(20000), gestor.cercaPerNom("prod19999").stream().map(Producte::getCodigo).toList());
+        assertEquals(4000 - 1334, gestor.cercaSenseStock().size());
+        assertEquals(20001, gestor.afegirProducte(new Producte("Nuevo", 1.0, 1, false)));
+    }
+
+    @Test
+    public void testCompactacionInterrumpida() throws IOException {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, true));
+        gestor.afegirProducte(new Producte("Prod2", 5.0, 5, false));
+
+        // Un fichero compactado a medias (por ejemplo, tras una caída) no afecta al fichero de productos
+        File compactado = new File(productosFile.getPath() + ".compactant");
+        Files.write(compactado.toPath(), new byte[100]);
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(CapcaleraFitxer.posicion(2), productosFile.length());
+        assertTrue(otroGestor.cercaPerCodi(1).isDescatalogado());
+
+        otroGestor.esborrarDescatalogats();
+        assertEquals(CapcaleraFitxer.posicion(1), productosFile.length());
+        assertFalse(compactado.exists());
+        assertEquals("PROD2", otroGestor.cercaPerCodi(2).getNombre().strip());
+    }
+
+    @Test
+    public void testConsultasDuranteCompactacion() throws Exception {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            productos.add(new Producte("Prod" + i, 1.0, 1, false));
+        }
+        int[] codigos = gestor.afegirProductes(productos);
+
+        ExecutorService ejecutor = Executors.newFixedThreadPool(4);
+        CountDownLatch salida = new CountDownLatch(1);
+        Future<?> compactacion = ejecutor.submit(() -> {
+            salida.await();
+            for (int i = 0; i < 10; i++) {
+                gestor.afegirProducte(new Producte("Descatalogado", 1.0, 1, true));
+                gestor.esborrarDescatalogats();
+            }
+            return null;
+        });
+
+        // Mientras se compacta, las consultas siempre ven un fichero completo
+        List<Future<?>> consultas = new ArrayList<>();
+        for (int h = 0; h < 3; h++) {
+            consultas.add(ejecutor.submit(() -> {
+                salida.await();
+                while (!compactacion.isDone()) {
+                    for (int i = 0; i < codigos.length; i += 97) {
+                        assertEquals(codigos[i], gestor.cercaPerCodi(codigos[i]).getCodigo());
+                    }
+                    assertEquals(0, gestor.cercaSenseStock().size());
+                }
+                return null;
+            }));
+        }
+
+        salida.countDown();
+        compactacion.get(60, TimeUnit.SECONDS);
+        for (Future<?> consulta : consultas) {
+            consulta.get(60, TimeUnit.SECONDS);
+        }
+        ejecutor.shutdown();
+
+        assertEquals(CapcaleraFitxer.posicion(2000), productosFile.length());
+    }
+
+    @Test
+    public void testExportacionIdentica() throws IOException {
+        double[] precios = {0, 5.0, 23.99, 0.125, 1.005, 2.675, 0.1 + 0.2, 1e-9, 99.995, 123456789.994,
+                1e10, 1e15, Double.MIN_VALUE, 0.045, 7.5};
+        String[] nombres = {"Prod", "Ñandú", "  Espacios", "Tab\tFin", "€uro", "x"};
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < precios.length * nombres.length; i++) {
+            productos.add(new Producte(nombres[i % nombres.length], precios[i % precios.length], i % 2, i % 3 == 0));
+        }
+        gestor.afegirProductes(productos);
+
+        Locale original = Locale.getDefault();
+        try {
+            // La salida debe coincidir byte a byte con la de printf, también con coma decimal
+            for (Locale locale : List.of(Locale.ROOT, Locale.forLanguageTag("es-ES"))) {
+                Locale.setDefault(locale);
+                gestor.exportarSenseStock();
+                gestor.exportarDescatalogats();
+                assertArrayEquals(exportacionPrintf(gestor.cercaSenseStock()), Files.readAllBytes(sinStockFile.toPath()));
+                assertArrayEquals(exportacionPrintf(gestor.cercaDescatalogats()),
+                        Files.readAllBytes(descatalogadoFile.toPath()));
+            }
+        } finally {
+            Locale.setDefault(original);
+        }
+    }
+
+    @Test
+    public void testExportacionComprimida() throws IOException {
+        // Suficientes productos para que la exportación ocupe varios bloques
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            productos.add(new Producte("Producto " + i, i * 0.37, 0, i % 5 == 0));
+        }
+        gestor.afegirProductes(productos);
+        gestor.exportarSenseStock();
+        byte[] esperado = Files.readAllBytes(sinStockFile.toPath());
+        assertTrue(esperado.length > 2 * EscriptorComprimit.TAMANO_BLOQUE);
+
+        gestor.setExportacioComprimida(true);
+        assertTrue(gestor.isExportacioComprimida());
+        gestor.exportarSenseStock();
+        File comprimido = new File(sinStockFile.getPath() + ".gz");
+        assertTrue(comprimido.length() < esperado.length);
+
+        // Cualquier lector gzip lee el fichero completo
+        try (GZIPInputStream gzip = new GZIPInputStream(Files.newInputStream(comprimido.toPath()))) {
+            assertArrayEquals(esperado, gzip.readAllBytes());
+        }
+
+        File descomprimido = new File(tempDir.toString(), "descomprimido.txt");
+        assertEquals(esperado.length, ArxiuComprimit.descomprimir(comprimido, descomprimido));
+        assertArrayEquals(esperado, Files.readAllBytes(descomprimido.toPath()));
+
+        // Fragmentos dentro de un bloque, entre dos bloques y al final del texto
+        long[] inicios = {0, 100, EscriptorComprimit.TAMANO_BLOQUE - 10, esperado.length - 5L};
+        for (long inicio : inicios) {
+            assertArrayEquals(Arrays.copyOfRange(esperado, (int) inicio, (int) Math.min(inicio + 50, esperado.length)),
+                    ArxiuComprimit.llegir(comprimido, inicio, 50));
+        }
+        assertEquals(0, ArxiuComprimit.llegir(comprimido, esperado.length, 10).length);
+
+        // Una exportación vacía también es un gzip válido
+        gestor.exportarDescatalogats();
+        gestor.esborrarDescatalogats();
+        gestor.exportarDescatalogats();
+        File vacio = new File(descatalogadoFile.getPath() + ".gz");
+        try (GZIPInputStream gzip = new GZIPInputStream(Files.newInputStream(vacio.toPath()))) {
+            assertEquals(0, gzip.readAllBytes().length);
+        }
+        assertEquals(0, ArxiuComprimit.descomprimir(vacio, descomprimido));
+
+        // Un bloque dañado se detecta
+        try (RandomAccessFile raf = new RandomAccessFile(comprimido, "rw")) {
+            raf.seek(EscriptorComprimit.TAMANO_CABECERA + 100);
+            raf.writeByte(raf.readByte() ^ 0x55);
+        }
+        assertThrows(IOException.class, () -> ArxiuComprimit.descomprimir(comprimido, descomprimido));
+        assertThrows(IOException.class, () -> ArxiuComprimit.llegir(sinStockFile, 0, 10));
+    }
+
+    @Test
+    public void testImportarExportacion() throws IOException {
+        gestor.afegirProducte(new Producte("Ratón óptico", 12.5, 0, false));
+        gestor.afegirProducte(new Producte("Con;punto y coma", 0.1 + 0.2, 0, false));
+        gestor.afegirProducte(new Producte("Con stock", 3.0, 5, false));
+        gestor.afegirProducte(new Producte("Teclado", 123456789.99, 0, false));
+        gestor.exportarSenseStock();
+
+        File otroFile = new File(tempDir.toString(), "otro.bin");
+        GestioProducte otro = new GestioProducte(otroFile, new File(tempDir.toString(), "a.txt"),
+                new File(tempDir.toString(), "b.txt"));
+        otro.afegirProducte(new Producte("Existente", 1.0, 1, false));
+
+        // Con códigos nuevos, en el orden del fichero
+        InformeImportacio informe = otro.importar(sinStockFile, false);
+        assertTrue(informe.isCorrecto());
+        assertEquals(3, informe.getNumLineas());
+        assertEquals(3, informe.getNumImportados());
+        assertEquals("RATÓN ÓPTICO", otro.cercaPerCodi(2).getNombre().strip());
+        assertEquals(12.5, otro.cercaPerCodi(2).getPrecio());
+        assertEquals("CON;PUNTO Y COMA", otro.cercaPerCodi(3).getNombre().strip());
+        assertEquals(0.3, otro.cercaPerCodi(3).getPrecio());
+        assertEquals(123456789.99, otro.cercaPerCodi(4).getPrecio());
+        assertEquals(3, otro.cercaSenseStock().size());
+        assertEquals(1, otro.cercaPerNom("teclado").size());
+        assertEquals(5, otro.afegirProducte(new Producte("Nuevo", 1.0, 1, false)));
+
+        // Conservando los códigos
+        GestioProducte copia = new GestioProducte(new File(tempDir.toString(), "copia.bin"),
+                new File(tempDir.toString(), "c.txt"), new File(tempDir.toString(), "d.txt"));
+        informe = copia.importar(sinStockFile, true);
+        assertEquals(3, informe.getNumImportados());
+        assertEquals(gestor.cercaPerCodi(4).getNombre(), copia.cercaPerCodi(4).getNombre());
+        assertThrows(ProducteNoExistentException.class, () -> copia.cercaPerCodi(3));
+        assertEquals(5, copia.afegirProducte(new Producte("Nuevo", 1.0, 1, false)));
+
+        // En el otro fichero los códigos 1 y 2 están ocupados y el 4 queda libre al eliminarlo
+        otro.esborrarProducte(4);
+        informe = otro.importar(sinStockFile, true);
+        assertEquals(1, informe.getNumImportados());
+        assertEquals("TECLADO", otro.cercaPerCodi(4).getNombre().strip());
+        assertArrayEquals(new long[]{1, 2}, informe.getLineasRechazadas());
+        assertEquals(ImportadorText.CODIGO_EXISTENTE, informe.getMotivos()[0]);
+    }
+
+    @Test
+    public void testImportarLineasRechazadas() throws IOException {
+        File texto = new File(tempDir.toString(), "importar.txt");
+        Files.writeString(texto.toPath(), String.join("\n",
+                "7;Correcto;1.50;2;false",
+                "8;Coma decimal;2,25;0;TRUE\r",
+                "",
+                "9;Faltan campos;1.00;false",
+                "x;Código no numérico;1.00;1;false",
+                "10;Precio;1.2.3;1;false",
+                "11;Negativo;-1.00;1;false",
+                "12;Stock;1.00;-3;false",
+                "13;Estado;1.00;1;quizá",
+                "14;" + "N".repeat(51) + ";1.00;1;false",
+                "7;Repetido;1.00;1;false",
+                "15;Sin salto final;-0.00;-0;false"));
+
+        InformeImportacio informe = gestor.importar(texto, true);
+        assertEquals(12, informe.getNumLineas());
+        assertEquals(3, informe.getNumImportados());
+        assertArrayEquals(new long[]{4, 5, 6, 7, 8, 9, 10, 11}, informe.getLineasRechazadas());
+        assertArrayEquals(new String[]{ImportadorText.CAMPOS_INCORRECTOS, ImportadorText.CODIGO_NO_VALIDO,
+                ImportadorText.PRECIO_NO_VALIDO, ImportadorText.PRECIO_NEGATIVO, ImportadorText.STOCK_NEGATIVO,
+                ImportadorText.ESTADO_NO_VALIDO, ImportadorText.NOMBRE_NO_VALIDO, ImportadorText.CODIGO_REPETIDO},
+                informe.getMotivos());
+
+        Producte coma = gestor.cercaPerCodi(8);
+        assertEquals("COMA DECIMAL", coma.getNombre().strip());
+        assertEquals(2.25, coma.getPrecio());
+        assertTrue(coma.isDescatalogado());
+        // El cero con signo se conserva, igual que en un alta
+        assertEquals(-0.0, gestor.cercaPerCodi(15).getPrecio());
+        assertEquals(List.of(7, 8, 15), gestor.cercaPerPrefix("").stream().map(Producte::getCodigo).toList());
+        assertEquals(16, gestor.afegirProducte(new Producte("Nuevo", 1.0, 1, false)));
+
+        // Un fichero inexistente no modifica nada
+        assertNull(gestor.importar(new File(tempDir.toString(), "no-existe.txt"), false));
+        assertEquals(4, gestor.cercaPerPrefix("").size());
+    }
+
+    @Test
+    public void testImportarVariosTramos() throws IOException {
+        // Suficientes líneas para repartirlas en varios tramos
+        File texto = new File(tempDir.toString(), "grande.txt");
+        int lineas = 3 * ImportadorText.TAMANO_TRAMO / 30;
+        try (PrintWriter pw = new PrintWriter(Files.newBufferedWriter(texto.toPath()))) {
+            for (int i = 1; i <= lineas; i++) {
+                pw.print(i + ";prod" + i + ";" + (i % 1000) + ".25;" + (i % 7) + ";" + (i % 11 == 0) + "\n");
+            }
+        }
+        assertTrue(texto.length() > 2L * ImportadorText.TAMANO_TRAMO);
+
+        InformeImportacio informe = gestor.importar(texto, true);
+        assertTrue(informe.isCorrecto());
+        assertEquals(lineas, informe.getNumImportados());
+        for (int codigo : new int[]{1, lineas / 3, lineas / 3 + 1, lineas / 2, lineas}) {
+            Producte p = gestor.cercaPerCodi(codigo);
+            assertEquals("PROD" + codigo, p.getNombre().strip());
+            assertEquals(codigo % 1000 + 0.25, p.getPrecio());
+            assertEquals(codigo % 7, p.getStock());
+            assertEquals(codigo % 11 == 0, p.isDescatalogado());
+        }
+        assertEquals(lineas / 11, gestor.cercaDescatalogats().size());
+    }
+
+    @Test
+    public void testFluxos() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            productos.add(new Producte((i % 2 == 0 ? "Mouse" : "Teclado") + (i % 10), 1.0, i % 4, i % 3 == 0));
+        }
+        gestor.afegirProductes(productos);
+
+        // Devuelven lo mismo que las búsquedas que construyen la lista
+        try (Stream<Producte> flux = gestor.fluxSenseStock()) {
+            assertEquals(codigos(gestor.cercaSenseStock()), codigos(flux.toList()));
+        }
+        try (Stream<Producte> flux = gestor.fluxDescatalogats()) {
+            assertEquals(codigos(gestor.cercaDescatalogats()), codigos(flux.toList()));
+        }
+        try (Stream<Producte> flux = gestor.fluxPerNom("mouse2")) {
+            assertEquals(codigos(gestor.cercaPerNom("mouse2")), codigos(flux.toList()));
+        }
+        try (Stream<Producte> flux = gestor.fluxPerPrefix("tec")) {
+            assertEquals(1500, flux.count());
+        }
+
+        // Terminación anticipada
+        try (Stream<Producte> flux = gestor.fluxPerPrefix("mou")) {
+            assertEquals(List.of(1, 3, 5), codigos(flux.limit(3).toList()));
+        }
+        try (Stream<Producte> flux = gestor.fluxPerNom("inexistente")) {
+            assertTrue(flux.findFirst().isEmpty());
+        }
+    }
+
+    @Test
+    public void testFluxDuranteCompactacion() {
+        for (int i = 0; i < 10; i++) {
+            gestor.afegirProducte(new Producte("Prod" + i, 1.0, 0, i % 2 == 0));
+        }
+
+        // El recorrido abierto antes de compactar sigue leyendo el fichero que había al abrirlo
+        try (Stream<Producte> flux = gestor.fluxDescatalogats()) {
+            Iterator<Producte> it = flux.iterator();
+            assertEquals(1, it.next().getCodigo());
+            gestor.esborrarDescatalogats();
+            assertEquals(3, it.next().getCodigo());
+            List<Integer> resto = new ArrayList<>();
+            it.forEachRemaining(p -> resto.add(p.getCodigo()));
+            assertEquals(List.of(5, 7, 9), resto);
+        }
+
+        try (Stream<Producte> flux = gestor.fluxDescatalogats()) {
+            assertEquals(0, flux.count());
+        }
+        try (Stream<Producte> flux = gestor.fluxSenseStock()) {
+            assertEquals(List.of(2, 4, 6, 8, 10), codigos(flux.toList()));
+        }
+    }
+
+    @Test
+    public void testRecorridoParalelo() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            productos.add(new Producte((i % 3 == 0 ? "Mouse" : "Teclado") + (i % 7), 1.0 + i, i % 2, i % 5 == 0));
+        }
+        gestor.afegirProductes(productos);
+
+        // Con umbral 0, las búsquedas con muchos resultados recorren el fichero en paralelo
+        gestor.setLlindarParallel(Integer.MAX_VALUE);
+        List<Producte> sinStock = gestor.cercaSenseStock();
+        List<Producte> descatalogados = gestor.cercaDescatalogats();
+        List<Producte> prefijo = gestor.cercaPerPrefix("mou");
+        List<Producte> nombre = gestor.cercaPerNom("teclado4");
+
+        gestor.setLlindarParallel(0);
+        assertEquals(codigos(sinStock), codigos(gestor.cercaSenseStock()));
+        assertEquals(codigos(descatalogados), codigos(gestor.cercaDescatalogats()));
+        assertEquals(codigos(prefijo), codigos(gestor.cercaPerPrefix("mou")));
+        assertEquals(codigos(nombre), codigos(gestor.cercaPerNom("teclado4")));
+
+        // Los resultados se devuelven en orden de código y completos
+        Producte ultimo = gestor.cercaPerPrefix("").get(99999);
+        assertEquals(100000, ultimo.getCodigo());
+        assertEquals(100000.0, ultimo.getPrecio());
+        assertEquals("MOUSE4", ultimo.getNombre().strip());
+
+        assertThrows(IllegalArgumentException.class, () -> gestor.setLlindarParallel(-1));
+    }
+
+    @Test
+    public void testCercaCondicio() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            productos.add(new Producte((i % 2 == 0 ? "Mouse" : "Teclado") + (i % 10), i % 100, i % 7, i % 9 == 0));
+        }
+        gestor.afegirProductes(productos);
+        List<Producte> todos = gestor.cercaPerPrefix("");
+
+        List<Condicio> condiciones = List.of(
+                Condicio.preuEntre(10, 20.5),
+                Condicio.stockMenorQue(2).i(Condicio.descatalogat().no()),
+                Condicio.nom("mouse4").i(Condicio.stockEntre(3, 5)),
+                Condicio.prefix("tec").i(Condicio.descatalogat()),
+                Condicio.nom("mouse2").o(Condicio.codi(7)).o(Condicio.senseStock()),
+                Condicio.senseStock().o(Condicio.preuEntre(99, 99)),
+                Condicio.codiEntre(100, 120).i(Condicio.prefix("mou").no()),
+                Condicio.codi(5000));
+
+        // Con y sin recorrido en paralelo, el resultado es el de filtrar todos los productos
+        for (int llindar : List.of(Integer.MAX_VALUE, 0)) {
+            gestor.setLlindarParallel(llindar);
+            for (Condicio condicio : condiciones) {
+                assertEquals(codigos(todos.stream().filter(condicio).toList()), codigos(gestor.cerca(condicio)),
+                        condicio.toString());
+            }
+        }
+        assertEquals("(nombre = 'MOUSE4' y stock entre 3 y 5)", condiciones.get(2).toString());
+    }
+
+    @Test
+    public void testVisita() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            productos.add(new Producte((i % 2 == 0 ? "Mouse" : "Teclado") + (i % 10), i % 100, i % 7, i % 9 == 0));
+        }
+        gestor.afegirProductes(productos);
+        gestor.esborrarProducte(3);
+        List<Producte> todos = gestor.cercaPerPrefix("");
+
+        // Con índice (pocos candidatos), recorriendo el fichero y sin condición, igual que cerca()
+        for (Condicio condicio : List.of(Condicio.nom("mouse4").i(Condicio.stockEntre(3, 5)), Condicio.codi(7),
+                Condicio.preuEntre(10, 20.5), Condicio.senseStock().o(Condicio.preuEntre(99, 99)))) {
+            List<Producte> visitados = new ArrayList<>();
+            gestor.visita(condicio, vista -> visitados.add(vista.aProducte()));
+            assertEquals(codigos(gestor.cerca(condicio)), codigos(visitados), condicio.toString());
+        }
+
+        long[] stock = {0};
+        int[] visitados = {0};
+        gestor.visita(null, vista -> {
+            stock[0] += vista.stock();
+            visitados[0]++;
+        });
+        assertEquals(todos.size(), visitados[0]);
+        assertEquals(todos.stream().mapToLong(Producte::getStock).sum(), stock[0]);
+
+        // Los campos de la vista corresponden al registro sobre el que está situada
+        byte[] nombre = ProducteView.codificarNombre("teclado5");
+        byte[] prefijo = ProducteView.codificarPrefijo("mou");
+        gestor.visita(Condicio.codi(6), vista -> {
+            assertEquals(6, vista.codigo());
+            assertEquals(5.0, vista.precio());
+            assertEquals(5, vista.stock());
+            assertFalse(vista.descatalogado());
+            assertTrue(vista.nombreIgual(nombre));
+            assertFalse(vista.nombreEmpiezaPor(prefijo));
+            byte[] bytes = new byte[vista.longitudNombre()];
+            assertEquals(50, vista.copiarNombre(bytes));
+            assertEquals("TECLADO5", new String(bytes).strip());
+            assertEquals("TECLADO5", vista.nombre().strip());
+        });
+    }
+
+    @Test
+    public void testCercaCondicioIndiceDesactualizado() throws IOException {
+        gestor.afegirProducte(new Producte("Mouse", 5.0, 0, false));
+        gestor.afegirProducte(new Producte("Teclado", 5.0, 3, false));
+
+        // Se modifica el fichero desde fuera sin cambiar su tamaño: el índice de estado no lo detecta
+        byte[] bytes = Files.readAllBytes(productosFile.toPath());
+        bytes[CapcaleraFitxer.TAMANO + RegistreProducte.OFFSET_STOCK + 3] = 2;
+        bytes[(int) CapcaleraFitxer.posicion(1) + RegistreProducte.OFFSET_STOCK + 3] = 0;
+        Files.write(productosFile.toPath(), bytes);
+
+        assertEquals(List.of(2), codigos(gestor.cerca(Condicio.senseStock().i(Condicio.preuEntre(0, 10)))));
+    }
+
+    @Test
+    public void testVisitaIndiceDesactualizado() throws IOException {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            productos.add(new Producte("Prod" + i, 5.0, i == 1 || i == 3 ? 0 : 3, false));
+        }
+        gestor.afegirProductes(productos);
+
+        // Desde fuera, el producto 3 pasa a estar sin stock y el 4 deja de estarlo
+        byte[] bytes = Files.readAllBytes(productosFile.toPath());
+        bytes[(int) CapcaleraFitxer.posicion(2) + RegistreProducte.OFFSET_STOCK + 3] = 0;
+        bytes[(int) CapcaleraFitxer.posicion(3) + RegistreProducte.OFFSET_STOCK + 3] = 2;
+        Files.write(productosFile.toPath(), bytes);
+
+        // El índice descubre con el 4 que está desactualizado: se reconstruye antes de entregar nada, así que el
+        // recorrido incluye el 3 sin repetir el 2
+        List<Integer> visitados = new ArrayList<>();
+        gestor.visita(Condicio.senseStock(), vista -> visitados.add(vista.codigo()));
+        assertEquals(List.of(2, 3), visitados);
+        assertEquals(List.of(2, 3), codigos(gestor.cerca(Condicio.senseStock())));
+    }
+
+    @Test
+    public void testVisitaModificaGestor() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            productos.add(new Producte("Prod" + i, 1.0, 5, false));
+        }
+        gestor.afegirProductes(productos);
+        for (int codigo = 2; codigo <= 20000; codigo += 2) {
+            gestor.esborrarProducte(codigo);
+        }
+
+        // La acción modifica el gestor y lo compacta a mitad del recorrido sin bloquearse, y el recorrido sigue
+        // entregando cada registro una sola vez
+        List<Integer> visitados = new ArrayList<>();
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> gestor.visita(null, vista -> {
+            visitados.add(vista.codigo());
+            if (vista.codigo() % 1000 == 1) {
+                gestor.modificarStock(vista.codigo(), 5, false);
+            }
+            if (vista.codigo() == 1) {
+                gestor.compactar();
+            }
+        }));
+        assertEquals(10000, visitados.size());
+        assertEquals(10000, new HashSet<>(visitados).size());
+        assertEquals(20, gestor.cercaSenseStock().size());
+
+        // Con índice la acción también puede modificar los productos que recibe
+        gestor.visita(Condicio.senseStock(), vista -> gestor.modificarStock(vista.codigo(), 3, true));
+        assertTrue(gestor.cercaSenseStock().isEmpty());
+    }
+
+    @Test
+    public void testResumInventari() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            productos.add(new Producte("Prod" + (i % 10), i % 100 + 0.5, i % 7, i % 9 == 0));
+        }
+        gestor.afegirProductes(productos);
+
+        for (int llindar : List.of(Integer.MAX_VALUE, 0)) {
+            gestor.setLlindarParallel(llindar);
+            for (Condicio condicio : Arrays.asList(null, Condicio.nom("prod3"), Condicio.preuEntre(10, 20),
+                    Condicio.descatalogat().o(Condicio.senseStock()), Condicio.codi(-1))) {
+                List<Producte> esperados = gestor.cerca(condicio == null ? Condicio.codiEntre(1, Integer.MAX_VALUE)
+                        : condicio);
+                ResumInventari resumen = gestor.resumInventari(condicio);
+
+                assertEquals(esperados.size(), resumen.getNumProductos());
+                assertEquals(esperados.stream().filter(p -> p.getStock() == 0 && !p.isDescatalogado()).count(),
+                        resumen.getNumSinStock());
+                assertEquals(esperados.stream().filter(Producte::isDescatalogado).count(),
+                        resumen.getNumDescatalogados());
+                assertEquals(esperados.stream().mapToLong(Producte::getStock).sum(), resumen.getStockTotal());
+                assertEquals(esperados.stream().mapToDouble(p -> p.getPrecio() * p.getStock()).sum(),
+                        resumen.getValorTotal());
+                assertEquals(esperados.stream().mapToDouble(Producte::getPrecio).min().orElse(Double.NaN),
+                        resumen.getPrecioMinimo());
+                assertEquals(esperados.stream().mapToDouble(Producte::getPrecio).max().orElse(Double.NaN),
+                        resumen.getPrecioMaximo());
+                assertEquals(esperados.stream().mapToDouble(Producte::getPrecio).average().orElse(Double.NaN),
+                        resumen.getPrecioMedio(), 1e-9);
+            }
+        }
+
+        ResumInventari total = gestor.resumInventari();
+        assertEquals(100000, total.getNumActivos() + total.getNumSinStock() + total.getNumDescatalogados());
+        assertEquals(0.5, total.getPrecioMinimo());
+        assertEquals(99.5, total.getPrecioMaximo());
+    }
+
+    @Test
+    public void testDiariReproducido() throws Exception {
+        gestor.afegirProductes(List.of(
+                new Producte("Prod1", 5.0, 5, false),
+                new Producte("Prod2", 6.0, 6, false),
+                new Producte("Prod3", 7.0, 7, false)));
+        gestor.modificarStock(1, 5, false);
+        gestor.descatalogarProducte(2);
+        gestor.modificarProducte(new Producte(3, "Raton", 8.0, 2, false));
+
+        // Simulamos una interrupción a mitad de la escritura de los tres registros y de una anotación del diario
+        File diario = new File(productosFile.getPath() + ".wal");
+        assertEquals(3 * DiariCanvis.TAMANO_ENTRADA, diario.length());
+        try (RandomAccessFile raf = new RandomAccessFile(productosFile, "rw")) {
+            for (int i = 0; i < 3; i++) {
+                raf.seek(CapcaleraFitxer.posicion(i) + 30);
+                raf.write(new byte[39]);
+            }
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(diario, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[40]);
+        }
+
+        // Al abrir de nuevo el fichero se aplica el diario y se reconstruyen los índices
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(0, diario.length());
+        assertEquals(0, otroGestor.cercaPerCodi(1).getStock());
+        assertEquals("PROD2", otroGestor.cercaPerCodi(2).getNombre().strip());
+        assertEquals(8.0, otroGestor.cercaPerCodi(3).getPrecio());
+        assertEquals(List.of(1), codigos(otroGestor.cercaSenseStock()));
+        assertEquals(List.of(2), codigos(otroGestor.cercaDescatalogats()));
+        assertEquals(List.of(3), codigos(otroGestor.cercaPerNom("raton")));
+    }
+
+    @Test
+    public void testPuntControl() throws Exception {
+        gestor.afegirProductes(List.of(
+                new Producte("Prod1", 5.0, 5, false),
+                new Producte("Prod2", 6.0, 6, false),
+                new Producte("Prod3", 7.0, 7, false)));
+        File diario = new File(productosFile.getPath() + ".wal");
+
+        gestor.modificarStocks(List.of(new MovimentStock(1, 2), new MovimentStock(3, -7)));
+        assertEquals(2 * DiariCanvis.TAMANO_ENTRADA, diario.length());
+        gestor.puntControl();
+        assertEquals(0, diario.length());
+        assertEquals(7, gestor.cercaPerCodi(1).getStock());
+        assertEquals(List.of(3), codigos(gestor.cercaSenseStock()));
+
+        // La compactación cambia las posiciones, así que antes aplica el diario para no reproducirlo después
+        gestor.descatalogarProducte(1);
+        gestor.modificarStock(2, 1, true);
+        gestor.esborrarDescatalogats();
+        assertEquals(0, diario.length());
+
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(List.of(2, 3), codigos(otroGestor.cercaPerPrefix("prod")));
+        assertEquals(7, otroGestor.cercaPerCodi(2).getStock());
+    }
+
+    @Test
+    public void testEsborrarProducte() {
+        gestor.afegirProductes(List.of(
+                new Producte("Prod1", 5.0, 0, false),
+                new Producte("Prod2", 6.0, 6, false),
+                new Producte("Prod3", 7.0, 0, false)));
+        long longitud = productosFile.length();
+
+        gestor.esborrarProducte(1);
+        assertThrows(ProducteNoExistentException.class, () -> gestor.cercaPerCodi(1));
+        assertThrows(ProducteNoExistentException.class, () -> gestor.esborrarProducte(1));
+        assertEquals(List.of(3), codigos(gestor.cercaSenseStock()));
+        assertEquals(List.of(2, 3), codigos(gestor.cercaPerPrefix("prod")));
+        assertTrue(gestor.cercaPerNom("Prod1").isEmpty());
+        assertEquals(2, gestor.resumInventari().getNumProductos());
+        assertEquals(longitud, productosFile.length());
+
+        // El alta reutiliza el registro libre, pero no el código eliminado
+        int codigo = gestor.afegirProducte(new Producte("Prod4", 8.0, 8, false));
+        assertEquals(4, codigo);
+        assertEquals(longitud, productosFile.length());
+        assertEquals(5, gestor.afegirProducte(new Producte("Prod5", 9.0, 9, false)));
+        assertEquals(longitud + RegistreProducte.TAMANO, productosFile.length());
+
+        gestor.esborrarProducte(5);
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(List.of(2, 3, 4), codigos(otroGestor.cercaPerPrefix("prod")).stream().sorted().toList());
+        assertEquals(6, otroGestor.afegirProducte(new Producte("Prod6", 1.0, 1, false)));
+
+        otroGestor.esborrarProducte(6);
+        otroGestor.descatalogarProducte(2);
+        otroGestor.compactar();
+        assertEquals(CapcaleraFitxer.posicion(3), productosFile.length());
+        assertTrue(otroGestor.cercaPerCodi(2).isDescatalogado());
+        assertEquals(7, otroGestor.afegirProducte(new Producte("Prod7", 1.0, 1, false)));
+    }
+
+    @Test
+    public void testMigracionSinCabecera() throws IOException {
+        // Fichero con el formato anterior: registros sin cabecera, uno libre y un registro final incompleto
+        ByteBuffer registros = ByteBuffer.allocate(3 * RegistreProducte.TAMANO + 10);
+        Producte primero = new Producte(1, "Prod1", 5.0, 5, false);
+        Producte ultimo = new Producte(5, "Prod5", 6.0, 0, false);
+        RegistreProducte.validarDatos(primero);
+        RegistreProducte.validarDatos(ultimo);
+        RegistreProducte.escribir(registros, 0, primero);
+        RegistreProducte.escribir(registros, 2 * RegistreProducte.TAMANO, ultimo);
+        Files.write(productosFile.toPath(), registros.array());
+
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(CapcaleraFitxer.posicion(3), productosFile.length());
+        byte[] bytes = Files.readAllBytes(productosFile.toPath());
+        assertEquals(CapcaleraFitxer.MAGICO, ByteBuffer.wrap(bytes).getInt());
+        assertEquals("PROD5", otroGestor.cercaPerCodi(5).getNombre().strip());
+        assertEquals(List.of(5), codigos(otroGestor.cercaSenseStock()));
+
+        // La secuencia continúa después del mayor código y el registro libre se reutiliza
+        assertEquals(6, otroGestor.afegirProducte(new Producte("Prod6", 7.0, 7, false)));
+        assertEquals(CapcaleraFitxer.posicion(3), productosFile.length());
+
+        CapcaleraFitxer capcalera = new CapcaleraFitxer(productosFile);
+        capcalera.abrir();
+        assertEquals(3, capcalera.numRegistros());
+        assertEquals(3, capcalera.numActivos());
+        assertEquals(7, capcalera.reservarCodigos(1));
+    }
+
+    @Test
+    public void testCapcaleraRegistroIncompleto() throws IOException {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+        gestor.afegirProducte(new Producte("Prod2", 6.0, 6, false));
+        gestor.esborrarProducte(1);
+
+        // Un alta interrumpida antes de actualizar la cabecera no cambia el número de registros
+        try (RandomAccessFile raf = new RandomAccessFile(productosFile, "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[30]);
+        }
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(CapcaleraFitxer.posicion(2), productosFile.length());
+        assertEquals(1, otroGestor.resumInventari().getNumProductos());
+
+        CapcaleraFitxer capcalera = new CapcaleraFitxer(productosFile);
+        capcalera.abrir();
+        assertEquals(2, capcalera.numRegistros());
+        assertEquals(1, capcalera.numActivos());
+        assertEquals(3, otroGestor.afegirProducte(new Producte("Prod3", 7.0, 7, false)));
+    }
+
+    @Test
+    public void testIndiceSinReconstruirPorAltasPropias() throws IOException {
+        File fichero = new File(tempDir.toString(), "cabecera.bin");
+        Files.write(fichero.toPath(), new byte[0]);
+        try (CapcaleraFitxer capcalera = new CapcaleraFitxer(fichero);
+             FileChannel canal = FileChannel.open(fichero.toPath(), StandardOpenOption.READ,
+                     StandardOpenOption.WRITE)) {
+            capcalera.abrir();
+            IndexCodis indice = new IndexCodis(fichero, RegistreProducte.TAMANO, capcalera);
+
+            // Entrada que no corresponde a ningún registro: desaparece si el índice se reconstruye
+            indice.anadir(999, 0);
+
+            // Un lector en mitad de un alta propia (registro escrito, cabecera aún no) no reconstruye el índice
+            escribirRegistro(canal, 0, new Producte(1, "Prod1", 5.0, 5, false));
+            assertEquals(0, indice.buscar(999));
+            capcalera.registrarAltas(canal, 1, 1);
+            indice.anadir(1, 0);
+            assertEquals(0, indice.buscar(999));
+            assertEquals(0, capcalera.cambiosExternos());
+
+            // Un alta de otro gestor sí se detecta, aunque no cambie la longitud del fichero
+            try (CapcaleraFitxer otraCapcalera = new CapcaleraFitxer(fichero)) {
+                otraCapcalera.abrir();
+                escribirRegistro(canal, 1, new Producte(2, "Prod2", 6.0, 6, false));
+                otraCapcalera.registrarAltas(canal, 1, 1);
+            }
+
+            // Hasta la siguiente comprobación (al empezar la siguiente operación) se utiliza la cabecera en memoria
+            assertEquals(1, capcalera.numRegistros());
+            assertEquals(0, indice.buscar(999));
+            capcalera.comprobar();
+            assertEquals(-1, indice.buscar(999));
+            assertEquals(1, indice.buscar(2));
+            assertEquals(2, capcalera.numRegistros());
+            assertEquals(1, capcalera.cambiosExternos());
+        }
+    }
+
+    @Test
+    public void testLateralesAlDiaSinCerrar() throws Exception {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            productos.add(new Producte("Prod" + i, 1.0, i % 10, false));
+        }
+        gestor.afegirProductes(productos);
+        gestor.esborrarProducte(10);
+        gestor.afegirProducte(new Producte("Nuevo", 2.0, 3, false));
+        gestor.modificarStock(20, 5, true);
+        gestor.descatalogarProducte(30);
+
+        // Sin cerrar el gestor, el siguiente no debe reescribir ningún fichero lateral
+        File[] laterales = {new File(productosFile.getPath() + ".idx"), new File(productosFile.getPath() + ".nom"),
+                new File(productosFile.getPath() + ".bmp"), new File(productosFile.getPath() + ".lliures")};
+        for (File lateral : laterales) {
+            assertTrue(lateral.setLastModified(0));
+        }
+        GestioProducte otro = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        for (File lateral : laterales) {
+            assertEquals(0, lateral.lastModified(), lateral.getName());
+        }
+
+        assertEquals(1001, otro.cercaPerCodi(1001).getCodigo());
+        assertThrows(ProducteNoExistentException.class, () -> otro.cercaPerCodi(10));
+        assertEquals(1, otro.cercaPerNom("Nuevo").size());
+        assertTrue(otro.cercaDescatalogats().stream().anyMatch(p -> p.getCodigo() == 30));
+    }
+
+    @Test
+    public void testLecturasDuranteAltas() throws Exception {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+        ExecutorService lector = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch terminado = new CountDownLatch(1);
+            Future<Integer> lecturas = lector.submit(() -> {
+                int total = 0;
+                while (terminado.getCount() > 0) {
+                    assertEquals(5, gestor.cercaPerCodi(1).getStock());
+                    total++;
+                }
+                return total;
+            });
+            for (int i = 2; i <= 300; i++) {
+                assertEquals(i, gestor.afegirProducte(new Producte("Prod" + i, 1.0, i, false)));
+            }
+            terminado.countDown();
+            assertTrue(lecturas.get(10, TimeUnit.SECONDS) > 0);
+        } finally {
+            lector.shutdownNow();
+        }
+
+        // Las altas del propio gestor no cuentan como cambios externos
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertEquals(300, otroGestor.cercaPerCodi(300).getStock());
+        assertEquals(300, gestor.resumInventari().getNumProductos());
+    }
+
+    /**
+     * Escribe un producto en la posición indicada de un fichero con cabecera, sin actualizarla.
+     */
+    private static void escribirRegistro(FileChannel canal, int posicion, Producte p) throws IOException {
+        ByteBuffer registro = ByteBuffer.allocate(RegistreProducte.TAMANO);
+        RegistreProducte.validarDatos(p);
+        RegistreProducte.escribir(registro, 0, p);
+        canal.write(registro, CapcaleraFitxer.posicion(posicion));
+    }
+
+    /**
+     * @return códigos de los productos, en el mismo orden.
+     */
+    private static List<Integer> codigos(List<Producte> productos) {
+        return productos.stream().map(Producte::getCodigo).toList();
+    }
+
+    /**
+     * Exporta los productos como lo hacía la implementación original, con {@code PrintWriter.printf}.
+     */
+    private byte[] exportacionPrintf(List<Producte> productos) throws IOException {
+        File referencia = new File(tempDir.toString(), "referencia.txt");
+        try (PrintWriter pw = new PrintWriter(referencia)) {
+            for (Producte p : productos) {
+                pw.printf("%d;%s;%.2f;%d;%b\n",
+                        p.getCodigo(), p.getNombre().strip(), p.getPrecio(), p.getStock(), p.isDescatalogado());
+            }
+        }
+        return Files.readAllBytes(referencia.toPath());
+    }
+
+    @Test
+    public void testVerificarIntegritat() throws IOException {
+        assertThrows(IllegalStateException.class, () -> gestor.verificarIntegritat());
+
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            productos.add(new Producte("Prod" + i, i, i, false));
+        }
+        gestor.afegirProductes(productos);
+        gestor.activarSumesControl();
+        gestor.afegirProducte(new Producte("Prod21", 21.0, 21, false));
+        gestor.modificarStock(2, 5, true);
+        gestor.modificarStocks(List.of(new MovimentStock(3, -1), new MovimentStock(4, 2)));
+        gestor.descatalogarProducte(5);
+        gestor.esborrarProducte(6);
+        assertTrue(gestor.verificarIntegritat().isCorrecto());
+
+        // Corrompemos el stock del registro 1 (producto 2) sin pasar por el gestor. Antes vaciamos el diario, que
+        // si no restauraría el registro al crear el siguiente gestor
+        gestor.puntControl();
+        try (RandomAccessFile raf = new RandomAccessFile(productosFile, "rw")) {
+            raf.seek(CapcaleraFitxer.posicion(1) + RegistreProducte.OFFSET_STOCK);
+            raf.writeInt(999);
+        }
+
+        // Las sumas siguen activadas en un gestor nuevo y la verificación en paralelo detecta el mismo registro
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        otroGestor.setLlindarParallel(0);
+        InformeIntegritat informe = otroGestor.verificarIntegritat();
+        assertEquals(21, informe.getNumRegistros());
+        assertArrayEquals(new int[]{1}, informe.getRegistrosCorruptos());
+        assertArrayEquals(new int[]{1}, gestor.verificarIntegritat().getRegistrosCorruptos());
+
+        // Al compactar se recalculan las sumas de los registros copiados
+        gestor.modificarProducte(new Producte(2, "Prod2", 2.0, 7, false));
+        gestor.esborrarDescatalogats();
+        informe = gestor.verificarIntegritat();
+        assertEquals(19, informe.getNumRegistros());
+        assertTrue(informe.isCorrecto());
+    }
+
+    @Test
+    public void testModeEstricte() throws IOException {
+        gestor.afegirProducte(new Producte("Prod1", 5.0, 5, false));
+        gestor.afegirProducte(new Producte("Prod2", 6.0, 6, false));
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 3; i <= 200; i++) {
+            productos.add(new Producte("Prod" + i, 1.0, 1, false));
+        }
+        gestor.afegirProductes(productos);
+        gestor.activarSumesControl();
+        try (RandomAccessFile raf = new RandomAccessFile(productosFile, "rw")) {
+            raf.seek(CapcaleraFitxer.posicion(1) + RegistreProducte.OFFSET_STOCK);
+            raf.writeInt(999);
+        }
+
+        // Sin modo estricto se devuelve el contenido corrupto
+        assertFalse(gestor.isModeEstricte());
+        assertEquals(999, gestor.cercaPerCodi(2).getStock());
+
+        gestor.setModeEstricte(true);
+        assertThrows(RegistreCorrupteException.class, () -> gestor.cercaPerCodi(2));
+        assertThrows(RegistreCorrupteException.class, () -> gestor.cercaPerNom("Prod2"));
+        assertThrows(RegistreCorrupteException.class, () -> gestor.visita(Condicio.nom("prod2"), vista -> { }));
+        assertEquals(1, gestor.cercaPerNom("Prod1").size());
+        assertThrows(RegistreCorrupteException.class, () -> gestor.modificarStock(2, 1, true));
+        assertThrows(RegistreCorrupteException.class,
+                () -> gestor.modificarStocks(List.of(new MovimentStock(2, 1))));
+        assertEquals(5, gestor.cercaPerCodi(1).getStock());
+        gestor.modificarStock(1, 1, true);
+        assertEquals(6, gestor.cercaPerCodi(1).getStock());
+    }
+
+    @Test
+    public void testColumnes() {
+        List<Producte> productos = new ArrayList<>();
+        for (int i = 1; i <= 30; i++) {
+            productos.add(new Producte("Prod" + i, i * 1.5, i % 7, i % 10 == 0));
+        }
+        gestor.afegirProductes(productos);
+        ResumInventari antes = gestor.resumInventari();
+        gestor.activarColumnes();
+        assertTrue(new File(productosFile.getPath() + ".col.stock").exists());
+        assertResumIgual(antes, gestor.resumInventari());
+
+        // Todas las escrituras mantienen las columnas; una condición sobre todos los códigos recorre los registros
+        Condicio todos = Condicio.codiEntre(1, Integer.MAX_VALUE);
+        gestor.afegirProducte(new Producte("Prod31", 99.0, 3, false));
+        gestor.modificarStock(2, 5, true);
+        gestor.modificarStocks(List.of(new MovimentStock(3, -1), new MovimentStock(4, 2)));
+        gestor.modificarProducte(new Producte(8, "Prod8", 0.5, 0, false));
+        gestor.descatalogarProducte(5);
+        gestor.esborrarProducte(6);
+        assertResumIgual(gestor.resumInventari(todos), gestor.resumInventari());
+        gestor.setLlindarParallel(0);
+        assertResumIgual(gestor.resumInventari(todos), gestor.resumInventari());
+
+        // Al compactar se escriben las columnas de los registros copiados
+        gestor.esborrarDescatalogats();
+        assertEquals(26, gestor.resumInventari().getNumProductos());
+        assertResumIgual(gestor.resumInventari(todos), gestor.resumInventari());
+
+        // Un gestor nuevo vuelve a calcular las columnas que faltan
+        assertTrue(new File(productosFile.getPath() + ".col.precio").delete());
+        GestioProducte otroGestor = new GestioProducte(productosFile, sinStockFile, descatalogadoFile);
+        assertResumIgual(otroGestor.resumInventari(todos), otroGestor.resumInventari());
+    }
+
+    private static void assertResumIgual(ResumInventari esperado, ResumInventari resumen) {
+        assertEquals(esperado.getNumProductos(), resumen.getNumProductos());
+        assertEquals(esperado.getNumSinStock(), resumen.getNumSinStock());
+        assertEquals(esperado.getNumDescatalogados(), resumen.getNumDescatalogados());
+        assertEquals(esperado.getStockTotal(), resumen.getStockTotal());
+        assertEquals(esperado.getValorTotal(), resumen.getValorTotal(), 1e-9);
+        assertEquals(esperado.getPrecioMinimo(), resumen.getPrecioMinimo());
+        assertEquals(esperado.getPrecioMaximo(), resumen.getPrecioMaximo());
+        assertEquals(esperado.getPrecioMedio(), resumen.getPrecioMedio(), 1e-9);
+    }
+}